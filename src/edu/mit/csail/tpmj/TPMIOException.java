@@ -34,6 +34,8 @@ import edu.mit.csail.tpmj.structs.TPMInputStruct;
 
 public class TPMIOException extends TPMException
 {
+    private boolean commandSent = false;
+
     public TPMIOException( Exception e )
     {
         super( e );
@@ -53,5 +55,21 @@ public class TPMIOException extends TPMException
     {
         super( new ByteArrayTPMInputStruct( inputBytes ), e );
     }
+
+    /**
+     * Returns true if the error happened after the whole command had been
+     * sent, in which case the TPM may have executed it.
+     * (BasicTPMDriver only retries such a command if its retry policy
+     * says that it is idempotent.)
+     */
+    public boolean isCommandSent()
+    {
+        return this.commandSent;
+    }
+
+    public void setCommandSent( boolean commandSent )
+    {
+        this.commandSent = commandSent;
+    }
     
 }
@@ -36,9 +36,11 @@ import edu.mit.csail.tpmj.funcs.TPMAuthOutDataMismatchException;
 import edu.mit.csail.tpmj.funcs.TPMAuthSessionStateException;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.structs.TPMAuthInData;
+import edu.mit.csail.tpmj.structs.TPMOutputStruct;
 import edu.mit.csail.tpmj.structs.TPM_DIGEST;
 import edu.mit.csail.tpmj.structs.TPM_NONCE;
 import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 import edu.mit.csail.tpmj.util.CryptoUtil;
 import edu.mit.csail.tpmj.util.Debug;
 
@@ -292,6 +294,46 @@ public abstract class TPMAuth1Command extends TPMCommand
         }
     }
 
+    /**
+     * Like execute( authSession, continueAuthSession ), but if the TPM
+     * returns an error code (e.g., TPM_AUTHFAIL), returns a result with
+     * that code instead of throwing a TPMErrorReturnCodeException.
+     * (In that case, the TPM has terminated the session, so the session
+     * is made inactive.)  An output whose authorization does not verify
+     * still throws a TPMAuthOutDataMismatchException.
+     */
+    public <T extends TPMOutputStruct> TPMCommandResult<T> executeForResult(
+        TPMAuthorizationSession authSession, boolean continueAuthSession )
+        throws TPMException
+    {
+        if ( this.isNoAuth() )
+        {
+            return this.executeForResult( authSession.getTpmDriver() );
+        }
+
+        TPM_NONCE newNonceOdd = CryptoUtil.generateRandomNonce();
+        this.computeAuthInData1( authSession, newNonceOdd, continueAuthSession );
+
+        TPMCommandResult<T> result = this.executeForResult( authSession.getTpmDriver() );
+        if ( result.isError() )
+        {
+            authSession.setActive( false );
+            return result;
+        }
+
+        TPMAuth1CommandOutput output = (TPMAuth1CommandOutput) result.getOutput();
+        if ( !authSession.verifyAuthOutData( this, output,
+            output.getAuthOutData1() ) )
+        {
+            throw new TPMAuthOutDataMismatchException( this, output );
+        }
+        if ( !continueAuthSession )
+        {
+            authSession.setActive( false );
+        }
+        return result;
+    }
+
     //    // Commenting out.  This is not necessary 
     //    /**
     //     * Called in execute( TPMAuthorizationSession ) to prepare the 
@@ -391,16 +433,15 @@ public abstract class TPMAuth1Command extends TPMCommand
 
     @Override
     /**
-     * If not isNoAuth(), adds this.getAuthInData1() into offset this.getAuthData1Offset.
+     * If not isNoAuth(), writes this.getAuthInData1() at offset this.getAuthData1Offset.
      */
-    protected void writeHeaderAndBody( byte[] dest, int offset,
-        Object... bodyFields )
+    protected void writeFooter( ByteBufferEncoder enc )
     {
-        super.writeHeaderAndBody( dest, offset, bodyFields );
+        super.writeFooter( enc );
         if ( !this.isNoAuth() )
         {
-            ByteArrayUtil.writeObjectsBE( dest, offset
-                + this.getAuthData1Offset(), this.getAuthInData1() );
+            enc.setPosition( this.getAuthData1Offset() );
+            enc.writeStruct( this.getAuthInData1() );
         }
     }
 }
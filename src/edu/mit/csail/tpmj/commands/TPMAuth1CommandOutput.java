@@ -32,6 +32,7 @@ package edu.mit.csail.tpmj.commands;
 import edu.mit.csail.tpmj.TPMConsts;
 import edu.mit.csail.tpmj.structs.ByteArrayTPMOutputStruct;
 import edu.mit.csail.tpmj.structs.TPMAuthOutData;
+import edu.mit.csail.tpmj.util.ByteArrayView;
 
 public abstract class TPMAuth1CommandOutput extends ByteArrayTPMOutputStruct
 {
@@ -105,9 +106,21 @@ public abstract class TPMAuth1CommandOutput extends ByteArrayTPMOutputStruct
      * @return
      */
     public byte[] getOutParamsForAuthDigest()
+    {
+        return this.getOutParamsViewForAuthDigest().copy();
+    }
+
+    /**
+     * Same as getOutParamsForAuthDigest(), but returns a view
+     * of the response bytes instead of a copy (so that the digest
+     * can be computed without copying the output parameters).
+     * 
+     * @return
+     */
+    public ByteArrayView getOutParamsViewForAuthDigest()
     {
         int paramOffset = this.getOutHMACDataParamsStartOffset(); // this.RETURNCODE_OFFSET + 4;
         int length = this.getAuthOutData1Offset() - paramOffset;
-        return this.getBytes( paramOffset, length );
+        return this.getBytesView( paramOffset, length );
     }
 }
@@ -40,6 +40,7 @@ import edu.mit.csail.tpmj.structs.TPMOutputStruct;
 import edu.mit.csail.tpmj.structs.TPM_DIGEST;
 import edu.mit.csail.tpmj.structs.TPM_NONCE;
 import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 import edu.mit.csail.tpmj.util.CryptoUtil;
 import edu.mit.csail.tpmj.util.Debug;
 
@@ -329,13 +330,13 @@ public abstract class TPMAuth2Command extends TPMAuth1Command
     }
 
     @Override
-    protected void writeHeaderAndBody( byte[] dest, int offset, Object... bodyFields )
+    protected void writeFooter( ByteBufferEncoder enc )
     {
-        super.writeHeaderAndBody( dest, offset, bodyFields );
+        super.writeFooter( enc );
 
-        // the following is already done in super
-//        this.writeBytes( dest, offset + this.getAuthData1Offset(), this.getAuthInData1() );
-        ByteArrayUtil.writeObjectsBE( dest, offset + this.getAuthData2Offset(), this.getAuthInData2() );
+        // authInData1 is already written in super
+        enc.setPosition( this.getAuthData2Offset() );
+        enc.writeStruct( this.getAuthInData2() );
     }
     
     
@@ -30,11 +30,14 @@
 package edu.mit.csail.tpmj.commands;
 
 import edu.mit.csail.tpmj.*;
+import edu.mit.csail.tpmj.drivers.ConvertingTPMFuture;
 import edu.mit.csail.tpmj.drivers.TPMDriver;
+import edu.mit.csail.tpmj.drivers.TPMFuture;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
 import edu.mit.csail.tpmj.util.ByteArrayStruct;
 import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 /**
  * A TPMCommand is associated by the data structure that will
@@ -145,41 +148,139 @@ public abstract class TPMCommand extends SimpleTaggedTPMStruct implements TPMInp
      */
     protected void writeHeader( byte[] dest, int offset )
     {
-        ByteArrayUtil.writeObjectsBE( dest, offset, this.getTag(), this.getParamSize(), this.getOrdinal() );
+        ByteArrayUtil.writeShortBE( dest, offset + TAG_OFFSET, this.getTag() );
+        ByteArrayUtil.writeInt32BE( dest, offset + PARAMSIZE_OFFSET, this.getParamSize() );
+        ByteArrayUtil.writeInt32BE( dest, offset + ORDINAL_OFFSET, this.getOrdinal() );
     }
-    
+
+    /**
+     * Write the tag, paramSize and ordinal to the encoder.
+     * 
+     * @param enc
+     */
+    protected void writeHeader( ByteBufferEncoder enc )
+    {
+        enc.writeShort( this.getTag() );
+        enc.writeInt32( this.getParamSize() );
+        enc.writeInt32( this.getOrdinal() );
+    }
+
+    /**
+     * Writes the "body" fields of the command (everything between
+     * the header and the footer).  Subclasses with input parameters
+     * should override this, and call createHeaderAndBody() in
+     * toBytes().  By default, writes nothing.
+     * 
+     * @param enc
+     */
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        // no body
+    }
+
+    /**
+     * Writes any footer fields that come after the body,
+     * such as the authorization data.  By default, writes nothing.
+     * 
+     * @param enc
+     */
+    protected void writeFooter( ByteBufferEncoder enc )
+    {
+        // no footer
+    }
+
     /**
      * This is used in createHeaderAndBody to write out bytes,
-     * including the header, any body fields, and any footer
-     * fields such as the authorization data.  Override this
-     * method in subclases, to make any changes to header
-     * or footer.
+     * including the header, the body fields, and any footer
+     * fields such as the authorization data.  Override writeBody
+     * and writeFooter in subclasses instead of this method.
+     * 
+     * @param enc
+     */
+    protected void writeHeaderAndBody( ByteBufferEncoder enc )
+    {
+        this.writeHeader( enc );
+        this.writeBody( enc );
+        this.writeFooter( enc );
+    }
+
+    /**
+     * Writes the header, the given body fields, and the footer
+     * into dest at the given offset.  This is what the varargs
+     * createHeaderAndBody() uses, so subclasses that still override
+     * this method (to add a footer, etc.) keep working.
      * 
      * @param dest
      * @param offset
      * @param bodyFields
+     * 
+     * @deprecated override writeBody() and writeFooter() instead.
      */
+    @Deprecated
     protected void writeHeaderAndBody( byte[] dest, int offset, Object... bodyFields )
     {
-        this.writeHeader( dest, offset );
-        ByteArrayUtil.writeObjectsBE( dest, offset + BODY_OFFSET, bodyFields );
+        ByteBufferEncoder enc = ByteBufferEncoder.acquire();
+        try
+        {
+            this.writeHeader( enc );
+            enc.writeObjects( bodyFields );
+            this.writeFooter( enc );
+            byte[] buf = enc.toBytes();
+            System.arraycopy( buf, 0, dest, offset,
+                Math.min( buf.length, dest.length - offset ) );
+        }
+        finally
+        {
+            enc.release();
+        }
     }
-    
+
     /**
-     * Given the "body" fields of the command in a varargs list,
-     * returns a new byte array including the header and footer 
+     * Returns a new byte array (of size paramSize) including
+     * the header, the body written by writeBody(), and the footer 
      * (authorization data, if applicable). 
      * Subclasses of TPMCommand can call this in
-     * their definition of <code>toBytes()</code>
-     * in order to write out their fields.
-     * Subclasses should override writeHeaderAndBody to add
-     * things like footers, etc.
+     * their definition of <code>toBytes()</code>.
+     * <p>
+     * The fields are written in one pass into this thread's
+     * ByteBufferEncoder, so the only array created is
+     * the one returned.
+     * 
+     * @return
+     * 
+     * @see writeHeaderAndBody
+     */
+    protected byte[] createHeaderAndBody()
+    {
+        ByteBufferEncoder enc = ByteBufferEncoder.acquire();
+        try
+        {
+            this.writeHeaderAndBody( enc );
+            return enc.toBytes( this.getParamSize() );
+        }
+        finally
+        {
+            enc.release();
+        }
+    }
+
+    /**
+     * Given the "body" fields of the command in a varargs list,
+     * returns a new byte array including the header and footer 
+     * (authorization data, if applicable).  The fields
+     * are written as in ByteArrayUtil.concatObjectsBE().
+     * <p>
+     * This is slower than overriding writeBody() and calling
+     * createHeaderAndBody() with no arguments (since primitive
+     * fields are boxed, and the bytes are copied once more), and
+     * is kept for subclasses written before writeBody() was added.
      * 
      * @param bodyFields
      * @return
      * 
      * @see writeHeaderAndBody
      */
+    @SuppressWarnings( "deprecation" )
     protected byte[] createHeaderAndBody( Object... bodyFields )
     {
         byte[] buf = new byte[this.getParamSize()];
@@ -216,18 +317,102 @@ public abstract class TPMCommand extends SimpleTaggedTPMStruct implements TPMInp
      */
     public TPMOutputStruct execute( TPMDriver tpmDriver ) throws TPMException
     {
-        TPMOutputStruct ret = null;
-        try
+        // Note: this may throw an exception, in which case,
+        // no output is created.
+        TPMOutputStruct rawOutput = tpmDriver.transmit( this );
+
+        return this.createOutput( rawOutput );
+    }
+
+    /**
+     * Like execute, but if the TPM returns an error code, returns
+     * a result with that code instead of throwing a
+     * TPMErrorReturnCodeException.  The result's output is an instance
+     * of the class specified by <code>this.getReturnType()</code>,
+     * so T must be that class (or a superclass of it), e.g.:
+     * <p>
+     * <code>
+     * TPMCommandResult&lt;TPM_NV_ReadValueOutput&gt; result = cmd.executeForResult( tpmDriver );
+     * </code>
+     * 
+     * @param tpmDriver
+     * @return
+     * @throws TPMException on other errors (e.g., I/O errors)
+     * @see TPMDriver#transmitUnchecked(TPMInputStruct)
+     */
+    public <T extends TPMOutputStruct> TPMCommandResult<T> executeForResult(
+        TPMDriver tpmDriver ) throws TPMException
+    {
+        TPMOutputStruct rawOutput = tpmDriver.transmitUnchecked( this );
+
+        return this.createResult( rawOutput );
+    }
+
+    /**
+     * Creates a result from the raw output returned by the driver
+     * (with a typed output created by createOutput(), if the return code is 0).
+     * 
+     * @param rawOutput
+     * @return
+     * @throws TPMException
+     */
+    @SuppressWarnings("unchecked")
+    protected <T extends TPMOutputStruct> TPMCommandResult<T> createResult(
+        TPMOutputStruct rawOutput ) throws TPMException
+    {
+        if ( rawOutput.isError() )
         {
-            ret = (TPMOutputStruct) this.getReturnType().newInstance();
+            return new TPMCommandResult<T>( this, rawOutput, null );
         }
-        catch ( Exception e )
+        return new TPMCommandResult<T>( this, rawOutput,
+            (T) this.createOutput( rawOutput ) );
+    }
+
+    /**
+     * Asynchronous version of execute.  Queues this command
+     * using tpmDriver.transmitAsync(), and returns a future whose
+     * result is an instance of the class specified by
+     * <code>this.getReturnType()</code> (so it can be cast to
+     * the same type returned by execute()). 
+     * 
+     * @param tpmDriver
+     * @return
+     * @throws TPMException if the command could not be queued
+     */
+    public TPMFuture<TPMOutputStruct> executeAsync( TPMDriver tpmDriver )
+        throws TPMException
+    {
+        TPMFuture<TPMOutputStruct> rawFuture = tpmDriver.transmitAsync( this );
+
+        return new ConvertingTPMFuture<TPMOutputStruct, TPMOutputStruct>(
+            rawFuture )
         {
-            throw new TPMException( e );
-        }
-        // Note: this may throw an exception, in which case,
-        // ret is never returned.
-        TPMOutputStruct rawOutput = tpmDriver.transmit( this );
+            protected TPMOutputStruct convert( TPMOutputStruct rawOutput )
+                throws TPMException
+            {
+                return createOutput( rawOutput );
+            }
+        };
+    }
+
+    /**
+     * Creates an instance of the class specified by 
+     * <code>this.getReturnType()</code> from the raw output
+     * returned by the driver.
+     * <p>
+     * The instance is created by the TPMCommandFactory registered
+     * for this command's ordinal in TPMCommandRegistry
+     * (instead of by reflection).
+     * 
+     * @param rawOutput
+     * @return
+     * @throws TPMException
+     * @throws IllegalArgumentException if this command's ordinal is not registered
+     */
+    protected TPMOutputStruct createOutput( TPMOutputStruct rawOutput )
+        throws TPMException
+    {
+        TPMOutputStruct ret = TPMCommandRegistry.createOutput( this.getOrdinal() );
 
         if ( rawOutput instanceof ByteArrayTPMOutputStruct )
         {
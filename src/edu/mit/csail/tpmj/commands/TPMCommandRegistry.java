@@ -0,0 +1,704 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.commands;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.mit.csail.tpmj.TPMConsts;
+import edu.mit.csail.tpmj.structs.*;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+
+/**
+ * Maps each ordinal to a TPMCommandFactory that creates the command
+ * and its output struct, so that outputs (and commands read from bytes,
+ * e.g., in transport logs) can be created with a direct constructor
+ * call instead of using reflection (getReturnType().newInstance()).
+ * <p>
+ * All the commands in this package are registered here.
+ * Commands defined elsewhere must be registered using register()
+ * before they are executed.  Looking up an ordinal that is not
+ * registered throws an IllegalArgumentException.
+ */
+public class TPMCommandRegistry
+{
+    private static final Map<Integer, TPMCommandFactory> factories = new ConcurrentHashMap<Integer, TPMCommandFactory>();
+
+    /**
+     * Registers the factory for the given ordinal
+     * (replacing any factory already registered for it).
+     * 
+     * @param ordinal
+     * @param factory
+     */
+    public static void register( int ordinal, TPMCommandFactory factory )
+    {
+        factories.put( ordinal, factory );
+    }
+
+    public static boolean isRegistered( int ordinal )
+    {
+        return factories.containsKey( ordinal );
+    }
+
+    /**
+     * Returns the factory for the given ordinal.
+     * 
+     * @param ordinal
+     * @return
+     * @throws IllegalArgumentException if no factory is registered for ordinal
+     */
+    public static TPMCommandFactory getFactory( int ordinal )
+    {
+        TPMCommandFactory factory = factories.get( ordinal );
+        if ( factory == null )
+        {
+            throw new IllegalArgumentException(
+                "TPMCommandRegistry: unknown ordinal 0x"
+                    + Integer.toHexString( ordinal ) );
+        }
+        return factory;
+    }
+
+    /**
+     * Returns a new command (with default fields) for the given ordinal.
+     */
+    public static TPMCommand createCommand( int ordinal )
+    {
+        return getFactory( ordinal ).createCommand();
+    }
+
+    /**
+     * Reads a command from its bytes, using the ordinal in the bytes
+     * to choose which command to create.
+     * 
+     * @param source
+     * @param offset
+     * @return
+     */
+    public static TPMCommand createCommand( byte[] source, int offset )
+    {
+        TPMCommand cmd = createCommand( ByteArrayUtil.readInt32BE( source,
+            offset + TPMInputStruct.ORDINAL_OFFSET ) );
+        cmd.fromBytes( source, offset );
+        return cmd;
+    }
+
+    /**
+     * Returns a new empty output struct for the command
+     * with the given ordinal.
+     */
+    public static TPMOutputStruct createOutput( int ordinal )
+    {
+        return getFactory( ordinal ).createOutput();
+    }
+
+    static
+    {
+        register( TPMConsts.TPM_ORD_ChangeAuth, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_ChangeAuth( 0, (short) 0, new TPM_AUTHDATA(), (short) 0, new byte[0] );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_ChangeAuthOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_ChangeAuthOwner, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_ChangeAuthOwner( (short) 0, new TPM_AUTHDATA(), (short) 0 );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_ChangeAuthOwnerOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_ContinueSelfTest, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_ContinueSelfTest();
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new ByteArrayTPMOutputStruct();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_CreateCounter, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_CreateCounter();
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_CreateCounterOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_CreateRevocableEK, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_CreateRevocableEK( new TPM_NONCE(), new TPM_KEY_PARMS(),
+                    false, new TPM_NONCE() );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_CreateRevocableEKOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_CreateWrapKey, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_CreateWrapKey( 0, new TPM_AUTHDATA(),
+                    new TPM_AUTHDATA(), new TPM_KEY() );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_CreateWrapKeyOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_DirRead, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_DirRead( 0 );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_DirReadOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_DirWriteAuth, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_DirWriteAuth( 0, new TPM_DIGEST() );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_DirWriteAuthOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_EstablishTransport, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_EstablishTransport();
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_EstablishTransportOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_EvictKey, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_EvictKey( 0 );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new ByteArrayTPMOutputStruct();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_ExecuteTransport, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_ExecuteTransport();
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_ExecuteTransportOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_Extend, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_Extend( 0, new TPM_NONCE() );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_PCRReadOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_FlushSpecific, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_FlushSpecific( 0, 0 );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new ByteArrayTPMOutputStruct();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_ForceClear, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_ForceClear();
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new ByteArrayTPMOutputStruct();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_GetCapability, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_GetCapability( 0 );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_GetCapabilityOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_GetPubKey, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_GetPubKey( 0 );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_GetPubKeyOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_GetTestResult, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_GetTestResult();
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_GetTestResultOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_IncrementCounter, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_IncrementCounter();
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_IncrementCounterOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_LoadContext, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_LoadContext( 0, false, new byte[0] );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_LoadContextOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_LoadKey, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_LoadKey( 0, new TPM_KEY() );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_LoadKeyOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_LoadKey2, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_LoadKey2( 0, new TPM_KEY() );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_LoadKey2Output();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_MakeIdentity, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_MakeIdentity( new TPM_AUTHDATA(), new TPM_DIGEST(),
+                    new TPM_KEY() );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_MakeIdentityOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_NV_ReadValue, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_NV_ReadValue( 0, 0, 0 );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_NV_ReadValueOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_OIAP, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_OIAP();
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_OIAPOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_OSAP, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_OSAP( (short) 0, 0, new TPM_NONCE() );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_OSAPOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_OwnerClear, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_OwnerClear();
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_OwnerClearOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_OwnerReadInternalPub, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_OwnerReadInternalPub( 0 );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_OwnerReadInternalPubOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_PcrRead, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_PCRRead( 0 );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_PCRReadOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_PCR_Reset, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_PCR_Reset( new TPM_PCR_SELECTION( 24 ) );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new ByteArrayTPMOutputStruct();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_PhysicalEnable, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_PhysicalEnable();
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new ByteArrayTPMOutputStruct();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_PhysicalSetDeactivated, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_PhysicalSetDeactivated( false );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new ByteArrayTPMOutputStruct();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_Quote, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_Quote( 0, new TPM_NONCE(), new TPM_PCR_SELECTION( 24 ) );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_QuoteOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_ReadCounter, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_ReadCounter();
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_ReadCounterOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_ReadPubek, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_ReadPubek( new TPM_NONCE() );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_ReadPubekOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_ReleaseCounter, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_ReleaseCounter( 0 );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_ReleaseCounterOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_ReleaseCounterOwner, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_ReleaseCounterOwner( 0 );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_ReleaseCounterOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_ReleaseTransportSigned, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_ReleaseTransportSigned();
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_ReleaseTransportSignedOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_Reset, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_Reset();
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new ByteArrayTPMOutputStruct();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_SaveContext, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_SaveContext( 0, 0 );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_SaveContextOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_SaveState, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_SaveState();
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new ByteArrayTPMOutputStruct();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_Seal, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_Seal( 0, new TPM_AUTHDATA(), null, new byte[0] );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_SealOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_SelfTestFull, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_SelfTestFull();
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new ByteArrayTPMOutputStruct();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_Sign, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_Sign( 0, new TPM_DIGEST() );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_SignOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_TakeOwnership, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_TakeOwnership( new byte[0], new byte[0],
+                    new TPM_KEY() );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_TakeOwnershipOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_Terminate_Handle, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_TerminateHandle( 0 );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new ByteArrayTPMOutputStruct();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_UnBind, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_UnBind( 0, new byte[0] );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_UnBindOutput();
+            }
+        } );
+        register( TPMConsts.TPM_ORD_Unseal, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TPM_Unseal( 0, new TPM_STORED_DATA( null, new byte[0] ) );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new TPM_UnsealOutput();
+            }
+        } );
+        register( TPMConsts.TSC_ORD_PhysicalPresence, new TPMCommandFactory()
+        {
+            public TPMCommand createCommand()
+            {
+                return new TSC_PhysicalPresence( (short) 0 );
+            }
+
+            public TPMOutputStruct createOutput()
+            {
+                return new ByteArrayTPMOutputStruct();
+            }
+        } );
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.commands;
+
+import edu.mit.csail.tpmj.TPMErrorReturnCodeException;
+import edu.mit.csail.tpmj.structs.TPMInputStruct;
+import edu.mit.csail.tpmj.structs.TPMOutputStruct;
+import edu.mit.csail.tpmj.structs.TPM_RESULT;
+
+/**
+ * The result of executing a command with executeForResult():
+ * either the command's output (if the TPM returned TPM_SUCCESS),
+ * or the return code.
+ * <p>
+ * Unlike execute(), executeForResult() does not throw a
+ * TPMErrorReturnCodeException if the TPM returns an error code,
+ * so it is cheaper for error codes that are expected
+ * (e.g., TPM_BADINDEX when probing NV indices, or TPM_AUTHFAIL when
+ * trying passwords).  I/O errors are still thrown as exceptions.
+ *
+ * @see TPMCommand#executeForResult(edu.mit.csail.tpmj.drivers.TPMDriver)
+ */
+public class TPMCommandResult<T extends TPMOutputStruct>
+{
+    private TPMInputStruct input;
+    private TPMOutputStruct rawOutput;
+    private T output;
+
+    /**
+     * @param input -- the command
+     * @param rawOutput -- the output returned by the driver
+     * @param output -- the typed output, or null if the TPM returned an error code
+     */
+    public TPMCommandResult( TPMInputStruct input, TPMOutputStruct rawOutput,
+        T output )
+    {
+        this.input = input;
+        this.rawOutput = rawOutput;
+        this.output = output;
+    }
+
+    public boolean isSuccess()
+    {
+        return !this.rawOutput.isError();
+    }
+
+    public boolean isError()
+    {
+        return !this.isSuccess();
+    }
+
+    public int getReturnCode()
+    {
+        return this.rawOutput.getReturnCode();
+    }
+
+    /**
+     * Returns the name of the return code (e.g., "TPM_BADINDEX").
+     */
+    public String getErrorName()
+    {
+        return TPM_RESULT.getErrorName( this.getReturnCode() );
+    }
+
+    /**
+     * Returns the command's output, or null if the TPM returned an error code.
+     */
+    public T getOutput()
+    {
+        return this.output;
+    }
+
+    /**
+     * Returns the output returned by the driver (even if the TPM
+     * returned an error code).
+     */
+    public TPMOutputStruct getRawOutput()
+    {
+        return this.rawOutput;
+    }
+
+    public TPMInputStruct getInput()
+    {
+        return this.input;
+    }
+
+    /**
+     * Returns the command's output, or throws the exception that execute()
+     * would have thrown if the TPM returned an error code.
+     *
+     * @return
+     * @throws TPMErrorReturnCodeException
+     */
+    public T checkOutput() throws TPMErrorReturnCodeException
+    {
+        if ( this.isError() )
+        {
+            throw new TPMErrorReturnCodeException( this.input, this.rawOutput );
+        }
+        return this.output;
+    }
+
+    public String toString()
+    {
+        if ( this.isSuccess() )
+        {
+            return "TPMCommandResult(" + this.output + ")";
+        }
+        return "TPMCommandResult(" + this.getErrorName() + ")";
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.commands;
+
+import java.nio.ByteBuffer;
+
+import edu.mit.csail.tpmj.TPMException;
+import edu.mit.csail.tpmj.drivers.TPMDriver;
+import edu.mit.csail.tpmj.structs.TPMOutputStruct;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.ByteArrayable;
+
+/**
+ * A command whose bytes are encoded once from a prototype command,
+ * and where only the fields that vary (e.g., a PCR index, a counter ID,
+ * a handle, or a nonce) are patched into the encoded bytes before
+ * each call.  This avoids creating and encoding a new command object
+ * for each call to commands with a fixed layout, e.g.:
+ * <p>
+ * <code>
+ * TPMCommandTemplate&lt;TPM_PCRReadOutput&gt; template = TPM_PCRRead.createTemplate();<br>
+ * for ( int i = 0; i &lt; numPcrs; i++ )<br>
+ * {<br>
+ * &nbsp;&nbsp;template.setInt32( TPM_PCRRead.PCRINDEX_OFFSET, i );<br>
+ * &nbsp;&nbsp;TPM_PCRReadOutput output = template.execute( tpmDriver );<br>
+ * &nbsp;&nbsp;...<br>
+ * }
+ * </code>
+ * <p>
+ * The offsets are the same as in the prototype's toBytes()
+ * (e.g., the *_OFFSET constants of the command's class).
+ * The fields can only be overwritten, not resized, so the prototype
+ * must have the same shape as the commands to be sent
+ * (e.g., the same subCapSize for TPM_GetCapability).
+ * <p>
+ * Like other commands, a template should not be patched while it is
+ * being executed, so each thread should use its own template.
+ * toBytes() returns a copy of the encoded bytes, since drivers
+ * can keep the input bytes (e.g., as cache keys) after a call returns.
+ * So sending a template still allocates that one array per call
+ * (but no command object, and no encoding).  To copy the bytes into
+ * a buffer of the caller's without it, use writeTo().
+ */
+public class TPMCommandTemplate<T extends TPMOutputStruct> extends TPMCommand
+{
+    private byte[] image;
+    private Class<? extends TPMOutputStruct> returnType;
+
+    /**
+     * Creates a template from the bytes of the prototype.
+     * T must be the class returned by prototype.getReturnType()
+     * (or a superclass of it).
+     *
+     * @param prototype
+     */
+    public TPMCommandTemplate( TPMCommand prototype )
+    {
+        super( prototype.getTag(), prototype.getParamSize(),
+            prototype.getOrdinal() );
+        this.image = prototype.toBytes();
+        Class<?> c = prototype.getReturnType();
+        this.returnType = c.asSubclass( TPMOutputStruct.class );
+    }
+
+    // Return Output Struct
+    public Class<? extends TPMOutputStruct> getReturnType()
+    {
+        return this.returnType;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public T execute( TPMDriver tpmDriver ) throws TPMException
+    {
+        return (T) super.execute( tpmDriver );
+    }
+
+    /**
+     * Throws an IllegalArgumentException if the field is outside
+     * the body of the command.  (The header is fixed by the prototype.)
+     */
+    private void checkField( int offset, int length )
+    {
+        if ( (offset < BODY_OFFSET) || (length < 0)
+            || (offset + length > this.image.length) )
+        {
+            throw new IllegalArgumentException( "TPMCommandTemplate: field at "
+                + offset + " (" + length + " bytes) is outside the body of "
+                + this.image.length + "-byte command" );
+        }
+    }
+
+    public void setByte( int offset, byte b )
+    {
+        this.checkField( offset, 1 );
+        this.image[offset] = b;
+    }
+
+    /**
+     * Overwrite a 32-bit integer field (e.g., an index or handle).
+     */
+    public void setInt32( int offset, int w )
+    {
+        this.checkField( offset, 4 );
+        ByteArrayUtil.writeInt32BE( this.image, offset, w );
+    }
+
+    /**
+     * Overwrite data.length bytes starting at offset.
+     */
+    public void setBytes( int offset, byte[] data )
+    {
+        this.checkField( offset, data.length );
+        System.arraycopy( data, 0, this.image, offset, data.length );
+    }
+
+    /**
+     * Overwrite a fixed-size struct field (e.g., a TPM_NONCE or TPM_DIGEST).
+     */
+    public void setStruct( int offset, ByteArrayable ba )
+    {
+        this.setBytes( offset, ba.toBytes() );
+    }
+
+    @Override
+    public byte[] toBytes()
+    {
+        return this.image.clone();
+    }
+
+    /**
+     * Puts the encoded bytes into buf (at its position), without
+     * the copy made by toBytes().
+     * 
+     * @param buf
+     * @throws java.nio.BufferOverflowException if buf does not have room
+     */
+    public void writeTo( ByteBuffer buf )
+    {
+        buf.put( this.image );
+    }
+
+    @Override
+    public void fromBytes( byte[] source, int offset )
+    {
+        this.readHeader( source, offset );
+        this.image = ByteArrayUtil.readBytes( source, offset,
+            this.getParamSize() );
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.commands;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import edu.mit.csail.tpmj.TPMConsts;
+import edu.mit.csail.tpmj.structs.TPMIOStruct;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+
+/**
+ * Maps each ordinal to the offsets (from the start of the command)
+ * of the handle parameters (of keys, sessions, and other resources)
+ * in its input, so that drivers that virtualize handles
+ * (e.g., TPMResourceManager and TPMKeyManager) know where to find them.
+ * <p>
+ * TPM_OSAP and TPM_DSAP are special: their entityValue is only a handle
+ * if their entityType is TPM_ET_KEYHANDLE.  Authorization session handles
+ * (at the end of the command) are not included.
+ * Commands whose ordinal is not registered are taken to have no handles.
+ * Commands defined elsewhere that take handles can be registered using
+ * register().
+ */
+public class TPMHandleOffsets
+{
+    /**
+     * Offset of the first parameter.
+     */
+    public static final int FIRST_HANDLE_OFFSET = 10;
+
+    /**
+     * Offset of the second parameter, if the first one is a handle.
+     */
+    public static final int SECOND_HANDLE_OFFSET = 14;
+
+    public static final int OSAP_ENTITY_TYPE_OFFSET = 10;
+    public static final int OSAP_ENTITY_VALUE_OFFSET = 12;
+
+    private static final int[] NO_HANDLES = new int[0];
+    private static final int[] FIRST_HANDLE = { FIRST_HANDLE_OFFSET };
+    private static final int[] FIRST_TWO_HANDLES =
+        { FIRST_HANDLE_OFFSET, SECOND_HANDLE_OFFSET };
+    private static final int[] OSAP_ENTITY_HANDLE = { OSAP_ENTITY_VALUE_OFFSET };
+
+    private static final Map<Integer, int[]> offsets = new ConcurrentHashMap<Integer, int[]>();
+
+    /**
+     * Registers the handle offsets for the given ordinal
+     * (replacing any offsets already registered for it).
+     *
+     * @param ordinal
+     * @param handleOffsets
+     */
+    public static void register( int ordinal, int... handleOffsets )
+    {
+        offsets.put( ordinal, handleOffsets.clone() );
+    }
+
+    public static boolean isRegistered( int ordinal )
+    {
+        return offsets.containsKey( ordinal )
+            || (ordinal == TPMConsts.TPM_ORD_OSAP)
+            || (ordinal == TPMConsts.TPM_ORD_DSAP);
+    }
+
+    /**
+     * Returns the offsets of the handles in the given command
+     * (based on its ordinal).  Returns an empty array if the ordinal
+     * is not registered, or the command is too short to hold all
+     * the handles.  (The returned array must not be modified.)
+     *
+     * @param inputBytes
+     * @return
+     */
+    public static int[] getHandleOffsets( byte[] inputBytes )
+    {
+        if ( inputBytes.length < FIRST_HANDLE_OFFSET )
+        {
+            return NO_HANDLES;
+        }
+        int ordinal = ByteArrayUtil.readInt32BE( inputBytes,
+            TPMCommand.ORDINAL_OFFSET );
+        int paramSize = Math.min( inputBytes.length, ByteArrayUtil.readInt32BE(
+            inputBytes, TPMIOStruct.PARAMSIZE_OFFSET ) );
+
+        int[] ret;
+        if ( (ordinal == TPMConsts.TPM_ORD_OSAP)
+            || (ordinal == TPMConsts.TPM_ORD_DSAP) )
+        {
+            if ( (paramSize < OSAP_ENTITY_VALUE_OFFSET + 4)
+                || (ByteArrayUtil.readShortBE( inputBytes,
+                    OSAP_ENTITY_TYPE_OFFSET ) != TPMConsts.TPM_ET_KEYHANDLE) )
+            {
+                return NO_HANDLES;
+            }
+            ret = OSAP_ENTITY_HANDLE;
+        }
+        else
+        {
+            ret = offsets.get( ordinal );
+            if ( ret == null )
+            {
+                return NO_HANDLES;
+            }
+        }
+
+        for ( int offset : ret )
+        {
+            if ( paramSize < offset + 4 )
+            {
+                return NO_HANDLES;
+            }
+        }
+        return ret;
+    }
+
+    static
+    {
+        // The handle is the first parameter
+        int[] first =
+            { TPMConsts.TPM_ORD_ActivateIdentity, TPMConsts.TPM_ORD_ChangeAuth,
+                TPMConsts.TPM_ORD_ChangeAuthAsymStart,
+                TPMConsts.TPM_ORD_CMK_ConvertMigration,
+                TPMConsts.TPM_ORD_CMK_CreateBlob,
+                TPMConsts.TPM_ORD_CMK_CreateKey,
+                TPMConsts.TPM_ORD_CertifySelfTest,
+                TPMConsts.TPM_ORD_ConvertMigrationBlob,
+                TPMConsts.TPM_ORD_CreateMigrationBlob,
+                TPMConsts.TPM_ORD_CreateWrapKey,
+                TPMConsts.TPM_ORD_Delegate_CreateKeyDelegation,
+                TPMConsts.TPM_ORD_EstablishTransport,
+                TPMConsts.TPM_ORD_EvictKey, TPMConsts.TPM_ORD_FlushSpecific,
+                TPMConsts.TPM_ORD_GetAuditDigestSigned,
+                TPMConsts.TPM_ORD_GetAuditEventSigned,
+                TPMConsts.TPM_ORD_GetCapabilitySigned,
+                TPMConsts.TPM_ORD_GetPubKey, TPMConsts.TPM_ORD_KeyControlOwner,
+                TPMConsts.TPM_ORD_LoadKey, TPMConsts.TPM_ORD_LoadKey2,
+                TPMConsts.TPM_ORD_MigrateKey,
+                TPMConsts.TPM_ORD_OwnerReadInternalPub,
+                TPMConsts.TPM_ORD_Quote, TPMConsts.TPM_ORD_Quote2,
+                TPMConsts.TPM_ORD_ReleaseTransportSigned,
+                TPMConsts.TPM_ORD_SaveAuthContext,
+                TPMConsts.TPM_ORD_SaveContext,
+                TPMConsts.TPM_ORD_SaveKeyContext, TPMConsts.TPM_ORD_Seal,
+                TPMConsts.TPM_ORD_Sealx, TPMConsts.TPM_ORD_SetRedirection,
+                TPMConsts.TPM_ORD_Sign, TPMConsts.TPM_ORD_Terminate_Handle,
+                TPMConsts.TPM_ORD_TickStampBlob, TPMConsts.TPM_ORD_UnBind,
+                TPMConsts.TPM_ORD_Unseal };
+        for ( int ordinal : first )
+        {
+            offsets.put( ordinal, FIRST_HANDLE );
+        }
+
+        // The first two parameters are handles
+        int[] firstTwo =
+            { TPMConsts.TPM_ORD_CertifyKey, TPMConsts.TPM_ORD_CertifyKey2,
+                TPMConsts.TPM_ORD_ChangeAuthAsymFinish };
+        for ( int ordinal : firstTwo )
+        {
+            offsets.put( ordinal, FIRST_TWO_HANDLES );
+        }
+    }
+}
@@ -35,6 +35,7 @@ import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 import edu.mit.csail.tpmj.util.Debug;
 
 public class TPM_ChangeAuth extends TPMAuth2Command
@@ -212,8 +213,18 @@ public class TPM_ChangeAuth extends TPMAuth2Command
         {
             this.newAuth = new TPM_ENCAUTH();
         }
-        return this.createHeaderAndBody( this.parentHandle, this.protocolID,
-            this.newAuth, this.entityType, this.getEncDataSize(), this.encData );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.parentHandle );
+        enc.writeShort( this.protocolID );
+        enc.writeStruct( this.newAuth );
+        enc.writeShort( this.entityType );
+        enc.writeInt32( this.getEncDataSize() );
+        enc.writeBytes( this.encData );
     }
 
     /**
@@ -35,6 +35,7 @@ import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 import edu.mit.csail.tpmj.util.Debug;
 
 public class TPM_ChangeAuthOwner extends TPMAuth1Command
@@ -171,8 +172,15 @@ public class TPM_ChangeAuthOwner extends TPMAuth1Command
         {
             this.newAuth = new TPM_ENCAUTH();
         }
-        return this.createHeaderAndBody( this.protocolID,
-            this.newAuth, this.entityType );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeShort( this.protocolID );
+        enc.writeStruct( this.newAuth );
+        enc.writeShort( this.entityType );
     }
 
     /**
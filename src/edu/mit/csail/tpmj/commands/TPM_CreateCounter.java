@@ -35,6 +35,7 @@ import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 import edu.mit.csail.tpmj.util.Debug;
 
 public class TPM_CreateCounter extends TPMAuth1Command
@@ -172,7 +173,14 @@ public class TPM_CreateCounter extends TPMAuth1Command
             this.encAuth = new TPM_ENCAUTH();
         }
 
-        return this.createHeaderAndBody( this.encAuth, this.label );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeStruct( this.encAuth );
+        enc.writeBytes( this.label );
     }
 
     /**
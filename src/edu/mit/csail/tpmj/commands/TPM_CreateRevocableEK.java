@@ -36,6 +36,7 @@ import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.structs.TPM_KEY_PARMS;
 import edu.mit.csail.tpmj.structs.TPM_NONCE;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 public class TPM_CreateRevocableEK extends TPMCommand
 {
@@ -73,8 +74,16 @@ public class TPM_CreateRevocableEK extends TPMCommand
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.antiReplay, this.keyInfo, 
-            this.generateReset, this.inputEKreset );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeStruct( this.antiReplay );
+        enc.writeStruct( this.keyInfo );
+        enc.writeBoolean( this.generateReset );
+        enc.writeStruct( this.inputEKreset );
     }
 
     @Override
@@ -35,6 +35,7 @@ import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 import edu.mit.csail.tpmj.util.Debug;
 
 public class TPM_CreateWrapKey extends TPMKeyAuth1Command
@@ -243,8 +244,16 @@ public class TPM_CreateWrapKey extends TPMKeyAuth1Command
         {
             this.dataMigrationAuth = new TPM_ENCAUTH();
         }
-        return this.createHeaderAndBody( this.getParentHandle(), this.dataUsageAuth, 
-            this.dataMigrationAuth, this.getKeyInfo() );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.getParentHandle() );
+        enc.writeStruct( this.dataUsageAuth );
+        enc.writeStruct( this.dataMigrationAuth );
+        enc.writeStruct( this.getKeyInfo() );
     }
 
     /**
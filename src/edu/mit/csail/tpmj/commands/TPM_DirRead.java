@@ -35,9 +35,12 @@ import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.structs.TPM_NONCE;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 public class TPM_DirRead extends TPMCommand
 {
+    public static final int DIRINDEX_OFFSET = 10;
+
     private int dirIndex = 0;
     
     public TPM_DirRead( int dirIndex )
@@ -60,10 +63,27 @@ public class TPM_DirRead extends TPMCommand
     {
         return (TPM_DirReadOutput) super.execute(tpmDriver);
     }
+
+    /**
+     * Returns a template for DirRead commands.  Set the DIR index
+     * with setInt32( DIRINDEX_OFFSET, dirIndex ).
+     * 
+     * @see TPMCommandTemplate
+     */
+    public static TPMCommandTemplate<TPM_DirReadOutput> createTemplate()
+    {
+        return new TPMCommandTemplate<TPM_DirReadOutput>( new TPM_DirRead( 0 ) );
+    }
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.dirIndex );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.dirIndex );
     }
 
     @Override
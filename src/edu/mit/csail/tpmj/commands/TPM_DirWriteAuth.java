@@ -35,6 +35,7 @@ import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.structs.TPM_DIGEST;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 public class TPM_DirWriteAuth extends TPMAuth1Command
 {
@@ -114,7 +115,14 @@ public class TPM_DirWriteAuth extends TPMAuth1Command
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.dirIndex, this.newContents );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.dirIndex );
+        enc.writeStruct( this.newContents );
     }
 
     @Override
@@ -35,6 +35,7 @@ import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.structs.TPM_TRANSPORT_PUBLIC;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 public class TPM_EstablishTransport extends TPMKeyAuth1Command
 {
@@ -143,8 +144,16 @@ public class TPM_EstablishTransport extends TPMKeyAuth1Command
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.getKeyHandle(), this.transPublic,
-            this.getSecretSize(), this.secret );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.getKeyHandle() );
+        enc.writeStruct( this.transPublic );
+        enc.writeInt32( this.getSecretSize() );
+        enc.writeBytes( this.secret );
     }
 
     @Override
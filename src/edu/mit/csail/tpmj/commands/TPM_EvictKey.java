@@ -32,6 +32,7 @@ package edu.mit.csail.tpmj.commands;
 import edu.mit.csail.tpmj.TPMConsts;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 public class TPM_EvictKey extends TPMCommand
 {
@@ -66,7 +67,13 @@ public class TPM_EvictKey extends TPMCommand
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.evictHandle );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.evictHandle );
     }
 
     @Override
@@ -41,6 +41,7 @@ import edu.mit.csail.tpmj.structs.TPM_NONCE;
 import edu.mit.csail.tpmj.transport.TPMTransportSession;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
 import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 import edu.mit.csail.tpmj.util.CryptoUtil;
 import edu.mit.csail.tpmj.util.Debug;
 
@@ -117,9 +118,9 @@ public class TPM_ExecuteTransport extends TPMAuth1Command
             unEncCmd = encOutput;
         }
 
+        TPMOutputStruct out = TPMCommandRegistry.createOutput( this.getPlainWrappedCmd().getOrdinal() );
         try
         {
-            TPMOutputStruct out = (TPMOutputStruct) this.getPlainWrappedCmd().getReturnType().newInstance();
             out.fromBytes( unEncCmd, 0 );
             return out;
         }
@@ -305,7 +306,14 @@ public class TPM_ExecuteTransport extends TPMAuth1Command
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.getWrappedCmdSize(), this.wrappedCmd );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.getWrappedCmdSize() );
+        enc.writeBytes( this.wrappedCmd );
     }
 
     @Override
@@ -34,6 +34,7 @@ import edu.mit.csail.tpmj.TPMException;
 import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 public class TPM_Extend extends TPMCommand
 {
@@ -93,10 +94,29 @@ public class TPM_Extend extends TPMCommand
         return (TPM_PCRReadOutput) super.execute( tpmDriver );
     }
 
+    /**
+     * Returns a template for Extend commands.  Set the PCR number
+     * with setInt32( PCRNUM_OFFSET, pcrNum ) and the digest
+     * with setStruct( INDIGEST_OFFSET, inDigest ).
+     * 
+     * @see TPMCommandTemplate
+     */
+    public static TPMCommandTemplate<TPM_PCRReadOutput> createTemplate()
+    {
+        return new TPMCommandTemplate<TPM_PCRReadOutput>( new TPM_Extend( 0, new TPM_NONCE() ) );
+    }
+
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.pcrNum, this.inDigest );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.pcrNum );
+        enc.writeStruct( this.inDigest );
     }
 
     @Override
@@ -32,6 +32,7 @@ package edu.mit.csail.tpmj.commands;
 import edu.mit.csail.tpmj.TPMConsts;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 public class TPM_FlushSpecific extends TPMCommand
 {
@@ -79,7 +80,14 @@ public class TPM_FlushSpecific extends TPMCommand
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.handle, this.resourceType );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.handle );
+        enc.writeInt32( this.resourceType );
     }
 
     @Override
@@ -33,6 +33,7 @@ import edu.mit.csail.tpmj.TPMConsts;
 import edu.mit.csail.tpmj.TPMException;
 import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 public class TPM_GetCapability extends TPMCommand
 {
@@ -110,11 +111,33 @@ public class TPM_GetCapability extends TPMCommand
         return (TPM_GetCapabilityOutput) super.execute(tpmDriver);
     }
 
+    /**
+     * Returns a template for GetCapability commands with the same
+     * capArea and subCap size as the given ones.  Set a 4-byte subCap
+     * (e.g., a property) with setInt32( SUBCAP_OFFSET, subCap ).
+     * 
+     * @param capArea
+     * @param subCap
+     * 
+     * @see TPMCommandTemplate
+     */
+    public static TPMCommandTemplate<TPM_GetCapabilityOutput> createTemplate(int capArea, byte[] subCap)
+    {
+        return new TPMCommandTemplate<TPM_GetCapabilityOutput>( new TPM_GetCapability( capArea, subCap ) );
+    }
+
     @Override
     public byte[] toBytes()
     {
-        int subCapSize = this.getSubCapSize();
-        return this.createHeaderAndBody( this.capArea, subCapSize, this.subCap );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.capArea );
+        enc.writeInt32( this.getSubCapSize() );
+        enc.writeBytes( this.subCap );
     }
 
     @Override
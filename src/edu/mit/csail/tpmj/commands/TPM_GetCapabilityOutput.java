@@ -30,6 +30,7 @@
 package edu.mit.csail.tpmj.commands;
 
 import edu.mit.csail.tpmj.structs.ByteArrayTPMOutputStruct;
+import edu.mit.csail.tpmj.util.ByteArrayView;
 
 public class TPM_GetCapabilityOutput extends ByteArrayTPMOutputStruct
 {
@@ -45,4 +46,13 @@ public class TPM_GetCapabilityOutput extends ByteArrayTPMOutputStruct
     {
         return this.getBytes( RESP_OFFSET, this.getRespSize() );
     }
+
+    /**
+     * Returns resp as a view of the response bytes, without copying it.
+     * (Useful for reading a UINT32 property without creating an array.)
+     */
+    public ByteArrayView getRespView()
+    {
+        return this.getBytesView( RESP_OFFSET, this.getRespSize() );
+    }
 }
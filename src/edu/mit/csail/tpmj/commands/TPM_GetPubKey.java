@@ -34,6 +34,7 @@ import edu.mit.csail.tpmj.TPMException;
 import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 public class TPM_GetPubKey extends TPMKeyAuth1Command
 {
@@ -81,7 +82,13 @@ public class TPM_GetPubKey extends TPMKeyAuth1Command
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.keyHandle );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.keyHandle );
     }
 
     @Override
@@ -35,6 +35,7 @@ import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 import edu.mit.csail.tpmj.util.Debug;
 
 public class TPM_IncrementCounter extends TPMAuth1Command implements TPM_ReadOrIncCounterCommand
@@ -109,7 +110,13 @@ public class TPM_IncrementCounter extends TPMAuth1Command implements TPM_ReadOrI
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.countID );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.countID );
     }
 
     /**
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.commands;
+
+import edu.mit.csail.tpmj.TPMConsts;
+import edu.mit.csail.tpmj.TPMException;
+import edu.mit.csail.tpmj.drivers.TPMDriver;
+import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
+
+/**
+ * Loads a context blob saved by TPM_SaveContext back into the TPM.
+ * The handle of the loaded resource is returned in the output,
+ * and may differ from the original handle unless keepHandle is true.
+ */
+public class TPM_LoadContext extends TPMCommand
+{
+    public static final int ENTITYHANDLE_OFFSET = 10;
+    public static final int KEEPHANDLE_OFFSET = 14;
+    public static final int CONTEXTSIZE_OFFSET = 15;
+    public static final int CONTEXTBLOB_OFFSET = 19;
+
+    private int entityHandle;
+    private boolean keepHandle;
+    private byte[] contextBlob;
+
+    public TPM_LoadContext( int entityHandle, boolean keepHandle,
+        byte[] contextBlob )
+    {
+        super( TPMConsts.TPM_TAG_RQU_COMMAND, TPMConsts.TPM_ORD_LoadContext );
+        this.setEntityHandle( entityHandle );
+        this.setKeepHandle( keepHandle );
+        this.setContextBlob( contextBlob );
+    }
+
+    public int getEntityHandle()
+    {
+        return entityHandle;
+    }
+
+    public void setEntityHandle( int entityHandle )
+    {
+        this.entityHandle = entityHandle;
+    }
+
+    public boolean isKeepHandle()
+    {
+        return keepHandle;
+    }
+
+    public void setKeepHandle( boolean keepHandle )
+    {
+        this.keepHandle = keepHandle;
+    }
+
+    public int getContextSize()
+    {
+        return this.contextBlob.length;
+    }
+
+    public byte[] getContextBlob()
+    {
+        return contextBlob;
+    }
+
+    public void setContextBlob( byte[] contextBlob )
+    {
+        if ( contextBlob == null )
+        {
+            this.contextBlob = new byte[0];
+        }
+        else
+        {
+            this.contextBlob = contextBlob;
+        }
+        this.setParamSize( CONTEXTBLOB_OFFSET + this.contextBlob.length );
+    }
+
+    // Return Output Struct
+
+    public Class getReturnType()
+    {
+        return TPM_LoadContextOutput.class;
+    }
+
+    @Override
+    public TPM_LoadContextOutput execute( TPMDriver tpmDriver )
+        throws TPMException
+    {
+        return (TPM_LoadContextOutput) super.execute( tpmDriver );
+    }
+
+    @Override
+    public byte[] toBytes()
+    {
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.entityHandle );
+        enc.writeBoolean( this.keepHandle );
+        enc.writeInt32( this.getContextSize() );
+        enc.writeBytes( this.contextBlob );
+    }
+
+    @Override
+    public void fromBytes( byte[] source, int offset )
+    {
+        this.readHeader( source, offset );
+        ByteArrayReadWriter brw = this.createBodyReadWriter( source, offset );
+
+        this.setEntityHandle( brw.readInt32() );
+        this.setKeepHandle( brw.readBoolean() );
+        int contextSize = brw.readInt32();
+        this.setContextBlob( brw.readBytes( contextSize ) );
+    }
+}
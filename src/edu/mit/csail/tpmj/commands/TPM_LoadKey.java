@@ -35,6 +35,7 @@ import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 public class TPM_LoadKey extends TPMKeyAuth1Command
 {
@@ -108,7 +109,14 @@ public class TPM_LoadKey extends TPMKeyAuth1Command
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.getParentHandle(), this.getInKey() );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.getParentHandle() );
+        enc.writeStruct( this.getInKey() );
     }
 
     @Override
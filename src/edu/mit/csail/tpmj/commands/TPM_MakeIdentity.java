@@ -35,6 +35,7 @@ import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 import edu.mit.csail.tpmj.util.Debug;
 
 public class TPM_MakeIdentity extends TPMAuth2Command
@@ -189,8 +190,15 @@ public class TPM_MakeIdentity extends TPMAuth2Command
         {
             this.identityAuth = new TPM_ENCAUTH();
         }
-        return this.createHeaderAndBody( this.identityAuth,
-            this.labelPrivCADigest, this.idKeyParams );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeStruct( this.identityAuth );
+        enc.writeStruct( this.labelPrivCADigest );
+        enc.writeStruct( this.idKeyParams );
     }
 
     /**
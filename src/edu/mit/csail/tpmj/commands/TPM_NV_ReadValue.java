@@ -34,6 +34,7 @@ import edu.mit.csail.tpmj.TPMException;
 import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 public class TPM_NV_ReadValue extends TPMAuth1Command
 {
@@ -121,8 +122,15 @@ public class TPM_NV_ReadValue extends TPMAuth1Command
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.nvIndex, this.offset,
-            this.dataSize );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.nvIndex );
+        enc.writeInt32( this.offset );
+        enc.writeInt32( this.dataSize );
     }
 
     @Override
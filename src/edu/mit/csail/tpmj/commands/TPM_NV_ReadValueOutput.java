@@ -29,6 +29,8 @@
  */ 
 package edu.mit.csail.tpmj.commands;
 
+import edu.mit.csail.tpmj.util.ByteArrayView;
+
 public class TPM_NV_ReadValueOutput extends TPMAuth1CommandOutput
 {
     public static final int DATASIZE_OFFSET = 10;
@@ -43,4 +45,12 @@ public class TPM_NV_ReadValueOutput extends TPMAuth1CommandOutput
     {
         return this.getBytes( DATA_OFFSET, this.getDataSize() );
     }
+
+    /**
+     * Returns the data as a view of the response bytes, without copying it.
+     */
+    public ByteArrayView getDataView()
+    {
+        return this.getBytesView( DATA_OFFSET, this.getDataSize() );
+    }
 }
@@ -34,6 +34,7 @@ import edu.mit.csail.tpmj.TPMException;
 import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 public class TPM_OSAP extends TPMCommand
 {
@@ -97,7 +98,15 @@ public class TPM_OSAP extends TPMCommand
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.entityType, this.entityValue, this.nonceOddOSAP );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeShort( this.entityType );
+        enc.writeInt32( this.entityValue );
+        enc.writeStruct( this.nonceOddOSAP );
     }
 
     @Override
@@ -33,6 +33,7 @@ import edu.mit.csail.tpmj.TPMConsts;
 import edu.mit.csail.tpmj.TPMException;
 import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 public class TPM_PCRRead extends TPMCommand
 {
@@ -68,10 +69,27 @@ public class TPM_PCRRead extends TPMCommand
         return (TPM_PCRReadOutput) super.execute( tpmDriver );
     }
 
+    /**
+     * Returns a template for PCRRead commands.  Set the PCR index
+     * with setInt32( PCRINDEX_OFFSET, pcrIndex ).
+     * 
+     * @see TPMCommandTemplate
+     */
+    public static TPMCommandTemplate<TPM_PCRReadOutput> createTemplate()
+    {
+        return new TPMCommandTemplate<TPM_PCRReadOutput>( new TPM_PCRRead( 0 ) );
+    }
+
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.pcrIndex );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.pcrIndex );
     }
 
     @Override
@@ -32,6 +32,7 @@ package edu.mit.csail.tpmj.commands;
 import edu.mit.csail.tpmj.TPMConsts;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 public class TPM_PCR_Reset extends TPMCommand
 {
@@ -64,7 +65,13 @@ public class TPM_PCR_Reset extends TPMCommand
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.pcrSelection );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeStruct( this.pcrSelection );
     }
 
     @Override
@@ -35,6 +35,7 @@ import edu.mit.csail.tpmj.TPMJDisallowedException;
 import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.structs.ByteArrayTPMOutputStruct;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 public class TPM_PhysicalSetDeactivated extends TPMCommand
 {
@@ -74,7 +75,13 @@ public class TPM_PhysicalSetDeactivated extends TPMCommand
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.state );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeBoolean( this.state );
     }
 
     /**
@@ -35,6 +35,7 @@ import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 public class TPM_Quote extends TPMKeyAuth1Command
 {
@@ -109,8 +110,15 @@ public class TPM_Quote extends TPMKeyAuth1Command
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.getKeyHandle(),
-            this.externalData, this.targetPCRs );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.getKeyHandle() );
+        enc.writeStruct( this.externalData );
+        enc.writeStruct( this.targetPCRs );
     }
 
     @Override
@@ -32,6 +32,7 @@ package edu.mit.csail.tpmj.commands;
 import edu.mit.csail.tpmj.structs.TPM_PCR_COMPOSITE;
 import edu.mit.csail.tpmj.util.ByteArrayStruct;
 import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.ByteArrayView;
 
 public class TPM_QuoteOutput extends TPMAuth1CommandOutput
 {
@@ -73,13 +74,24 @@ public class TPM_QuoteOutput extends TPMAuth1CommandOutput
         int sigSize = this.getSigSize();
         return this.getBytes( this.sigSizeOffset + 4, sigSize );
     }
-    
+
+    /**
+     * Returns the signature as a view of the response bytes,
+     * without copying it.
+     */
+    public ByteArrayView getSigView()
+    {
+        return this.getBytesView( this.getSigOffset(), this.getSigSize() );
+    }
+
     protected void calculateSigSizeOffset()
     {
-        // FIXME: It seems quite inefficient to have to call this.getPcrData() here.
-        TPM_PCR_COMPOSITE pcrData = this.getPcrData();
-        int pcrDataSize = pcrData.getTotalStructSize();
-        this.sigSizeOffset = PCRDATA_OFFSET + pcrDataSize;
+        // Compute the size of the TPM_PCR_COMPOSITE from its
+        // size fields (sizeOfSelect and valueSize) instead of parsing it.
+        int sizeOfSelect = this.getUInt16( PCRDATA_OFFSET );
+        int valueSizeOffset = PCRDATA_OFFSET + 2 + sizeOfSelect;
+        int valueSize = this.getInt32( valueSizeOffset );
+        this.sigSizeOffset = valueSizeOffset + 4 + valueSize;
     }
 
     @Override
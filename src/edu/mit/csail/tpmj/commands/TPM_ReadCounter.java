@@ -35,10 +35,13 @@ import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 import edu.mit.csail.tpmj.util.Debug;
 
 public class TPM_ReadCounter extends TPMCommand implements TPM_ReadOrIncCounterCommand
 {
+    public static final int COUNTID_OFFSET = 10;
+
     int countID;
 
     public TPM_ReadCounter()
@@ -76,10 +79,27 @@ public class TPM_ReadCounter extends TPMCommand implements TPM_ReadOrIncCounterC
         return (TPM_ReadCounterOutput) super.execute( tpmDriver );
     }
 
+    /**
+     * Returns a template for ReadCounter commands.  Set the counter ID
+     * with setInt32( COUNTID_OFFSET, countID ).
+     * 
+     * @see TPMCommandTemplate
+     */
+    public static TPMCommandTemplate<TPM_ReadCounterOutput> createTemplate()
+    {
+        return new TPMCommandTemplate<TPM_ReadCounterOutput>( new TPM_ReadCounter( 0 ) );
+    }
+
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.countID );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.countID );
     }
 
     @Override
@@ -35,6 +35,7 @@ import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 import edu.mit.csail.tpmj.util.Debug;
 
 public class TPM_ReleaseCounter extends TPMAuth1Command
@@ -104,7 +105,13 @@ public class TPM_ReleaseCounter extends TPMAuth1Command
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.countID );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.countID );
     }
 
     /**
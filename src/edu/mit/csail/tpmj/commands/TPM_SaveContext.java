@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.commands;
+
+import edu.mit.csail.tpmj.TPMConsts;
+import edu.mit.csail.tpmj.TPMException;
+import edu.mit.csail.tpmj.drivers.TPMDriver;
+import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
+
+/**
+ * Saves a loaded resource (key, authorization session,
+ * or transport session) outside the TPM, as an encrypted
+ * context blob that can later be given to TPM_LoadContext.
+ */
+public class TPM_SaveContext extends TPMCommand
+{
+    public static final int HANDLE_OFFSET = 10;
+    public static final int RESOURCETYPE_OFFSET = 14;
+    public static final int LABEL_OFFSET = 18;
+    public static final int LABEL_SIZE = 16;
+
+    private int handle;
+    private int resourceType;
+    private byte[] label;
+
+    public TPM_SaveContext( int handle, int resourceType, byte[] label )
+    {
+        super( TPMConsts.TPM_TAG_RQU_COMMAND, LABEL_OFFSET + LABEL_SIZE,
+            TPMConsts.TPM_ORD_SaveContext );
+        this.setHandle( handle );
+        this.setResourceType( resourceType );
+        this.setLabel( label );
+    }
+
+    public TPM_SaveContext( int handle, int resourceType )
+    {
+        this( handle, resourceType, null );
+    }
+
+    public int getHandle()
+    {
+        return handle;
+    }
+
+    public void setHandle( int handle )
+    {
+        this.handle = handle;
+    }
+
+    public int getResourceType()
+    {
+        return resourceType;
+    }
+
+    public void setResourceType( int resourceType )
+    {
+        this.resourceType = resourceType;
+    }
+
+    public byte[] getLabel()
+    {
+        return label;
+    }
+
+    /**
+     * Sets the label (a 16-byte value saved in the clear in the
+     * context blob for the caller's use).  Shorter labels are
+     * zero-padded, and null means all zeros.
+     */
+    public void setLabel( byte[] label )
+    {
+        this.label = new byte[LABEL_SIZE];
+        if ( label != null )
+        {
+            System.arraycopy( label, 0, this.label, 0, Math.min(
+                label.length, LABEL_SIZE ) );
+        }
+    }
+
+    // Return Output Struct
+
+    public Class getReturnType()
+    {
+        return TPM_SaveContextOutput.class;
+    }
+
+    @Override
+    public TPM_SaveContextOutput execute( TPMDriver tpmDriver )
+        throws TPMException
+    {
+        return (TPM_SaveContextOutput) super.execute( tpmDriver );
+    }
+
+    @Override
+    public byte[] toBytes()
+    {
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.handle );
+        enc.writeInt32( this.resourceType );
+        enc.writeBytes( this.label );
+    }
+
+    @Override
+    public void fromBytes( byte[] source, int offset )
+    {
+        this.readHeader( source, offset );
+        ByteArrayReadWriter brw = this.createBodyReadWriter( source, offset );
+
+        this.setHandle( brw.readInt32() );
+        this.setResourceType( brw.readInt32() );
+        this.setLabel( brw.readBytes( LABEL_SIZE ) );
+    }
+}
@@ -35,6 +35,7 @@ import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 import edu.mit.csail.tpmj.util.Debug;
 
 public class TPM_Seal extends TPMKeyAuth1Command
@@ -175,9 +176,19 @@ public class TPM_Seal extends TPMKeyAuth1Command
         {
             this.encAuth = new TPM_ENCAUTH();
         }
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
         byte[] pcrInfoBytes = this.getPcrInfoBytes();
-        return this.createHeaderAndBody( this.getKeyHandle(), this.encAuth,
-            pcrInfoBytes.length, pcrInfoBytes, this.inData.length, this.inData  );
+        enc.writeInt32( this.getKeyHandle() );
+        enc.writeStruct( this.encAuth );
+        enc.writeInt32( pcrInfoBytes.length );
+        enc.writeBytes( pcrInfoBytes );
+        enc.writeInt32( this.inData.length );
+        enc.writeBytes( this.inData );
     }
 
     /**
@@ -197,7 +208,8 @@ public class TPM_Seal extends TPMKeyAuth1Command
         this.plainAuth = null;
         int pcrInfoSize = brw.readInt32();
         byte[] pcrInfoData = brw.readBytes( pcrInfoSize );
-        this.pcrInfo = new TPM_PCR_INFO( pcrInfoData );
+        // pcrInfoSize is 0 if the data is not sealed to PCRs
+        this.pcrInfo = (pcrInfoSize == 0) ? null : new TPM_PCR_INFO( pcrInfoData );
         int inDataSize = brw.readInt32();
         this.inData = brw.readBytes( inDataSize );
         
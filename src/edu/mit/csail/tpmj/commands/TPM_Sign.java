@@ -35,6 +35,7 @@ import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.structs.TPM_DIGEST;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 public class TPM_Sign extends TPMKeyAuth1Command
 {
@@ -128,8 +129,15 @@ public class TPM_Sign extends TPMKeyAuth1Command
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.getKeyHandle(),
-            this.getAreaToSignSize(), this.areaToSign );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.getKeyHandle() );
+        enc.writeInt32( this.getAreaToSignSize() );
+        enc.writeBytes( this.areaToSign );
     }
 
     @Override
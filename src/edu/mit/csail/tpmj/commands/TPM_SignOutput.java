@@ -29,6 +29,8 @@
  */ 
 package edu.mit.csail.tpmj.commands;
 
+import edu.mit.csail.tpmj.util.ByteArrayView;
+
 public class TPM_SignOutput extends TPMAuth1CommandOutput
 {
     public static final int SIGSIZE_OFFSET = 10;
@@ -44,4 +46,13 @@ public class TPM_SignOutput extends TPMAuth1CommandOutput
         int sigSize = this.getSigSize();
         return this.getBytes( this.SIG_OFFSET, sigSize );
     }
+
+    /**
+     * Returns the signature as a view of the response bytes,
+     * without copying it.
+     */
+    public ByteArrayView getSigView()
+    {
+        return this.getBytesView( SIG_OFFSET, this.getSigSize() );
+    }
 }
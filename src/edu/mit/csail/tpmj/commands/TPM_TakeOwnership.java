@@ -35,6 +35,7 @@ import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 import edu.mit.csail.tpmj.util.Debug;
 
 public class TPM_TakeOwnership extends TPMAuth1Command
@@ -160,9 +161,18 @@ public class TPM_TakeOwnership extends TPMAuth1Command
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.protocolID,
-            this.encOwnerAuth.length, this.encOwnerAuth,
-            this.encSrkAuth.length, this.encSrkAuth, this.keyInfo );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeShort( this.protocolID );
+        enc.writeInt32( this.encOwnerAuth.length );
+        enc.writeBytes( this.encOwnerAuth );
+        enc.writeInt32( this.encSrkAuth.length );
+        enc.writeBytes( this.encSrkAuth );
+        enc.writeStruct( this.keyInfo );
     }
 
     /**
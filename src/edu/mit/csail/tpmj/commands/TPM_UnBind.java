@@ -34,6 +34,7 @@ import edu.mit.csail.tpmj.TPMException;
 import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 public class TPM_UnBind extends TPMKeyAuth1Command
 {
@@ -112,8 +113,15 @@ public class TPM_UnBind extends TPMKeyAuth1Command
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.getKeyHandle(),
-            this.getInDataSize(), this.inData );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.getKeyHandle() );
+        enc.writeInt32( this.getInDataSize() );
+        enc.writeBytes( this.inData );
     }
 
     @Override
@@ -29,6 +29,8 @@
  */ 
 package edu.mit.csail.tpmj.commands;
 
+import edu.mit.csail.tpmj.util.ByteArrayView;
+
 public class TPM_UnBindOutput extends TPMAuth1CommandOutput
 {
     public static final int OUTDATASIZE_OFFSET = 10;
@@ -50,4 +52,13 @@ public class TPM_UnBindOutput extends TPMAuth1CommandOutput
         int outDataSize = this.getOutDataSize();
         return this.getBytes( this.OUTDATA_OFFSET, outDataSize );
     }
+
+    /**
+     * Same as getOutData(), but returns a view of the response bytes
+     * instead of a copy.
+     */
+    public ByteArrayView getOutDataView()
+    {
+        return this.getBytesView( OUTDATA_OFFSET, this.getOutDataSize() );
+    }
 }
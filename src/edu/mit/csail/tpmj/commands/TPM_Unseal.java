@@ -35,6 +35,7 @@ import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 import edu.mit.csail.tpmj.util.Debug;
 
 public class TPM_Unseal extends TPMAuth2Command
@@ -116,7 +117,14 @@ public class TPM_Unseal extends TPMAuth2Command
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.parentHandle, this.inData );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.parentHandle );
+        enc.writeStruct( this.inData );
     }
 
     /**
@@ -30,6 +30,7 @@
 package edu.mit.csail.tpmj.commands;
 
 import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.ByteArrayView;
 
 public class TPM_UnsealOutput extends TPMAuth2CommandOutput
 {
@@ -53,6 +54,15 @@ public class TPM_UnsealOutput extends TPMAuth2CommandOutput
         return this.getBytes( this.SECRET_OFFSET, secretSize );
     }
 
+    /**
+     * Same as getSecret(), but returns a view of the response bytes
+     * instead of a copy.
+     */
+    public ByteArrayView getSecretView()
+    {
+        return this.getBytesView( SECRET_OFFSET, this.getSecretSize() );
+    }
+
     @Override
     public String toString()
     {
@@ -35,6 +35,7 @@ import edu.mit.csail.tpmj.TPMJDisallowedException;
 import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.structs.ByteArrayTPMOutputStruct;
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 /**
  * Avoid using this class directly; use TPMAdminFuncs.assertPhysicalPresence instead.
@@ -114,7 +115,13 @@ public class TSC_PhysicalPresence extends TPMCommand
     @Override
     public byte[] toBytes()
     {
-        return this.createHeaderAndBody( this.physicalPresence );
+        return this.createHeaderAndBody();
+    }
+
+    @Override
+    protected void writeBody( ByteBufferEncoder enc )
+    {
+        enc.writeShort( this.physicalPresence );
     }
 
     /**
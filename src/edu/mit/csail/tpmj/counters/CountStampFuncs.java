@@ -57,13 +57,13 @@ public class CountStampFuncs extends TPMUtilityFuncs
         TPM_SECRET keyAuth ) throws TPMException
     {
         TPMTransportLog transLog;
-        TPMOIAPSession oiapSession = new TPMOIAPSession( tpmDriver );
+        TPMOIAPSession oiapSession = new TPMOIAPSession( getTPMDriver() );
         oiapSession.startSession();
         oiapSession.setSharedSecret( counterAuth );
         Debug.println( "Started OIAP session 0x"
             + Integer.toHexString( oiapSession.getAuthHandle() ) );
 
-        TPMTransportSession transSession = new TPMTransportSession( tpmDriver,
+        TPMTransportSession transSession = new TPMTransportSession( getTPMDriver(),
             TPMConsts.TPM_TRANSPORT_LOG );
 
         int transHandle = transSession.startSession(
@@ -133,7 +133,7 @@ public class CountStampFuncs extends TPMUtilityFuncs
         throws TPMException
     {
         TPMTransportLog transLog;
-        TPMTransportSession transSession = new TPMTransportSession( tpmDriver,
+        TPMTransportSession transSession = new TPMTransportSession( getTPMDriver(),
             TPMConsts.TPM_TRANSPORT_LOG );
 
         int transHandle = transSession.startSession(
@@ -29,29 +29,65 @@
  */
 package edu.mit.csail.tpmj.drivers;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
 import edu.mit.csail.tpmj.TPMConsts;
 import edu.mit.csail.tpmj.TPMErrorReturnCodeException;
 import edu.mit.csail.tpmj.TPMException;
 import edu.mit.csail.tpmj.TPMIOException;
 import edu.mit.csail.tpmj.TPMNullOutputException;
+import edu.mit.csail.tpmj.commands.TPMCommand;
 import edu.mit.csail.tpmj.commands.TPM_GetCapability;
 import edu.mit.csail.tpmj.commands.TPM_GetCapabilityOutput;
 import edu.mit.csail.tpmj.structs.ByteArrayTPMOutputStruct;
 import edu.mit.csail.tpmj.structs.TPMIOStruct;
 import edu.mit.csail.tpmj.structs.TPMInputStruct;
+import edu.mit.csail.tpmj.structs.TPMOutputStruct;
 import edu.mit.csail.tpmj.structs.TPM_CAP_VERSION_INFO;
+import edu.mit.csail.tpmj.structs.TPM_RESULT;
 import edu.mit.csail.tpmj.structs.TPM_STRUCT_VER;
 import edu.mit.csail.tpmj.util.ByteArrayUtil;
 import edu.mit.csail.tpmj.util.Debug;
 
 public abstract class BasicTPMDriver implements TPMDriver
 {
-    protected int numRetries = 1;
-    protected int retryDelay = 2000;
+    /**
+     * Held while a command is being sent to the TPM (by the subclasses'
+     * transmitBytes(), see lockForCommand()), and while init() gets
+     * the TPM's info.  It is taken again for each retry, so it is not held
+     * while waiting to retry (see transmitBytesWithPolicy()).
+     * This is used instead of the driver's monitor, so that waiting
+     * for the TPM can be interrupted, and so that threads blocked on it
+     * (or holding it during device I/O) do not pin the carrier threads
+     * of virtual threads.
+     */
+    protected final ReentrantLock lock = new ReentrantLock( true );
+
+    // retry policies (see transmitBytesWithPolicy)
+    private volatile TPMRetryPolicy retryPolicy = TPMRetryPolicy.DEFAULT;
+    private ConcurrentHashMap<Integer, TPMRetryPolicy> ordinalRetryPolicies = new ConcurrentHashMap<Integer, TPMRetryPolicy>();
+    private volatile TPMCircuitBreaker circuitBreaker = null;
+    private Random jitterRandom = new Random();
+
+    // created on first use of transmitAsync
+    private TPMCommandDispatcher dispatcher = null;
+    private final Object dispatcherLock = new Object();
 
     // cached values
-    private int tpmManufacturer = 0;
-    private TPM_STRUCT_VER tpmVersion = null;
+    private volatile int tpmManufacturer = 0;
+    private volatile TPM_STRUCT_VER tpmVersion = null;
+
+    // device profile (see init)
+    private volatile File profileDir = null;
+    private volatile long profileMaxAge = TPMDeviceProfile.DEFAULT_MAX_AGE;
+    private volatile TPMDeviceProfile profile = null;
 
     static
     {
@@ -62,18 +98,73 @@ public abstract class BasicTPMDriver implements TPMDriver
     /**
      * Default implementation includes resetting
      * and regetting of info such as manufacturer and version.
+     * <p>
+     * If a profile directory has been set (and the driver has a profile key),
+     * the info is taken from the device profile saved there instead, if there
+     * is one, and it matches the TPM (which costs one TPM_GetCapability;
+     * see TPMDeviceProfile.matches()).  (If the profile is older than 
+     * the maximum age, it is refreshed in a background thread.)  
+     * Otherwise, a new profile is gotten from the TPM and saved.
      */
-    public synchronized void init()
+    public void init()
     {
-        Debug.println( "Initializing TPMDriver ", this.getClass() );
-        // force regetting of info from TPM
-        this.tpmManufacturer = 0;
-        this.tpmVersion = null;
-        // get info from TPM
-        int manuf = this.getTPMManufacturer();
-        Debug.println( "Manufacturer ID: 0x" + Integer.toHexString( manuf ) );
-        TPM_STRUCT_VER ver = this.getTPMVersion();
-        Debug.println( "TPM Version: " + ver );
+        this.lock.lock();
+        try
+        {
+            Debug.println( "Initializing TPMDriver ", this.getClass() );
+            // force regetting of info from TPM
+            this.tpmManufacturer = 0;
+            this.tpmVersion = null;
+            this.profile = null;
+
+            File dir = this.profileDir;
+            String key = this.getProfileKey();
+            if ( (dir != null) && (key != null) )
+            {
+                TPMDeviceProfile p = TPMDeviceProfile.load( dir, key );
+                if ( (p != null) && !p.matches( this ) )
+                {
+                    Debug.println( "Device profile does not match the TPM: ", p );
+                    p = null;
+                }
+                if ( p != null )
+                {
+                    Debug.println( "Using ", p );
+                    if ( p.isStale( this.profileMaxAge ) )
+                    {
+                        this.refreshProfileInBackground( dir, key );
+                    }
+                }
+                else
+                {
+                    try
+                    {
+                        p = TPMDeviceProfile.query( this, key );
+                        p.save( dir );
+                    }
+                    catch ( Exception e )
+                    {
+                        Debug.println( "Could not create device profile: ", e );
+                    }
+                }
+                if ( p != null )
+                {
+                    this.profile = p;
+                    this.tpmManufacturer = p.getManufacturer();
+                    this.tpmVersion = p.getVersion();
+                }
+            }
+
+            // get info from TPM (unless it came from the profile)
+            int manuf = this.getTPMManufacturer();
+            Debug.println( "Manufacturer ID: 0x" + Integer.toHexString( manuf ) );
+            TPM_STRUCT_VER ver = this.getTPMVersion();
+            Debug.println( "TPM Version: " + ver );
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
     }
 
     /**
@@ -82,8 +173,10 @@ public abstract class BasicTPMDriver implements TPMDriver
      * Default implementation checks if cached value is non-zero
      * and uses it, otherwise, it creates 
      * and executes a new TPM_GetCapability command.
+     * (This is not synchronized; if several threads call it at once
+     * before the value is saved, each of them gets it from the TPM.)
      */
-    public synchronized int getTPMManufacturer()
+    public int getTPMManufacturer()
     {
         if ( this.tpmManufacturer != 0 )
         {
@@ -100,8 +193,7 @@ public abstract class BasicTPMDriver implements TPMDriver
             // Note: this can throw a TPMException, 
             // in which case, output is never returned
             TPM_GetCapabilityOutput output = cmd.execute( this );
-            byte[] resp = output.getResp();
-            this.tpmManufacturer = ByteArrayUtil.readInt32BE( resp, 0 );
+            this.tpmManufacturer = output.getRespView().getInt32( 0 );
             return this.tpmManufacturer;
         }
         catch ( Exception e )
@@ -118,7 +210,7 @@ public abstract class BasicTPMDriver implements TPMDriver
      * (First tries the version 1.2 way of getting
      * the version, and then tries the 1.1 way.)
      */
-    public synchronized TPM_STRUCT_VER getTPMVersion()
+    public TPM_STRUCT_VER getTPMVersion()
     {
         if ( this.tpmVersion != null )
         {
@@ -145,19 +237,90 @@ public abstract class BasicTPMDriver implements TPMDriver
         return this.tpmVersion;
     }
 
-    public synchronized boolean isTPM11()
+    /**
+     * Returns the key under which this driver's device profile is saved,
+     * which should identify the device (e.g., "linux:/dev/tpm0"),
+     * or null if this driver does not use profiles (the default).
+     */
+    protected String getProfileKey()
+    {
+        return null;
+    }
+
+    public File getProfileDir()
+    {
+        return this.profileDir;
+    }
+
+    /**
+     * Sets the directory in which device profiles are saved
+     * (null for none).  Takes effect on the next init().
+     * 
+     * @see TPMDeviceProfile
+     */
+    public void setProfileDir( File profileDir )
+    {
+        this.profileDir = profileDir;
+    }
+
+    public long getProfileMaxAge()
+    {
+        return this.profileMaxAge;
+    }
+
+    /**
+     * Sets the age (in ms) after which a saved profile is refreshed.
+     */
+    public void setProfileMaxAge( long profileMaxAge )
+    {
+        this.profileMaxAge = profileMaxAge;
+    }
+
+    /**
+     * Returns the device profile that init() used or created,
+     * or null if there is none.
+     */
+    public TPMDeviceProfile getProfile()
+    {
+        return this.profile;
+    }
+
+    private void refreshProfileInBackground( final File dir, final String key )
+    {
+        Thread t = new Thread( "TPM profile refresh (" + key + ")" )
+        {
+            public void run()
+            {
+                try
+                {
+                    TPMDeviceProfile p = TPMDeviceProfile.query(
+                        BasicTPMDriver.this, key );
+                    p.save( dir );
+                    BasicTPMDriver.this.profile = p;
+                }
+                catch ( Exception e )
+                {
+                    // keep using the old profile (and try again next time)
+                }
+            }
+        };
+        t.setDaemon( true );
+        t.start();
+    }
+
+    public boolean isTPM11()
     {
         TPM_STRUCT_VER version = this.getTPMVersion();
         return (version.getMajor() == 1) && (version.getMinor() == 1);
     }
 
-    public synchronized boolean isTPM12()
+    public boolean isTPM12()
     {
         TPM_STRUCT_VER version = this.getTPMVersion();
         return (version.getMajor() == 1) && (version.getMinor() == 2);
     }
 
-    private synchronized TPM_STRUCT_VER getVersion11Style() throws TPMException
+    private TPM_STRUCT_VER getVersion11Style() throws TPMException
     {
         // HACK: This is the same as in TPMGetCapabilityFuncs but repeated here to avoid dependencies
 
@@ -174,7 +337,7 @@ public abstract class BasicTPMDriver implements TPMDriver
         return structVer;
     }
 
-    private synchronized TPM_CAP_VERSION_INFO getVersion12Style()
+    private TPM_CAP_VERSION_INFO getVersion12Style()
         throws TPMException
     {
         // HACK: This is the same as in TPMGetCapabilityFuncs but repeated here to avoid dependencies
@@ -192,24 +355,99 @@ public abstract class BasicTPMDriver implements TPMDriver
         return ret;
     }
 
-    public synchronized int getNumRetries()
+    /**
+     * Returns the maximum number of retries of the default retry policy.
+     */
+    public int getNumRetries()
+    {
+        return this.retryPolicy.getMaxRetries();
+    }
+
+    /**
+     * Sets the maximum number of retries of the default retry policy.
+     */
+    public void setNumRetries( int numRetries )
+    {
+        this.retryPolicy = this.retryPolicy.withMaxRetries( numRetries );
+    }
+
+    /**
+     * Returns the delay (in ms) before the first retry
+     * in the default retry policy.
+     */
+    public int getRetryDelay()
+    {
+        return (int) this.retryPolicy.getInitialDelay();
+    }
+
+    /**
+     * Sets the delay (in ms) before the first retry in the 
+     * default retry policy.  (Later retries back off exponentially,
+     * up to the policy's maximum delay, which is raised if necessary.)
+     */
+    public void setRetryDelay( int retryDelay )
     {
-        return numRetries;
+        TPMRetryPolicy policy = this.retryPolicy;
+        this.retryPolicy = policy.withDelays( retryDelay, Math.max( retryDelay,
+            policy.getMaxDelay() ) );
     }
 
-    public synchronized void setNumRetries( int numRetries )
+    /**
+     * Returns the retry policy used for ordinals that do not have their own.
+     */
+    public TPMRetryPolicy getRetryPolicy()
     {
-        this.numRetries = numRetries;
+        return this.retryPolicy;
     }
 
-    public synchronized int getRetryDelay()
+    public void setRetryPolicy( TPMRetryPolicy policy )
     {
-        return retryDelay;
+        if ( policy == null )
+        {
+            throw new IllegalArgumentException( "policy must not be null" );
+        }
+        this.retryPolicy = policy;
     }
 
-    public synchronized void setRetryDelay( int retryDelay )
+    /**
+     * Returns the retry policy used for the given ordinal.
+     */
+    public TPMRetryPolicy getRetryPolicy( int ordinal )
     {
-        this.retryDelay = retryDelay;
+        TPMRetryPolicy policy = this.ordinalRetryPolicies.get( ordinal );
+        return (policy == null) ? this.retryPolicy : policy;
+    }
+
+    /**
+     * Sets the retry policy for the given ordinal 
+     * (e.g., TPMRetryPolicy.NO_RETRIES for a command that 
+     * should not be repeated).  null means use the default policy.
+     */
+    public void setRetryPolicy( int ordinal, TPMRetryPolicy policy )
+    {
+        if ( policy == null )
+        {
+            this.ordinalRetryPolicies.remove( ordinal );
+        }
+        else
+        {
+            this.ordinalRetryPolicies.put( ordinal, policy );
+        }
+    }
+
+    public TPMCircuitBreaker getCircuitBreaker()
+    {
+        return this.circuitBreaker;
+    }
+
+    /**
+     * Sets the circuit breaker used by this driver (null, the default,
+     * means none).  A breaker can be shared by several drivers using
+     * the same TPM.
+     */
+    public void setCircuitBreaker( TPMCircuitBreaker circuitBreaker )
+    {
+        this.circuitBreaker = circuitBreaker;
     }
 
     /**
@@ -252,68 +490,388 @@ public abstract class BasicTPMDriver implements TPMDriver
         }
     }
 
+    /**
+     * Checks the tag and paramSize read from the header of a response, 
+     * and returns the paramSize.
+     * 
+     * @param tag
+     * @param paramSize
+     * @return paramSize
+     * @throws TPMFramingException if the tag is not a response tag, or 
+     * paramSize is too small or too big for a TPM response
+     */
+    public static int checkResponseHeader( short tag, int paramSize )
+        throws TPMFramingException
+    {
+        if ( (tag != TPMConsts.TPM_TAG_RSP_COMMAND)
+            && (tag != TPMConsts.TPM_TAG_RSP_AUTH1_COMMAND)
+            && (tag != TPMConsts.TPM_TAG_RSP_AUTH2_COMMAND) )
+        {
+            throw new TPMFramingException( "Bad tag in response: 0x"
+                + Integer.toHexString( tag & 0xFFFF ) );
+        }
+        if ( (paramSize < TPMOutputStruct.BODY_OFFSET)
+            || (paramSize > TPMConsts.TPM_MAX_BUFF_SIZE) )
+        {
+            throw new TPMFramingException( "Bad paramSize in response: "
+                + paramSize );
+        }
+        return paramSize;
+    }
+
+    /**
+     * Checks the header of a response that was read into buf,
+     * and returns its paramSize.
+     * 
+     * @param buf
+     * @param length -- the number of bytes read into buf 
+     * @return paramSize (which is never more than length)
+     * @throws TPMFramingException if the header is bad, or if fewer
+     * than paramSize bytes were read
+     */
+    public static int checkResponseHeader( byte[] buf, int length )
+        throws TPMFramingException
+    {
+        if ( length < TPMOutputStruct.BODY_OFFSET )
+        {
+            throw new TPMFramingException( "Response too short: " + length
+                + " bytes" );
+        }
+        int paramSize = checkResponseHeader( ByteArrayUtil.readShortBE( buf, 0 ),
+            ByteArrayUtil.readInt32BE( buf, TPMIOStruct.PARAMSIZE_OFFSET ) );
+        if ( paramSize > length )
+        {
+            throw new TPMFramingException( "Response truncated: paramSize is "
+                + paramSize + ", but only " + length + " bytes were read" );
+        }
+        return paramSize;
+    }
+
+    /**
+     * Reads exactly one response from a stream that does not preserve
+     * message boundaries (e.g., a socket or a pipe): first the header,
+     * then exactly the number of bytes given by its paramSize.
+     * The returned array is exactly paramSize bytes long.
+     * 
+     * @param in
+     * @return
+     * @throws TPMFramingException if the header is bad
+     * @throws IOException 
+     */
+    public static byte[] readFramedResponse( InputStream in )
+        throws IOException
+    {
+        byte[] header = new byte[TPMOutputStruct.BODY_OFFSET];
+        readFully( in, header, 0, header.length );
+        int paramSize = checkResponseHeader( ByteArrayUtil.readShortBE( header,
+            0 ), ByteArrayUtil.readInt32BE( header, TPMIOStruct.PARAMSIZE_OFFSET ) );
+        byte[] response = new byte[paramSize];
+        System.arraycopy( header, 0, response, 0, header.length );
+        readFully( in, response, header.length, paramSize - header.length );
+        return response;
+    }
+
+    private static void readFully( InputStream in, byte[] buf, int offset,
+        int length ) throws IOException
+    {
+        while ( length > 0 )
+        {
+            int n = in.read( buf, offset, length );
+            if ( n < 0 )
+            {
+                throw new EOFException( "End of stream after " + offset
+                    + " bytes of response" );
+            }
+            offset += n;
+            length -= n;
+        }
+    }
+
     /**
      * This method calls this.transmitBytes, and retries if there is an error. 
+     * (This is not synchronized.  Commands are executed one at a time
+     * by the subclasses' transmitBytes(), which hold the lock.)
      */
-    public synchronized ByteArrayTPMOutputStruct transmit( TPMInputStruct input )
+    public ByteArrayTPMOutputStruct transmit( TPMInputStruct input )
         throws TPMException
     {
         //        Debug.println( "BasicTPMDriver.transmit: input= " + input );
 
-        int retries = 0;
-        boolean ioOk = false;
-        ByteArrayTPMOutputStruct output = null;
-
         // Serialize input
         byte[] inputBytes = input.toBytes();
 
-        do
+        byte[] outputBuf = this.transmitBytesWithRetries( inputBytes );
+
+        return BasicTPMDriver.checkOutput( input, outputBuf );
+    }
+
+    /**
+     * Like transmit, but does not throw a TPMErrorReturnCodeException
+     * if the return code is not 0.
+     */
+    public ByteArrayTPMOutputStruct transmitUnchecked( TPMInputStruct input )
+        throws TPMException
+    {
+        byte[] outputBuf = this.transmitBytesWithRetries( input.toBytes() );
+
+        return BasicTPMDriver.uncheckedOutput( input, outputBuf );
+    }
+
+    /**
+     * Calls this.transmitBytes, and retries according to the retry policy.
+     * This is the part of transmit() that actually uses the TPM,
+     * and is also used by the dispatcher thread in transmitAsync().
+     * This does not hold the lock itself.  Subclasses whose TPM can
+     * only execute one command at a time hold it in transmitBytes()
+     * (see lockForCommand()), so that it is taken for each attempt,
+     * and other threads can use the TPM while this waits to retry.
+     * 
+     * @param inputBytes
+     * @return the raw output bytes
+     * @throws TPMIOException if there was still an error after retrying
+     * @see #transmitBytesWithPolicy(byte[])
+     */
+    protected byte[] transmitBytesWithRetries( byte[] inputBytes )
+        throws TPMIOException
+    {
+        return this.transmitBytesWithPolicy( inputBytes );
+    }
+
+    /**
+     * Acquires the lock, unless the current thread is interrupted 
+     * while waiting for it.  Subclasses call this in transmitBytes().
+     * If the calling thread is interrupted while waiting for the lock,
+     * the command is not sent, and a TPMIOException is thrown
+     * (which is not retried).
+     * 
+     * @param inputBytes -- the command to be sent (for the exception)
+     * @throws TPMIOException if interrupted
+     */
+    protected void lockForCommand( byte[] inputBytes ) throws TPMIOException
+    {
+        try
         {
-            try
+            this.lock.lockInterruptibly();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new TPMIOException( inputBytes, new InterruptedIOException(
+                "Interrupted while waiting for the TPM" ) );
+        }
+    }
+
+    /**
+     * Calls this.transmitBytes, and retries (after a delay) if it throws 
+     * a TPMIOException or the TPM returns a retryable return code,
+     * as specified by the retry policy for the command's ordinal.
+     * Does not start a retry that would be after the current thread's 
+     * deadline (see TPMDeadline).
+     * If there is a circuit breaker, and it is open, this throws
+     * a TPMCircuitOpenException instead of trying.
+     * <p>
+     * If the TPM keeps returning a retryable return code, the last
+     * output is returned (so that transmit() throws 
+     * a TPMErrorReturnCodeException with that code).
+     * Authorized commands (TPM_TAG_RQU_AUTH1_COMMAND and 
+     * TPM_TAG_RQU_AUTH2_COMMAND) are never retried because of their 
+     * return code, since their nonces have already been used; 
+     * their first output is returned, so that the caller can set up 
+     * the session again.
+     * After a TPMIOException, a command is only retried once,
+     * unless its policy is idempotent (see TPMRetryPolicy.getMaxIORetries()).
+     * If the command had already been sent when the error happened
+     * (e.g., a TPMTimeoutException), the TPM may have executed it,
+     * so it is not retried at all, unless its policy is idempotent
+     * (see TPMIOException.isCommandSent()).
+     * <p>
+     * This does not hold the lock (see transmitBytesWithRetries()).
+     * 
+     * @param inputBytes
+     * @return the raw output bytes
+     * @throws TPMIOException if there was still an error after retrying
+     */
+    protected byte[] transmitBytesWithPolicy( byte[] inputBytes )
+        throws TPMIOException
+    {
+        int ordinal = 0;
+        short tag = 0;
+        if ( inputBytes.length >= TPMCommand.ORDINAL_OFFSET + 4 )
+        {
+            tag = ByteArrayUtil.readShortBE( inputBytes, TPMCommand.TAG_OFFSET );
+            ordinal = ByteArrayUtil.readInt32BE( inputBytes,
+                TPMCommand.ORDINAL_OFFSET );
+        }
+        boolean codesRetryable = (tag == TPMConsts.TPM_TAG_RQU_COMMAND);
+        TPMRetryPolicy policy = this.getRetryPolicy( ordinal );
+        TPMCircuitBreaker breaker = this.circuitBreaker;
+        long deadline = TPMDeadline.getCurrent();
+        int retries = 0;
+
+        while ( true )
+        {
+            if ( (breaker != null) && !breaker.allowRequest() )
             {
-                byte[] outputBuf = this.transmitBytes( inputBytes );
-                output = new ByteArrayTPMOutputStruct( outputBuf );
-                // if we get here, there was no io error.
-                ioOk = true;
+                throw new TPMCircuitOpenException( inputBytes,
+                    "TPM circuit breaker is open after "
+                        + breaker.getConsecutiveFailures() + " failures" );
             }
-            catch ( TPMIOException ioe )
+
+            byte[] outputBytes = null;
+            TPMIOException error = null;
+            String problem;
+            try
             {
-                if ( retries < this.numRetries )
+                outputBytes = this.transmitBytes( inputBytes );
+                int returnCode = 0;
+                if ( (outputBytes != null)
+                    && (outputBytes.length >= TPMOutputStruct.BODY_OFFSET) )
                 {
-                    retries++;
-                    System.err.println( "BasicTPMDriver: TPMIOException encountered. (" + ioe + ")\n"
-                        + "Waiting "
-                        + (this.retryDelay / 1000.0) + " s, then retrying ... " );
-                    try
+                    returnCode = ByteArrayUtil.readInt32BE( outputBytes,
+                        TPMOutputStruct.RETURNCODE_OFFSET );
+                }
+                if ( !codesRetryable || !policy.isRetryable( returnCode ) )
+                {
+                    if ( breaker != null )
                     {
-                        Thread.sleep( this.retryDelay );
+                        breaker.recordSuccess();
                     }
-                    catch ( InterruptedException e )
+                    return outputBytes;
+                }
+                problem = "TPM returned " + TPM_RESULT.getErrorName( returnCode );
+            }
+            catch ( TPMIOException ioe )
+            {
+                if ( (ioe instanceof TPMCircuitOpenException)
+                    || Thread.currentThread().isInterrupted() )
+                {
+                    // from a wrapped driver with its own breaker,
+                    // or interrupted while waiting for the lock
+                    throw ioe;
+                }
+                if ( !policy.isRetryOnIOException()
+                    || (ioe.isCommandSent() && !policy.isIdempotent()) )
+                {
+                    if ( breaker != null )
                     {
-                        e.printStackTrace();
+                        breaker.recordFailure();
                     }
-                    // continue and try again ...
+                    throw ioe;
+                }
+                error = ioe;
+                problem = "TPMIOException encountered. (" + ioe + ")";
+            }
+
+            if ( breaker != null )
+            {
+                breaker.recordFailure();
+            }
+
+            long delay = 0;
+            int maxRetries = (error != null) ? policy.getMaxIORetries()
+                : policy.getMaxRetries();
+            boolean retry = (retries < maxRetries);
+            if ( retry )
+            {
+                delay = policy.getDelay( retries + 1, this.jitterRandom );
+                retry = (deadline <= 0)
+                    || (System.currentTimeMillis() + delay <= deadline);
+            }
+            if ( retry )
+            {
+                retries++;
+                String msg = "BasicTPMDriver: " + problem + "\nWaiting "
+                    + (delay / 1000.0) + " s, then retrying ... ";
+                if ( error != null )
+                {
+                    System.err.println( msg );
                 }
                 else
                 {
-                    throw ioe;
+                    Debug.println( msg );
+                }
+                try
+                {
+                    Thread.sleep( delay );
+                    continue;
                 }
+                catch ( InterruptedException e )
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            if ( error != null )
+            {
+                throw error;
             }
+            return outputBytes;
         }
-        while ( !ioOk );
+    }
 
-        //        Debug.println( "BasicTPMDriver.transmit: output= " + output );
-        if ( output != null )
+    /**
+     * Wraps the raw output bytes returned by the TPM in an output struct
+     * (whatever its return code is), and throws a TPMNullOutputException
+     * if there is no output.
+     * 
+     * @param input -- the input that produced this output (for the exception)
+     * @param outputBuf
+     * @return
+     * @throws TPMNullOutputException
+     */
+    public static ByteArrayTPMOutputStruct uncheckedOutput( TPMInputStruct input,
+        byte[] outputBuf ) throws TPMNullOutputException
+    {
+        if ( outputBuf == null )
+        {
+            throw new TPMNullOutputException( input );
+        }
+        return new ByteArrayTPMOutputStruct( outputBuf );
+    }
+
+    /**
+     * Returns the output if its return code is 0, and throws
+     * a TPMErrorReturnCodeException otherwise.  (This can be used
+     * to implement transmit using transmitUnchecked.)
+     * 
+     * @param input
+     * @param output
+     * @return
+     * @throws TPMErrorReturnCodeException
+     */
+    public static <T extends TPMOutputStruct> T checkReturnCode(
+        TPMInputStruct input, T output ) throws TPMErrorReturnCodeException
+    {
+        if ( output.isError() )
         {
-            //            Debug.println( "Return code: " + output.getReturnCode() );
+            throw new TPMErrorReturnCodeException( input, output );
         }
+        return output;
+    }
 
-        if ( output == null )
+    /**
+     * Wraps the raw output bytes returned by the TPM in an output struct,
+     * and throws the appropriate exception if there is no output
+     * or if the TPM returned an error code.
+     * 
+     * @param input -- the input that produced this output (for the exception)
+     * @param outputBuf
+     * @return
+     * @throws TPMException
+     */
+    public static ByteArrayTPMOutputStruct checkOutput( TPMInputStruct input,
+        byte[] outputBuf ) throws TPMException
+    {
+        if ( outputBuf == null )
         {
             // NOTE: I think this should rarely or never happen.
             throw new TPMNullOutputException( input );
         }
-        else if ( output.isError() )
+
+        ByteArrayTPMOutputStruct output = new ByteArrayTPMOutputStruct( outputBuf );
+        //        Debug.println( "BasicTPMDriver.transmit: output= " + output );
+
+        if ( output.isError() )
         {
             throw new TPMErrorReturnCodeException( input, output );
         }
@@ -323,4 +881,52 @@ public abstract class BasicTPMDriver implements TPMDriver
         }
     }
 
+    /**
+     * Queues the input for transmission by this driver's dispatcher thread
+     * (which is created the first time this is called).
+     * The input is marshalled in the calling thread, and the output
+     * is parsed in the thread that gets the result from the returned future.
+     * 
+     * @see TPMCommandDispatcher
+     */
+    public TPMFuture<TPMOutputStruct> transmitAsync( TPMInputStruct input )
+        throws TPMException
+    {
+        return this.getDispatcher().submit( input );
+    }
+
+    /**
+     * Returns this driver's dispatcher, creating it if necessary.
+     * (Note: this does not use the driver's lock,
+     * since the dispatcher thread holds it while
+     * a command is being executed.)
+     */
+    protected TPMCommandDispatcher getDispatcher()
+    {
+        synchronized ( this.dispatcherLock )
+        {
+            if ( this.dispatcher == null )
+            {
+                this.dispatcher = new TPMCommandDispatcher( this );
+            }
+            return this.dispatcher;
+        }
+    }
+
+    /**
+     * Stops the dispatcher thread, if any.  Subclasses should
+     * call this in cleanup().
+     */
+    protected void shutdownDispatcher()
+    {
+        synchronized ( this.dispatcherLock )
+        {
+            if ( this.dispatcher != null )
+            {
+                this.dispatcher.shutdown();
+                this.dispatcher = null;
+            }
+        }
+    }
+
 }
@@ -0,0 +1,560 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.mit.csail.tpmj.TPMConsts;
+import edu.mit.csail.tpmj.TPMException;
+import edu.mit.csail.tpmj.TPMIOException;
+import edu.mit.csail.tpmj.structs.TPMInputStruct;
+import edu.mit.csail.tpmj.structs.TPMOutputStruct;
+import edu.mit.csail.tpmj.structs.TPM_STRUCT_VER;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+
+/**
+ * A TPMDriver wrapper that caches the responses to TPM_GetCapability,
+ * so that asking for the same capability again (e.g., through
+ * TPMGetCapabilityFuncs) does not need a round trip to the TPM.
+ * <p>
+ * Capabilities that never change (the version, manufacturer, number of
+ * PCRs, command durations, supported ordinals and algorithms, and
+ * maximum values) are cached for as long as the wrapper is used.
+ * Capabilities that can change belong to one of three groups:
+ * GROUP_HANDLES (key and other handle lists, and the number of loaded
+ * keys, sessions and counters), GROUP_FLAGS (permanent and volatile flags,
+ * and whether there is an owner), and GROUP_NV (the NV index list and
+ * NV space).  These are cached for at most the TTL, and are
+ * invalidated when a command that may change them (e.g., TPM_LoadKey2,
+ * TPM_FlushSpecific, or TPM_OwnerClear) is sent through this wrapper.
+ * (Use setInvalidatedGroups() to change which ordinals invalidate which
+ * groups.)  Commands with authorization sessions always invalidate
+ * GROUP_HANDLES, since they can end their sessions.  Other capabilities,
+ * and error responses, are not cached.
+ * <p>
+ * Note: commands sent to the TPM through other drivers (or programs)
+ * are not taken into account, except that volatile capabilities
+ * expire after the TTL.  Use invalidateAll() if the TPM may have
+ * been changed some other way.
+ */
+public class CachingTPMDriverWrapper implements TPMDriver
+{
+    public static final int GROUP_HANDLES = 0;
+    public static final int GROUP_FLAGS = 1;
+    public static final int GROUP_NV = 2;
+    public static final int NUM_GROUPS = 3;
+
+    /**
+     * Returned by getCacheGroup() for capabilities that never change.
+     */
+    public static final int CACHE_FOREVER = -1;
+
+    /**
+     * Returned by getCacheGroup() for capabilities that are not cached.
+     */
+    public static final int NOT_CACHED = -2;
+
+    public static final long DEFAULT_TTL = 1000;
+
+    // Offsets in a TPM_GetCapability command
+    private static final int CAP_AREA_OFFSET = 10;
+    private static final int SUB_CAP_OFFSET = 18;
+
+    public TPMDriver tpmDriver;
+
+    private volatile long ttl = DEFAULT_TTL;
+
+    private ConcurrentHashMap<CommandKey, Entry> cache = new ConcurrentHashMap<CommandKey, Entry>();
+    private ConcurrentHashMap<Integer, Integer> invalidatedGroups = new ConcurrentHashMap<Integer, Integer>();
+
+    // Incremented when a group is invalidated, so that a response
+    // that was requested before that is not cached afterwards.
+    private long[] generations = new long[NUM_GROUPS];
+
+    // statistics
+    private AtomicLong numHits = new AtomicLong();
+    private AtomicLong numMisses = new AtomicLong();
+
+    public CachingTPMDriverWrapper( TPMDriver tpmDriver )
+    {
+        super();
+        this.tpmDriver = tpmDriver;
+
+        int[] handleOrdinals =
+            { TPMConsts.TPM_ORD_LoadKey, TPMConsts.TPM_ORD_LoadKey2,
+                TPMConsts.TPM_ORD_EvictKey, TPMConsts.TPM_ORD_FlushSpecific,
+                TPMConsts.TPM_ORD_OIAP, TPMConsts.TPM_ORD_OSAP,
+                TPMConsts.TPM_ORD_DSAP, TPMConsts.TPM_ORD_Terminate_Handle,
+                TPMConsts.TPM_ORD_CreateCounter,
+                TPMConsts.TPM_ORD_ReleaseCounter,
+                TPMConsts.TPM_ORD_ReleaseCounterOwner,
+                TPMConsts.TPM_ORD_IncrementCounter,
+                TPMConsts.TPM_ORD_EstablishTransport,
+                TPMConsts.TPM_ORD_ReleaseTransportSigned,
+                TPMConsts.TPM_ORD_ExecuteTransport,
+                TPMConsts.TPM_ORD_SaveContext, TPMConsts.TPM_ORD_LoadContext,
+                TPMConsts.TPM_ORD_LoadKeyContext,
+                TPMConsts.TPM_ORD_LoadAuthContext,
+                TPMConsts.TPM_ORD_KeyControlOwner };
+        for ( int ordinal : handleOrdinals )
+        {
+            this.setInvalidatedGroups( ordinal, GROUP_HANDLES );
+        }
+
+        int[] flagOrdinals =
+            { TPMConsts.TPM_ORD_TakeOwnership,
+                TPMConsts.TPM_ORD_PhysicalEnable,
+                TPMConsts.TPM_ORD_PhysicalDisable,
+                TPMConsts.TPM_ORD_PhysicalSetDeactivated,
+                TPMConsts.TPM_ORD_SetTempDeactivated,
+                TPMConsts.TPM_ORD_SetOwnerInstall,
+                TPMConsts.TPM_ORD_OwnerSetDisable,
+                TPMConsts.TPM_ORD_DisableOwnerClear,
+                TPMConsts.TPM_ORD_DisableForceClear,
+                TPMConsts.TPM_ORD_DisablePubekRead,
+                TPMConsts.TPM_ORD_ResetLockValue,
+                TPMConsts.TPM_ORD_SetCapability,
+                TPMConsts.TPM_ORD_ContinueSelfTest,
+                TPMConsts.TPM_ORD_SelfTestFull,
+                TPMConsts.TPM_ORD_SetOperatorAuth,
+                TPMConsts.TPM_ORD_CreateEndorsementKeyPair,
+                TPMConsts.TPM_ORD_CreateRevocableEK,
+                TPMConsts.TPM_ORD_RevokeTrust };
+        for ( int ordinal : flagOrdinals )
+        {
+            this.setInvalidatedGroups( ordinal, GROUP_FLAGS );
+        }
+
+        int[] nvOrdinals =
+            { TPMConsts.TPM_ORD_NV_DefineSpace, TPMConsts.TPM_ORD_NV_WriteValue,
+                TPMConsts.TPM_ORD_NV_WriteValueAuth };
+        for ( int ordinal : nvOrdinals )
+        {
+            this.setInvalidatedGroups( ordinal, GROUP_NV );
+        }
+
+        int[] allOrdinals =
+            { TPMConsts.TPM_ORD_OwnerClear, TPMConsts.TPM_ORD_ForceClear,
+                TPMConsts.TPM_ORD_Startup, TPMConsts.TPM_ORD_Init,
+                TPMConsts.TPM_ORD_FieldUpgrade };
+        for ( int ordinal : allOrdinals )
+        {
+            this.setInvalidatedGroups( ordinal, GROUP_HANDLES, GROUP_FLAGS,
+                GROUP_NV );
+        }
+    }
+
+    // Configuration
+
+    public long getTTL()
+    {
+        return this.ttl;
+    }
+
+    /**
+     * Sets the maximum time (in ms) that capabilities that can change
+     * are cached.  (0 means they are not cached.)
+     */
+    public void setTTL( long ttl )
+    {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Sets the groups of cached capabilities that are invalidated
+     * when a command with the given ordinal is sent.
+     * (No groups means that the command does not change any capabilities.)
+     */
+    public void setInvalidatedGroups( int ordinal, int... groups )
+    {
+        int mask = 0;
+        for ( int group : groups )
+        {
+            if ( (group < 0) || (group >= NUM_GROUPS) )
+            {
+                throw new IllegalArgumentException( "Invalid group: " + group );
+            }
+            mask |= (1 << group);
+        }
+        if ( mask == 0 )
+        {
+            this.invalidatedGroups.remove( ordinal );
+        }
+        else
+        {
+            this.invalidatedGroups.put( ordinal, mask );
+        }
+    }
+
+    /**
+     * Returns the group that the given capability belongs to,
+     * or CACHE_FOREVER or NOT_CACHED.
+     */
+    public static int getCacheGroup( int capArea, int subCap )
+    {
+        switch ( capArea )
+        {
+            case TPMConsts.TPM_CAP_ORD:
+            case TPMConsts.TPM_CAP_ALG:
+            case TPMConsts.TPM_CAP_PID:
+            case TPMConsts.TPM_CAP_VERSION:
+            case TPMConsts.TPM_CAP_SYM_MODE:
+            case TPMConsts.TPM_CAP_TRANS_ALG:
+            case TPMConsts.TPM_CAP_TRANS_ES:
+            case TPMConsts.TPM_CAP_AUTH_ENCRYPT:
+            case TPMConsts.TPM_CAP_SELECT_SIZE:
+            case TPMConsts.TPM_CAP_VERSION_VAL:
+                return CACHE_FOREVER;
+            case TPMConsts.TPM_CAP_KEY_HANDLE:
+            case TPMConsts.TPM_CAP_HANDLE:
+                return GROUP_HANDLES;
+            case TPMConsts.TPM_CAP_FLAG:
+                return GROUP_FLAGS;
+            case TPMConsts.TPM_CAP_NV_LIST:
+            case TPMConsts.TPM_CAP_NV_INDEX:
+                return GROUP_NV;
+            case TPMConsts.TPM_CAP_PROPERTY:
+                break;
+            default:
+                return NOT_CACHED;
+        }
+
+        switch ( subCap )
+        {
+            case TPMConsts.TPM_CAP_PROP_PCR:
+            case TPMConsts.TPM_CAP_PROP_DIR:
+            case TPMConsts.TPM_CAP_PROP_MANUFACTURER:
+            case TPMConsts.TPM_CAP_PROP_MAX_AUTHSESS:
+            case TPMConsts.TPM_CAP_PROP_MAX_TRANSESS:
+            case TPMConsts.TPM_CAP_PROP_MAX_COUNTERS:
+            case TPMConsts.TPM_CAP_PROP_MAX_KEYS:
+            case TPMConsts.TPM_CAP_PROP_MAX_CONTEXT:
+            case TPMConsts.TPM_CAP_PROP_FAMILYROWS:
+            case TPMConsts.TPM_CAP_PROP_TIS_TIMEOUT:
+            case TPMConsts.TPM_CAP_PROP_STARTUP_EFFECT:
+            case TPMConsts.TPM_CAP_PROP_DELEGATE_ROW:
+            case TPMConsts.TPM_CAP_PROP_DAA_MAX:
+            case TPMConsts.TPM_CAP_PROP_MAX_SESSIONS:
+            case TPMConsts.TPM_CAP_PROP_DURATION:
+            case TPMConsts.TPM_CAP_PROP_INPUT_BUFFER:
+                return CACHE_FOREVER;
+            case TPMConsts.TPM_CAP_PROP_KEYS:
+            case TPMConsts.TPM_CAP_PROP_AUTHSESS:
+            case TPMConsts.TPM_CAP_PROP_TRANSESS:
+            case TPMConsts.TPM_CAP_PROP_COUNTERS:
+            case TPMConsts.TPM_CAP_PROP_CONTEXT:
+            case TPMConsts.TPM_CAP_PROP_SESSIONS:
+            case TPMConsts.TPM_CAP_PROP_ACTIVE_COUNTER:
+                return GROUP_HANDLES;
+            case TPMConsts.TPM_CAP_PROP_OWNER:
+                return GROUP_FLAGS;
+            case TPMConsts.TPM_CAP_PROP_MAX_NV_AVAILABLE:
+                return GROUP_NV;
+            default:
+                return NOT_CACHED;
+        }
+    }
+
+    /**
+     * Removes all cached capabilities (including the ones that never change).
+     */
+    public synchronized void invalidateAll()
+    {
+        for ( int g = 0; g < NUM_GROUPS; g++ )
+        {
+            this.generations[g]++;
+        }
+        this.cache.clear();
+    }
+
+    // Statistics
+
+    public long getNumHits()
+    {
+        return this.numHits.get();
+    }
+
+    public long getNumMisses()
+    {
+        return this.numMisses.get();
+    }
+
+    // TPMDriver methods
+
+    public TPMOutputStruct transmit( TPMInputStruct input ) throws TPMException
+    {
+        return BasicTPMDriver.checkReturnCode( input, this.transmitUnchecked( input ) );
+    }
+
+    public TPMOutputStruct transmitUnchecked( TPMInputStruct input )
+        throws TPMException
+    {
+        int ordinal = input.getOrdinal();
+        if ( ordinal == TPMConsts.TPM_ORD_GetCapability )
+        {
+            byte[] inputBytes = input.toBytes();
+            int group = getCacheGroup( inputBytes );
+            if ( group == NOT_CACHED )
+            {
+                return this.tpmDriver.transmitUnchecked( input );
+            }
+
+            CommandKey key = new CommandKey( inputBytes );
+            byte[] outputBytes = this.lookup( key );
+            if ( outputBytes != null )
+            {
+                return BasicTPMDriver.uncheckedOutput( input, outputBytes );
+            }
+            long generation = this.getGeneration( group );
+            TPMOutputStruct output = this.tpmDriver.transmitUnchecked( input );
+            if ( !output.isError() )
+            {
+                this.store( key, group, generation, output.toBytes() );
+            }
+            return output;
+        }
+
+        int groups = this.getInvalidatedGroups( ordinal, input.getTag() );
+        this.invalidate( groups );
+        try
+        {
+            return this.tpmDriver.transmitUnchecked( input );
+        }
+        finally
+        {
+            // in case a capability was read while the command was executing
+            this.invalidate( groups );
+        }
+    }
+
+    public byte[] transmitBytes( byte[] inputBytes ) throws TPMIOException
+    {
+        int ordinal = ByteArrayUtil.readInt32BE( inputBytes,
+            TPMInputStruct.ORDINAL_OFFSET );
+        if ( ordinal == TPMConsts.TPM_ORD_GetCapability )
+        {
+            int group = getCacheGroup( inputBytes );
+            if ( group == NOT_CACHED )
+            {
+                return this.tpmDriver.transmitBytes( inputBytes );
+            }
+
+            CommandKey key = new CommandKey( inputBytes );
+            byte[] outputBytes = this.lookup( key );
+            if ( outputBytes != null )
+            {
+                return outputBytes;
+            }
+            long generation = this.getGeneration( group );
+            outputBytes = this.tpmDriver.transmitBytes( inputBytes );
+            if ( (outputBytes != null)
+                && (outputBytes.length >= TPMOutputStruct.BODY_OFFSET)
+                && (ByteArrayUtil.readInt32BE( outputBytes,
+                    TPMOutputStruct.RETURNCODE_OFFSET ) == 0) )
+            {
+                this.store( key, group, generation,
+                    outputBytes.clone() );
+            }
+            return outputBytes;
+        }
+
+        int groups = this.getInvalidatedGroups( ordinal,
+            ByteArrayUtil.readShortBE( inputBytes, 0 ) );
+        this.invalidate( groups );
+        try
+        {
+            return this.tpmDriver.transmitBytes( inputBytes );
+        }
+        finally
+        {
+            this.invalidate( groups );
+        }
+    }
+
+    /**
+     * Passed directly to the underlying driver (without caching).
+     * Capabilities that the command may change are invalidated before
+     * it is queued, but may be cached again before it is executed.
+     */
+    public TPMFuture<TPMOutputStruct> transmitAsync( TPMInputStruct input )
+        throws TPMException
+    {
+        this.invalidate( this.getInvalidatedGroups( input.getOrdinal(),
+            input.getTag() ) );
+        return this.tpmDriver.transmitAsync( input );
+    }
+
+    public void init()
+    {
+        this.tpmDriver.init();
+    }
+
+    public void cleanup()
+    {
+        this.invalidateAll();
+        this.tpmDriver.cleanup();
+    }
+
+    public int getTPMManufacturer()
+    {
+        return this.tpmDriver.getTPMManufacturer();
+    }
+
+    public TPM_STRUCT_VER getTPMVersion()
+    {
+        return this.tpmDriver.getTPMVersion();
+    }
+
+    public boolean isTPM11()
+    {
+        return this.tpmDriver.isTPM11();
+    }
+
+    public boolean isTPM12()
+    {
+        return this.tpmDriver.isTPM12();
+    }
+
+    // Caching
+
+    private static int getCacheGroup( byte[] inputBytes )
+    {
+        if ( inputBytes.length < SUB_CAP_OFFSET )
+        {
+            return NOT_CACHED;
+        }
+        int capArea = ByteArrayUtil.readInt32BE( inputBytes, CAP_AREA_OFFSET );
+        int subCap = 0;
+        if ( inputBytes.length >= SUB_CAP_OFFSET + 4 )
+        {
+            subCap = ByteArrayUtil.readInt32BE( inputBytes, SUB_CAP_OFFSET );
+        }
+        return getCacheGroup( capArea, subCap );
+    }
+
+    /**
+     * Returns the groups (as a bit mask) invalidated by a command.
+     */
+    private int getInvalidatedGroups( int ordinal, short tag )
+    {
+        Integer mask = this.invalidatedGroups.get( ordinal );
+        int ret = (mask == null) ? 0 : mask.intValue();
+        if ( (tag == TPMConsts.TPM_TAG_RQU_AUTH1_COMMAND)
+            || (tag == TPMConsts.TPM_TAG_RQU_AUTH2_COMMAND) )
+        {
+            ret |= (1 << GROUP_HANDLES);
+        }
+        return ret;
+    }
+
+    private synchronized long getGeneration( int group )
+    {
+        return (group == CACHE_FOREVER) ? 0 : this.generations[group];
+    }
+
+    private synchronized void invalidate( int groups )
+    {
+        if ( groups == 0 )
+        {
+            return;
+        }
+        for ( int g = 0; g < NUM_GROUPS; g++ )
+        {
+            if ( (groups & (1 << g)) != 0 )
+            {
+                this.generations[g]++;
+            }
+        }
+        Iterator<Entry> it = this.cache.values().iterator();
+        while ( it.hasNext() )
+        {
+            Entry entry = it.next();
+            if ( (entry.group >= 0) && ((groups & (1 << entry.group)) != 0) )
+            {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of the cached response, or null if there is none
+     * (or it has expired).
+     */
+    private byte[] lookup( CommandKey key )
+    {
+        Entry entry = this.cache.get( key );
+        if ( (entry != null) && (entry.group != CACHE_FOREVER)
+            && (System.currentTimeMillis() >= entry.expires) )
+        {
+            this.cache.remove( key, entry );
+            entry = null;
+        }
+        if ( entry == null )
+        {
+            this.numMisses.incrementAndGet();
+            return null;
+        }
+        this.numHits.incrementAndGet();
+        return entry.outputBytes.clone();
+    }
+
+    /**
+     * Caches the response, unless its group has been invalidated
+     * since the command was sent.
+     */
+    private synchronized void store( CommandKey key, int group,
+        long generation, byte[] outputBytes )
+    {
+        long expires = 0;
+        if ( group != CACHE_FOREVER )
+        {
+            if ( (this.ttl <= 0) || (this.generations[group] != generation) )
+            {
+                return;
+            }
+            expires = System.currentTimeMillis() + this.ttl;
+        }
+        this.cache.put( key, new Entry( group, expires, outputBytes ) );
+    }
+
+    private static class Entry
+    {
+        final int group;
+        final long expires;
+        final byte[] outputBytes;
+
+        Entry( int group, long expires, byte[] outputBytes )
+        {
+            this.group = group;
+            this.expires = expires;
+            this.outputBytes = outputBytes;
+        }
+    }
+}
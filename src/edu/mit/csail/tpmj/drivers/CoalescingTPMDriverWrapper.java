@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.mit.csail.tpmj.TPMConsts;
+import edu.mit.csail.tpmj.TPMException;
+import edu.mit.csail.tpmj.TPMIOException;
+import edu.mit.csail.tpmj.TPMNullOutputException;
+import edu.mit.csail.tpmj.structs.TPMInputStruct;
+import edu.mit.csail.tpmj.structs.TPMOutputStruct;
+import edu.mit.csail.tpmj.structs.TPM_STRUCT_VER;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+
+/**
+ * A TPMDriver wrapper that lets concurrent callers sending exactly the
+ * same read-only command share one round trip to the TPM.
+ * <p>
+ * If a command with a coalescable ordinal (by default, TPM_PcrRead,
+ * TPM_ReadCounter, TPM_GetCapability and TPM_DirRead) arrives while
+ * an identical command (byte for byte) is already being executed,
+ * the caller does not send it again, but waits for the first caller's
+ * response and gets its own copy of it.  (If the first caller's command
+ * fails with an exception, the waiting callers get a TPMIOException
+ * with that exception as its cause.)
+ * <p>
+ * Only ordinals that do not change the TPM's state, and whose response
+ * depends only on the command bytes, should be made coalescable
+ * with setCoalescable().  Commands with authorization sessions are never
+ * identical anyway, since they contain fresh nonces.
+ * <p>
+ * A caller never gets a response from a command that was started
+ * before a non-coalescable command (which may have changed the state
+ * being read, e.g., a TPM_Extend) was started through this wrapper,
+ * nor, if the caller started after that command finished, from a command
+ * that was started before it finished.  Commands sent to the TPM through
+ * other drivers are not taken into account, however.
+ * <p>
+ * Note: transmitAsync() is passed directly to the underlying driver,
+ * and is not coalesced.  (Its commands are treated as non-coalescable
+ * commands that finish when their future is done.)
+ */
+public class CoalescingTPMDriverWrapper implements TPMDriver
+{
+    public TPMDriver tpmDriver;
+
+    private ConcurrentHashMap<Integer, Boolean> coalescableOrdinals = new ConcurrentHashMap<Integer, Boolean>();
+    private ConcurrentHashMap<CommandKey, InFlight> inFlight = new ConcurrentHashMap<CommandKey, InFlight>();
+
+    // Incremented whenever a non-coalescable command is started or finishes
+    private AtomicLong generation = new AtomicLong();
+
+    // transmitAsync() commands that were not yet seen to be done
+    private ConcurrentLinkedQueue<TPMFuture<TPMOutputStruct>> pendingAsync = new ConcurrentLinkedQueue<TPMFuture<TPMOutputStruct>>();
+
+    // statistics
+    private AtomicLong numSent = new AtomicLong();
+    private AtomicLong numCoalesced = new AtomicLong();
+
+    public CoalescingTPMDriverWrapper( TPMDriver tpmDriver )
+    {
+        super();
+        this.tpmDriver = tpmDriver;
+
+        int[] readOrdinals =
+            { TPMConsts.TPM_ORD_PcrRead, TPMConsts.TPM_ORD_ReadCounter,
+                TPMConsts.TPM_ORD_GetCapability, TPMConsts.TPM_ORD_DirRead };
+        for ( int ordinal : readOrdinals )
+        {
+            this.setCoalescable( ordinal, true );
+        }
+    }
+
+    // Configuration
+
+    /**
+     * Says whether identical concurrent commands with the given ordinal
+     * may share one round trip to the TPM.
+     */
+    public void setCoalescable( int ordinal, boolean coalescable )
+    {
+        if ( coalescable )
+        {
+            this.coalescableOrdinals.put( ordinal, Boolean.TRUE );
+        }
+        else
+        {
+            this.coalescableOrdinals.remove( ordinal );
+        }
+    }
+
+    public boolean isCoalescable( int ordinal )
+    {
+        return this.coalescableOrdinals.containsKey( ordinal );
+    }
+
+    // Statistics
+
+    /**
+     * Returns the number of coalescable commands that were sent to the TPM.
+     */
+    public long getNumSent()
+    {
+        return this.numSent.get();
+    }
+
+    /**
+     * Returns the number of coalescable commands that were not sent
+     * to the TPM, but got the response of an identical command instead.
+     */
+    public long getNumCoalesced()
+    {
+        return this.numCoalesced.get();
+    }
+
+    // TPMDriver methods
+
+    public TPMOutputStruct transmit( TPMInputStruct input ) throws TPMException
+    {
+        return BasicTPMDriver.checkReturnCode( input, this.transmitUnchecked( input ) );
+    }
+
+    public TPMOutputStruct transmitUnchecked( TPMInputStruct input )
+        throws TPMException
+    {
+        if ( !this.isCoalescable( input.getOrdinal() ) )
+        {
+            this.generation.incrementAndGet();
+            try
+            {
+                return this.tpmDriver.transmitUnchecked( input );
+            }
+            finally
+            {
+                this.generation.incrementAndGet();
+            }
+        }
+
+        byte[] inputBytes = input.toBytes();
+        InFlight leader = new InFlight( this.currentGeneration() );
+        InFlight existing = this.join( new CommandKey( inputBytes ), leader );
+        if ( existing != null )
+        {
+            return BasicTPMDriver.uncheckedOutput( input, existing.await( inputBytes ) );
+        }
+
+        CommandKey key = leader.key;
+        try
+        {
+            TPMOutputStruct output = this.tpmDriver.transmitUnchecked( input );
+            leader.complete( output.toBytes(), null );
+            return output;
+        }
+        catch ( TPMNullOutputException e )
+        {
+            leader.complete( null, null );
+            throw e;
+        }
+        catch ( TPMException e )
+        {
+            leader.complete( null, e );
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            leader.complete( null, new TPMException( input, e ) );
+            throw e;
+        }
+        finally
+        {
+            this.inFlight.remove( key, leader );
+        }
+    }
+
+    public byte[] transmitBytes( byte[] inputBytes ) throws TPMIOException
+    {
+        int ordinal = ByteArrayUtil.readInt32BE( inputBytes,
+            TPMInputStruct.ORDINAL_OFFSET );
+        if ( !this.isCoalescable( ordinal ) )
+        {
+            this.generation.incrementAndGet();
+            try
+            {
+                return this.tpmDriver.transmitBytes( inputBytes );
+            }
+            finally
+            {
+                this.generation.incrementAndGet();
+            }
+        }
+
+        InFlight leader = new InFlight( this.currentGeneration() );
+        InFlight existing = this.join( new CommandKey( inputBytes ), leader );
+        if ( existing != null )
+        {
+            return existing.await( inputBytes );
+        }
+
+        CommandKey key = leader.key;
+        try
+        {
+            byte[] outputBytes = this.tpmDriver.transmitBytes( inputBytes );
+            leader.complete( outputBytes, null );
+            return outputBytes;
+        }
+        catch ( TPMIOException e )
+        {
+            leader.complete( null, e );
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            leader.complete( null, new TPMIOException( inputBytes, e ) );
+            throw e;
+        }
+        finally
+        {
+            this.inFlight.remove( key, leader );
+        }
+    }
+
+    public TPMFuture<TPMOutputStruct> transmitAsync( TPMInputStruct input )
+        throws TPMException
+    {
+        this.currentGeneration();
+        this.generation.incrementAndGet();
+        TPMFuture<TPMOutputStruct> future;
+        try
+        {
+            future = this.tpmDriver.transmitAsync( input );
+        }
+        catch ( TPMException e )
+        {
+            this.generation.incrementAndGet();
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            this.generation.incrementAndGet();
+            throw e;
+        }
+        this.pendingAsync.offer( future );
+        return future;
+    }
+
+    public void init()
+    {
+        this.tpmDriver.init();
+    }
+
+    public void cleanup()
+    {
+        this.tpmDriver.cleanup();
+    }
+
+    public int getTPMManufacturer()
+    {
+        return this.tpmDriver.getTPMManufacturer();
+    }
+
+    public TPM_STRUCT_VER getTPMVersion()
+    {
+        return this.tpmDriver.getTPMVersion();
+    }
+
+    public boolean isTPM11()
+    {
+        return this.tpmDriver.isTPM11();
+    }
+
+    public boolean isTPM12()
+    {
+        return this.tpmDriver.isTPM12();
+    }
+
+    // Coalescing
+
+    /**
+     * Returns the current generation, after incrementing it
+     * for each transmitAsync() command that has finished since
+     * the last time this was called.  (There is no callback when
+     * a future is done, but a new command only needs to know which
+     * commands have finished by the time it starts.)
+     */
+    private long currentGeneration()
+    {
+        for ( TPMFuture<TPMOutputStruct> future : this.pendingAsync )
+        {
+            if ( future.isDone() && this.pendingAsync.remove( future ) )
+            {
+                this.generation.incrementAndGet();
+            }
+        }
+        return this.generation.get();
+    }
+
+    /**
+     * Returns an identical command that is already in flight, and was
+     * started since the last non-coalescable command, if there is one.
+     * Otherwise, registers the given leader under the key, and returns null
+     * (in which case the caller must send the command, and complete the
+     * leader).
+     */
+    private InFlight join( CommandKey key, InFlight leader )
+    {
+        leader.key = key;
+        while ( true )
+        {
+            InFlight existing = this.inFlight.putIfAbsent( key, leader );
+            if ( existing == null )
+            {
+                this.numSent.incrementAndGet();
+                return null;
+            }
+            if ( existing.generation == leader.generation )
+            {
+                this.numCoalesced.incrementAndGet();
+                return existing;
+            }
+            // The existing command may have read the state before
+            // it was changed, so don't use its response.
+            if ( this.inFlight.replace( key, existing, leader ) )
+            {
+                this.numSent.incrementAndGet();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A command being executed by one caller (the leader),
+     * whose response other callers are waiting for.
+     * (The waiters wait on a latch rather than the monitor,
+     * so that waiting virtual threads do not pin their carrier threads.)
+     */
+    private static class InFlight
+    {
+        private final long generation;
+        private CommandKey key;
+        private final CountDownLatch done = new CountDownLatch( 1 );
+        private byte[] outputBytes;
+        private TPMException exception;
+
+        InFlight( long generation )
+        {
+            this.generation = generation;
+        }
+
+        void complete( byte[] outputBytes, TPMException exception )
+        {
+            this.outputBytes = outputBytes;
+            this.exception = exception;
+            this.done.countDown();
+        }
+
+        /**
+         * Waits for the leader's response, and returns a copy of it.
+         *
+         * @param inputBytes -- the waiting caller's command (for exceptions)
+         */
+        byte[] await( byte[] inputBytes ) throws TPMIOException
+        {
+            try
+            {
+                this.done.await();
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new TPMIOException( inputBytes, new InterruptedIOException(
+                    "Interrupted while waiting for the TPM" ) );
+            }
+            if ( this.exception != null )
+            {
+                throw new TPMIOException( inputBytes, this.exception );
+            }
+            return (this.outputBytes == null) ? null
+                : this.outputBytes.clone();
+        }
+    }
+}
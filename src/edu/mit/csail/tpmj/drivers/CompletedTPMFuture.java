@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.mit.csail.tpmj.TPMException;
+
+/**
+ * A TPMFuture that already has its result (or exception).
+ * This is used by drivers that implement transmitAsync()
+ * by executing the command synchronously.
+ *
+ * @param <T> type of the result
+ */
+public class CompletedTPMFuture<T> extends TPMFuture<T>
+{
+    private T result;
+    private TPMException exception;
+
+    public CompletedTPMFuture( T result )
+    {
+        this.result = result;
+        this.exception = null;
+    }
+
+    public CompletedTPMFuture( TPMException exception )
+    {
+        this.result = null;
+        this.exception = exception;
+    }
+
+    @Override
+    protected boolean await( long timeout, TimeUnit unit )
+    {
+        return true;
+    }
+
+    @Override
+    protected T result() throws TPMException
+    {
+        if ( this.exception != null )
+        {
+            throw this.exception;
+        }
+        return this.result;
+    }
+
+    public boolean cancel( boolean mayInterruptIfRunning )
+    {
+        return false;
+    }
+
+    public boolean isCancelled()
+    {
+        return false;
+    }
+
+    public boolean isDone()
+    {
+        return true;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers;
+
+import java.util.concurrent.TimeUnit;
+
+import edu.mit.csail.tpmj.TPMException;
+
+/**
+ * A TPMFuture whose result is computed from the result of
+ * another TPMFuture.  This is used to build typed asynchronous
+ * results (e.g., a TPM_PCRVALUE) on top of the raw output
+ * of TPMDriver.transmitAsync().  The conversion is done
+ * (once) in the thread that asks for the result, not in the
+ * driver's dispatcher thread.
+ *
+ * @param <S> type of the source result
+ * @param <T> type of the converted result
+ */
+public abstract class ConvertingTPMFuture<S, T> extends TPMFuture<T>
+{
+    private TPMFuture<S> source;
+    private T converted = null;
+
+    public ConvertingTPMFuture( TPMFuture<S> source )
+    {
+        this.source = source;
+    }
+
+    /**
+     * Converts the source result into this future's result.
+     *
+     * @param sourceResult
+     * @return
+     * @throws TPMException
+     */
+    protected abstract T convert( S sourceResult ) throws TPMException;
+
+    @Override
+    protected boolean await( long timeout, TimeUnit unit )
+        throws InterruptedException
+    {
+        return this.source.await( timeout, unit );
+    }
+
+    @Override
+    protected synchronized T result() throws TPMException
+    {
+        if ( this.converted == null )
+        {
+            this.converted = this.convert( this.source.result() );
+        }
+        return this.converted;
+    }
+
+    public boolean cancel( boolean mayInterruptIfRunning )
+    {
+        return this.source.cancel( mayInterruptIfRunning );
+    }
+
+    public boolean isCancelled()
+    {
+        return this.source.isCancelled();
+    }
+
+    public boolean isDone()
+    {
+        return this.source.isDone();
+    }
+}
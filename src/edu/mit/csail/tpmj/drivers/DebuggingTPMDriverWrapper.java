@@ -64,6 +64,12 @@ public class DebuggingTPMDriverWrapper implements TPMDriver
     }
 
     public TPMOutputStruct transmit( TPMInputStruct input ) throws TPMException
+    {
+        return BasicTPMDriver.checkReturnCode( input, this.transmitUnchecked( input ) );
+    }
+
+    public TPMOutputStruct transmitUnchecked( TPMInputStruct input )
+        throws TPMException
     {
         Debug.println( "TPMDriver.transmit: input= ", input );
 
@@ -78,13 +84,21 @@ public class DebuggingTPMDriverWrapper implements TPMDriver
         }
 
         //Debug.println( "paramSize: " + paramSize  );
-        TPMOutputStruct output = this.tpmDriver.transmit( input );
+        TPMOutputStruct output = this.tpmDriver.transmitUnchecked( input );
 
         Debug.println( "TPMDriver.transmit: output= ", output );
 
         return output;
     }
 
+    public TPMFuture<TPMOutputStruct> transmitAsync( TPMInputStruct input )
+        throws TPMException
+    {
+        Debug.println( "TPMDriver.transmitAsync: input= ", input );
+
+        return this.tpmDriver.transmitAsync( input );
+    }
+
     public void init()
     {
         this.tpmDriver.init();
@@ -0,0 +1,578 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import edu.mit.csail.tpmj.TPMConsts;
+import edu.mit.csail.tpmj.TPMException;
+import edu.mit.csail.tpmj.TPMIOException;
+import edu.mit.csail.tpmj.structs.TPMIOStruct;
+import edu.mit.csail.tpmj.structs.TPMInputStruct;
+import edu.mit.csail.tpmj.structs.TPMOutputStruct;
+import edu.mit.csail.tpmj.structs.TPM_STRUCT_VER;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.Debug;
+
+/**
+ * A TPMDriver that spreads commands over several underlying
+ * drivers (e.g., several /dev/tpmN devices, or several software TPMs).
+ * <p>
+ * Commands whose result does not depend on which TPM executes them
+ * (TPM_GetRandom and TPM_GetTicks) are sent to the device with 
+ * the fewest commands outstanding (including commands sent with 
+ * transmitAsync() that are not done yet).  Reads of TPM state
+ * (e.g., TPM_PcrRead, TPM_DirRead, TPM_GetCapability, TPM_ReadPubek)
+ * are not spread, since they must see the writes made on the same
+ * device, and their results differ from device to device.
+ * <p>
+ * Handles are only meaningful on the TPM that created them,
+ * so the pool keeps track of which device returned each handle
+ * (from TPM_OIAP, TPM_OSAP, TPM_LoadKey2, TPM_EstablishTransport, etc.),
+ * and a command that refers to known handles (as its first parameter,
+ * as the entity of an OSAP or DSAP, or as its authorization sessions)
+ * is sent to the device that owns them.  If the handles are owned by
+ * different devices, the command goes to the primary device.
+ * Other commands, including those that change TPM state (e.g., TPM_Extend,
+ * NV writes, TPM_LoadKey2 with the SRK as parent) and TPM_OIAP, always go
+ * to the primary device (device 0), so that they act on the same TPM
+ * each time.  (OIAP sessions are not spread over the devices, since
+ * they are mostly used with keys loaded on the primary device.)
+ * <p>
+ * If the devices can return the same handle values
+ * (e.g., identical software TPMs), a thread can be pinned to one
+ * device with pinCurrentThread() for the duration of a session.
+ * <p>
+ * Note: handles created through transmitAsync() are tracked
+ * when the result is retrieved from the future.
+ */
+public class PooledTPMDriver implements TPMDriver
+{
+    public static final int PRIMARY_DEVICE = 0;
+
+    /**
+     * Ordinals that can be sent to any device.
+     */
+    private static final HashSet<Integer> statelessOrdinals = new HashSet<Integer>();
+
+    /**
+     * Ordinals whose output starts with a new handle on the device.
+     */
+    private static final HashSet<Integer> handleCreatingOrdinals = new HashSet<Integer>();
+
+    /**
+     * Ordinals that invalidate the handle given as their first parameter.
+     */
+    private static final HashSet<Integer> handleReleasingOrdinals = new HashSet<Integer>();
+
+    static
+    {
+        int[] stateless =
+            { TPMConsts.TPM_ORD_GetRandom, TPMConsts.TPM_ORD_GetTicks };
+        for ( int ordinal : stateless )
+        {
+            statelessOrdinals.add( ordinal );
+        }
+
+        int[] creating =
+            { TPMConsts.TPM_ORD_OIAP, TPMConsts.TPM_ORD_OSAP,
+                TPMConsts.TPM_ORD_DSAP, TPMConsts.TPM_ORD_LoadKey,
+                TPMConsts.TPM_ORD_LoadKey2,
+                TPMConsts.TPM_ORD_EstablishTransport,
+                TPMConsts.TPM_ORD_LoadContext,
+                TPMConsts.TPM_ORD_LoadKeyContext,
+                TPMConsts.TPM_ORD_LoadAuthContext };
+        for ( int ordinal : creating )
+        {
+            handleCreatingOrdinals.add( ordinal );
+        }
+
+        int[] releasing =
+            { TPMConsts.TPM_ORD_FlushSpecific,
+                TPMConsts.TPM_ORD_Terminate_Handle, TPMConsts.TPM_ORD_EvictKey };
+        for ( int ordinal : releasing )
+        {
+            handleReleasingOrdinals.add( ordinal );
+        }
+    }
+
+    // offsets (from the start of the command) of the handles we look for
+    private static final int FIRST_PARAM_OFFSET = 10;
+    private static final int OSAP_ENTITY_OFFSET = 12;
+    // authHandle + nonceOdd + continueAuthSession + authValue
+    private static final int AUTH_TRAILER_SIZE = 4 + 20 + 1 + 20;
+
+    // returned by findHandleOwner() if the handles are on different devices
+    private static final int MIXED_OWNERS = -2;
+
+    private TPMDriver[] drivers;
+    private int[] outstanding;
+    private long[] numCommands;
+    private int nextDevice = 0;
+
+    // transmitAsync() commands that were not yet seen to be done
+    // (these count as outstanding on their devices; see reapAsync())
+    private LinkedList<PendingAsync> pendingAsync = new LinkedList<PendingAsync>();
+
+    private HashMap<Integer, Integer> handleOwners = new HashMap<Integer, Integer>();
+
+    private ThreadLocal<Integer> pinnedDevice = new ThreadLocal<Integer>();
+
+    public PooledTPMDriver( TPMDriver... drivers )
+    {
+        if ( drivers.length == 0 )
+        {
+            throw new IllegalArgumentException( "PooledTPMDriver needs at least one driver" );
+        }
+        this.drivers = drivers;
+        this.outstanding = new int[drivers.length];
+        this.numCommands = new long[drivers.length];
+    }
+
+    public int getNumDevices()
+    {
+        return this.drivers.length;
+    }
+
+    public TPMDriver getDevice( int i )
+    {
+        return this.drivers[i];
+    }
+
+    /**
+     * Sends all commands from the current thread to the given device
+     * until unpinCurrentThread() is called.
+     */
+    public void pinCurrentThread( int device )
+    {
+        if ( (device < 0) || (device >= this.drivers.length) )
+        {
+            throw new IllegalArgumentException( "Invalid device: " + device );
+        }
+        this.pinnedDevice.set( device );
+    }
+
+    public void unpinCurrentThread()
+    {
+        this.pinnedDevice.remove();
+    }
+
+    /**
+     * Returns the device that owns the given handle, or -1 if unknown.
+     */
+    public synchronized int getHandleOwner( int handle )
+    {
+        Integer owner = this.handleOwners.get( handle );
+        return (owner == null) ? -1 : owner.intValue();
+    }
+
+    public synchronized int getNumOutstanding( int device )
+    {
+        this.reapAsync();
+        return this.outstanding[device];
+    }
+
+    public synchronized long getNumCommands( int device )
+    {
+        return this.numCommands[device];
+    }
+
+    // TPMDriver methods
+
+    public TPMOutputStruct transmit( TPMInputStruct input ) throws TPMException
+    {
+        return BasicTPMDriver.checkReturnCode( input, this.transmitUnchecked( input ) );
+    }
+
+    public TPMOutputStruct transmitUnchecked( TPMInputStruct input )
+        throws TPMException
+    {
+        int ordinal = input.getOrdinal();
+        // only marshal here if we have to look for handles
+        byte[] inputBytes = null;
+        if ( !statelessOrdinals.contains( ordinal ) )
+        {
+            inputBytes = input.toBytes();
+        }
+
+        int device = this.acquireDevice( ordinal, inputBytes );
+        try
+        {
+            TPMOutputStruct output = this.drivers[device].transmitUnchecked( input );
+            this.trackHandles( device, ordinal, inputBytes, output );
+            return output;
+        }
+        finally
+        {
+            this.releaseDevice( device );
+        }
+    }
+
+    public byte[] transmitBytes( byte[] inputBytes ) throws TPMIOException
+    {
+        int ordinal = ByteArrayUtil.readInt32BE( inputBytes,
+            TPMInputStruct.ORDINAL_OFFSET );
+        int device = this.acquireDevice( ordinal, inputBytes );
+        try
+        {
+            byte[] outputBytes = this.drivers[device].transmitBytes( inputBytes );
+            this.trackHandles( device, ordinal, inputBytes, outputBytes );
+            return outputBytes;
+        }
+        finally
+        {
+            this.releaseDevice( device );
+        }
+    }
+
+    public TPMFuture<TPMOutputStruct> transmitAsync( TPMInputStruct input )
+        throws TPMException
+    {
+        final int ordinal = input.getOrdinal();
+        final byte[] inputBytes = statelessOrdinals.contains( ordinal ) ? null
+            : input.toBytes();
+
+        final int device = this.acquireDevice( ordinal, inputBytes );
+        TPMFuture<TPMOutputStruct> future;
+        try
+        {
+            future = this.drivers[device].transmitAsync( input );
+        }
+        catch ( TPMException e )
+        {
+            this.releaseDevice( device );
+            throw e;
+        }
+        catch ( RuntimeException e )
+        {
+            this.releaseDevice( device );
+            throw e;
+        }
+        synchronized ( this )
+        {
+            this.pendingAsync.add( new PendingAsync( device, future ) );
+        }
+
+        if ( !handleCreatingOrdinals.contains( ordinal )
+            && !handleReleasingOrdinals.contains( ordinal ) )
+        {
+            return future;
+        }
+        return new ConvertingTPMFuture<TPMOutputStruct, TPMOutputStruct>(
+            future )
+        {
+            protected TPMOutputStruct convert( TPMOutputStruct output )
+            {
+                trackHandles( device, ordinal, inputBytes, output );
+                return output;
+            }
+        };
+    }
+
+    /**
+     * Initializes all the devices.
+     */
+    public void init()
+    {
+        for ( TPMDriver driver : this.drivers )
+        {
+            driver.init();
+        }
+    }
+
+    /**
+     * Cleans up all the devices.
+     */
+    public void cleanup()
+    {
+        for ( TPMDriver driver : this.drivers )
+        {
+            driver.cleanup();
+        }
+        synchronized ( this )
+        {
+            this.handleOwners.clear();
+        }
+    }
+
+    // The following describe the primary device
+
+    public int getTPMManufacturer()
+    {
+        return this.drivers[PRIMARY_DEVICE].getTPMManufacturer();
+    }
+
+    public TPM_STRUCT_VER getTPMVersion()
+    {
+        return this.drivers[PRIMARY_DEVICE].getTPMVersion();
+    }
+
+    public boolean isTPM11()
+    {
+        return this.drivers[PRIMARY_DEVICE].isTPM11();
+    }
+
+    public boolean isTPM12()
+    {
+        return this.drivers[PRIMARY_DEVICE].isTPM12();
+    }
+
+    // Routing
+
+    private synchronized int acquireDevice( int ordinal, byte[] inputBytes )
+    {
+        this.reapAsync();
+        int device = this.chooseDevice( ordinal, inputBytes );
+        this.outstanding[device]++;
+        this.numCommands[device]++;
+        return device;
+    }
+
+    private synchronized void releaseDevice( int device )
+    {
+        this.outstanding[device]--;
+    }
+
+    /**
+     * Releases the devices of transmitAsync() commands that are done.
+     * (This is called with the lock held, before the outstanding
+     * counts are used.)
+     */
+    private void reapAsync()
+    {
+        Iterator<PendingAsync> it = this.pendingAsync.iterator();
+        while ( it.hasNext() )
+        {
+            PendingAsync p = it.next();
+            if ( p.future.isDone() )
+            {
+                this.outstanding[p.device]--;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Picks the device for a command.
+     *
+     * @param ordinal
+     * @param inputBytes -- the marshalled command (may be null for stateless commands)
+     * @return
+     */
+    private int chooseDevice( int ordinal, byte[] inputBytes )
+    {
+        Integer pinned = this.pinnedDevice.get();
+        if ( pinned != null )
+        {
+            return pinned.intValue();
+        }
+
+        if ( inputBytes != null )
+        {
+            int owner = this.findHandleOwner( ordinal, inputBytes );
+            if ( owner == MIXED_OWNERS )
+            {
+                Debug.println( "PooledTPMDriver: ordinal 0x"
+                    + Integer.toHexString( ordinal )
+                    + " uses handles on different devices; sending it to device "
+                    + PRIMARY_DEVICE );
+                return PRIMARY_DEVICE;
+            }
+            if ( owner >= 0 )
+            {
+                return owner;
+            }
+        }
+
+        if ( statelessOrdinals.contains( ordinal ) )
+        {
+            return this.leastLoadedDevice();
+        }
+        else
+        {
+            return PRIMARY_DEVICE;
+        }
+    }
+
+    /**
+     * Returns the device with the fewest outstanding commands
+     * (taking turns among devices that are tied).
+     */
+    private int leastLoadedDevice()
+    {
+        int n = this.drivers.length;
+        int best = this.nextDevice;
+        for ( int i = 1; i < n; i++ )
+        {
+            int d = (this.nextDevice + i) % n;
+            if ( this.outstanding[d] < this.outstanding[best] )
+            {
+                best = d;
+            }
+        }
+        this.nextDevice = (best + 1) % n;
+        return best;
+    }
+
+    /**
+     * Looks for known handles in the places where TPM commands
+     * carry them, and returns the device that owns all of them,
+     * -1 if none are known, or MIXED_OWNERS if they are owned
+     * by different devices.
+     */
+    private int findHandleOwner( int ordinal, byte[] inputBytes )
+    {
+        int paramSize = Math.min( inputBytes.length, ByteArrayUtil.readInt32BE(
+            inputBytes, TPMIOStruct.PARAMSIZE_OFFSET ) );
+
+        int owner = this.ownerAt( inputBytes, FIRST_PARAM_OFFSET, paramSize );
+
+        if ( (ordinal == TPMConsts.TPM_ORD_OSAP)
+            || (ordinal == TPMConsts.TPM_ORD_DSAP) )
+        {
+            owner = combineOwners( owner, this.ownerAt( inputBytes,
+                OSAP_ENTITY_OFFSET, paramSize ) );
+        }
+
+        short tag = ByteArrayUtil.readShortBE( inputBytes, 0 );
+        int numAuths = 0;
+        if ( tag == TPMConsts.TPM_TAG_RQU_AUTH1_COMMAND )
+        {
+            numAuths = 1;
+        }
+        else if ( tag == TPMConsts.TPM_TAG_RQU_AUTH2_COMMAND )
+        {
+            numAuths = 2;
+        }
+        for ( int i = 1; i <= numAuths; i++ )
+        {
+            owner = combineOwners( owner, this.ownerAt( inputBytes, paramSize
+                - i * AUTH_TRAILER_SIZE, paramSize ) );
+        }
+
+        return owner;
+    }
+
+    /**
+     * Returns the owner of both handles (ignoring unknown handles, i.e., -1),
+     * or MIXED_OWNERS if they are owned by different devices.
+     */
+    private static int combineOwners( int owner1, int owner2 )
+    {
+        if ( (owner1 == MIXED_OWNERS) || (owner2 < 0) )
+        {
+            return owner1;
+        }
+        if ( owner1 < 0 )
+        {
+            return owner2;
+        }
+        return (owner1 == owner2) ? owner1 : MIXED_OWNERS;
+    }
+
+    private int ownerAt( byte[] inputBytes, int offset, int paramSize )
+    {
+        if ( (offset < FIRST_PARAM_OFFSET) || (offset + 4 > paramSize) )
+        {
+            return -1;
+        }
+        Integer owner = this.handleOwners.get( ByteArrayUtil.readInt32BE(
+            inputBytes, offset ) );
+        return (owner == null) ? -1 : owner.intValue();
+    }
+
+    private void trackHandles( int device, int ordinal, byte[] inputBytes,
+        TPMOutputStruct output )
+    {
+        if ( handleCreatingOrdinals.contains( ordinal )
+            || handleReleasingOrdinals.contains( ordinal ) )
+        {
+            this.trackHandles( device, ordinal, inputBytes, output.toBytes() );
+        }
+    }
+
+    /**
+     * Records the handle created by a successful command,
+     * or forgets the handle released by one.
+     */
+    private synchronized void trackHandles( int device, int ordinal,
+        byte[] inputBytes, byte[] outputBytes )
+    {
+        if ( (outputBytes == null)
+            || (outputBytes.length < TPMOutputStruct.BODY_OFFSET + 4)
+            || (ByteArrayUtil.readInt32BE( outputBytes,
+                TPMOutputStruct.RETURNCODE_OFFSET ) != 0) )
+        {
+            return;
+        }
+
+        if ( handleCreatingOrdinals.contains( ordinal ) )
+        {
+            int handle = ByteArrayUtil.readInt32BE( outputBytes,
+                TPMOutputStruct.BODY_OFFSET );
+            Integer prev = this.handleOwners.put( handle, device );
+            if ( (prev != null) && (prev.intValue() != device) )
+            {
+                Debug.println( "PooledTPMDriver: handle 0x"
+                    + Integer.toHexString( handle ) + " moved from device "
+                    + prev + " to device " + device
+                    + " (use pinCurrentThread() if devices share handle values)" );
+            }
+        }
+        else if ( handleReleasingOrdinals.contains( ordinal )
+            && (inputBytes != null)
+            && (inputBytes.length >= FIRST_PARAM_OFFSET + 4) )
+        {
+            int handle = ByteArrayUtil.readInt32BE( inputBytes,
+                FIRST_PARAM_OFFSET );
+            Integer owner = this.handleOwners.get( handle );
+            if ( (owner != null) && (owner.intValue() == device) )
+            {
+                this.handleOwners.remove( handle );
+            }
+        }
+    }
+
+    /**
+     * A command sent with transmitAsync(), and the device it was sent to.
+     */
+    private static class PendingAsync
+    {
+        final int device;
+        final TPMFuture<TPMOutputStruct> future;
+
+        PendingAsync( int device, TPMFuture<TPMOutputStruct> future )
+        {
+            this.device = device;
+            this.future = future;
+        }
+    }
+}
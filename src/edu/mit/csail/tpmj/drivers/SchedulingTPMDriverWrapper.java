@@ -0,0 +1,720 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.mit.csail.tpmj.TPMConsts;
+import edu.mit.csail.tpmj.TPMException;
+import edu.mit.csail.tpmj.TPMIOException;
+import edu.mit.csail.tpmj.structs.ByteArrayTPMInputStruct;
+import edu.mit.csail.tpmj.structs.TPMInputStruct;
+import edu.mit.csail.tpmj.structs.TPMOutputStruct;
+import edu.mit.csail.tpmj.structs.TPM_STRUCT_VER;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.stats.DoubleStat;
+
+/**
+ * A TPMDriver wrapper that decides which waiting caller gets to
+ * use the TPM next, instead of leaving it to whichever thread
+ * happens to get the underlying driver's lock.
+ * <p>
+ * Each ordinal belongs to a priority class (by default, cheap
+ * read-type commands like TPM_Quote and TPM_ReadCounter are
+ * PRIORITY_HIGH, and slow key generation commands like
+ * TPM_CreateWrapKey and TPM_MakeIdentity are PRIORITY_LOW).
+ * Waiting commands in a higher priority class always go first.
+ * Within a priority class, commands from different tenants are
+ * interleaved using weighted fair queuing, so that a tenant
+ * that submits a burst of commands cannot starve the others.
+ * The tenant and an optional deadline are set per thread,
+ * using setCurrentTenant() and setCurrentDeadline().
+ * <p>
+ * If a caller has a deadline, and the estimated queue time
+ * (based on the observed service times of the commands ahead of it)
+ * would make it miss the deadline, then the command is rejected
+ * with a TPMSchedulingException without being queued.  A command
+ * whose deadline passes while it is waiting is also dropped
+ * this way.
+ * <p>
+ * Note: transmitAsync() is passed directly to the underlying driver,
+ * and is not scheduled.
+ */
+public class SchedulingTPMDriverWrapper implements TPMDriver
+{
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_LOW = 2;
+    public static final int NUM_PRIORITIES = 3;
+
+    public static final String DEFAULT_TENANT = "default";
+
+    /**
+     * Initial service time estimates (in ms) per priority class,
+     * used for ordinals that have not been executed yet.
+     */
+    private static final double[] DEFAULT_ESTIMATES =
+        { 50, 200, 2000 };
+
+    /**
+     * Weight given to the newest sample in the service time estimates.
+     */
+    private static final double ESTIMATE_ALPHA = 0.2;
+
+    private static ThreadLocal<String> currentTenant = new ThreadLocal<String>();
+
+    public TPMDriver tpmDriver;
+
+    // Guards the scheduling state below.  Waiting callers wait on
+    // the condition rather than the monitor, so that waiting
+    // virtual threads do not pin their carrier threads.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dispatched = this.lock.newCondition();
+
+    private HashMap<Integer, Integer> ordinalPriorities = new HashMap<Integer, Integer>();
+    private HashMap<Integer, Double> serviceTimeEstimates = new HashMap<Integer, Double>();
+    private HashMap<String, Integer> tenantWeights = new HashMap<String, Integer>();
+    private HashMap<String, Double> tenantFinishTags = new HashMap<String, Double>();
+
+    private ArrayList<LinkedList<Ticket>> queues = new ArrayList<LinkedList<Ticket>>();
+    private double virtualTime = 0;
+    private Ticket inService = null;
+    private long inServiceStart = 0;
+
+    // statistics
+    private int[] maxQueueDepth = new int[NUM_PRIORITIES];
+    private long[] numExecuted = new long[NUM_PRIORITIES];
+    private long[] numRejected = new long[NUM_PRIORITIES];
+    private DoubleStat[] waitTimeStats = new DoubleStat[NUM_PRIORITIES];
+
+    public SchedulingTPMDriverWrapper( TPMDriver tpmDriver )
+    {
+        super();
+        this.tpmDriver = tpmDriver;
+
+        for ( int p = 0; p < NUM_PRIORITIES; p++ )
+        {
+            this.queues.add( new LinkedList<Ticket>() );
+            this.waitTimeStats[p] = new DoubleStat();
+        }
+
+        int[] highOrdinals =
+            { TPMConsts.TPM_ORD_PcrRead, TPMConsts.TPM_ORD_Quote,
+                TPMConsts.TPM_ORD_Quote2, TPMConsts.TPM_ORD_ReadCounter,
+                TPMConsts.TPM_ORD_GetCapability, TPMConsts.TPM_ORD_GetRandom,
+                TPMConsts.TPM_ORD_GetTicks, TPMConsts.TPM_ORD_DirRead,
+                TPMConsts.TPM_ORD_NV_ReadValue };
+        for ( int ordinal : highOrdinals )
+        {
+            this.setOrdinalPriority( ordinal, PRIORITY_HIGH );
+        }
+
+        int[] lowOrdinals =
+            { TPMConsts.TPM_ORD_CreateWrapKey, TPMConsts.TPM_ORD_MakeIdentity,
+                TPMConsts.TPM_ORD_TakeOwnership,
+                TPMConsts.TPM_ORD_CreateEndorsementKeyPair,
+                TPMConsts.TPM_ORD_CreateRevocableEK,
+                TPMConsts.TPM_ORD_CMK_CreateKey, TPMConsts.TPM_ORD_SelfTestFull };
+        for ( int ordinal : lowOrdinals )
+        {
+            this.setOrdinalPriority( ordinal, PRIORITY_LOW );
+        }
+    }
+
+    // Per-thread settings
+
+    /**
+     * Sets the tenant on whose behalf the current thread
+     * submits commands.  (null means DEFAULT_TENANT.)
+     */
+    public static void setCurrentTenant( String tenant )
+    {
+        currentTenant.set( tenant );
+    }
+
+    public static String getCurrentTenant()
+    {
+        String tenant = currentTenant.get();
+        return (tenant == null) ? DEFAULT_TENANT : tenant;
+    }
+
+    /**
+     * Sets the time (as in System.currentTimeMillis()) by which
+     * commands submitted by the current thread must have started
+     * executing.  Use 0 for no deadline.
+     * (This is the same as TPMDeadline.setCurrent(), so the deadline
+     * also limits the retries of the underlying driver.)
+     */
+    public static void setCurrentDeadline( long deadline )
+    {
+        TPMDeadline.setCurrent( deadline );
+    }
+
+    public static long getCurrentDeadline()
+    {
+        return TPMDeadline.getCurrent();
+    }
+
+    // Configuration
+
+    public void setOrdinalPriority( int ordinal, int priority )
+    {
+        this.lock.lock();
+        try
+        {
+            if ( (priority < 0) || (priority >= NUM_PRIORITIES) )
+            {
+                throw new IllegalArgumentException( "Invalid priority: " + priority );
+            }
+            this.ordinalPriorities.put( ordinal, priority );
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public int getOrdinalPriority( int ordinal )
+    {
+        this.lock.lock();
+        try
+        {
+            Integer p = this.ordinalPriorities.get( ordinal );
+            return (p == null) ? PRIORITY_NORMAL : p.intValue();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the share of the TPM given to a tenant relative to
+     * other tenants in the same priority class.  (Default is 1.)
+     */
+    public void setTenantWeight( String tenant, int weight )
+    {
+        this.lock.lock();
+        try
+        {
+            if ( weight <= 0 )
+            {
+                throw new IllegalArgumentException( "Invalid weight: " + weight );
+            }
+            this.tenantWeights.put( tenant, weight );
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public int getTenantWeight( String tenant )
+    {
+        this.lock.lock();
+        try
+        {
+            Integer w = this.tenantWeights.get( tenant );
+            return (w == null) ? 1 : w.intValue();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the current estimate of how long (in ms) the TPM takes
+     * to execute the given ordinal.
+     */
+    public double getServiceTimeEstimate( int ordinal )
+    {
+        this.lock.lock();
+        try
+        {
+            Double est = this.serviceTimeEstimates.get( ordinal );
+            if ( est == null )
+            {
+                return DEFAULT_ESTIMATES[this.getOrdinalPriority( ordinal )];
+            }
+            return est.doubleValue();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    // TPMDriver methods
+
+    public TPMOutputStruct transmit( TPMInputStruct input ) throws TPMException
+    {
+        Ticket ticket = this.enqueue( input.getOrdinal(), input );
+        try
+        {
+            return this.tpmDriver.transmit( input );
+        }
+        finally
+        {
+            this.release( ticket );
+        }
+    }
+
+    public TPMOutputStruct transmitUnchecked( TPMInputStruct input )
+        throws TPMException
+    {
+        Ticket ticket = this.enqueue( input.getOrdinal(), input );
+        try
+        {
+            return this.tpmDriver.transmitUnchecked( input );
+        }
+        finally
+        {
+            this.release( ticket );
+        }
+    }
+
+    public byte[] transmitBytes( byte[] inputBytes ) throws TPMIOException
+    {
+        int ordinal = ByteArrayUtil.readInt32BE( inputBytes,
+            TPMInputStruct.ORDINAL_OFFSET );
+        Ticket ticket = this.enqueue( ordinal, null );
+        try
+        {
+            return this.tpmDriver.transmitBytes( inputBytes );
+        }
+        finally
+        {
+            this.release( ticket );
+        }
+    }
+
+    public TPMFuture<TPMOutputStruct> transmitAsync( TPMInputStruct input )
+        throws TPMException
+    {
+        return this.tpmDriver.transmitAsync( input );
+    }
+
+    public void init()
+    {
+        this.tpmDriver.init();
+    }
+
+    public void cleanup()
+    {
+        this.tpmDriver.cleanup();
+    }
+
+    public int getTPMManufacturer()
+    {
+        return this.tpmDriver.getTPMManufacturer();
+    }
+
+    public TPM_STRUCT_VER getTPMVersion()
+    {
+        return this.tpmDriver.getTPMVersion();
+    }
+
+    public boolean isTPM11()
+    {
+        return this.tpmDriver.isTPM11();
+    }
+
+    public boolean isTPM12()
+    {
+        return this.tpmDriver.isTPM12();
+    }
+
+    // Scheduling
+
+    /**
+     * Queues a ticket for the command, and waits until it is the
+     * ticket's turn to use the TPM.
+     *
+     * @param ordinal
+     * @param input -- used for exceptions (may be null)
+     * @return the ticket, which must be passed to release() after the command
+     * @throws TPMSchedulingException
+     */
+    private Ticket enqueue( int ordinal, TPMInputStruct input )
+        throws TPMSchedulingException
+    {
+        this.lock.lock();
+        try
+        {
+            String tenant = getCurrentTenant();
+            long deadline = getCurrentDeadline();
+            int priority = this.getOrdinalPriority( ordinal );
+            double cost = this.getServiceTimeEstimate( ordinal );
+            long now = System.currentTimeMillis();
+
+            if ( deadline > 0 )
+            {
+                double queueTime = this.estimateQueueTime( priority, now );
+                if ( now + queueTime > deadline )
+                {
+                    this.numRejected[priority]++;
+                    throw new TPMSchedulingException( this.inputFor( input, ordinal ),
+                        "Estimated queue time (" + queueTime
+                            + " ms) exceeds deadline for ordinal 0x"
+                            + Integer.toHexString( ordinal ) );
+                }
+            }
+
+            Ticket ticket = new Ticket( ordinal, priority, now );
+
+            // Weighted fair queuing: each tenant's commands get
+            // finish tags spaced by cost/weight, starting no earlier
+            // than the current virtual time.
+            Double lastFinish = this.tenantFinishTags.get( tenant );
+            double start = this.virtualTime;
+            if ( (lastFinish != null) && (lastFinish.doubleValue() > start) )
+            {
+                start = lastFinish.doubleValue();
+            }
+            ticket.finishTag = start + cost / this.getTenantWeight( tenant );
+            this.tenantFinishTags.put( tenant, ticket.finishTag );
+
+            LinkedList<Ticket> queue = this.queues.get( priority );
+            queue.add( ticket );
+            if ( queue.size() > this.maxQueueDepth[priority] )
+            {
+                this.maxQueueDepth[priority] = queue.size();
+            }
+
+            this.dispatchNext();
+
+            while ( !ticket.granted )
+            {
+                try
+                {
+                    if ( deadline > 0 )
+                    {
+                        long timeLeft = deadline - now;
+                        if ( timeLeft <= 0 )
+                        {
+                            queue.remove( ticket );
+                            this.numRejected[priority]++;
+                            throw new TPMSchedulingException( this.inputFor( input,
+                                ordinal ), "Deadline passed while waiting for TPM" );
+                        }
+                        this.dispatched.await( timeLeft, TimeUnit.MILLISECONDS );
+                    }
+                    else
+                    {
+                        this.dispatched.await();
+                    }
+                }
+                catch ( InterruptedException e )
+                {
+                    if ( ticket.granted )
+                    {
+                        // too late to back out; give the TPM to the next caller
+                        this.release( ticket );
+                    }
+                    else
+                    {
+                        queue.remove( ticket );
+                    }
+                    Thread.currentThread().interrupt();
+                    throw new TPMSchedulingException( this.inputFor( input, ordinal ),
+                        e );
+                }
+                now = System.currentTimeMillis();
+            }
+
+            this.waitTimeStats[priority].addSample( now - ticket.enqueueTime );
+            return ticket;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Marks the ticket's command as done, updates the service
+     * time estimate for its ordinal, and lets the next command go.
+     */
+    private void release( Ticket ticket )
+    {
+        this.lock.lock();
+        try
+        {
+            if ( this.inService != ticket )
+            {
+                return;
+            }
+            long serviceTime = System.currentTimeMillis() - this.inServiceStart;
+            double est = this.getServiceTimeEstimate( ticket.ordinal );
+            est = (1 - ESTIMATE_ALPHA) * est + ESTIMATE_ALPHA * serviceTime;
+            this.serviceTimeEstimates.put( ticket.ordinal, est );
+            this.numExecuted[ticket.priority]++;
+
+            this.inService = null;
+            this.dispatchNext();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * If the TPM is free, grants it to the waiting ticket with the
+     * highest priority class and (within that class) the smallest
+     * finish tag.
+     */
+    private void dispatchNext()
+    {
+        if ( this.inService != null )
+        {
+            return;
+        }
+        for ( int p = 0; p < NUM_PRIORITIES; p++ )
+        {
+            LinkedList<Ticket> queue = this.queues.get( p );
+            if ( queue.isEmpty() )
+            {
+                continue;
+            }
+            Ticket next = null;
+            for ( Ticket t : queue )
+            {
+                if ( (next == null) || (t.finishTag < next.finishTag) )
+                {
+                    next = t;
+                }
+            }
+            queue.remove( next );
+            next.granted = true;
+            this.inService = next;
+            this.inServiceStart = System.currentTimeMillis();
+            if ( next.finishTag > this.virtualTime )
+            {
+                this.virtualTime = next.finishTag;
+            }
+            this.dispatched.signalAll();
+            return;
+        }
+    }
+
+    /**
+     * Estimates how long (in ms) a new command in the given priority class
+     * would wait: the remaining time of the command in service plus
+     * the time for all waiting commands in the same or higher priority classes.
+     */
+    private double estimateQueueTime( int priority, long now )
+    {
+        double total = 0;
+        if ( this.inService != null )
+        {
+            double remaining = this.getServiceTimeEstimate( this.inService.ordinal )
+                - (now - this.inServiceStart);
+            total += Math.max( 0, remaining );
+        }
+        for ( int p = 0; p <= priority; p++ )
+        {
+            Iterator<Ticket> it = this.queues.get( p ).iterator();
+            while ( it.hasNext() )
+            {
+                total += this.getServiceTimeEstimate( it.next().ordinal );
+            }
+        }
+        return total;
+    }
+
+    private TPMInputStruct inputFor( TPMInputStruct input, int ordinal )
+    {
+        if ( input != null )
+        {
+            return input;
+        }
+        ByteArrayTPMInputStruct ret = new ByteArrayTPMInputStruct( new byte[10] );
+        ret.setOrdinal( ordinal );
+        return ret;
+    }
+
+    // Statistics
+
+    public int getQueueDepth( int priority )
+    {
+        this.lock.lock();
+        try
+        {
+            return this.queues.get( priority ).size();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public int getTotalQueueDepth()
+    {
+        this.lock.lock();
+        try
+        {
+            int total = 0;
+            for ( int p = 0; p < NUM_PRIORITIES; p++ )
+            {
+                total += this.queues.get( p ).size();
+            }
+            return total;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public int getMaxQueueDepth( int priority )
+    {
+        this.lock.lock();
+        try
+        {
+            return this.maxQueueDepth[priority];
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public long getNumExecuted( int priority )
+    {
+        this.lock.lock();
+        try
+        {
+            return this.numExecuted[priority];
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public long getNumRejected( int priority )
+    {
+        this.lock.lock();
+        try
+        {
+            return this.numRejected[priority];
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a copy of the wait time statistics (in ms)
+     * for commands in the given priority class that got to run.
+     */
+    public DoubleStat getWaitTimeStat( int priority )
+    {
+        this.lock.lock();
+        try
+        {
+            return new DoubleStat( this.waitTimeStats[priority] );
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public void resetStats()
+    {
+        this.lock.lock();
+        try
+        {
+            for ( int p = 0; p < NUM_PRIORITIES; p++ )
+            {
+                this.maxQueueDepth[p] = this.queues.get( p ).size();
+                this.numExecuted[p] = 0;
+                this.numRejected[p] = 0;
+                this.waitTimeStats[p].reset();
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public String getStatsString()
+    {
+        this.lock.lock();
+        try
+        {
+            String[] names =
+                { "high", "normal", "low" };
+            String s = "";
+            for ( int p = 0; p < NUM_PRIORITIES; p++ )
+            {
+                DoubleStat wait = this.waitTimeStats[p];
+                s = s + names[p] + ": depth=" + this.getQueueDepth( p ) + " (max "
+                    + this.maxQueueDepth[p] + "), executed=" + this.numExecuted[p]
+                    + ", rejected=" + this.numRejected[p] + ", wait mean="
+                    + ((wait.getN() > 0) ? wait.getMean() : 0) + " ms, max="
+                    + ((wait.getN() > 0) ? wait.getMax() : 0) + " ms\n";
+            }
+            return s;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * A command waiting for (or using) the TPM.
+     */
+    private static class Ticket
+    {
+        int ordinal;
+        int priority;
+        long enqueueTime;
+        double finishTag;
+        boolean granted = false;
+
+        Ticket( int ordinal, int priority, long enqueueTime )
+        {
+            this.ordinal = ordinal;
+            this.priority = priority;
+            this.enqueueTime = enqueueTime;
+        }
+    }
+}
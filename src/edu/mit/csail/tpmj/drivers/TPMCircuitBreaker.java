@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers;
+
+/**
+ * Keeps a driver from sending commands to a TPM that seems to be wedged.
+ * After failureThreshold attempts in a row have failed (with a
+ * TPMIOException, or a retryable return code), the breaker "opens", and
+ * for the next openTime ms, commands fail immediately with a
+ * TPMCircuitOpenException instead of being sent (and retried).
+ * After that, one command is let through as a trial.  If it succeeds,
+ * the breaker closes again, otherwise it stays open for another openTime.
+ *
+ * @see BasicTPMDriver#setCircuitBreaker(TPMCircuitBreaker)
+ */
+public class TPMCircuitBreaker
+{
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_TIME = 30000;
+
+    private int failureThreshold;
+    private long openTime;
+
+    private int consecutiveFailures = 0;
+    private long openUntil = 0;
+    private boolean open = false;
+    private boolean trialInProgress = false;
+    private long numOpened = 0;
+    private long numRejected = 0;
+
+    public TPMCircuitBreaker()
+    {
+        this( DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_TIME );
+    }
+
+    /**
+     * @param failureThreshold -- number of failed attempts in a row that opens the breaker
+     * @param openTime -- time (in ms) to fail fast before trying again
+     */
+    public TPMCircuitBreaker( int failureThreshold, long openTime )
+    {
+        if ( failureThreshold < 1 )
+        {
+            throw new IllegalArgumentException(
+                "failureThreshold must be at least 1" );
+        }
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+    }
+
+    public synchronized int getFailureThreshold()
+    {
+        return this.failureThreshold;
+    }
+
+    public synchronized long getOpenTime()
+    {
+        return this.openTime;
+    }
+
+    /**
+     * Returns true if a command may be sent now.  (If the open time
+     * has passed, this returns true for one caller only, until
+     * its result is recorded.)
+     */
+    public synchronized boolean allowRequest()
+    {
+        if ( !this.open )
+        {
+            return true;
+        }
+        if ( !this.trialInProgress
+            && (System.currentTimeMillis() >= this.openUntil) )
+        {
+            this.trialInProgress = true;
+            return true;
+        }
+        this.numRejected++;
+        return false;
+    }
+
+    public synchronized void recordSuccess()
+    {
+        this.consecutiveFailures = 0;
+        this.open = false;
+        this.trialInProgress = false;
+    }
+
+    public synchronized void recordFailure()
+    {
+        this.consecutiveFailures++;
+        if ( this.trialInProgress
+            || (this.consecutiveFailures >= this.failureThreshold) )
+        {
+            if ( !this.open )
+            {
+                this.numOpened++;
+            }
+            this.open = true;
+            this.trialInProgress = false;
+            this.openUntil = System.currentTimeMillis() + this.openTime;
+        }
+    }
+
+    public synchronized boolean isOpen()
+    {
+        return this.open;
+    }
+
+    public synchronized int getConsecutiveFailures()
+    {
+        return this.consecutiveFailures;
+    }
+
+    /**
+     * Returns the number of times the breaker has opened.
+     */
+    public synchronized long getNumOpened()
+    {
+        return this.numOpened;
+    }
+
+    /**
+     * Returns the number of commands that were not sent
+     * because the breaker was open.
+     */
+    public synchronized long getNumRejected()
+    {
+        return this.numRejected;
+    }
+
+    /**
+     * Closes the breaker (e.g., after the TPM has been fixed).
+     */
+    public synchronized void reset()
+    {
+        this.consecutiveFailures = 0;
+        this.open = false;
+        this.trialInProgress = false;
+    }
+
+    public synchronized String toString()
+    {
+        return "TPMCircuitBreaker(" + (this.open ? "open" : "closed")
+            + ", consecutiveFailures=" + this.consecutiveFailures
+            + ", opened " + this.numOpened + " times, rejected "
+            + this.numRejected + ")";
+    }
+}
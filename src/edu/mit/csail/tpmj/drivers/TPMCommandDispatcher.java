@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import edu.mit.csail.tpmj.TPMException;
+import edu.mit.csail.tpmj.TPMIOException;
+import edu.mit.csail.tpmj.structs.TPMInputStruct;
+import edu.mit.csail.tpmj.structs.TPMOutputStruct;
+
+/**
+ * Submits commands to a BasicTPMDriver from a single dispatcher thread,
+ * so that callers do not need to keep a blocked thread per command.
+ * <p>
+ * Commands are marshalled in the submitting thread before being put
+ * in a bounded queue (submit() blocks if the queue is full),
+ * and the output is parsed and checked for errors in the thread that
+ * calls get() on the returned future.  The dispatcher thread itself
+ * only puts bytes on the wire (through transmitBytesWithRetries()),
+ * so while one command is being executed by the TPM, the next
+ * can be marshalled and the previous result parsed in other threads.
+ *
+ * @see BasicTPMDriver#transmitAsync(TPMInputStruct)
+ */
+public class TPMCommandDispatcher
+{
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    private static final PendingCommand SHUTDOWN = new PendingCommand( null,
+        null );
+
+    private BasicTPMDriver tpmDriver;
+    private BlockingQueue<PendingCommand> queue;
+    private Thread dispatcherThread;
+    private volatile boolean shutdown = false;
+
+    public TPMCommandDispatcher( BasicTPMDriver tpmDriver )
+    {
+        this( tpmDriver, DEFAULT_QUEUE_CAPACITY );
+    }
+
+    public TPMCommandDispatcher( BasicTPMDriver tpmDriver, int queueCapacity )
+    {
+        this.tpmDriver = tpmDriver;
+        this.queue = new ArrayBlockingQueue<PendingCommand>( queueCapacity );
+
+        this.dispatcherThread = new Thread( new Runnable()
+        {
+            public void run()
+            {
+                dispatchLoop();
+            }
+        }, "TPMCommandDispatcher-" + tpmDriver.getClass().getName() );
+        this.dispatcherThread.setDaemon( true );
+        this.dispatcherThread.start();
+    }
+
+    /**
+     * Marshals the input, and queues it for transmission.
+     * Blocks if the queue is full.
+     *
+     * @param input
+     * @return a future for the (unchecked) output of the TPM
+     * @throws TPMIOException if the dispatcher has been shut down
+     *  or the caller was interrupted while waiting for space in the queue
+     */
+    public TPMFuture<TPMOutputStruct> submit( TPMInputStruct input )
+        throws TPMIOException
+    {
+        if ( this.shutdown )
+        {
+            throw new TPMIOException( "TPMCommandDispatcher has been shut down" );
+        }
+
+        PendingCommand cmd = new PendingCommand( input, input.toBytes() );
+        try
+        {
+            this.queue.put( cmd );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new TPMIOException( e );
+        }
+
+        // in case shutdown() happened while we were queueing
+        if ( this.shutdown && this.queue.remove( cmd ) )
+        {
+            throw new TPMIOException( "TPMCommandDispatcher has been shut down" );
+        }
+        return cmd;
+    }
+
+    public int getQueueLength()
+    {
+        return this.queue.size();
+    }
+
+    /**
+     * Stops the dispatcher thread after the command currently
+     * on the wire (if any) finishes.  Commands still in the queue
+     * fail with a TPMIOException.
+     */
+    public void shutdown()
+    {
+        this.shutdown = true;
+        // wake up the dispatcher thread if it is waiting on an empty queue
+        this.queue.offer( SHUTDOWN );
+    }
+
+    private void dispatchLoop()
+    {
+        while ( !this.shutdown )
+        {
+            PendingCommand cmd;
+            try
+            {
+                cmd = this.queue.take();
+            }
+            catch ( InterruptedException e )
+            {
+                continue;
+            }
+
+            if ( (cmd == SHUTDOWN) || !cmd.start() )
+            {
+                // shutting down, or cancelled while in the queue
+                continue;
+            }
+
+            try
+            {
+                byte[] outputBytes = this.tpmDriver.transmitBytesWithRetries( cmd.inputBytes );
+                cmd.setOutputBytes( outputBytes );
+            }
+            catch ( TPMException e )
+            {
+                cmd.setException( e );
+            }
+            catch ( RuntimeException e )
+            {
+                cmd.setException( new TPMException( e ) );
+            }
+        }
+
+        PendingCommand cmd;
+        while ( (cmd = this.queue.poll()) != null )
+        {
+            if ( (cmd != SHUTDOWN) && cmd.start() )
+            {
+                cmd.setException( new TPMIOException(
+                    "TPMCommandDispatcher has been shut down" ) );
+            }
+        }
+    }
+
+    /**
+     * A queued command, and the future for its output.
+     */
+    private static class PendingCommand extends TPMFuture<TPMOutputStruct>
+    {
+        private TPMInputStruct input;
+        private byte[] inputBytes;
+
+        private CountDownLatch done = new CountDownLatch( 1 );
+        private boolean started = false;
+        private boolean cancelled = false;
+        private byte[] outputBytes = null;
+        private TPMException exception = null;
+        private TPMOutputStruct output = null;
+
+        public PendingCommand( TPMInputStruct input, byte[] inputBytes )
+        {
+            this.input = input;
+            this.inputBytes = inputBytes;
+        }
+
+        /**
+         * Called by the dispatcher thread before transmitting.
+         *
+         * @return false if the command has been cancelled
+         */
+        synchronized boolean start()
+        {
+            if ( this.cancelled )
+            {
+                return false;
+            }
+            this.started = true;
+            return true;
+        }
+
+        synchronized void setOutputBytes( byte[] outputBytes )
+        {
+            this.outputBytes = outputBytes;
+            this.done.countDown();
+        }
+
+        synchronized void setException( TPMException exception )
+        {
+            this.exception = exception;
+            this.done.countDown();
+        }
+
+        @Override
+        protected boolean await( long timeout, TimeUnit unit )
+            throws InterruptedException
+        {
+            if ( timeout < 0 )
+            {
+                this.done.await();
+                return true;
+            }
+            return this.done.await( timeout, unit );
+        }
+
+        /**
+         * Parses and checks the output in the caller's thread.
+         */
+        @Override
+        protected synchronized TPMOutputStruct result() throws TPMException
+        {
+            if ( this.cancelled )
+            {
+                throw new CancellationException();
+            }
+            if ( this.exception != null )
+            {
+                throw this.exception;
+            }
+            if ( this.output == null )
+            {
+                try
+                {
+                    this.output = BasicTPMDriver.checkOutput( this.input,
+                        this.outputBytes );
+                }
+                catch ( TPMException e )
+                {
+                    this.exception = e;
+                    throw e;
+                }
+            }
+            return this.output;
+        }
+
+        /**
+         * Only succeeds if the dispatcher has not yet started
+         * transmitting the command.
+         */
+        public synchronized boolean cancel( boolean mayInterruptIfRunning )
+        {
+            if ( this.started || this.cancelled )
+            {
+                return false;
+            }
+            this.cancelled = true;
+            this.done.countDown();
+            return true;
+        }
+
+        public synchronized boolean isCancelled()
+        {
+            return this.cancelled;
+        }
+
+        public boolean isDone()
+        {
+            return this.done.getCount() == 0;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers;
+
+/**
+ * Holds the time (as in System.currentTimeMillis()) by which the 
+ * commands submitted by the current thread must have started executing,
+ * if the thread has one.  SchedulingTPMDriverWrapper rejects commands
+ * that would miss it, and BasicTPMDriver does not start a retry
+ * that would start after it.
+ *
+ * @see SchedulingTPMDriverWrapper#setCurrentDeadline(long)
+ */
+public class TPMDeadline
+{
+    private static ThreadLocal<Long> currentDeadline = new ThreadLocal<Long>();
+
+    /**
+     * Sets the current thread's deadline.  Use 0 for no deadline.
+     */
+    public static void setCurrent( long deadline )
+    {
+        if ( deadline <= 0 )
+        {
+            currentDeadline.remove();
+        }
+        else
+        {
+            currentDeadline.set( deadline );
+        }
+    }
+
+    /**
+     * Returns the current thread's deadline, or 0 if it has none.
+     */
+    public static long getCurrent()
+    {
+        Long deadline = currentDeadline.get();
+        return (deadline == null) ? 0 : deadline.longValue();
+    }
+}
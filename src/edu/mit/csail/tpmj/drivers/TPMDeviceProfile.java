@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import edu.mit.csail.tpmj.TPMConsts;
+import edu.mit.csail.tpmj.TPMException;
+import edu.mit.csail.tpmj.commands.TPM_GetCapability;
+import edu.mit.csail.tpmj.commands.TPM_GetCapabilityOutput;
+import edu.mit.csail.tpmj.structs.TPM_CAP_VERSION_INFO;
+import edu.mit.csail.tpmj.structs.TPM_STRUCT_VER;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+
+/**
+ * The properties of a TPM that a driver would otherwise have to
+ * get from the TPM every time it is initialized (the manufacturer,
+ * version, number of PCRs, command durations and input buffer size),
+ * saved in a file so that other processes using the same device
+ * can skip these round trips.
+ * <p>
+ * Each profile is stored as a properties file in a profile directory,
+ * named after the driver's profile key (e.g., "linux:/dev/tpm0").
+ * A profile is only used if the key stored in it matches, and if
+ * the TPM it describes is still the one behind the device 
+ * (see matches()).
+ *
+ * @see BasicTPMDriver#setProfileDir(File)
+ */
+public class TPMDeviceProfile
+{
+    public static final int FORMAT_VERSION = 1;
+
+    /**
+     * Profiles older than this (1 day) are refreshed in the background.
+     */
+    public static final long DEFAULT_MAX_AGE = 24 * 60 * 60 * 1000L;
+
+    private String key;
+    private int manufacturer;
+    private TPM_STRUCT_VER version;
+    private int numPcrs;
+    private TPMDurations durations;
+    private int inputBufferSize;
+    private long created;
+
+    /**
+     * @param key
+     * @param manufacturer
+     * @param version
+     * @param numPcrs
+     * @param durations
+     * @param inputBufferSize -- 0 if unknown (e.g., on a TPM 1.1)
+     * @param created -- time (as in System.currentTimeMillis())
+     */
+    public TPMDeviceProfile( String key, int manufacturer,
+        TPM_STRUCT_VER version, int numPcrs, TPMDurations durations,
+        int inputBufferSize, long created )
+    {
+        this.key = key;
+        this.manufacturer = manufacturer;
+        this.version = version;
+        this.numPcrs = numPcrs;
+        this.durations = durations;
+        this.inputBufferSize = inputBufferSize;
+        this.created = created;
+    }
+
+    public String getKey()
+    {
+        return this.key;
+    }
+
+    public int getManufacturer()
+    {
+        return this.manufacturer;
+    }
+
+    public TPM_STRUCT_VER getVersion()
+    {
+        return this.version;
+    }
+
+    public int getNumPcrs()
+    {
+        return this.numPcrs;
+    }
+
+    public TPMDurations getDurations()
+    {
+        return this.durations;
+    }
+
+    public int getInputBufferSize()
+    {
+        return this.inputBufferSize;
+    }
+
+    public long getCreated()
+    {
+        return this.created;
+    }
+
+    public boolean isStale( long maxAge )
+    {
+        long age = System.currentTimeMillis() - this.created;
+        return (age < 0) || (age > maxAge);
+    }
+
+    /**
+     * Gets a new profile from the TPM (using several TPM_GetCapability
+     * commands).
+     *
+     * @param tpmDriver
+     * @param key
+     * @throws TPMException if the manufacturer or version cannot be gotten
+     */
+    public static TPMDeviceProfile query( TPMDriver tpmDriver, String key )
+        throws TPMException
+    {
+        // NOTE: The commands are done directly here (like in BasicTPMDriver),
+        // so that drivers can use this without depending on the funcs.
+        int manufacturer = getProperty( tpmDriver,
+            TPMConsts.TPM_CAP_PROP_MANUFACTURER );
+
+        TPM_STRUCT_VER version;
+        try
+        {
+            TPM_GetCapability cmd = new TPM_GetCapability(
+                TPMConsts.TPM_CAP_VERSION_VAL );
+            TPM_GetCapabilityOutput output = cmd.execute( tpmDriver );
+            version = new TPM_CAP_VERSION_INFO( output.getResp() ).getVersion();
+        }
+        catch ( TPMException e )
+        {
+            TPM_GetCapability cmd = new TPM_GetCapability(
+                TPMConsts.TCPA_CAP_VERSION );
+            TPM_GetCapabilityOutput output = cmd.execute( tpmDriver );
+            version = new TPM_STRUCT_VER( output.getResp() );
+        }
+
+        int numPcrs = getProperty( tpmDriver, TPMConsts.TPM_CAP_PROP_PCR );
+
+        int inputBufferSize = 0;
+        try
+        {
+            inputBufferSize = getProperty( tpmDriver,
+                TPMConsts.TPM_CAP_PROP_INPUT_BUFFER );
+        }
+        catch ( TPMException e )
+        {
+            // not supported by TPM 1.1
+        }
+
+        TPMDurations durations = TPMDurations.query( tpmDriver );
+
+        return new TPMDeviceProfile( key, manufacturer, version, numPcrs,
+            durations, inputBufferSize, System.currentTimeMillis() );
+    }
+
+    /**
+     * Checks whether this profile describes the TPM behind the driver,
+     * using a single TPM_GetCapability with TPM_CAP_VERSION_VAL (or
+     * TCPA_CAP_VERSION on a TPM 1.1).  The TPM's version (which includes
+     * its firmware revision) and, on a TPM 1.2, its vendor ID must be the 
+     * ones in the profile.
+     * 
+     * @param tpmDriver
+     * @return false if they are not, or they cannot be gotten
+     */
+    public boolean matches( TPMDriver tpmDriver )
+    {
+        try
+        {
+            try
+            {
+                TPM_GetCapability cmd = new TPM_GetCapability(
+                    TPMConsts.TPM_CAP_VERSION_VAL );
+                TPM_GetCapabilityOutput output = cmd.execute( tpmDriver );
+                TPM_CAP_VERSION_INFO info = new TPM_CAP_VERSION_INFO(
+                    output.getResp() );
+                return (info.getTpmVendorID() == this.manufacturer)
+                    && this.version.equals( info.getVersion() );
+            }
+            catch ( TPMException e )
+            {
+                TPM_GetCapability cmd = new TPM_GetCapability(
+                    TPMConsts.TCPA_CAP_VERSION );
+                TPM_GetCapabilityOutput output = cmd.execute( tpmDriver );
+                return this.version.equals( new TPM_STRUCT_VER(
+                    output.getResp() ) );
+            }
+        }
+        catch ( Exception e )
+        {
+            return false;
+        }
+    }
+
+    private static int getProperty( TPMDriver tpmDriver, int subCap )
+        throws TPMException
+    {
+        TPM_GetCapability cmd = new TPM_GetCapability(
+            TPMConsts.TPM_CAP_PROPERTY, ByteArrayUtil.toBytesInt32BE( subCap ) );
+        TPM_GetCapabilityOutput output = cmd.execute( tpmDriver );
+        return output.getRespView().getInt32( 0 );
+    }
+
+    /**
+     * Returns the file in which the profile with the given key is stored.
+     */
+    public static File getFile( File dir, String key )
+    {
+        StringBuilder name = new StringBuilder();
+        for ( int i = 0; i < key.length(); i++ )
+        {
+            char c = key.charAt( i );
+            boolean ok = ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z'))
+                || ((c >= '0') && (c <= '9')) || (c == '.') || (c == '-');
+            name.append( ok ? c : '_' );
+        }
+        name.append( ".profile" );
+        return new File( dir, name.toString() );
+    }
+
+    /**
+     * Reads the profile with the given key from the directory.
+     * Returns null if there is none, or it cannot be read, or it
+     * is for a different key.
+     */
+    public static TPMDeviceProfile load( File dir, String key )
+    {
+        File file = getFile( dir, key );
+        if ( !file.isFile() )
+        {
+            return null;
+        }
+        Properties props = new Properties();
+        InputStream in = null;
+        try
+        {
+            in = new FileInputStream( file );
+            props.load( in );
+            if ( !key.equals( props.getProperty( "key" ) )
+                || (Integer.parseInt( props.getProperty( "format" ) ) != FORMAT_VERSION) )
+            {
+                return null;
+            }
+            byte[] verBytes = ByteArrayUtil.parseHexString( props.getProperty( "version" ) );
+            String[] d = props.getProperty( "durations" ).split( "," );
+            if ( (verBytes.length != 4) || (d.length != 3) )
+            {
+                return null;
+            }
+            return new TPMDeviceProfile( key,
+                (int) Long.parseLong( props.getProperty( "manufacturer" ), 16 ),
+                new TPM_STRUCT_VER( verBytes ),
+                Integer.parseInt( props.getProperty( "numPcrs" ) ),
+                new TPMDurations( Long.parseLong( d[0] ), Long.parseLong( d[1] ),
+                    Long.parseLong( d[2] ) ),
+                Integer.parseInt( props.getProperty( "inputBufferSize" ) ),
+                Long.parseLong( props.getProperty( "created" ) ) );
+        }
+        catch ( Exception e )
+        {
+            // missing or bad values
+            return null;
+        }
+        finally
+        {
+            if ( in != null )
+            {
+                try
+                {
+                    in.close();
+                }
+                catch ( IOException e )
+                {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the profile to the directory (creating it if necessary).
+     * The profile is written to a temporary file first, so that
+     * other processes never read a partly written profile.
+     *
+     * @throws IOException
+     */
+    public void save( File dir ) throws IOException
+    {
+        Properties props = new Properties();
+        props.setProperty( "format", Integer.toString( FORMAT_VERSION ) );
+        props.setProperty( "key", this.key );
+        props.setProperty( "manufacturer", Integer.toHexString( this.manufacturer ) );
+        props.setProperty( "version", ByteArrayUtil.toHexString( this.version.toBytes() ) );
+        props.setProperty( "numPcrs", Integer.toString( this.numPcrs ) );
+        props.setProperty( "durations", this.durations.getDuration( TPMDurations.SHORT )
+            + "," + this.durations.getDuration( TPMDurations.MEDIUM ) + ","
+            + this.durations.getDuration( TPMDurations.LONG ) );
+        props.setProperty( "inputBufferSize", Integer.toString( this.inputBufferSize ) );
+        props.setProperty( "created", Long.toString( this.created ) );
+
+        if ( !dir.isDirectory() && !dir.mkdirs() )
+        {
+            throw new IOException( "Cannot create " + dir );
+        }
+        File file = getFile( dir, this.key );
+        File tmp = File.createTempFile( file.getName(), ".tmp", dir );
+        OutputStream out = new FileOutputStream( tmp );
+        try
+        {
+            props.store( out, "TPM device profile" );
+        }
+        finally
+        {
+            out.close();
+        }
+        // NOTE: On Windows, renameTo() fails if the file exists.
+        if ( !tmp.renameTo( file ) && !(file.delete() && tmp.renameTo( file )) )
+        {
+            tmp.delete();
+            throw new IOException( "Cannot write " + file );
+        }
+    }
+
+    public String toString()
+    {
+        return "TPMDeviceProfile(" + this.key + ", manufacturer=0x"
+            + Integer.toHexString( this.manufacturer ) + ", version="
+            + this.version + ", numPcrs=" + this.numPcrs + ", "
+            + this.durations + ", inputBufferSize=" + this.inputBufferSize
+            + ")";
+    }
+}
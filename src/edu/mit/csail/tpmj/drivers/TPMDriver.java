@@ -87,6 +87,32 @@ public interface TPMDriver
      * @throws TPMException: TPMIOException on I/O error, TPMErrorReturnCodeException if output return code is not 0.
      */
     public TPMOutputStruct transmit( TPMInputStruct input ) throws TPMException;
+
+    /**
+     * Like transmit, but returns the output struct even if its return code
+     * is not 0, instead of throwing a TPMErrorReturnCodeException.
+     * This is cheaper for callers that expect some error codes
+     * (e.g., when probing NV indices or retrying on TPM_RETRY),
+     * since no exception (with its stack trace) is created.
+     * 
+     * @param input
+     * @return
+     * @throws TPMException: TPMIOException on I/O error, TPMNullOutputException if there is no output.
+     */
+    public TPMOutputStruct transmitUnchecked( TPMInputStruct input ) throws TPMException;
+    
+    /**
+     * Asynchronous version of transmit.  Queues the command
+     * and returns immediately (unless the queue is full).
+     * The returned future throws the same exceptions as transmit
+     * (wrapped in an ExecutionException by get(), or directly by
+     * getResult()).
+     * 
+     * @param input
+     * @return
+     * @throws TPMException if the command could not be queued
+     */
+    public TPMFuture<TPMOutputStruct> transmitAsync( TPMInputStruct input ) throws TPMException;
     
     /**
      * This is the low-level interface to the TPM.
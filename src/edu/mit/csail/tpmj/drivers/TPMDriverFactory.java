@@ -29,14 +29,186 @@
  */ 
 package edu.mit.csail.tpmj.drivers;
 
+import java.io.File;
+import java.io.IOException;
+
+import javax.management.JMException;
+
+import edu.mit.csail.tpmj.drivers.daemon.TPMDaemonDriver;
+import edu.mit.csail.tpmj.drivers.emulator.SoftwareTPM;
+import edu.mit.csail.tpmj.drivers.emulator.SoftwareTPMDriver;
 import edu.mit.csail.tpmj.drivers.linux.LinuxTPMDriver;
+import edu.mit.csail.tpmj.drivers.metrics.MetricsTPMDriverWrapper;
+import edu.mit.csail.tpmj.drivers.replay.RecordingTPMDriverWrapper;
+import edu.mit.csail.tpmj.drivers.replay.ReplayTPMDriver;
+import edu.mit.csail.tpmj.drivers.socket.SocketTPMDriver;
 import edu.mit.csail.tpmj.drivers.win32.Win32IFXTPMDriver;
 import edu.mit.csail.tpmj.drivers.win32.Win32TDDLDriver;
 import edu.mit.csail.tpmj.drivers.win32.WindowsVistaTBSProxy;
+import edu.mit.csail.tpmj.util.CryptoUtil;
 import edu.mit.csail.tpmj.util.Debug;
 
 public class TPMDriverFactory
 {
+    /**
+     * System property that overrides the device path used by the
+     * Linux (and Mac OS X) driver, e.g., to point it at a FIFO or pty
+     * standing in for the TPM.
+     */
+    public static final String DEVICE_PATH_PROPERTY = "tpmj.device";
+
+    /**
+     * System property that, if "true", makes the Linux driver keep the 
+     * device open between commands.
+     * 
+     * @see LinuxTPMDriver#setPersistent(boolean)
+     */
+    public static final String PERSISTENT_PROPERTY = "tpmj.persistent";
+
+    /**
+     * System property that, if "true", makes the Linux driver read
+     * responses by their paramSize (for device stand-ins that do not
+     * preserve message boundaries).
+     * 
+     * @see LinuxTPMDriver#setFramed(boolean)
+     */
+    public static final String FRAMED_PROPERTY = "tpmj.framed";
+
+    /**
+     * System property that, if "true", turns on the Linux driver's
+     * per-command timeouts.  (They are off by default.)
+     * 
+     * @see LinuxTPMDriver#setTimeoutsEnabled(boolean)
+     */
+    public static final String TIMEOUTS_PROPERTY = "tpmj.timeouts";
+
+    /**
+     * System property listing several device paths (separated by commas).
+     * If set, the Linux driver is replaced by a PooledTPMDriver 
+     * containing one LinuxTPMDriver per device.
+     * 
+     * @see PooledTPMDriver
+     */
+    public static final String DEVICES_PROPERTY = "tpmj.devices";
+
+    /**
+     * System property that, if set to "host:port", makes the factory
+     * create a SocketTPMDriver talking to a software TPM at that address
+     * instead of the OS-specific driver.
+     * 
+     * @see SocketTPMDriver
+     */
+    public static final String SOCKET_PROPERTY = "tpmj.socket";
+
+    /**
+     * System property giving the number of connections 
+     * the SocketTPMDriver may open at once (default 1).
+     */
+    public static final String SOCKET_POOL_PROPERTY = "tpmj.socket.pool";
+
+    /**
+     * System property that, if set to "host:port" (or ":port", or
+     * "true" for the default port), makes the factory create a
+     * TPMDaemonDriver, which sends commands to a TPMDaemon that owns
+     * the TPM, instead of opening the TPM itself.
+     * 
+     * @see TPMDaemonDriver
+     */
+    public static final String DAEMON_PROPERTY = "tpmj.daemon";
+
+    /**
+     * System property that, if "true", makes the factory create
+     * a SoftwareTPMDriver, which emulates a TPM in memory,
+     * instead of the OS-specific driver.
+     * 
+     * @see SoftwareTPM
+     */
+    public static final String EMULATOR_PROPERTY = "tpmj.emulator";
+
+    /**
+     * System property giving the short, medium and long command
+     * latencies (in microseconds, separated by commas) of the 
+     * emulated TPM.  (By default, commands take no extra time.)
+     * 
+     * @see SoftwareTPM#setDurations(long, long, long)
+     */
+    public static final String EMULATOR_DURATIONS_PROPERTY = "tpmj.emulator.durations";
+
+    /**
+     * System property that, if set to a file name, makes the factory
+     * record all TPM commands and responses to that file.
+     * 
+     * @see RecordingTPMDriverWrapper
+     */
+    public static final String RECORD_PROPERTY = "tpmj.record";
+
+    /**
+     * System property that, if set to the file name of a recording,
+     * makes the factory create a ReplayTPMDriver, which answers
+     * commands from the recording, instead of the OS-specific driver.
+     * 
+     * @see ReplayTPMDriver
+     */
+    public static final String REPLAY_PROPERTY = "tpmj.replay";
+
+    /**
+     * System property giving the timing mode of the ReplayTPMDriver
+     * ("none", "durations", or "original").  The default is "none".
+     */
+    public static final String REPLAY_TIMING_PROPERTY = "tpmj.replay.timing";
+
+    /**
+     * System property that, if set, seeds the random number generator
+     * used for nonces with the given number, so that commands can be
+     * replayed exactly.  (For testing only!)
+     * 
+     * @see CryptoUtil#setRandomSeed(long)
+     */
+    public static final String RANDOM_SEED_PROPERTY = "tpmj.randomSeed";
+
+    /**
+     * System property that, if "true", makes the factory wrap the driver
+     * in a CoalescingTPMDriverWrapper, so that identical concurrent
+     * read commands share one round trip to the TPM.
+     * 
+     * @see CoalescingTPMDriverWrapper
+     */
+    public static final String COALESCE_PROPERTY = "tpmj.coalesce";
+
+    /**
+     * System property that, if "true", makes the factory wrap the driver
+     * in a CachingTPMDriverWrapper, which caches TPM_GetCapability responses.
+     * 
+     * @see CachingTPMDriverWrapper
+     */
+    public static final String CAPABILITY_CACHE_PROPERTY = "tpmj.capabilityCache";
+
+    /**
+     * System property that, if "true", makes the factory wrap the driver
+     * in a MetricsTPMDriverWrapper, and register its metrics with the
+     * platform MBean server (under the name "default").
+     * 
+     * @see MetricsTPMDriverWrapper
+     */
+    public static final String METRICS_PROPERTY = "tpmj.metrics";
+
+    /**
+     * System property giving a directory in which to save device profiles,
+     * so that drivers can skip getting the TPM's manufacturer, version, etc.,
+     * when they are initialized.
+     * 
+     * @see TPMDeviceProfile
+     * @see BasicTPMDriver#setProfileDir(File)
+     */
+    public static final String PROFILE_DIR_PROPERTY = "tpmj.profileDir";
+
+    /**
+     * The profile directory used by the /profile switch
+     * (.tpmj/profiles in the user's home directory).
+     */
+    public static final String DEFAULT_PROFILE_DIR = System.getProperty( "user.home" )
+        + File.separator + ".tpmj" + File.separator + "profiles";
+
     private static TPMDriver theDriver;
 
     private static TPMDriver createTPMDriver()
@@ -47,7 +219,34 @@ public class TPMDriverFactory
 
         TPMDriver osSpecificDriver = null;
 
-        if ( osName.contains( "vista" ) )
+        String randomSeed = System.getProperty( RANDOM_SEED_PROPERTY );
+        if ( randomSeed != null )
+        {
+            CryptoUtil.setRandomSeed( Long.parseLong( randomSeed ) );
+        }
+
+        String replayPath = System.getProperty( REPLAY_PROPERTY );
+        String socketAddress = System.getProperty( SOCKET_PROPERTY );
+        String daemonAddress = System.getProperty( DAEMON_PROPERTY );
+        if ( replayPath != null )
+        {
+            osSpecificDriver = createReplayTPMDriver( replayPath );
+        }
+        else if ( Boolean.getBoolean( EMULATOR_PROPERTY ) )
+        {
+            osSpecificDriver = createSoftwareTPMDriver();
+        }
+        else if ( socketAddress != null )
+        {
+            osSpecificDriver = SocketTPMDriver.fromAddress( socketAddress,
+                Integer.getInteger( SOCKET_POOL_PROPERTY, 1 ).intValue() );
+        }
+        else if ( daemonAddress != null )
+        {
+            osSpecificDriver = "true".equals( daemonAddress ) ? new TPMDaemonDriver()
+                : TPMDaemonDriver.fromAddress( daemonAddress );
+        }
+        else if ( osName.contains( "vista" ) )
         {
              osSpecificDriver = new WindowsVistaTBSProxy();
         } 
@@ -59,11 +258,55 @@ public class TPMDriverFactory
         }
         else if ( osName.startsWith( "mac os x" ) )
         {
-            osSpecificDriver = new LinuxTPMDriver( "/dev/tpm" );
+            osSpecificDriver = createLinuxTPMDriver( "/dev/tpm" );
         }
         else
         {
-            osSpecificDriver = new LinuxTPMDriver();
+            osSpecificDriver = createLinuxTPMDriver( LinuxTPMDriver.DEFAULT_DEVICE_PATH );
+        }
+
+        String profileDir = System.getProperty( PROFILE_DIR_PROPERTY );
+        if ( (profileDir != null) && (osSpecificDriver instanceof BasicTPMDriver) )
+        {
+            ((BasicTPMDriver) osSpecificDriver).setProfileDir( new File( profileDir ) );
+        }
+
+        String recordPath = System.getProperty( RECORD_PROPERTY );
+        if ( recordPath != null )
+        {
+            try
+            {
+                osSpecificDriver = new RecordingTPMDriverWrapper(
+                    osSpecificDriver, new File( recordPath ) );
+            }
+            catch ( IOException e )
+            {
+                throw new IllegalArgumentException( "Cannot record to "
+                    + recordPath, e );
+            }
+        }
+
+        if ( Boolean.getBoolean( METRICS_PROPERTY ) )
+        {
+            MetricsTPMDriverWrapper metrics = new MetricsTPMDriverWrapper(
+                osSpecificDriver );
+            try
+            {
+                metrics.registerMBeans( "default" );
+            }
+            catch ( JMException e )
+            {
+                System.err.println( "Cannot register TPM driver metrics: " + e );
+            }
+            osSpecificDriver = metrics;
+        }
+        if ( Boolean.getBoolean( COALESCE_PROPERTY ) )
+        {
+            osSpecificDriver = new CoalescingTPMDriverWrapper( osSpecificDriver );
+        }
+        if ( Boolean.getBoolean( CAPABILITY_CACHE_PROPERTY ) )
+        {
+            osSpecificDriver = new CachingTPMDriverWrapper( osSpecificDriver );
         }
 
         TPMDriver ret = osSpecificDriver;
@@ -78,7 +321,67 @@ public class TPMDriverFactory
         return ret;
     }
     
-    public static TPMDriver getTPMDriver()
+    private static TPMDriver createReplayTPMDriver( String path )
+    {
+        int timing = ReplayTPMDriver.parseTiming( System.getProperty(
+            REPLAY_TIMING_PROPERTY, "none" ) );
+        try
+        {
+            return new ReplayTPMDriver( new File( path ), timing );
+        }
+        catch ( IOException e )
+        {
+            throw new IllegalArgumentException( "Cannot replay " + path, e );
+        }
+    }
+
+    private static TPMDriver createSoftwareTPMDriver()
+    {
+        SoftwareTPM tpm = new SoftwareTPM();
+        String durations = System.getProperty( EMULATOR_DURATIONS_PROPERTY );
+        if ( durations != null )
+        {
+            String[] values = durations.split( "," );
+            if ( values.length != 3 )
+            {
+                throw new IllegalArgumentException( EMULATOR_DURATIONS_PROPERTY
+                    + " should be short,medium,long: " + durations );
+            }
+            tpm.setDurations( Long.parseLong( values[0].trim() ),
+                Long.parseLong( values[1].trim() ),
+                Long.parseLong( values[2].trim() ) );
+        }
+        return new SoftwareTPMDriver( tpm );
+    }
+
+    private static TPMDriver createLinuxTPMDriver( String defaultDevicePath )
+    {
+        String devices = System.getProperty( DEVICES_PROPERTY );
+        if ( devices != null )
+        {
+            String[] paths = devices.split( "," );
+            TPMDriver[] drivers = new TPMDriver[paths.length];
+            for ( int i = 0; i < paths.length; i++ )
+            {
+                LinuxTPMDriver driver = new LinuxTPMDriver( paths[i].trim(),
+                    Boolean.getBoolean( PERSISTENT_PROPERTY ) );
+                driver.setFramed( Boolean.getBoolean( FRAMED_PROPERTY ) );
+                driver.setTimeoutsEnabled( Boolean.getBoolean( TIMEOUTS_PROPERTY ) );
+                drivers[i] = driver;
+            }
+            return new PooledTPMDriver( drivers );
+        }
+
+        String devicePath = System.getProperty( DEVICE_PATH_PROPERTY,
+            defaultDevicePath );
+        boolean persistent = Boolean.getBoolean( PERSISTENT_PROPERTY );
+        LinuxTPMDriver driver = new LinuxTPMDriver( devicePath, persistent );
+        driver.setFramed( Boolean.getBoolean( FRAMED_PROPERTY ) );
+        driver.setTimeoutsEnabled( Boolean.getBoolean( TIMEOUTS_PROPERTY ) );
+        return driver;
+    }
+
+    public static synchronized TPMDriver getTPMDriver()
     {
         if ( theDriver == null )
         {
@@ -87,7 +390,7 @@ public class TPMDriverFactory
         return theDriver;
     }
 
-    public static void setTPMDriver( TPMDriver newDriver )
+    public static synchronized void setTPMDriver( TPMDriver newDriver )
     {
         theDriver = newDriver;
     }
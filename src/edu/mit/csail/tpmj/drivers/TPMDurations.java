@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers;
+
+import edu.mit.csail.tpmj.TPMConsts;
+import edu.mit.csail.tpmj.commands.TPM_GetCapability;
+import edu.mit.csail.tpmj.commands.TPM_GetCapabilityOutput;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.ByteArrayView;
+
+/**
+ * The maximum times (in microseconds) that a TPM says its short, medium
+ * and long commands take (as returned by GetCapability with
+ * TPM_CAP_PROP_DURATION), together with the duration class of each ordinal.
+ * <p>
+ * Key generation and self tests are long, other RSA private key operations
+ * are medium, and everything else is short.
+ * <p>
+ * Durations gotten from the TPM are made plausible (see plausible()) 
+ * before they are used, since some TPMs report them in milliseconds,
+ * and some report durations that are too short for what they actually do.
+ */
+public class TPMDurations
+{
+    public static final int SHORT = 0;
+    public static final int MEDIUM = 1;
+    public static final int LONG = 2;
+
+    /**
+     * Used if the TPM does not report its durations (e.g., a TPM 1.1).
+     * These are generous: 2 s, 20 s, and 120 s.
+     */
+    public static final TPMDurations DEFAULT = new TPMDurations( 2000000,
+        20000000, 120000000 );
+
+    /**
+     * If the TPM reports a short duration below this (10 ms), it is taken
+     * to be reporting milliseconds instead of microseconds (as Linux does).
+     */
+    public static final long MILLIS_THRESHOLD = 10000;
+
+    private long[] durations;
+
+    /**
+     * @param shortMicros
+     * @param mediumMicros
+     * @param longMicros
+     */
+    public TPMDurations( long shortMicros, long mediumMicros, long longMicros )
+    {
+        this.durations = new long[] { shortMicros, mediumMicros, longMicros };
+    }
+
+    /**
+     * Gets the durations from the TPM (made plausible), or returns DEFAULT 
+     * if the TPM does not support TPM_CAP_PROP_DURATION 
+     * (or returns zero for any of them).
+     *
+     * @param tpmDriver
+     * @return
+     */
+    public static TPMDurations query( TPMDriver tpmDriver )
+    {
+        try
+        {
+            // NOTE: This is done directly here (like in BasicTPMDriver),
+            // so that drivers can use it without depending on the funcs.
+            byte[] subCap = ByteArrayUtil.toBytesInt32BE( TPMConsts.TPM_CAP_PROP_DURATION );
+            TPM_GetCapability cmd = new TPM_GetCapability(
+                TPMConsts.TPM_CAP_PROPERTY, subCap );
+            TPM_GetCapabilityOutput output = cmd.execute( tpmDriver );
+            ByteArrayView resp = output.getRespView();
+            if ( resp.getLength() < 12 )
+            {
+                return DEFAULT;
+            }
+            long[] micros = new long[3];
+            for ( int i = 0; i < 3; i++ )
+            {
+                micros[i] = resp.getInt32( i * 4 ) & 0xFFFFFFFFL;
+                if ( micros[i] == 0 )
+                {
+                    return DEFAULT;
+                }
+            }
+            return new TPMDurations( micros[0], micros[1], micros[2] ).plausible();
+        }
+        catch ( Exception e )
+        {
+            return DEFAULT;
+        }
+    }
+
+    /**
+     * Returns these durations, converted to microseconds if they seem
+     * to be in milliseconds (see MILLIS_THRESHOLD), and raised to DEFAULT
+     * where they are shorter.  (A TPM that says its key generation takes
+     * a few seconds can take much longer, and timing it out leaves
+     * the TPM busy anyway.)
+     */
+    public TPMDurations plausible()
+    {
+        long scale = (this.durations[SHORT] < MILLIS_THRESHOLD) ? 1000 : 1;
+        long[] micros = new long[3];
+        for ( int i = 0; i < 3; i++ )
+        {
+            micros[i] = Math.max( this.durations[i] * scale,
+                DEFAULT.durations[i] );
+        }
+        return new TPMDurations( micros[SHORT], micros[MEDIUM], micros[LONG] );
+    }
+
+    /**
+     * Returns the duration class (SHORT, MEDIUM, or LONG) of the given ordinal.
+     */
+    public static int getDurationClass( int ordinal )
+    {
+        switch ( ordinal )
+        {
+            case TPMConsts.TPM_ORD_CreateWrapKey:
+            case TPMConsts.TPM_ORD_MakeIdentity:
+            case TPMConsts.TPM_ORD_TakeOwnership:
+            case TPMConsts.TPM_ORD_CreateEndorsementKeyPair:
+            case TPMConsts.TPM_ORD_CreateRevocableEK:
+            case TPMConsts.TPM_ORD_CMK_CreateKey:
+            case TPMConsts.TPM_ORD_SelfTestFull:
+            case TPMConsts.TPM_ORD_ContinueSelfTest:
+                return LONG;
+            case TPMConsts.TPM_ORD_Sign:
+            case TPMConsts.TPM_ORD_Seal:
+            case TPMConsts.TPM_ORD_Sealx:
+            case TPMConsts.TPM_ORD_Unseal:
+            case TPMConsts.TPM_ORD_LoadKey:
+            case TPMConsts.TPM_ORD_LoadKey2:
+            case TPMConsts.TPM_ORD_Quote:
+            case TPMConsts.TPM_ORD_Quote2:
+            case TPMConsts.TPM_ORD_UnBind:
+            case TPMConsts.TPM_ORD_CertifyKey:
+            case TPMConsts.TPM_ORD_CertifyKey2:
+            case TPMConsts.TPM_ORD_ActivateIdentity:
+            case TPMConsts.TPM_ORD_EstablishTransport:
+            case TPMConsts.TPM_ORD_ReleaseTransportSigned:
+                return MEDIUM;
+            default:
+                return SHORT;
+        }
+    }
+
+    /**
+     * Returns the duration (in microseconds) of the given class.
+     */
+    public long getDuration( int durationClass )
+    {
+        return this.durations[durationClass];
+    }
+
+    /**
+     * Returns the duration (in microseconds) of the given ordinal's class.
+     */
+    public long getDurationOfOrdinal( int ordinal )
+    {
+        return this.durations[getDurationClass( ordinal )];
+    }
+
+    public String toString()
+    {
+        return "TPMDurations(short=" + this.durations[SHORT] + " us, medium="
+            + this.durations[MEDIUM] + " us, long=" + this.durations[LONG]
+            + " us)";
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import edu.mit.csail.tpmj.TPMException;
+
+/**
+ * The result of an asynchronously submitted TPM command
+ * (see TPMDriver.transmitAsync() and TPMCommand.executeAsync()).
+ * <p>
+ * In addition to the standard Future methods (which wrap
+ * any TPMException in an ExecutionException), this provides
+ * getResult(), which waits for the result and throws
+ * the TPMException directly, just like the synchronous
+ * methods do.
+ *
+ * @param <T> type of the result
+ */
+public abstract class TPMFuture<T> implements Future<T>
+{
+    /**
+     * Waits until the result is available.
+     *
+     * @param timeout -- maximum time to wait, or a negative number to wait forever
+     * @param unit
+     * @return true if the result is available, false if the timeout elapsed
+     * @throws InterruptedException
+     */
+    protected abstract boolean await( long timeout, TimeUnit unit )
+        throws InterruptedException;
+
+    /**
+     * Returns the result.  This is only called after await()
+     * has returned true.
+     *
+     * @return
+     * @throws TPMException
+     */
+    protected abstract T result() throws TPMException;
+
+    /**
+     * Waits for and returns the result, throwing a TPMException
+     * (e.g., a TPMErrorReturnCodeException) if the command failed.
+     *
+     * @return
+     * @throws TPMException
+     * @throws InterruptedException
+     */
+    public T getResult() throws TPMException, InterruptedException
+    {
+        this.await( -1, TimeUnit.NANOSECONDS );
+        return this.result();
+    }
+
+    public T get() throws InterruptedException, ExecutionException
+    {
+        this.await( -1, TimeUnit.NANOSECONDS );
+        return this.wrappedResult();
+    }
+
+    public T get( long timeout, TimeUnit unit ) throws InterruptedException,
+        ExecutionException, TimeoutException
+    {
+        if ( !this.await( Math.max( 0, timeout ), unit ) )
+        {
+            throw new TimeoutException();
+        }
+        return this.wrappedResult();
+    }
+
+    private T wrappedResult() throws ExecutionException
+    {
+        try
+        {
+            return this.result();
+        }
+        catch ( TPMException e )
+        {
+            throw new TPMExecutionException( e );
+        }
+    }
+
+    /**
+     * The ExecutionException thrown by get() when the command fails.
+     * (Needed because ExecutionException's constructors are protected.)
+     */
+    public static class TPMExecutionException extends ExecutionException
+    {
+        public TPMExecutionException( TPMException cause )
+        {
+            super( cause );
+        }
+
+        public TPMException getTPMException()
+        {
+            return (TPMException) this.getCause();
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers;
+
+import java.util.Random;
+
+import edu.mit.csail.tpmj.structs.TPM_RESULT;
+
+/**
+ * Says when and how often BasicTPMDriver retries a command.
+ * A command is retried if the driver throws a TPMIOException
+ * (unless retryOnIOException is false), or if the TPM returns
+ * one of the retryable return codes (by default, TPM_RETRY,
+ * TPM_DOING_SELFTEST and TPM_DEFEND_LOCK_RUNNING, which all mean
+ * that the same command may succeed later).
+ * <p>
+ * Only commands without authorization (TPM_TAG_RQU_COMMAND) are retried
+ * because of their return code.  An authorized command cannot simply
+ * be sent again, since the TPM has already used up the nonces in it
+ * (and may have closed its sessions), so its output is returned as is,
+ * and the caller has to set up the session again.
+ * <p>
+ * A TPMIOException may happen after the TPM has executed the command,
+ * so a command is only retried more than once (up to maxRetries times)
+ * after a TPMIOException if its policy is marked idempotent
+ * (see withIdempotent()).  Otherwise it is retried at most once,
+ * as BasicTPMDriver always used to do.
+ * <p>
+ * The delay before the n-th retry is initialDelay * multiplier^(n-1),
+ * but at most maxDelay, minus a random fraction (up to jitter) of
+ * itself, so that callers that failed at the same time do not all
+ * retry at the same time.
+ * <p>
+ * Policies are immutable, so they can be shared between drivers
+ * and ordinals.  Use the with...() methods to get modified copies.
+ *
+ * @see BasicTPMDriver#setRetryPolicy(TPMRetryPolicy)
+ * @see BasicTPMDriver#setRetryPolicy(int, TPMRetryPolicy)
+ */
+public class TPMRetryPolicy
+{
+    public static final int[] DEFAULT_RETRYABLE_CODES =
+        { TPM_RESULT.TPM_RETRY, TPM_RESULT.TPM_DOING_SELFTEST,
+            TPM_RESULT.TPM_DEFEND_LOCK_RUNNING };
+
+    /**
+     * Retries after a TPMIOException at most this many times,
+     * unless the policy is idempotent.
+     */
+    public static final int MAX_NON_IDEMPOTENT_IO_RETRIES = 1;
+
+    /**
+     * 5 retries, starting at 50 ms and doubling each time
+     * (at most about 1.5 s of waiting in all), but only 1 retry
+     * after a TPMIOException, since it is not idempotent.
+     */
+    public static final TPMRetryPolicy DEFAULT = new TPMRetryPolicy( 5, 50,
+        2000 );
+
+    /**
+     * Never retries.
+     */
+    public static final TPMRetryPolicy NO_RETRIES = new TPMRetryPolicy( 0, 0, 0 );
+
+    private int maxRetries;
+    private long initialDelay;
+    private long maxDelay;
+    private double multiplier;
+    private double jitter;
+    private boolean retryOnIOException;
+    private boolean idempotent;
+    private int[] retryableCodes;
+
+    /**
+     * Creates a non-idempotent policy with a multiplier of 2, a jitter of 0.5,
+     * which retries on TPMIOExceptions and on the DEFAULT_RETRYABLE_CODES.
+     *
+     * @param maxRetries
+     * @param initialDelay -- in ms
+     * @param maxDelay -- in ms
+     */
+    public TPMRetryPolicy( int maxRetries, long initialDelay, long maxDelay )
+    {
+        this( maxRetries, initialDelay, maxDelay, 2.0, 0.5, true,
+            DEFAULT_RETRYABLE_CODES );
+    }
+
+    /**
+     * @param maxRetries -- number of times to retry (0 for no retries)
+     * @param initialDelay -- delay before the first retry (in ms)
+     * @param maxDelay -- maximum delay before a retry (in ms)
+     * @param multiplier -- factor by which the delay grows with each retry
+     * @param jitter -- maximum fraction of the delay to randomly take off (0 to 1)
+     * @param retryOnIOException -- whether to retry on TPMIOException
+     * @param retryableCodes -- TPM return codes on which to retry
+     */
+    public TPMRetryPolicy( int maxRetries, long initialDelay, long maxDelay,
+        double multiplier, double jitter, boolean retryOnIOException,
+        int... retryableCodes )
+    {
+        this( maxRetries, initialDelay, maxDelay, multiplier, jitter,
+            retryOnIOException, false, retryableCodes );
+    }
+
+    private TPMRetryPolicy( int maxRetries, long initialDelay, long maxDelay,
+        double multiplier, double jitter, boolean retryOnIOException,
+        boolean idempotent, int[] retryableCodes )
+    {
+        if ( (maxRetries < 0) || (initialDelay < 0) || (maxDelay < 0)
+            || (multiplier < 1) || (jitter < 0) || (jitter > 1) )
+        {
+            throw new IllegalArgumentException( "Bad retry policy parameters" );
+        }
+        this.maxRetries = maxRetries;
+        this.initialDelay = initialDelay;
+        this.maxDelay = Math.max( maxDelay, initialDelay );
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.retryOnIOException = retryOnIOException;
+        this.idempotent = idempotent;
+        this.retryableCodes = retryableCodes.clone();
+    }
+
+    public int getMaxRetries()
+    {
+        return this.maxRetries;
+    }
+
+    public long getInitialDelay()
+    {
+        return this.initialDelay;
+    }
+
+    public long getMaxDelay()
+    {
+        return this.maxDelay;
+    }
+
+    public double getMultiplier()
+    {
+        return this.multiplier;
+    }
+
+    public double getJitter()
+    {
+        return this.jitter;
+    }
+
+    public boolean isRetryOnIOException()
+    {
+        return this.retryOnIOException;
+    }
+
+    /**
+     * Returns true if commands using this policy can be sent again
+     * even if the TPM may already have executed them.
+     */
+    public boolean isIdempotent()
+    {
+        return this.idempotent;
+    }
+
+    /**
+     * Returns the maximum number of retries after a TPMIOException
+     * (0 if retryOnIOException is false, and at most 
+     * MAX_NON_IDEMPOTENT_IO_RETRIES if the policy is not idempotent).
+     */
+    public int getMaxIORetries()
+    {
+        if ( !this.retryOnIOException )
+        {
+            return 0;
+        }
+        return this.idempotent ? this.maxRetries : Math.min( this.maxRetries,
+            MAX_NON_IDEMPOTENT_IO_RETRIES );
+    }
+
+    public int[] getRetryableCodes()
+    {
+        return this.retryableCodes.clone();
+    }
+
+    public boolean isRetryable( int returnCode )
+    {
+        for ( int code : this.retryableCodes )
+        {
+            if ( code == returnCode )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the delay (in ms) before the given retry (starting from 1).
+     *
+     * @param retry
+     * @param random -- used for the jitter
+     * @return
+     */
+    public long getDelay( int retry, Random random )
+    {
+        double delay = this.initialDelay;
+        for ( int i = 1; (i < retry) && (delay < this.maxDelay); i++ )
+        {
+            delay *= this.multiplier;
+        }
+        delay = Math.min( delay, this.maxDelay );
+        delay -= delay * this.jitter * random.nextDouble();
+        return Math.round( delay );
+    }
+
+    public TPMRetryPolicy withMaxRetries( int maxRetries )
+    {
+        return new TPMRetryPolicy( maxRetries, this.initialDelay,
+            this.maxDelay, this.multiplier, this.jitter,
+            this.retryOnIOException, this.idempotent, this.retryableCodes );
+    }
+
+    public TPMRetryPolicy withDelays( long initialDelay, long maxDelay )
+    {
+        return new TPMRetryPolicy( this.maxRetries, initialDelay, maxDelay,
+            this.multiplier, this.jitter, this.retryOnIOException,
+            this.idempotent, this.retryableCodes );
+    }
+
+    public TPMRetryPolicy withRetryableCodes( int... retryableCodes )
+    {
+        return new TPMRetryPolicy( this.maxRetries, this.initialDelay,
+            this.maxDelay, this.multiplier, this.jitter,
+            this.retryOnIOException, this.idempotent, retryableCodes );
+    }
+
+    /**
+     * Returns a copy of this policy that is marked idempotent (or not),
+     * e.g., for an ordinal that only reads the TPM's state:
+     * <pre>
+     * driver.setRetryPolicy( TPMConsts.TPM_ORD_PcrRead,
+     *     driver.getRetryPolicy().withIdempotent( true ) );
+     * </pre>
+     */
+    public TPMRetryPolicy withIdempotent( boolean idempotent )
+    {
+        return new TPMRetryPolicy( this.maxRetries, this.initialDelay,
+            this.maxDelay, this.multiplier, this.jitter,
+            this.retryOnIOException, idempotent, this.retryableCodes );
+    }
+
+    public String toString()
+    {
+        return "TPMRetryPolicy(maxRetries=" + this.maxRetries
+            + ", delay=" + this.initialDelay + ".." + this.maxDelay
+            + " ms, multiplier=" + this.multiplier + ", jitter="
+            + this.jitter + ", idempotent=" + this.idempotent + ")";
+    }
+}
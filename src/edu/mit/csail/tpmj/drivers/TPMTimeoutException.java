@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers;
+
+import edu.mit.csail.tpmj.TPMIOException;
+import edu.mit.csail.tpmj.structs.ByteArrayTPMInputStruct;
+
+/**
+ * Thrown when the TPM does not respond to a command within
+ * the command's timeout.  (The driver closes the device, so that
+ * the next command starts afresh.)
+ * Since the TPM may still execute the command, this counts as
+ * an error after the command was sent (see isCommandSent()).
+ *
+ * @see TPMDurations
+ */
+public class TPMTimeoutException extends TPMIOException
+{
+    private long timeout;
+
+    /**
+     * @param inputBytes
+     * @param timeout -- in ms
+     */
+    public TPMTimeoutException( byte[] inputBytes, long timeout )
+    {
+        super( "TPM did not respond within " + timeout + " ms" );
+        this.input = new ByteArrayTPMInputStruct( inputBytes );
+        this.timeout = timeout;
+        this.setCommandSent( true );
+    }
+
+    /**
+     * Returns the timeout (in ms) that was exceeded.
+     */
+    public long getTimeout()
+    {
+        return this.timeout;
+    }
+}
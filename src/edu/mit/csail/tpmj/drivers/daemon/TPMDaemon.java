@@ -0,0 +1,772 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import bayanihan.util.params.SwitchParams;
+
+import edu.mit.csail.tpmj.TPMConsts;
+import edu.mit.csail.tpmj.TPMException;
+import edu.mit.csail.tpmj.commands.TPMCommand;
+import edu.mit.csail.tpmj.drivers.TPMDriver;
+import edu.mit.csail.tpmj.drivers.TPMDriverFactory;
+import edu.mit.csail.tpmj.drivers.TPMFramingException;
+import edu.mit.csail.tpmj.structs.ByteArrayTPMInputStruct;
+import edu.mit.csail.tpmj.structs.TPMIOStruct;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.FileUtil;
+import edu.mit.csail.tpmj.util.TPMToolsUtil;
+
+/**
+ * A long-running process that owns a TPM (e.g., /dev/tpm0, which can only
+ * be opened by one process at a time), and executes commands for
+ * many local clients (see TPMDaemonDriver).
+ * <p>
+ * Each client connects to a TCP port on the loopback interface, and can
+ * send several commands without waiting for their responses.  Commands
+ * are executed one at a time, taking turns between clients (round-robin),
+ * so that a client sending many commands cannot starve the others.
+ * Each client's commands are executed in the order they were sent.
+ * Each client has its own reader thread, so while the dispatcher
+ * thread is executing one command, the next commands are being read
+ * from the clients and queued, and the TPM does not wait on the network
+ * between commands.  Execution itself is serial: only one command is
+ * sent to the TPM at a time.
+ * <p>
+ * Any local process can connect to the port, so clients must prove that
+ * they can read the daemon's token file: when the daemon starts, it writes
+ * a random token to a file that only the user running the daemon can read
+ * (mode 0600), by default ~/.tpmj/daemon-<i>port</i>.token in that user's
+ * home directory, or the file named by the tpmj.daemon.tokenFile
+ * system property (which can be used, e.g., to let a group of users in).
+ * A client must send the token before anything else.
+ * The file is deleted when the daemon stops.
+ * <p>
+ * Protocol (all integers are big-endian):
+ * <ul>
+ * <li>A client first sends the TOKEN_SIZE bytes of the token.
+ * The daemon answers with a 4-byte status: STATUS_OK, or STATUS_BAD_TOKEN
+ * (after which it closes the connection).
+ * <li>A request is a 4-byte tag chosen by the client, followed by the
+ * command bytes (whose length is given by their paramSize).
+ * <li>A response is the request's tag, a 4-byte status, and then either
+ * the response bytes (if the status is STATUS_OK, even if the TPM
+ * returned an error code), or a message (in DataOutputStream.writeUTF()
+ * format) saying why the command could not be executed (STATUS_IO_ERROR).
+ * </ul>
+ * A client with maxPending commands waiting is not read from until
+ * one of them is done.
+ * <p>
+ * Note: Clients share the TPM's handles.  Sessions and keys that a client
+ * did not flush or evict are not cleaned up when it disconnects.
+ * <p>
+ * Usage: java [-Dtpmj.daemon.tokenFile=file] 
+ * edu.mit.csail.tpmj.drivers.daemon.TPMDaemon [/port n]
+ * [/maxPending n] [driver switches (see TPMToolsUtil.initDriverFromParams())]
+ */
+public class TPMDaemon
+{
+    public static final int DEFAULT_PORT = 6545;
+    public static final int DEFAULT_MAX_PENDING = 16;
+
+    /**
+     * System property naming the token file (for the daemon and its clients).
+     */
+    public static final String TOKEN_FILE_PROPERTY = "tpmj.daemon.tokenFile";
+    public static final int TOKEN_SIZE = 32;
+
+    // How long (in ms) a new client has to send the token
+    static final int HANDSHAKE_TIMEOUT = 5000;
+
+    // How long (in ms) to wait after accept() fails, before trying again
+    // (doubled after each failure in a row, up to the maximum)
+    static final long MIN_ACCEPT_BACKOFF = 10;
+    static final long MAX_ACCEPT_BACKOFF = 1000;
+
+    static final int STATUS_OK = 0;
+    static final int STATUS_IO_ERROR = 1;
+    static final int STATUS_BAD_TOKEN = 2;
+
+    private TPMDriver tpmDriver;
+    private ServerSocket serverSocket;
+    private int maxPending = DEFAULT_MAX_PENDING;
+    private File tokenFile;
+    private byte[] token;
+
+    // Guards readyClients and clients
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = this.lock.newCondition();
+
+    // Clients with commands waiting, in the order they get their turns
+    private LinkedList<Client> readyClients = new LinkedList<Client>();
+    private HashSet<Client> clients = new HashSet<Client>();
+
+    private volatile boolean running;
+    private Thread acceptor;
+    private Thread dispatcher;
+
+    // statistics
+    private AtomicLong numCommands = new AtomicLong();
+    private AtomicLong numConnections = new AtomicLong();
+
+    /**
+     * Creates a daemon listening on the given port of the loopback
+     * interface, with the default token file for that port.
+     * (Call start() to start it.)
+     *
+     * @param tpmDriver -- should be initialized
+     * @param port
+     * @throws IOException if the port cannot be bound,
+     *     or the token file cannot be written
+     */
+    public TPMDaemon( TPMDriver tpmDriver, int port ) throws IOException
+    {
+        this( tpmDriver, port, null );
+    }
+
+    /**
+     * Creates a daemon listening on the given port of the loopback
+     * interface, and writes a new token to the token file.
+     * (Call start() to start it.)
+     *
+     * @param tpmDriver -- should be initialized
+     * @param port -- 0 for any free port
+     * @param tokenFile -- null for getDefaultTokenFile() of the port
+     * @throws IOException if the port cannot be bound,
+     *     or the token file cannot be written
+     */
+    public TPMDaemon( TPMDriver tpmDriver, int port, File tokenFile )
+        throws IOException
+    {
+        this.tpmDriver = tpmDriver;
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress( true );
+        this.serverSocket.bind( new InetSocketAddress(
+            InetAddress.getByName( null ), port ) );
+
+        // (A separate generator, since CryptoUtil's may be seeded.)
+        this.token = new byte[TOKEN_SIZE];
+        new SecureRandom().nextBytes( this.token );
+        this.tokenFile = (tokenFile != null) ? tokenFile
+            : getDefaultTokenFile( this.getPort() );
+        try
+        {
+            FileUtil.writePrivateByteArray( this.tokenFile, this.token );
+        }
+        catch ( IOException e )
+        {
+            this.serverSocket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the file named by the tpmj.daemon.tokenFile property if it
+     * is set, and ~/.tpmj/daemon-<i>port</i>.token otherwise.
+     */
+    public static File getDefaultTokenFile( int port )
+    {
+        String fileName = System.getProperty( TOKEN_FILE_PROPERTY );
+        if ( fileName != null )
+        {
+            return new File( fileName );
+        }
+        return new File( new File( System.getProperty( "user.home" ), ".tpmj" ),
+            "daemon-" + port + ".token" );
+    }
+
+    public TPMDriver getTPMDriver()
+    {
+        return this.tpmDriver;
+    }
+
+    public int getPort()
+    {
+        return this.serverSocket.getLocalPort();
+    }
+
+    public File getTokenFile()
+    {
+        return this.tokenFile;
+    }
+
+    public int getMaxPending()
+    {
+        return this.maxPending;
+    }
+
+    /**
+     * Sets the number of commands that one client can have waiting
+     * at once.  (This only affects clients that connect later.)
+     */
+    public void setMaxPending( int maxPending )
+    {
+        if ( maxPending < 1 )
+        {
+            throw new IllegalArgumentException( "maxPending must be at least 1" );
+        }
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Returns the number of commands executed so far.
+     */
+    public long getNumCommands()
+    {
+        return this.numCommands.get();
+    }
+
+    /**
+     * Returns the number of connections accepted so far.
+     */
+    public long getNumConnections()
+    {
+        return this.numConnections.get();
+    }
+
+    /**
+     * Returns the number of clients connected now.
+     */
+    public int getNumClients()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.clients.size();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Starts accepting connections and executing commands.
+     */
+    public void start()
+    {
+        this.running = true;
+        this.dispatcher = new Thread( "TPMDaemon dispatcher" )
+        {
+            public void run()
+            {
+                TPMDaemon.this.dispatch();
+            }
+        };
+        this.acceptor = new Thread( "TPMDaemon acceptor" )
+        {
+            public void run()
+            {
+                TPMDaemon.this.accept();
+            }
+        };
+        this.dispatcher.start();
+        this.acceptor.start();
+    }
+
+    /**
+     * Stops accepting connections, deletes the token file,
+     * disconnects all clients, and waits for the command being executed
+     * (if any) to finish.  (This does not clean up the driver.)
+     */
+    public void stop()
+    {
+        this.running = false;
+        try
+        {
+            this.serverSocket.close();
+        }
+        catch ( IOException e )
+        {
+            // ignore
+        }
+        this.tokenFile.delete();
+
+        Client[] toClose;
+        this.lock.lock();
+        try
+        {
+            toClose = this.clients.toArray( new Client[this.clients.size()] );
+            this.ready.signalAll();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+        for ( Client client : toClose )
+        {
+            client.close();
+        }
+
+        try
+        {
+            if ( this.acceptor != null )
+            {
+                this.acceptor.join();
+            }
+            if ( this.dispatcher != null )
+            {
+                this.dispatcher.join();
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void accept()
+    {
+        long backoff = MIN_ACCEPT_BACKOFF;
+        while ( this.running )
+        {
+            Socket socket;
+            try
+            {
+                socket = this.serverSocket.accept();
+                backoff = MIN_ACCEPT_BACKOFF;
+            }
+            catch ( IOException e )
+            {
+                if ( !this.running || this.serverSocket.isClosed() )
+                {
+                    break;
+                }
+                // e.g., out of file descriptors, which will not go away
+                // at once, so wait instead of spinning
+                System.err.println( "TPMDaemon: accept failed: " + e );
+                try
+                {
+                    Thread.sleep( backoff );
+                }
+                catch ( InterruptedException e2 )
+                {
+                    break;
+                }
+                backoff = Math.min( backoff * 2, MAX_ACCEPT_BACKOFF );
+                continue;
+            }
+
+            try
+            {
+                socket.setTcpNoDelay( true );
+                final Client client = new Client( socket, this.maxPending );
+                this.lock.lock();
+                try
+                {
+                    if ( !this.running )
+                    {
+                        client.close();
+                        return;
+                    }
+                    this.clients.add( client );
+                }
+                finally
+                {
+                    this.lock.unlock();
+                }
+                this.numConnections.incrementAndGet();
+
+                Thread reader = new Thread( "TPMDaemon client "
+                    + socket.getPort() )
+                {
+                    public void run()
+                    {
+                        TPMDaemon.this.read( client );
+                    }
+                };
+                reader.setDaemon( true );
+                reader.start();
+            }
+            catch ( IOException e )
+            {
+                System.err.println( "TPMDaemon: cannot set up connection: " + e );
+                try
+                {
+                    socket.close();
+                }
+                catch ( IOException e2 )
+                {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the client's token, then reads the client's requests,
+     * and queues them until the client disconnects (or sends a bad command).
+     */
+    private void read( Client client )
+    {
+        try
+        {
+            if ( !this.checkToken( client ) )
+            {
+                return;
+            }
+            while ( true )
+            {
+                client.pending.acquire();
+                int tag = client.in.readInt();
+                byte[] command = readFramedCommand( client.in );
+                this.enqueue( new Request( client, tag, command ) );
+            }
+        }
+        catch ( EOFException e )
+        {
+            // client disconnected
+        }
+        catch ( InterruptedException e )
+        {
+            // stopping
+        }
+        catch ( IOException e )
+        {
+            if ( this.running && !client.closed )
+            {
+                System.err.println( "TPMDaemon: dropping client "
+                    + client.socket.getPort() + ": " + e );
+            }
+        }
+        finally
+        {
+            this.remove( client );
+            client.close();
+        }
+    }
+
+    /**
+     * Reads the token from a new client, and tells it whether
+     * it is right.
+     *
+     * @return true if the token is right
+     */
+    private boolean checkToken( Client client ) throws IOException
+    {
+        byte[] clientToken = new byte[TOKEN_SIZE];
+        client.socket.setSoTimeout( HANDSHAKE_TIMEOUT );
+        client.in.readFully( clientToken );
+        client.socket.setSoTimeout( 0 );
+
+        boolean ok = MessageDigest.isEqual( clientToken, this.token );
+        // (Nothing else is written to a client until its first command.)
+        client.out.writeInt( ok ? STATUS_OK : STATUS_BAD_TOKEN );
+        client.out.flush();
+        if ( !ok )
+        {
+            System.err.println( "TPMDaemon: rejecting client "
+                + client.socket.getPort() + ": wrong token" );
+        }
+        return ok;
+    }
+
+    /**
+     * Reads exactly one command from the stream: first the header,
+     * then exactly the number of bytes given by its paramSize.
+     *
+     * @throws TPMFramingException if the paramSize is out of range
+     */
+    private static byte[] readFramedCommand( DataInputStream in )
+        throws IOException
+    {
+        byte[] header = new byte[TPMCommand.BODY_OFFSET];
+        in.readFully( header );
+        int paramSize = ByteArrayUtil.readInt32BE( header,
+            TPMIOStruct.PARAMSIZE_OFFSET );
+        if ( (paramSize < header.length)
+            || (paramSize > TPMConsts.TPM_MAX_BUFF_SIZE) )
+        {
+            throw new TPMFramingException( "Bad command paramSize: "
+                + paramSize );
+        }
+        byte[] command = new byte[paramSize];
+        System.arraycopy( header, 0, command, 0, header.length );
+        in.readFully( command, header.length, paramSize - header.length );
+        return command;
+    }
+
+    private void enqueue( Request request )
+    {
+        Client client = request.client;
+        this.lock.lock();
+        try
+        {
+            client.queue.addLast( request );
+            if ( client.queue.size() == 1 )
+            {
+                this.readyClients.addLast( client );
+                this.ready.signal();
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    private void remove( Client client )
+    {
+        this.lock.lock();
+        try
+        {
+            this.clients.remove( client );
+            this.readyClients.remove( client );
+            client.queue.clear();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the next command, taking the first one from the client
+     * whose turn it is.  Returns null if the daemon is stopped.
+     */
+    private Request next() throws InterruptedException
+    {
+        this.lock.lock();
+        try
+        {
+            while ( this.running && this.readyClients.isEmpty() )
+            {
+                this.ready.await();
+            }
+            if ( !this.running )
+            {
+                return null;
+            }
+            Client client = this.readyClients.removeFirst();
+            Request request = client.queue.removeFirst();
+            if ( !client.queue.isEmpty() )
+            {
+                // to the end of the line
+                this.readyClients.addLast( client );
+            }
+            return request;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Executes the commands one at a time, and sends the responses back.
+     */
+    private void dispatch()
+    {
+        try
+        {
+            Request request;
+            while ( (request = this.next()) != null )
+            {
+                this.execute( request );
+            }
+        }
+        catch ( InterruptedException e )
+        {
+            // stopping
+        }
+    }
+
+    private void execute( Request request )
+    {
+        byte[] response = null;
+        String error = null;
+        try
+        {
+            // NOTE: This goes through transmitUnchecked() (rather than
+            // transmitBytes()) so that the driver's retries and timeouts
+            // are used.  The client gets any error code in the response.
+            response = this.tpmDriver.transmitUnchecked(
+                new ByteArrayTPMInputStruct( request.command ) ).toBytes();
+        }
+        catch ( TPMException e )
+        {
+            error = e.toString();
+        }
+        catch ( RuntimeException e )
+        {
+            error = e.toString();
+        }
+        this.numCommands.incrementAndGet();
+
+        Client client = request.client;
+        try
+        {
+            client.out.writeInt( request.tag );
+            if ( error == null )
+            {
+                client.out.writeInt( STATUS_OK );
+                client.out.write( response );
+            }
+            else
+            {
+                client.out.writeInt( STATUS_IO_ERROR );
+                client.out.writeUTF( error );
+            }
+            client.out.flush();
+        }
+        catch ( IOException e )
+        {
+            // The reader will find out, and remove the client.
+            client.close();
+        }
+        finally
+        {
+            client.pending.release();
+        }
+    }
+
+    /**
+     * A command from a client.
+     */
+    private static class Request
+    {
+        final Client client;
+        final int tag;
+        final byte[] command;
+
+        Request( Client client, int tag, byte[] command )
+        {
+            this.client = client;
+            this.tag = tag;
+            this.command = command;
+        }
+    }
+
+    /**
+     * A connected client.  (Its queue is guarded by the daemon's lock,
+     * and its output stream is only used by the dispatcher.)
+     */
+    private static class Client
+    {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        final Semaphore pending;
+        final LinkedList<Request> queue = new LinkedList<Request>();
+        volatile boolean closed;
+
+        Client( Socket socket, int maxPending ) throws IOException
+        {
+            this.socket = socket;
+            this.in = new DataInputStream( new BufferedInputStream(
+                socket.getInputStream() ) );
+            this.out = new DataOutputStream( new BufferedOutputStream(
+                socket.getOutputStream() ) );
+            this.pending = new Semaphore( maxPending );
+        }
+
+        void close()
+        {
+            this.closed = true;
+            try
+            {
+                this.socket.close();
+            }
+            catch ( IOException e )
+            {
+                // ignore
+            }
+        }
+    }
+
+    public static void usage()
+    {
+        System.out.println( "Usage: java [-Dtpmj.daemon.tokenFile=file] edu.mit.csail.tpmj.drivers.daemon.TPMDaemon\n"
+            + "       [/port n] [/maxPending n] [/persistent] [/framed] [/metrics] [/emulator] ... (see TPMToolsUtil)" );
+    }
+
+    public static void main( String[] args )
+    {
+        SwitchParams params = new SwitchParams( args );
+        if ( params.getBoolean( "help" ) )
+        {
+            usage();
+            return;
+        }
+
+        // The daemon must own the device itself.
+        System.clearProperty( TPMDriverFactory.DAEMON_PROPERTY );
+        final TPMDriver tpmDriver = TPMToolsUtil.initDriverFromParams( params );
+
+        final TPMDaemon daemon;
+        try
+        {
+            daemon = new TPMDaemon( tpmDriver, params.getInt( "port",
+                DEFAULT_PORT ) );
+            daemon.setMaxPending( params.getInt( "maxPending",
+                DEFAULT_MAX_PENDING ) );
+        }
+        catch ( IOException e )
+        {
+            System.err.println( "Cannot start TPMDaemon: " + e );
+            TPMToolsUtil.cleanupTPMDriver();
+            System.exit( 1 );
+            return;
+        }
+
+        Runtime.getRuntime().addShutdownHook( new Thread()
+        {
+            public void run()
+            {
+                daemon.stop();
+                TPMToolsUtil.cleanupTPMDriver();
+                System.out.println( "TPMDaemon stopped after "
+                    + daemon.getNumCommands() + " commands from "
+                    + daemon.getNumConnections() + " connections." );
+            }
+        } );
+        daemon.start();
+        System.out.println( "TPMDaemon listening on localhost:"
+            + daemon.getPort() + " (" + tpmDriver + "), token in "
+            + daemon.getTokenFile() );
+    }
+}
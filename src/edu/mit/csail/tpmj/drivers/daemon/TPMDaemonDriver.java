@@ -0,0 +1,460 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers.daemon;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.mit.csail.tpmj.TPMIOException;
+import edu.mit.csail.tpmj.drivers.BasicTPMDriver;
+import edu.mit.csail.tpmj.util.FileUtil;
+
+/**
+ * TPMDriver for a TPM owned by a TPMDaemon running on the same machine,
+ * so that many processes can use one TPM at the same time.
+ * <p>
+ * All commands are sent over one connection, which is opened when
+ * the first command is sent.  Commands from different threads are not
+ * sent one at a time: each thread sends its command as soon as it can,
+ * and a reader thread hands each response to the thread waiting for it.
+ * If the connection fails, the commands waiting for responses fail with
+ * a TPMIOException (and are retried as usual), and a new connection
+ * is opened for the next command.
+ * <p>
+ * Each new connection starts by sending the daemon's token, which is
+ * read from the token file (by default, TPMDaemon.getDefaultTokenFile()
+ * of the port, so the process must be able to read the file the daemon
+ * wrote).  If the daemon rejects it, the command fails with
+ * a TPMIOException.
+ *
+ * @see TPMDaemon
+ */
+public class TPMDaemonDriver extends BasicTPMDriver
+{
+    public static final String DEFAULT_HOST = "localhost";
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+    private String host;
+    private int port;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private volatile long responseTimeout = 0;
+    private volatile File tokenFile = null;
+
+    // Guards connection (and is held while opening one)
+    private final ReentrantLock connectionLock = new ReentrantLock();
+    private Connection connection;
+
+    private AtomicInteger nextTag = new AtomicInteger();
+
+    public TPMDaemonDriver()
+    {
+        this( DEFAULT_HOST, TPMDaemon.DEFAULT_PORT );
+    }
+
+    public TPMDaemonDriver( String host, int port )
+    {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Creates a driver from a "host:port" string (or just "host",
+     * in which case TPMDaemon.DEFAULT_PORT is used).
+     */
+    public static TPMDaemonDriver fromAddress( String address )
+    {
+        int colon = address.lastIndexOf( ':' );
+        if ( colon < 0 )
+        {
+            return new TPMDaemonDriver( (address.length() == 0) ? DEFAULT_HOST
+                : address, TPMDaemon.DEFAULT_PORT );
+        }
+        String host = address.substring( 0, colon );
+        int port = Integer.parseInt( address.substring( colon + 1 ) );
+        return new TPMDaemonDriver( (host.length() == 0) ? DEFAULT_HOST : host,
+            port );
+    }
+
+    public String getHost()
+    {
+        return this.host;
+    }
+
+    public int getPort()
+    {
+        return this.port;
+    }
+
+    @Override
+    protected String getProfileKey()
+    {
+        return "daemon:" + this.host + ":" + this.port;
+    }
+
+    /**
+     * Returns the file the token is read from.
+     */
+    public File getTokenFile()
+    {
+        File f = this.tokenFile;
+        return (f != null) ? f : TPMDaemon.getDefaultTokenFile( this.port );
+    }
+
+    /**
+     * Sets the file the token is read from (when a connection is opened).
+     * null means TPMDaemon.getDefaultTokenFile() of the port.
+     */
+    public void setTokenFile( File tokenFile )
+    {
+        this.tokenFile = tokenFile;
+    }
+
+    public int getConnectTimeout()
+    {
+        return this.connectTimeout;
+    }
+
+    /**
+     * Sets the timeout (in ms) for opening a connection.
+     */
+    public void setConnectTimeout( int connectTimeout )
+    {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public long getResponseTimeout()
+    {
+        return this.responseTimeout;
+    }
+
+    /**
+     * Sets how long (in ms) to wait for a response, including the time
+     * the command waits in the daemon's queue.  (0 means wait forever.)
+     */
+    public void setResponseTimeout( long responseTimeout )
+    {
+        this.responseTimeout = responseTimeout;
+    }
+
+    /**
+     * This does not hold the lock, so that commands from several threads
+     * can be waiting in the daemon at once.
+     */
+    public byte[] transmitBytes( byte[] inputBytes ) throws TPMIOException
+    {
+        Connection conn;
+        try
+        {
+            conn = this.getConnection();
+        }
+        catch ( IOException e )
+        {
+            throw new TPMIOException( inputBytes, e );
+        }
+
+        int tag = this.nextTag.incrementAndGet();
+        Pending pending = new Pending();
+        conn.pending.put( tag, pending );
+        try
+        {
+            conn.send( tag, inputBytes );
+        }
+        catch ( IOException e )
+        {
+            conn.pending.remove( tag );
+            conn.close( e );
+            throw new TPMIOException( inputBytes, e );
+        }
+        try
+        {
+            return pending.await( this.responseTimeout );
+        }
+        catch ( IOException e )
+        {
+            // (If the response still comes, it is ignored.)
+            conn.pending.remove( tag );
+            TPMIOException ioe = new TPMIOException( inputBytes, e );
+            ioe.setCommandSent( true );
+            throw ioe;
+        }
+    }
+
+    /**
+     * Closes the connection.  (Commands waiting for responses fail.)
+     */
+    @Override
+    public void cleanup()
+    {
+        this.shutdownDispatcher();
+        this.connectionLock.lock();
+        try
+        {
+            if ( this.connection != null )
+            {
+                this.connection.close( new IOException( "Driver cleaned up" ) );
+                this.connection = null;
+            }
+        }
+        finally
+        {
+            this.connectionLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the open connection, or opens a new one if there is none
+     * (or it has failed).
+     */
+    private Connection getConnection() throws IOException
+    {
+        this.connectionLock.lock();
+        try
+        {
+            if ( (this.connection == null) || this.connection.closed )
+            {
+                this.connection = new Connection( this.host, this.port,
+                    this.connectTimeout, this.readToken() );
+                this.connection.startReader();
+            }
+            return this.connection;
+        }
+        finally
+        {
+            this.connectionLock.unlock();
+        }
+    }
+
+    private byte[] readToken() throws IOException
+    {
+        File f = this.getTokenFile();
+        byte[] token = FileUtil.readIntoByteArray( f.getPath() );
+        if ( token.length != TPMDaemon.TOKEN_SIZE )
+        {
+            throw new IOException( "Bad TPMDaemon token file " + f );
+        }
+        return token;
+    }
+
+    /**
+     * A command waiting for its response.
+     */
+    private static class Pending
+    {
+        private final CountDownLatch done = new CountDownLatch( 1 );
+        private byte[] outputBytes;
+        private IOException exception;
+
+        void complete( byte[] outputBytes, IOException exception )
+        {
+            this.outputBytes = outputBytes;
+            this.exception = exception;
+            this.done.countDown();
+        }
+
+        byte[] await( long timeout ) throws IOException
+        {
+            try
+            {
+                if ( timeout <= 0 )
+                {
+                    this.done.await();
+                }
+                else if ( !this.done.await( timeout, TimeUnit.MILLISECONDS ) )
+                {
+                    throw new SocketTimeoutException( "No response from TPMDaemon after "
+                        + timeout + " ms" );
+                }
+            }
+            catch ( InterruptedException e )
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                    "Interrupted while waiting for TPMDaemon" );
+            }
+            if ( this.exception != null )
+            {
+                throw this.exception;
+            }
+            return this.outputBytes;
+        }
+    }
+
+    /**
+     * An open connection to the daemon, with the commands
+     * waiting for responses on it.
+     */
+    private static class Connection
+    {
+        final Socket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        final ConcurrentHashMap<Integer, Pending> pending = new ConcurrentHashMap<Integer, Pending>();
+        final ReentrantLock writeLock = new ReentrantLock();
+        volatile boolean closed;
+
+        /**
+         * Connects, and sends the token.
+         *
+         * @throws IOException if the daemon rejects the token
+         */
+        Connection( String host, int port, int connectTimeout, byte[] token )
+            throws IOException
+        {
+            this.socket = new Socket();
+            try
+            {
+                this.socket.setTcpNoDelay( true );
+                this.socket.connect( new InetSocketAddress( host, port ),
+                    connectTimeout );
+                this.in = new DataInputStream( new BufferedInputStream(
+                    this.socket.getInputStream() ) );
+                this.out = new DataOutputStream( new BufferedOutputStream(
+                    this.socket.getOutputStream() ) );
+
+                this.out.write( token );
+                this.out.flush();
+                this.socket.setSoTimeout( TPMDaemon.HANDSHAKE_TIMEOUT );
+                if ( this.in.readInt() != TPMDaemon.STATUS_OK )
+                {
+                    throw new IOException( "TPMDaemon rejected the token" );
+                }
+                this.socket.setSoTimeout( 0 );
+            }
+            catch ( IOException e )
+            {
+                this.socket.close();
+                throw e;
+            }
+        }
+
+        void startReader()
+        {
+            Thread reader = new Thread( "TPMDaemonDriver reader" )
+            {
+                public void run()
+                {
+                    Connection.this.read();
+                }
+            };
+            reader.setDaemon( true );
+            reader.start();
+        }
+
+        void send( int tag, byte[] inputBytes ) throws IOException
+        {
+            this.writeLock.lock();
+            try
+            {
+                if ( this.closed )
+                {
+                    throw new IOException( "Connection to TPMDaemon closed" );
+                }
+                this.out.writeInt( tag );
+                this.out.write( inputBytes );
+                this.out.flush();
+            }
+            finally
+            {
+                this.writeLock.unlock();
+            }
+        }
+
+        /**
+         * Reads responses and hands them to the waiting commands
+         * until the connection fails.
+         */
+        void read()
+        {
+            try
+            {
+                while ( true )
+                {
+                    int tag = this.in.readInt();
+                    int status = this.in.readInt();
+                    byte[] outputBytes = null;
+                    IOException exception = null;
+                    if ( status == TPMDaemon.STATUS_OK )
+                    {
+                        outputBytes = BasicTPMDriver.readFramedResponse( this.in );
+                    }
+                    else
+                    {
+                        exception = new IOException( "TPMDaemon: "
+                            + this.in.readUTF() );
+                    }
+                    Pending p = this.pending.remove( tag );
+                    if ( p != null )
+                    {
+                        p.complete( outputBytes, exception );
+                    }
+                }
+            }
+            catch ( IOException e )
+            {
+                this.close( e );
+            }
+        }
+
+        /**
+         * Closes the connection, and fails the commands waiting on it.
+         */
+        void close( IOException cause )
+        {
+            this.closed = true;
+            try
+            {
+                this.socket.close();
+            }
+            catch ( IOException e )
+            {
+                // ignore
+            }
+            for ( Integer tag : this.pending.keySet() )
+            {
+                Pending p = this.pending.remove( tag );
+                if ( p != null )
+                {
+                    p.complete( null, cause );
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,2277 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers.emulator;
+
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.RSAKeyGenParameterSpec;
+import java.security.spec.RSAPrivateCrtKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import edu.mit.csail.tpmj.TPMConsts;
+import edu.mit.csail.tpmj.commands.TPMCommand;
+import edu.mit.csail.tpmj.drivers.TPMDurations;
+import edu.mit.csail.tpmj.funcs.TPMNVFuncs;
+import edu.mit.csail.tpmj.structs.ByteArrayTPMOutputStruct;
+import edu.mit.csail.tpmj.structs.TPMAuthInData;
+import edu.mit.csail.tpmj.structs.TPMAuthOutData;
+import edu.mit.csail.tpmj.structs.TPMIOStruct;
+import edu.mit.csail.tpmj.structs.TPMOutputStruct;
+import edu.mit.csail.tpmj.structs.TPM_CAP_VERSION_INFO;
+import edu.mit.csail.tpmj.structs.TPM_COUNTER_VALUE;
+import edu.mit.csail.tpmj.structs.TPM_CURRENT_TICKS;
+import edu.mit.csail.tpmj.structs.TPM_DIGEST;
+import edu.mit.csail.tpmj.structs.TPM_KEY;
+import edu.mit.csail.tpmj.structs.TPM_KEY_PARMS;
+import edu.mit.csail.tpmj.structs.TPM_KEY_PARMS_Data;
+import edu.mit.csail.tpmj.structs.TPM_NONCE;
+import edu.mit.csail.tpmj.structs.TPM_PCRVALUE;
+import edu.mit.csail.tpmj.structs.TPM_PCR_COMPOSITE;
+import edu.mit.csail.tpmj.structs.TPM_PCR_INFO;
+import edu.mit.csail.tpmj.structs.TPM_PCR_SELECTION;
+import edu.mit.csail.tpmj.structs.TPM_PUBKEY;
+import edu.mit.csail.tpmj.structs.TPM_QUOTE_INFO;
+import edu.mit.csail.tpmj.structs.TPM_RESULT;
+import edu.mit.csail.tpmj.structs.TPM_RSA_KEY_PARMS;
+import edu.mit.csail.tpmj.structs.TPM_SECRET;
+import edu.mit.csail.tpmj.structs.TPM_SIGN_INFO;
+import edu.mit.csail.tpmj.structs.TPM_STORED_DATA;
+import edu.mit.csail.tpmj.structs.TPM_STORE_ASYMKEY;
+import edu.mit.csail.tpmj.structs.TPM_STORE_PRIVKEY;
+import edu.mit.csail.tpmj.structs.TPM_STORE_PUBKEY;
+import edu.mit.csail.tpmj.structs.TPM_STRUCT_VER;
+import edu.mit.csail.tpmj.structs.TPM_TRANSPORT_LOG_IN;
+import edu.mit.csail.tpmj.structs.TPM_TRANSPORT_LOG_OUT;
+import edu.mit.csail.tpmj.structs.TPM_TRANSPORT_PUBLIC;
+import edu.mit.csail.tpmj.structs.TPM_VERSION;
+import edu.mit.csail.tpmj.transport.TPMTransportSession;
+import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.ByteArrayable;
+import edu.mit.csail.tpmj.util.CryptoUtil;
+import edu.mit.csail.tpmj.util.Debug;
+
+/**
+ * A TPM 1.2 emulated in memory, in pure Java.  It takes raw
+ * command bytes and returns raw response bytes, and implements
+ * the commands that TPM/J itself issues: OIAP/OSAP sessions, PCRs
+ * (PCRRead, Extend, PCR_Reset, Quote), keys (CreateWrapKey, LoadKey2,
+ * LoadKey, GetPubKey, OwnerReadInternalPub, Sign, UnBind, EvictKey,
+ * FlushSpecific), Seal/Unseal, monotonic counters, (unencrypted)
+ * transport sessions, NV_ReadValue, DirRead/DirWriteAuth and
+ * GetCapability.
+ * <p>
+ * The emulated TPM starts out owned, with the owner and SRK secrets
+ * given to the constructor (all zeros by default), and with a freshly
+ * generated 2048-bit SRK.  Keys, sessions, PCRs and counters are
+ * only kept in memory, so everything is lost when the object is
+ * garbage collected.
+ * <p>
+ * Commands are executed one at a time, as on a real TPM, so one
+ * instance can be shared by any number of threads and drivers.
+ * To model a real chip, each command can be made to take at least
+ * a given time (see setLatency() and setDurations()).
+ * <p>
+ * This is meant for testing and benchmarking the library, not for
+ * security.  Some things are simplified: PCR info in keys is not
+ * enforced, locality is always 0, encrypted transport sessions
+ * and context saving are not supported, and TPM_SS_RSASSAPKCS1v15_INFO
+ * signing is not supported.
+ */
+public class SoftwareTPM
+{
+    /**
+     * Manufacturer ID reported by TPM_CAP_PROP_MANUFACTURER ("TPMJ").
+     */
+    public static final int MANUFACTURER_ID = 0x54504D4A;
+
+    public static final int NUM_PCRS = 24;
+    public static final int DEFAULT_MAX_KEYS = 10;
+    public static final int DEFAULT_MAX_AUTH_SESSIONS = 16;
+    public static final int DEFAULT_MAX_TRANS_SESSIONS = 4;
+    public static final int DEFAULT_MAX_COUNTERS = 8;
+    public static final int SRK_KEY_LENGTH = 2048;
+
+    // Handles given out by the emulator
+    private static final int KEY_HANDLE_BASE = 0x01000000;
+    private static final int AUTH_HANDLE_BASE = 0x02000000;
+    private static final int TRANS_HANDLE_BASE = 0x03000000;
+    private static final int HANDLE_MASK = 0x00FFFFFF;
+
+    private static final BigInteger DEFAULT_EXPONENT = BigInteger.valueOf( 65537 );
+
+    // DigestInfo prefix for a SHA-1 hash in a PKCS#1 v1.5 signature
+    private static final byte[] SHA1_DIGEST_INFO = { 0x30, 0x21, 0x30, 0x09,
+        0x06, 0x05, 0x2B, 0x0E, 0x03, 0x02, 0x1A, 0x05, 0x00, 0x04, 0x14 };
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // Held while executing a command (including its latency),
+    // and while changing the configuration.  (This is used instead of
+    // the monitor, so that threads waiting for the TPM do not pin the
+    // carrier threads of virtual threads.)
+    private final ReentrantLock lock = new ReentrantLock( true );
+
+    private SecureRandom random = new SecureRandom();
+    private MessageDigest sha1;
+    private Mac hmac;
+
+    private byte[] ownerAuth;
+    private byte[] tpmProof;
+    private LoadedKey srk;
+
+    private byte[][] pcrs = new byte[NUM_PCRS][20];
+    private byte[] dir = new byte[20];
+    private Map<Integer, byte[]> nvAreas = new TreeMap<Integer, byte[]>();
+
+    private Map<Integer, LoadedKey> keys = new LinkedHashMap<Integer, LoadedKey>();
+    private Map<Integer, Session> sessions = new LinkedHashMap<Integer, Session>();
+    private Map<Integer, Counter> counters = new LinkedHashMap<Integer, Counter>();
+    private int nextKeyHandle = 1;
+    private int nextAuthHandle = 1;
+    private int nextTransHandle = 1;
+    private int nextCountID = 1;
+    private int activeCounter = 0;
+    private int maxCounterValue = 0;
+
+    private int maxKeys = DEFAULT_MAX_KEYS;
+    private int maxAuthSessions = DEFAULT_MAX_AUTH_SESSIONS;
+    private int maxTransSessions = DEFAULT_MAX_TRANS_SESSIONS;
+    private int maxCounters = DEFAULT_MAX_COUNTERS;
+
+    private long startNanos = System.nanoTime();
+    private byte[] tickNonce;
+
+    // Latency model (in microseconds)
+    private Map<Integer, Long> latencies = new HashMap<Integer, Long>();
+    private long defaultLatency = 0;
+    private long[] durations = new long[3];
+
+    private long commandCount = 0;
+
+    /**
+     * Creates a software TPM whose owner and SRK secrets
+     * are both the well-known (all zeros) secret.
+     */
+    public SoftwareTPM()
+    {
+        this( TPM_SECRET.NULL, TPM_SECRET.NULL );
+    }
+
+    public SoftwareTPM( TPM_SECRET ownerAuth, TPM_SECRET srkAuth )
+    {
+        try
+        {
+            this.sha1 = MessageDigest.getInstance( "SHA-1" );
+            this.hmac = Mac.getInstance( "HmacSHA1" );
+        }
+        catch ( GeneralSecurityException e )
+        {
+            throw new IllegalStateException( "SHA-1 not available: " + e );
+        }
+
+        this.ownerAuth = ownerAuth.toBytes();
+        this.tpmProof = this.randomBytes( 20 );
+        this.tickNonce = this.randomBytes( 20 );
+
+        // Create the SRK
+        try
+        {
+            TPM_KEY srkKey = new TPM_KEY( TPM_STRUCT_VER.TPM_1_1_VER,
+                TPMConsts.TPM_KEY_STORAGE, 0, TPMConsts.TPM_AUTH_ALWAYS,
+                new TPM_KEY_PARMS( TPMConsts.TPM_ALG_RSA,
+                    TPMConsts.TPM_ES_RSAESOAEP_SHA1_MGF1, TPMConsts.TPM_SS_NONE,
+                    new TPM_RSA_KEY_PARMS( SRK_KEY_LENGTH, 2, EMPTY ) ),
+                EMPTY, new TPM_STORE_PUBKEY( EMPTY ), EMPTY );
+            KeyPair pair = this.generateKeyPair( SRK_KEY_LENGTH,
+                DEFAULT_EXPONENT );
+            RSAPrivateCrtKey priv = (RSAPrivateCrtKey) pair.getPrivate();
+            srkKey.setPubKey( new TPM_STORE_PUBKEY(
+                CryptoUtil.getBytesFromUnsignedBigInt( priv.getModulus(),
+                    SRK_KEY_LENGTH / 8 ) ) );
+            this.srk = new LoadedKey( srkKey, srkAuth.toBytes(), priv );
+        }
+        catch ( CommandFailure e )
+        {
+            throw new IllegalStateException( "Could not generate SRK" );
+        }
+
+        this.nvAreas.put( TPMNVFuncs.TPM_NV_INDEX_DIR, this.dir );
+    }
+
+    // Configuration
+
+    public int getMaxKeys()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.maxKeys;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Sets how many keys (not counting the SRK) can be loaded at once.
+     * Loading more returns TPM_NOSPACE.
+     */
+    public void setMaxKeys( int maxKeys )
+    {
+        this.lock.lock();
+        try
+        {
+            this.maxKeys = maxKeys;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public int getMaxAuthSessions()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.maxAuthSessions;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Sets how many OIAP/OSAP sessions can be open at once.
+     * Opening more returns TPM_RESOURCES.
+     */
+    public void setMaxAuthSessions( int maxAuthSessions )
+    {
+        this.lock.lock();
+        try
+        {
+            this.maxAuthSessions = maxAuthSessions;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public int getMaxTransSessions()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.maxTransSessions;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public void setMaxTransSessions( int maxTransSessions )
+    {
+        this.lock.lock();
+        try
+        {
+            this.maxTransSessions = maxTransSessions;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public int getMaxCounters()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.maxCounters;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public void setMaxCounters( int maxCounters )
+    {
+        this.lock.lock();
+        try
+        {
+            this.maxCounters = maxCounters;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Defines (or redefines) an NV area that can be read
+     * with TPM_NV_ReadValue.  (TPM_NV_INDEX_DIR is predefined,
+     * and is the same as the DIR register.)
+     */
+    public void defineNVSpace( int nvIndex, byte[] data )
+    {
+        this.lock.lock();
+        try
+        {
+            this.nvAreas.put( nvIndex, data.clone() );
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the minimum time (in microseconds) that commands
+     * with the given ordinal take.
+     */
+    public void setLatency( int ordinal, long micros )
+    {
+        this.lock.lock();
+        try
+        {
+            this.latencies.put( ordinal, micros );
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the minimum time (in microseconds) taken by commands
+     * whose latency has not been set individually.
+     */
+    public void setDefaultLatency( long micros )
+    {
+        this.lock.lock();
+        try
+        {
+            this.defaultLatency = micros;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public long getLatency( int ordinal )
+    {
+        this.lock.lock();
+        try
+        {
+            Long latency = this.latencies.get( ordinal );
+            return (latency == null) ? this.defaultLatency : latency.longValue();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the latencies of all supported commands the way a real
+     * TPM classifies them (see TPMDurations): key generation 
+     * takes longMicros, other RSA private key operations take
+     * mediumMicros, and everything else takes shortMicros.
+     * These are also returned by TPM_CAP_PROP_DURATION.
+     */
+    public void setDurations( long shortMicros, long mediumMicros,
+        long longMicros )
+    {
+        this.lock.lock();
+        try
+        {
+            this.durations = new long[] { shortMicros, mediumMicros, longMicros };
+            for ( int ordinal : SUPPORTED_ORDINALS )
+            {
+                this.setLatency( ordinal,
+                    this.durations[TPMDurations.getDurationClass( ordinal )] );
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of commands executed so far
+     * (not counting those wrapped in transport sessions).
+     */
+    public long getCommandCount()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.commandCount;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public int getNumLoadedKeys()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.keys.size();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public int getNumOpenSessions()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.sessions.size();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    // Command execution
+
+    /**
+     * Executes one command and returns the response.
+     * Never throws an exception on bad input; errors are
+     * reported in the response's return code, like a real TPM.
+     */
+    public byte[] execute( byte[] command )
+    {
+        this.lock.lock();
+        try
+        {
+            long start = System.nanoTime();
+            int ordinal = (command.length >= TPMCommand.BODY_OFFSET) ? ByteArrayUtil.readInt32BE(
+                command, TPMCommand.ORDINAL_OFFSET )
+                : 0;
+
+            byte[] response = this.dispatch( command, false );
+            this.commandCount++;
+
+            long latency = this.getLatency( ordinal );
+            if ( latency > 0 )
+            {
+                waitUntil( start + (latency * 1000) );
+            }
+            return response;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Parks the current thread until System.nanoTime() reaches deadline.
+     * This is done while holding the lock, since a real TPM
+     * can only execute one command at a time.
+     */
+    private static void waitUntil( long deadline )
+    {
+        boolean interrupted = false;
+        long remaining;
+        while ( (remaining = deadline - System.nanoTime()) > 0 )
+        {
+            LockSupport.parkNanos( remaining );
+            if ( Thread.interrupted() )
+            {
+                interrupted = true;
+            }
+        }
+        if ( interrupted )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private byte[] dispatch( byte[] command, boolean wrapped )
+    {
+        Request req;
+        try
+        {
+            req = new Request( command );
+        }
+        catch ( CommandFailure e )
+        {
+            return errorResponse( e.returnCode );
+        }
+
+        try
+        {
+            Reply reply = this.executeRequest( req, wrapped );
+            return this.buildResponse( req, reply );
+        }
+        catch ( CommandFailure e )
+        {
+            this.terminateSessions( req );
+            return errorResponse( e.returnCode );
+        }
+        catch ( RuntimeException e )
+        {
+            // Most likely a malformed struct in the command
+            Debug.println( "SoftwareTPM: exception executing command: " + e );
+            this.terminateSessions( req );
+            return errorResponse( TPM_RESULT.TPM_BAD_PARAMETER );
+        }
+    }
+
+    private Reply executeRequest( Request req, boolean wrapped )
+        throws CommandFailure
+    {
+        switch ( req.ordinal )
+        {
+            case TPMConsts.TPM_ORD_OIAP:
+                return this.doOIAP( req );
+            case TPMConsts.TPM_ORD_OSAP:
+                return this.doOSAP( req );
+            case TPMConsts.TPM_ORD_Terminate_Handle:
+                return this.doTerminateHandle( req );
+            case TPMConsts.TPM_ORD_FlushSpecific:
+                return this.doFlushSpecific( req );
+            case TPMConsts.TPM_ORD_EvictKey:
+                return this.doEvictKey( req );
+            case TPMConsts.TPM_ORD_GetCapability:
+                return this.doGetCapability( req );
+            case TPMConsts.TPM_ORD_GetRandom:
+                return this.doGetRandom( req );
+            case TPMConsts.TPM_ORD_Reset:
+                return this.doReset( req );
+            case TPMConsts.TPM_ORD_ContinueSelfTest:
+            case TPMConsts.TPM_ORD_SelfTestFull:
+                req.requireAuths( 0 );
+                return new Reply( EMPTY );
+            case TPMConsts.TPM_ORD_PcrRead:
+                return this.doPCRRead( req );
+            case TPMConsts.TPM_ORD_Extend:
+                return this.doExtend( req );
+            case TPMConsts.TPM_ORD_PCR_Reset:
+                return this.doPCRReset( req );
+            case TPMConsts.TPM_ORD_Quote:
+                return this.doQuote( req );
+            case TPMConsts.TPM_ORD_CreateWrapKey:
+                return this.doCreateWrapKey( req );
+            case TPMConsts.TPM_ORD_LoadKey:
+            case TPMConsts.TPM_ORD_LoadKey2:
+                return this.doLoadKey( req );
+            case TPMConsts.TPM_ORD_GetPubKey:
+                return this.doGetPubKey( req );
+            case TPMConsts.TPM_ORD_OwnerReadInternalPub:
+                return this.doOwnerReadInternalPub( req );
+            case TPMConsts.TPM_ORD_Sign:
+                return this.doSign( req );
+            case TPMConsts.TPM_ORD_UnBind:
+                return this.doUnBind( req );
+            case TPMConsts.TPM_ORD_Seal:
+                return this.doSeal( req );
+            case TPMConsts.TPM_ORD_Unseal:
+                return this.doUnseal( req );
+            case TPMConsts.TPM_ORD_CreateCounter:
+                return this.doCreateCounter( req );
+            case TPMConsts.TPM_ORD_IncrementCounter:
+            case TPMConsts.TPM_ORD_ReadCounter:
+                return this.doReadOrIncrementCounter( req );
+            case TPMConsts.TPM_ORD_ReleaseCounter:
+            case TPMConsts.TPM_ORD_ReleaseCounterOwner:
+                return this.doReleaseCounter( req );
+            case TPMConsts.TPM_ORD_NV_ReadValue:
+                return this.doNVReadValue( req );
+            case TPMConsts.TPM_ORD_DirRead:
+                return this.doDirRead( req );
+            case TPMConsts.TPM_ORD_DirWriteAuth:
+                return this.doDirWriteAuth( req );
+            case TPMConsts.TPM_ORD_EstablishTransport:
+            case TPMConsts.TPM_ORD_ExecuteTransport:
+            case TPMConsts.TPM_ORD_ReleaseTransportSigned:
+                if ( wrapped )
+                {
+                    throw new CommandFailure( TPM_RESULT.TPM_NO_WRAP_TRANSPORT );
+                }
+                if ( req.ordinal == TPMConsts.TPM_ORD_EstablishTransport )
+                {
+                    return this.doEstablishTransport( req );
+                }
+                else if ( req.ordinal == TPMConsts.TPM_ORD_ExecuteTransport )
+                {
+                    return this.doExecuteTransport( req );
+                }
+                else
+                {
+                    return this.doReleaseTransportSigned( req );
+                }
+            default:
+                throw new CommandFailure( TPM_RESULT.TPM_BAD_ORDINAL );
+        }
+    }
+
+    private static final int[] SUPPORTED_ORDINALS = {
+        TPMConsts.TPM_ORD_OIAP, TPMConsts.TPM_ORD_OSAP,
+        TPMConsts.TPM_ORD_Terminate_Handle, TPMConsts.TPM_ORD_FlushSpecific,
+        TPMConsts.TPM_ORD_EvictKey, TPMConsts.TPM_ORD_GetCapability,
+        TPMConsts.TPM_ORD_GetRandom, TPMConsts.TPM_ORD_Reset,
+        TPMConsts.TPM_ORD_ContinueSelfTest, TPMConsts.TPM_ORD_SelfTestFull,
+        TPMConsts.TPM_ORD_PcrRead, TPMConsts.TPM_ORD_Extend,
+        TPMConsts.TPM_ORD_PCR_Reset, TPMConsts.TPM_ORD_Quote,
+        TPMConsts.TPM_ORD_CreateWrapKey, TPMConsts.TPM_ORD_LoadKey,
+        TPMConsts.TPM_ORD_LoadKey2, TPMConsts.TPM_ORD_GetPubKey,
+        TPMConsts.TPM_ORD_OwnerReadInternalPub, TPMConsts.TPM_ORD_Sign,
+        TPMConsts.TPM_ORD_UnBind, TPMConsts.TPM_ORD_Seal,
+        TPMConsts.TPM_ORD_Unseal, TPMConsts.TPM_ORD_CreateCounter,
+        TPMConsts.TPM_ORD_IncrementCounter, TPMConsts.TPM_ORD_ReadCounter,
+        TPMConsts.TPM_ORD_ReleaseCounter,
+        TPMConsts.TPM_ORD_ReleaseCounterOwner,
+        TPMConsts.TPM_ORD_NV_ReadValue, TPMConsts.TPM_ORD_DirRead,
+        TPMConsts.TPM_ORD_DirWriteAuth, TPMConsts.TPM_ORD_EstablishTransport,
+        TPMConsts.TPM_ORD_ExecuteTransport,
+        TPMConsts.TPM_ORD_ReleaseTransportSigned };
+
+    private static boolean isSupported( int ordinal )
+    {
+        for ( int o : SUPPORTED_ORDINALS )
+        {
+            if ( o == ordinal )
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Sessions
+
+    private Reply doOIAP( Request req ) throws CommandFailure
+    {
+        req.requireAuths( 0 );
+        Session s = this.newAuthSession( Session.OIAP );
+        return new Reply( ByteArrayUtil.buildBuf( s.handle, s.nonceEven ) );
+    }
+
+    private Reply doOSAP( Request req ) throws CommandFailure
+    {
+        req.requireAuths( 0 );
+        short entityType = req.readShort();
+        int entityValue = req.readInt();
+        byte[] nonceOddOSAP = req.readBytes( 20 );
+
+        byte[] entitySecret;
+        switch ( entityType )
+        {
+            case TPMConsts.TPM_ET_OWNER:
+                entitySecret = this.ownerAuth;
+                break;
+            case TPMConsts.TPM_ET_KEYHANDLE:
+            case TPMConsts.TPM_ET_SRK:
+                entitySecret = this.getKey( entityValue ).usageAuth;
+                break;
+            case TPMConsts.TPM_ET_COUNTER:
+                entitySecret = this.getCounter( entityValue ).auth;
+                break;
+            default:
+                throw new CommandFailure( TPM_RESULT.TPM_WRONG_ENTITYTYPE );
+        }
+
+        Session s = this.newAuthSession( Session.OSAP );
+        s.entityType = entityType;
+        s.entityValue = entityValue;
+        byte[] nonceEvenOSAP = this.randomBytes( 20 );
+        s.sharedSecret = this.hmac( entitySecret, nonceEvenOSAP, nonceOddOSAP );
+        return new Reply( ByteArrayUtil.buildBuf( s.handle, s.nonceEven,
+            nonceEvenOSAP ) );
+    }
+
+    private Session newAuthSession( int type ) throws CommandFailure
+    {
+        if ( this.countSessions( false ) >= this.maxAuthSessions )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_RESOURCES );
+        }
+        int handle = AUTH_HANDLE_BASE | (this.nextAuthHandle++ & HANDLE_MASK);
+        Session s = new Session( handle, type, this.randomBytes( 20 ) );
+        this.sessions.put( handle, s );
+        return s;
+    }
+
+    private int countSessions( boolean transport )
+    {
+        int count = 0;
+        for ( Session s : this.sessions.values() )
+        {
+            if ( (s.type == Session.TRANSPORT) == transport )
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private Reply doTerminateHandle( Request req ) throws CommandFailure
+    {
+        req.requireAuths( 0 );
+        int handle = req.readInt();
+        Session s = this.sessions.get( handle );
+        if ( (s == null) || (s.type == Session.TRANSPORT) )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_INVALID_AUTHHANDLE );
+        }
+        this.sessions.remove( handle );
+        return new Reply( EMPTY );
+    }
+
+    private Reply doFlushSpecific( Request req ) throws CommandFailure
+    {
+        req.requireAuths( 0 );
+        int handle = req.readInt();
+        int resourceType = req.readInt();
+        switch ( resourceType )
+        {
+            case TPMConsts.TPM_RT_KEY:
+                this.evictKey( handle );
+                break;
+            case TPMConsts.TPM_RT_AUTH:
+            case TPMConsts.TPM_RT_TRANS:
+                Session s = this.sessions.get( handle );
+                if ( (s == null)
+                    || ((s.type == Session.TRANSPORT) != (resourceType == TPMConsts.TPM_RT_TRANS)) )
+                {
+                    throw new CommandFailure( TPM_RESULT.TPM_INVALID_AUTHHANDLE );
+                }
+                this.sessions.remove( handle );
+                break;
+            default:
+                throw new CommandFailure( TPM_RESULT.TPM_INVALID_RESOURCE );
+        }
+        return new Reply( EMPTY );
+    }
+
+    private Reply doEvictKey( Request req ) throws CommandFailure
+    {
+        req.requireAuths( 0 );
+        this.evictKey( req.readInt() );
+        return new Reply( EMPTY );
+    }
+
+    private void evictKey( int handle ) throws CommandFailure
+    {
+        if ( this.keys.remove( handle ) == null )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_INVALID_KEYHANDLE );
+        }
+        // OSAP sessions for the key become useless
+        Iterator<Session> it = this.sessions.values().iterator();
+        while ( it.hasNext() )
+        {
+            Session s = it.next();
+            if ( (s.type == Session.OSAP)
+                && (s.entityType == TPMConsts.TPM_ET_KEYHANDLE)
+                && (s.entityValue == handle) )
+            {
+                it.remove();
+            }
+        }
+    }
+
+    private Reply doReset( Request req ) throws CommandFailure
+    {
+        req.requireAuths( 0 );
+        this.sessions.clear();
+        return new Reply( EMPTY );
+    }
+
+    /**
+     * Removes the sessions used by a failed command.
+     */
+    private void terminateSessions( Request req )
+    {
+        for ( int i = 0; i < req.numAuths; i++ )
+        {
+            this.sessions.remove( req.auths[i].handle );
+        }
+    }
+
+    /**
+     * Checks the authorization at position index, using the given
+     * secret if the session is an OIAP session, or the shared secret
+     * if it is an OSAP session for the given entity.
+     */
+    private void checkAuth( Request req, int index, byte[] inParamDigest,
+        short entityType, int entityValue, byte[] entitySecret )
+        throws CommandFailure
+    {
+        AuthIn auth = req.auths[index];
+        Session s = this.sessions.get( auth.handle );
+        if ( (s == null) || (s.type == Session.TRANSPORT) )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_INVALID_AUTHHANDLE );
+        }
+        byte[] secret;
+        if ( s.type == Session.OSAP )
+        {
+            if ( !s.isFor( entityType, entityValue ) )
+            {
+                throw new CommandFailure( authFailure( index ) );
+            }
+            secret = s.sharedSecret;
+        }
+        else
+        {
+            secret = entitySecret;
+        }
+        this.verifyAuth( req, index, s, secret, inParamDigest );
+    }
+
+    private void checkTransportAuth( Request req, int index,
+        byte[] inParamDigest ) throws CommandFailure
+    {
+        Session s = this.sessions.get( req.auths[index].handle );
+        if ( (s == null) || (s.type != Session.TRANSPORT) )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_INVALID_AUTHHANDLE );
+        }
+        this.verifyAuth( req, index, s, s.sharedSecret, inParamDigest );
+    }
+
+    private void verifyAuth( Request req, int index, Session s, byte[] secret,
+        byte[] inParamDigest ) throws CommandFailure
+    {
+        AuthIn auth = req.auths[index];
+        byte[] expected = this.hmac( secret, inParamDigest, s.nonceEven,
+            auth.nonceOdd, auth.continueByte() );
+        if ( !Arrays.equals( expected, auth.authValue ) )
+        {
+            throw new CommandFailure( authFailure( index ) );
+        }
+        auth.session = s;
+        auth.secret = secret;
+    }
+
+    private static int authFailure( int index )
+    {
+        return (index == 0) ? TPM_RESULT.TPM_AUTHFAIL
+            : TPM_RESULT.TPM_AUTH2FAIL;
+    }
+
+    /**
+     * Checks the authorization for using a key.  If there are no
+     * authorizations, the key must not need any.
+     */
+    private void checkKeyAuth( Request req, int index, LoadedKey key,
+        int handle, byte[] inParamDigest ) throws CommandFailure
+    {
+        if ( req.numAuths == 0 )
+        {
+            if ( key.key.getAuthDataUsage() != TPMConsts.TPM_AUTH_NEVER )
+            {
+                throw new CommandFailure( TPM_RESULT.TPM_AUTHFAIL );
+            }
+            return;
+        }
+        this.checkAuth( req, index, inParamDigest,
+            TPMConsts.TPM_ET_KEYHANDLE, handle, key.usageAuth );
+    }
+
+    private void checkOwnerAuth( Request req, byte[] inParamDigest )
+        throws CommandFailure
+    {
+        req.requireAuths( 1 );
+        this.checkAuth( req, 0, inParamDigest, TPMConsts.TPM_ET_OWNER,
+            TPMConsts.TPM_KH_OWNER, this.ownerAuth );
+    }
+
+    /**
+     * Decrypts an encrypted auth value sent with an OSAP session
+     * (e.g., in TPM_Seal or TPM_CreateWrapKey).
+     */
+    private byte[] decryptEncAuth( Request req, int index, byte[] encAuth,
+        byte[] nonce ) throws CommandFailure
+    {
+        Session s = req.auths[index].session;
+        if ( s.type != Session.OSAP )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_INVALID_AUTHHANDLE );
+        }
+        return CryptoUtil.xor( encAuth, this.sha1( s.sharedSecret, nonce ) );
+    }
+
+    // Capabilities
+
+    private Reply doGetCapability( Request req ) throws CommandFailure
+    {
+        req.requireAuths( 0 );
+        int capArea = req.readInt();
+        byte[] subCap = req.readBytes( req.readInt() );
+        int subCapValue = (subCap.length >= 4) ? ByteArrayUtil.readInt32BE(
+            subCap, 0 ) : 0;
+
+        byte[] resp;
+        switch ( capArea )
+        {
+            case TPMConsts.TPM_CAP_VERSION:
+                resp = new byte[] { 1, 1, 0, 0 };
+                break;
+            case TPMConsts.TPM_CAP_VERSION_VAL:
+                TPM_VERSION version = new TPM_VERSION();
+                version.fromBytes( new byte[] { 1, 2, 0, 0 }, 0 );
+                resp = new TPM_CAP_VERSION_INFO( version, (short) 2, (byte) 3,
+                    MANUFACTURER_ID, EMPTY ).toBytes();
+                break;
+            case TPMConsts.TPM_CAP_PROPERTY:
+                resp = this.getCapProperty( subCapValue );
+                break;
+            case TPMConsts.TPM_CAP_ORD:
+                resp = new byte[] { (byte) (isSupported( subCapValue ) ? 1 : 0) };
+                break;
+            case TPMConsts.TPM_CAP_KEY_HANDLE:
+                resp = handleList( this.keys.keySet() );
+                break;
+            case TPMConsts.TPM_CAP_HANDLE:
+                if ( subCapValue == TPMConsts.TPM_RT_KEY )
+                {
+                    resp = handleList( this.keys.keySet() );
+                }
+                else if ( (subCapValue == TPMConsts.TPM_RT_AUTH)
+                    || (subCapValue == TPMConsts.TPM_RT_TRANS) )
+                {
+                    List<Integer> handles = new ArrayList<Integer>();
+                    for ( Session s : this.sessions.values() )
+                    {
+                        if ( (s.type == Session.TRANSPORT) == (subCapValue == TPMConsts.TPM_RT_TRANS) )
+                        {
+                            handles.add( s.handle );
+                        }
+                    }
+                    resp = handleList( handles );
+                }
+                else if ( subCapValue == TPMConsts.TPM_RT_COUNTER )
+                {
+                    resp = handleList( this.counters.keySet() );
+                }
+                else
+                {
+                    throw new CommandFailure( TPM_RESULT.TPM_BAD_MODE );
+                }
+                break;
+            case TPMConsts.TPM_CAP_NV_LIST:
+                ByteArrayReadWriter brw = new ByteArrayReadWriter(
+                    this.nvAreas.size() * 4 );
+                for ( int nvIndex : this.nvAreas.keySet() )
+                {
+                    brw.writeInt32( nvIndex );
+                }
+                resp = brw.getBytes();
+                break;
+            default:
+                throw new CommandFailure( TPM_RESULT.TPM_BAD_MODE );
+        }
+        return new Reply( ByteArrayUtil.buildBuf( resp.length, resp ) );
+    }
+
+    private byte[] getCapProperty( int property ) throws CommandFailure
+    {
+        switch ( property )
+        {
+            case TPMConsts.TPM_CAP_PROP_PCR:
+                return ByteArrayUtil.toBytesInt32BE( NUM_PCRS );
+            case TPMConsts.TPM_CAP_PROP_DIR:
+                return ByteArrayUtil.toBytesInt32BE( 1 );
+            case TPMConsts.TPM_CAP_PROP_MANUFACTURER:
+                return ByteArrayUtil.toBytesInt32BE( MANUFACTURER_ID );
+            case TPMConsts.TPM_CAP_PROP_KEYS:
+                return ByteArrayUtil.toBytesInt32BE( this.maxKeys
+                    - this.keys.size() );
+            case TPMConsts.TPM_CAP_PROP_MAX_KEYS:
+                return ByteArrayUtil.toBytesInt32BE( this.maxKeys );
+            case TPMConsts.TPM_CAP_PROP_AUTHSESS:
+                return ByteArrayUtil.toBytesInt32BE( this.maxAuthSessions
+                    - this.countSessions( false ) );
+            case TPMConsts.TPM_CAP_PROP_MAX_AUTHSESS:
+                return ByteArrayUtil.toBytesInt32BE( this.maxAuthSessions );
+            case TPMConsts.TPM_CAP_PROP_TRANSESS:
+                return ByteArrayUtil.toBytesInt32BE( this.maxTransSessions
+                    - this.countSessions( true ) );
+            case TPMConsts.TPM_CAP_PROP_MAX_TRANSESS:
+                return ByteArrayUtil.toBytesInt32BE( this.maxTransSessions );
+            case TPMConsts.TPM_CAP_PROP_COUNTERS:
+                return ByteArrayUtil.toBytesInt32BE( this.maxCounters
+                    - this.counters.size() );
+            case TPMConsts.TPM_CAP_PROP_MAX_COUNTERS:
+                return ByteArrayUtil.toBytesInt32BE( this.maxCounters );
+            case TPMConsts.TPM_CAP_PROP_ACTIVE_COUNTER:
+                return ByteArrayUtil.toBytesInt32BE( (this.activeCounter == 0) ? 0xFFFFFFFF
+                    : this.activeCounter );
+            case TPMConsts.TPM_CAP_PROP_OWNER:
+                return new byte[] { 1 };
+            case TPMConsts.TPM_CAP_PROP_DURATION:
+                return ByteArrayUtil.buildBuf( (int) this.durations[0],
+                    (int) this.durations[1], (int) this.durations[2] );
+            case TPMConsts.TPM_CAP_PROP_INPUT_BUFFER:
+                return ByteArrayUtil.toBytesInt32BE( TPMConsts.TPM_MAX_BUFF_SIZE );
+            default:
+                throw new CommandFailure( TPM_RESULT.TPM_BAD_MODE );
+        }
+    }
+
+    /**
+     * Returns a TPM_KEY_HANDLE_LIST.
+     */
+    private static byte[] handleList( Collection<Integer> handles )
+    {
+        ByteArrayReadWriter brw = new ByteArrayReadWriter( 2 + (handles.size() * 4) );
+        brw.writeShort( (short) handles.size() );
+        for ( int handle : handles )
+        {
+            brw.writeInt32( handle );
+        }
+        return brw.getBytes();
+    }
+
+    private Reply doGetRandom( Request req ) throws CommandFailure
+    {
+        req.requireAuths( 0 );
+        int bytesRequested = req.readInt();
+        if ( (bytesRequested < 0) || (bytesRequested > 4096) )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_BAD_PARAMETER );
+        }
+        byte[] randomBytes = this.randomBytes( bytesRequested );
+        return new Reply( ByteArrayUtil.buildBuf( randomBytes.length,
+            randomBytes ) );
+    }
+
+    // PCRs
+
+    private Reply doPCRRead( Request req ) throws CommandFailure
+    {
+        req.requireAuths( 0 );
+        return new Reply( this.pcrs[this.checkPCRIndex( req.readInt() )].clone() );
+    }
+
+    private Reply doExtend( Request req ) throws CommandFailure
+    {
+        req.requireAuths( 0 );
+        int index = this.checkPCRIndex( req.readInt() );
+        byte[] inDigest = req.readBytes( 20 );
+        this.pcrs[index] = this.sha1( this.pcrs[index], inDigest );
+        return new Reply( this.pcrs[index].clone() );
+    }
+
+    private Reply doPCRReset( Request req ) throws CommandFailure
+    {
+        req.requireAuths( 0 );
+        TPM_PCR_SELECTION select = this.readPCRSelection( req );
+        for ( int i = 0; i < NUM_PCRS; i++ )
+        {
+            if ( select.isPCROn( i ) && !isResettable( i ) )
+            {
+                throw new CommandFailure( TPM_RESULT.TPM_NOTRESETABLE );
+            }
+        }
+        for ( int i = 0; i < NUM_PCRS; i++ )
+        {
+            if ( select.isPCROn( i ) )
+            {
+                this.pcrs[i] = new byte[20];
+            }
+        }
+        return new Reply( EMPTY );
+    }
+
+    /**
+     * Only the debug PCR (16) and the application PCR (23)
+     * are resettable, since locality is always 0.
+     */
+    private static boolean isResettable( int pcrIndex )
+    {
+        return (pcrIndex == 16) || (pcrIndex == 23);
+    }
+
+    private int checkPCRIndex( int index ) throws CommandFailure
+    {
+        if ( (index < 0) || (index >= NUM_PCRS) )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_BADINDEX );
+        }
+        return index;
+    }
+
+    private TPM_PCR_SELECTION readPCRSelection( Request req )
+        throws CommandFailure
+    {
+        TPM_PCR_SELECTION select = new TPM_PCR_SELECTION();
+        req.readStruct( select );
+        if ( select.getSizeOfSelect() > (NUM_PCRS / 8) )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_INVALID_PCR_INFO );
+        }
+        return select;
+    }
+
+    private TPM_PCR_COMPOSITE getPCRComposite( TPM_PCR_SELECTION select )
+    {
+        List<TPM_PCRVALUE> values = new ArrayList<TPM_PCRVALUE>();
+        for ( int i = 0; i < (select.getSizeOfSelect() * 8); i++ )
+        {
+            if ( select.isPCROn( i ) )
+            {
+                values.add( new TPM_PCRVALUE( this.pcrs[i] ) );
+            }
+        }
+        return new TPM_PCR_COMPOSITE( select,
+            values.toArray( new TPM_PCRVALUE[values.size()] ) );
+    }
+
+    private Reply doQuote( Request req ) throws CommandFailure
+    {
+        int keyHandle = req.readInt();
+        byte[] externalData = req.readBytes( 20 );
+        TPM_PCR_SELECTION select = this.readPCRSelection( req );
+
+        LoadedKey key = this.getKey( keyHandle );
+        this.checkKeyAuth( req, 0, key, keyHandle, req.inParamDigest( 4 ) );
+        key.checkUsage( TPMConsts.TPM_KEY_SIGNING, TPMConsts.TPM_KEY_IDENTITY,
+            TPMConsts.TPM_KEY_LEGACY );
+
+        TPM_PCR_COMPOSITE composite = this.getPCRComposite( select );
+        TPM_QUOTE_INFO quoteInfo = new TPM_QUOTE_INFO(
+            TPM_STRUCT_VER.TPM_1_1_VER, composite, new TPM_NONCE( externalData ) );
+        byte[] sig = key.signSHA1( this.sha1( quoteInfo.toBytes() ) );
+        return new Reply( ByteArrayUtil.buildBuf( composite, sig.length, sig ) );
+    }
+
+    // Keys
+
+    private LoadedKey getKey( int handle ) throws CommandFailure
+    {
+        if ( handle == TPMConsts.TPM_KH_SRK )
+        {
+            return this.srk;
+        }
+        LoadedKey key = this.keys.get( handle );
+        if ( key == null )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_INVALID_KEYHANDLE );
+        }
+        return key;
+    }
+
+    private Reply doCreateWrapKey( Request req ) throws CommandFailure
+    {
+        req.requireAuths( 1 );
+        int parentHandle = req.readInt();
+        byte[] dataUsageAuth = req.readBytes( 20 );
+        byte[] dataMigrationAuth = req.readBytes( 20 );
+        TPM_KEY keyInfo = new TPM_KEY();
+        req.readStruct( keyInfo );
+
+        LoadedKey parent = this.getKey( parentHandle );
+        this.checkAuth( req, 0, req.inParamDigest( 4 ),
+            TPMConsts.TPM_ET_KEYHANDLE, parentHandle, parent.usageAuth );
+        parent.checkUsage( TPMConsts.TPM_KEY_STORAGE );
+
+        Session s = req.auths[0].session;
+        byte[] usageAuth = this.decryptEncAuth( req, 0, dataUsageAuth,
+            s.nonceEven );
+        byte[] migrationAuth;
+        if ( (keyInfo.getKeyFlags() & TPMConsts.TPM_KEY_FLAGS_MASK.migratable) != 0 )
+        {
+            migrationAuth = this.decryptEncAuth( req, 0, dataMigrationAuth,
+                req.auths[0].nonceOdd );
+        }
+        else
+        {
+            migrationAuth = this.tpmProof;
+        }
+
+        short usage = keyInfo.getKeyUsage();
+        if ( (usage != TPMConsts.TPM_KEY_SIGNING)
+            && (usage != TPMConsts.TPM_KEY_STORAGE)
+            && (usage != TPMConsts.TPM_KEY_BIND)
+            && (usage != TPMConsts.TPM_KEY_LEGACY) )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_INVALID_KEYUSAGE );
+        }
+        TPM_RSA_KEY_PARMS rsaParms = getRSAParms( keyInfo );
+        int keyLength = rsaParms.getKeyLength();
+        if ( (keyLength < 512) || (keyLength > SRK_KEY_LENGTH)
+            || ((keyLength % 16) != 0) || (rsaParms.getNumPrimes() != 2) )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_BAD_KEY_PROPERTY );
+        }
+
+        KeyPair pair = this.generateKeyPair( keyLength, getExponent( rsaParms ) );
+        RSAPrivateCrtKey priv = (RSAPrivateCrtKey) pair.getPrivate();
+        keyInfo.setPubKey( new TPM_STORE_PUBKEY(
+            CryptoUtil.getBytesFromUnsignedBigInt( priv.getModulus(),
+                keyLength / 8 ) ) );
+        TPM_STORE_ASYMKEY asymKey = new TPM_STORE_ASYMKEY(
+            TPMConsts.TPM_PT_ASYM, new TPM_SECRET( usageAuth ),
+            new TPM_SECRET( migrationAuth ), keyInfo.getPubDataDigest(),
+            new TPM_STORE_PRIVKEY( CryptoUtil.getBytesFromUnsignedBigInt(
+                priv.getPrimeP(), keyLength / 16 ) ) );
+        keyInfo.setEncDataBytes( parent.encryptOAEP( asymKey.toBytes() ) );
+
+        return new Reply( keyInfo.toBytes() );
+    }
+
+    private Reply doLoadKey( Request req ) throws CommandFailure
+    {
+        req.requireAuths( 1 );
+        int parentHandle = req.readInt();
+        TPM_KEY inKey = new TPM_KEY();
+        req.readStruct( inKey );
+
+        LoadedKey parent = this.getKey( parentHandle );
+        this.checkAuth( req, 0, req.inParamDigest( 4 ),
+            TPMConsts.TPM_ET_KEYHANDLE, parentHandle, parent.usageAuth );
+        parent.checkUsage( TPMConsts.TPM_KEY_STORAGE );
+
+        if ( this.keys.size() >= this.maxKeys )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_NOSPACE );
+        }
+
+        TPM_STORE_ASYMKEY asymKey = new TPM_STORE_ASYMKEY();
+        asymKey.fromBytes( parent.decryptOAEP( inKey.getEncDataBytes() ), 0 );
+        if ( (asymKey.getPayload() != TPMConsts.TPM_PT_ASYM)
+            || !asymKey.getPubDataDigest().equals( inKey.getPubDataDigest() ) )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_DECRYPT_ERROR );
+        }
+        RSAPrivateCrtKey priv = privateKeyFromPrime(
+            inKey.getPubKey().getKeyBytes(), getExponent( getRSAParms( inKey ) ),
+            asymKey.getPrivKey().getKeyBytes() );
+
+        int handle = KEY_HANDLE_BASE | (this.nextKeyHandle++ & HANDLE_MASK);
+        this.keys.put( handle, new LoadedKey( inKey,
+            asymKey.getUsageAuth().toBytes(), priv ) );
+
+        Reply reply = new Reply( EMPTY );
+        if ( req.ordinal == TPMConsts.TPM_ORD_LoadKey2 )
+        {
+            // In LoadKey2, the handle is not included in the HMAC
+            reply.handles = ByteArrayUtil.toBytesInt32BE( handle );
+        }
+        else
+        {
+            reply.params = ByteArrayUtil.toBytesInt32BE( handle );
+        }
+        return reply;
+    }
+
+    private Reply doGetPubKey( Request req ) throws CommandFailure
+    {
+        int keyHandle = req.readInt();
+        LoadedKey key = this.getKey( keyHandle );
+        this.checkKeyAuth( req, 0, key, keyHandle, req.inParamDigest( 4 ) );
+        return new Reply( key.getPubKey().toBytes() );
+    }
+
+    private Reply doOwnerReadInternalPub( Request req ) throws CommandFailure
+    {
+        int keyHandle = req.readInt();
+        this.checkOwnerAuth( req, req.inParamDigest( 0 ) );
+        if ( keyHandle != TPMConsts.TPM_KH_SRK )
+        {
+            // There is no EK
+            throw new CommandFailure( TPM_RESULT.TPM_BAD_PARAMETER );
+        }
+        return new Reply( this.srk.getPubKey().toBytes() );
+    }
+
+    private Reply doSign( Request req ) throws CommandFailure
+    {
+        int keyHandle = req.readInt();
+        byte[] areaToSign = req.readBytes( req.readInt() );
+        LoadedKey key = this.getKey( keyHandle );
+        this.checkKeyAuth( req, 0, key, keyHandle, req.inParamDigest( 4 ) );
+        key.checkUsage( TPMConsts.TPM_KEY_SIGNING, TPMConsts.TPM_KEY_LEGACY );
+
+        byte[] sig;
+        short sigScheme = key.key.getAlgorithmParms().getSigScheme();
+        if ( sigScheme == TPMConsts.TPM_SS_RSASSAPKCS1v15_SHA1 )
+        {
+            if ( areaToSign.length != 20 )
+            {
+                throw new CommandFailure( TPM_RESULT.TPM_BAD_PARAMETER );
+            }
+            sig = key.signSHA1( areaToSign );
+        }
+        else if ( sigScheme == TPMConsts.TPM_SS_RSASSAPKCS1v15_DER )
+        {
+            sig = key.signPKCS1( areaToSign );
+        }
+        else
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_BAD_SCHEME );
+        }
+        return new Reply( ByteArrayUtil.buildBuf( sig.length, sig ) );
+    }
+
+    private Reply doUnBind( Request req ) throws CommandFailure
+    {
+        int keyHandle = req.readInt();
+        byte[] inData = req.readBytes( req.readInt() );
+        LoadedKey key = this.getKey( keyHandle );
+        this.checkKeyAuth( req, 0, key, keyHandle, req.inParamDigest( 4 ) );
+        key.checkUsage( TPMConsts.TPM_KEY_BIND, TPMConsts.TPM_KEY_LEGACY );
+
+        byte[] decrypted = key.decryptOAEP( inData );
+        // TPM_BOUND_DATA is ver (4 bytes), payload (1 byte), then the data
+        if ( (decrypted.length < 5)
+            || (decrypted[4] != TPMConsts.TPM_PT_BIND) )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_INVALID_STRUCTURE );
+        }
+        byte[] outData = ByteArrayUtil.readBytes( decrypted, 5,
+            decrypted.length - 5 );
+        return new Reply( ByteArrayUtil.buildBuf( outData.length, outData ) );
+    }
+
+    // Sealing
+
+    private Reply doSeal( Request req ) throws CommandFailure
+    {
+        req.requireAuths( 1 );
+        int keyHandle = req.readInt();
+        byte[] encAuth = req.readBytes( 20 );
+        byte[] pcrInfoBytes = req.readBytes( req.readInt() );
+        byte[] inData = req.readBytes( req.readInt() );
+
+        LoadedKey key = this.getKey( keyHandle );
+        this.checkAuth( req, 0, req.inParamDigest( 4 ),
+            TPMConsts.TPM_ET_KEYHANDLE, keyHandle, key.usageAuth );
+        key.checkUsage( TPMConsts.TPM_KEY_STORAGE );
+        byte[] dataAuth = this.decryptEncAuth( req, 0, encAuth,
+            req.auths[0].session.nonceEven );
+
+        TPM_PCR_INFO sealInfo = null;
+        if ( pcrInfoBytes.length > 0 )
+        {
+            sealInfo = new TPM_PCR_INFO( pcrInfoBytes );
+            sealInfo.setDigestAtCreation( CryptoUtil.computeTPM_DIGEST( this.getPCRComposite( sealInfo.getPcrSelection() ) ) );
+        }
+
+        byte[] storedDigest = this.sha1( new TPM_STORED_DATA( sealInfo, EMPTY ).toBytes() );
+        byte[] sealedData = ByteArrayUtil.buildBuf( TPMConsts.TPM_PT_SEAL,
+            dataAuth, this.tpmProof, storedDigest, inData.length, inData );
+        if ( sealedData.length > key.getMaxOAEPDataSize() )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_BAD_DATASIZE );
+        }
+        TPM_STORED_DATA sealed = new TPM_STORED_DATA( sealInfo,
+            key.encryptOAEP( sealedData ) );
+        return new Reply( sealed.toBytes() );
+    }
+
+    private Reply doUnseal( Request req ) throws CommandFailure
+    {
+        req.requireAuths( 2 );
+        int keyHandle = req.readInt();
+        TPM_STORED_DATA inData = new TPM_STORED_DATA();
+        req.readStruct( inData );
+
+        byte[] inParamDigest = req.inParamDigest( 4 );
+        LoadedKey key = this.getKey( keyHandle );
+        this.checkAuth( req, 0, inParamDigest, TPMConsts.TPM_ET_KEYHANDLE,
+            keyHandle, key.usageAuth );
+        key.checkUsage( TPMConsts.TPM_KEY_STORAGE );
+
+        // TPM_SEALED_DATA is payload, authData, tpmProof, storedDigest, dataSize, data
+        ByteArrayReadWriter brw = new ByteArrayReadWriter(
+            key.decryptOAEP( inData.getEncData() ) );
+        byte payload = brw.readByte();
+        byte[] dataAuth = brw.readBytes( 20 );
+        byte[] proof = brw.readBytes( 20 );
+        byte[] storedDigest = brw.readBytes( 20 );
+        byte[] data = brw.readBytes( brw.readInt32() );
+
+        byte[] expectedDigest = this.sha1( new TPM_STORED_DATA(
+            inData.getSealInfo(), EMPTY ).toBytes() );
+        if ( (payload != TPMConsts.TPM_PT_SEAL)
+            || !Arrays.equals( proof, this.tpmProof )
+            || !Arrays.equals( storedDigest, expectedDigest ) )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_NOTSEALED_BLOB );
+        }
+
+        // The data's own authorization must be an OIAP session
+        Session s = this.sessions.get( req.auths[1].handle );
+        if ( (s == null) || (s.type != Session.OIAP) )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_INVALID_AUTHHANDLE );
+        }
+        this.verifyAuth( req, 1, s, dataAuth, inParamDigest );
+
+        TPM_PCR_INFO sealInfo = inData.getSealInfo();
+        if ( sealInfo != null )
+        {
+            TPM_DIGEST current = CryptoUtil.computeTPM_DIGEST( this.getPCRComposite( sealInfo.getPcrSelection() ) );
+            if ( !current.equals( sealInfo.getDigestAtRelease() ) )
+            {
+                throw new CommandFailure( TPM_RESULT.TPM_WRONGPCRVAL );
+            }
+        }
+        return new Reply( ByteArrayUtil.buildBuf( data.length, data ) );
+    }
+
+    // Counters
+
+    private Counter getCounter( int countID ) throws CommandFailure
+    {
+        Counter counter = this.counters.get( countID );
+        if ( counter == null )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_BAD_COUNTER );
+        }
+        return counter;
+    }
+
+    private Reply doCreateCounter( Request req ) throws CommandFailure
+    {
+        byte[] encAuth = req.readBytes( 20 );
+        byte[] label = req.readBytes( 4 );
+        this.checkOwnerAuth( req, req.inParamDigest( 0 ) );
+        byte[] counterAuth = this.decryptEncAuth( req, 0, encAuth,
+            req.auths[0].session.nonceEven );
+
+        if ( this.counters.size() >= this.maxCounters )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_SIZE );
+        }
+        Counter counter = new Counter( this.nextCountID++, label,
+            ++this.maxCounterValue, counterAuth );
+        this.counters.put( counter.countID, counter );
+        return new Reply( ByteArrayUtil.buildBuf( counter.countID,
+            counter.getValue() ) );
+    }
+
+    private Reply doReadOrIncrementCounter( Request req )
+        throws CommandFailure
+    {
+        int countID = req.readInt();
+        Counter counter = this.getCounter( countID );
+        if ( req.ordinal == TPMConsts.TPM_ORD_IncrementCounter )
+        {
+            req.requireAuths( 1 );
+            this.checkAuth( req, 0, req.inParamDigest( 0 ),
+                TPMConsts.TPM_ET_COUNTER, countID, counter.auth );
+            // Only one counter can be incremented per boot
+            if ( this.activeCounter == 0 )
+            {
+                this.activeCounter = countID;
+            }
+            else if ( this.activeCounter != countID )
+            {
+                throw new CommandFailure( TPM_RESULT.TPM_BAD_COUNTER );
+            }
+            counter.value++;
+            this.maxCounterValue = Math.max( this.maxCounterValue,
+                counter.value );
+        }
+        else
+        {
+            req.requireAuths( 0 );
+        }
+        return new Reply( counter.getValue().toBytes() );
+    }
+
+    private Reply doReleaseCounter( Request req ) throws CommandFailure
+    {
+        int countID = req.readInt();
+        Counter counter = this.getCounter( countID );
+        if ( req.ordinal == TPMConsts.TPM_ORD_ReleaseCounterOwner )
+        {
+            this.checkOwnerAuth( req, req.inParamDigest( 0 ) );
+        }
+        else
+        {
+            req.requireAuths( 1 );
+            this.checkAuth( req, 0, req.inParamDigest( 0 ),
+                TPMConsts.TPM_ET_COUNTER, countID, counter.auth );
+        }
+        this.counters.remove( countID );
+        if ( this.activeCounter == countID )
+        {
+            this.activeCounter = 0;
+        }
+        return new Reply( EMPTY );
+    }
+
+    // NV and DIR
+
+    private Reply doNVReadValue( Request req ) throws CommandFailure
+    {
+        int nvIndex = req.readInt();
+        int offset = req.readInt();
+        int dataSize = req.readInt();
+        if ( req.numAuths > 0 )
+        {
+            this.checkOwnerAuth( req, req.inParamDigest( 0 ) );
+        }
+        byte[] area = this.nvAreas.get( nvIndex );
+        if ( area == null )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_BADINDEX );
+        }
+        if ( (offset < 0) || (dataSize < 0) || (offset + dataSize > area.length) )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_NOSPACE );
+        }
+        byte[] data = ByteArrayUtil.readBytes( area, offset, dataSize );
+        return new Reply( ByteArrayUtil.buildBuf( data.length, data ) );
+    }
+
+    private Reply doDirRead( Request req ) throws CommandFailure
+    {
+        req.requireAuths( 0 );
+        this.checkDirIndex( req.readInt() );
+        return new Reply( this.dir.clone() );
+    }
+
+    private Reply doDirWriteAuth( Request req ) throws CommandFailure
+    {
+        int dirIndex = req.readInt();
+        byte[] newContents = req.readBytes( 20 );
+        this.checkOwnerAuth( req, req.inParamDigest( 0 ) );
+        this.checkDirIndex( dirIndex );
+        // Copy into the same array, since it is also TPM_NV_INDEX_DIR
+        System.arraycopy( newContents, 0, this.dir, 0, 20 );
+        return new Reply( EMPTY );
+    }
+
+    private void checkDirIndex( int dirIndex ) throws CommandFailure
+    {
+        if ( dirIndex != 0 )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_BADINDEX );
+        }
+    }
+
+    // Transport sessions
+
+    private TPM_CURRENT_TICKS getCurrentTicks()
+    {
+        // One tick per microsecond
+        long ticks = (System.nanoTime() - this.startNanos) / 1000;
+        return new TPM_CURRENT_TICKS( ticks, (short) 1, new TPM_NONCE(
+            this.tickNonce ) );
+    }
+
+    /**
+     * Extends the transport session's log digest with a
+     * TPM_TRANSPORT_LOG_IN or TPM_TRANSPORT_LOG_OUT structure.
+     * (As on non-Infineon chips, the initial digest is empty,
+     * and there is no pubKeyHash when no keys are involved.)
+     */
+    private void extendTransDigest( Session s, byte[] logEntry )
+    {
+        s.transDigest = this.sha1( s.transDigest, logEntry );
+    }
+
+    private Reply doEstablishTransport( Request req ) throws CommandFailure
+    {
+        int encHandle = req.readInt();
+        TPM_TRANSPORT_PUBLIC transPublic = new TPM_TRANSPORT_PUBLIC();
+        req.readStruct( transPublic );
+        byte[] secret = req.readBytes( req.readInt() );
+
+        if ( (transPublic.getTransAttributes() & TPMConsts.TPM_TRANSPORT_ENCRYPT) != 0 )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_INAPPROPRIATE_ENC );
+        }
+
+        byte[] transSecret;
+        if ( encHandle == TPMConsts.TPM_KH_TRANSPORT )
+        {
+            req.requireAuths( 0 );
+            transSecret = secret;
+        }
+        else
+        {
+            req.requireAuths( 1 );
+            LoadedKey key = this.getKey( encHandle );
+            this.checkAuth( req, 0, req.inParamDigest( 4 ),
+                TPMConsts.TPM_ET_KEYHANDLE, encHandle, key.usageAuth );
+            key.checkUsage( TPMConsts.TPM_KEY_STORAGE, TPMConsts.TPM_KEY_BIND,
+                TPMConsts.TPM_KEY_LEGACY );
+            transSecret = key.decryptOAEP( secret );
+        }
+        if ( transSecret.length != 20 )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_BAD_PARAMETER );
+        }
+        if ( this.countSessions( true ) >= this.maxTransSessions )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_RESOURCES );
+        }
+
+        int handle = TRANS_HANDLE_BASE | (this.nextTransHandle++ & HANDLE_MASK);
+        Session s = new Session( handle, Session.TRANSPORT,
+            this.randomBytes( 20 ) );
+        s.sharedSecret = transSecret;
+        s.transDigest = EMPTY;
+        this.sessions.put( handle, s );
+
+        int locality = 0;
+        TPM_CURRENT_TICKS currentTicks = this.getCurrentTicks();
+        s.startTicks = currentTicks;
+
+        TPM_DIGEST inParams = CryptoUtil.computeTPM_DIGEST( ByteArrayUtil.concatObjectsBE(
+            req.ordinal, transPublic, secret.length, secret ) );
+        this.extendTransDigest( s,
+            new TPM_TRANSPORT_LOG_IN( inParams, null ).toBytes() );
+        TPM_DIGEST outParams = CryptoUtil.computeTPM_DIGEST( ByteArrayUtil.concatObjectsBE(
+            TPM_RESULT.TPM_SUCCESS, req.ordinal, locality, currentTicks,
+            s.nonceEven ) );
+        this.extendTransDigest( s, new TPM_TRANSPORT_LOG_OUT( currentTicks,
+            outParams, locality ).toBytes() );
+
+        Reply reply = new Reply( ByteArrayUtil.buildBuf( locality,
+            currentTicks, s.nonceEven ) );
+        reply.handles = ByteArrayUtil.toBytesInt32BE( handle );
+        return reply;
+    }
+
+    private Reply doExecuteTransport( Request req ) throws CommandFailure
+    {
+        req.requireAuths( 1 );
+        byte[] wrappedCmd = req.readBytes( req.readInt() );
+        if ( wrappedCmd.length < TPMCommand.BODY_OFFSET )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_BAD_PARAMETER );
+        }
+        int wrappedOrdinal = ByteArrayUtil.readInt32BE( wrappedCmd,
+            TPMCommand.ORDINAL_OFFSET );
+
+        byte[] h1 = this.sha1( TPMTransportSession.computeWrappedCmdParamBytesToDigest( wrappedCmd ) );
+        byte[] inParamDigest = this.sha1( ByteArrayUtil.concatObjectsBE(
+            req.ordinal, wrappedCmd.length, h1 ) );
+        this.checkTransportAuth( req, 0, inParamDigest );
+        Session s = req.auths[0].session;
+        this.extendTransDigest( s, new TPM_TRANSPORT_LOG_IN( new TPM_DIGEST(
+            h1 ), null ).toBytes() );
+
+        byte[] wrappedOut = this.dispatch( wrappedCmd, true );
+
+        int locality = 0;
+        long currentTicks = this.getCurrentTicks().getCurrentTicks();
+        byte[] h2 = this.sha1( TPMTransportSession.computeUnwrappedOutputParamBytesToDigest(
+            wrappedOrdinal, new ByteArrayTPMOutputStruct( wrappedOut ) ) );
+        this.extendTransDigest( s, new TPM_TRANSPORT_LOG_OUT(
+            new TPM_CURRENT_TICKS( currentTicks, s.startTicks.getTickRate(),
+                s.startTicks.getTickNonce() ), new TPM_DIGEST( h2 ), locality ).toBytes() );
+
+        byte[] transOutData = ByteArrayUtil.buildBuf( currentTicks, locality,
+            wrappedOut.length );
+        Reply reply = new Reply( ByteArrayUtil.concat( transOutData, wrappedOut ) );
+        reply.outParamDigest = this.sha1( ByteArrayUtil.concatObjectsBE(
+            TPM_RESULT.TPM_SUCCESS, req.ordinal, transOutData, h2 ) );
+        return reply;
+    }
+
+    private Reply doReleaseTransportSigned( Request req )
+        throws CommandFailure
+    {
+        req.requireAuths( 2 );
+        int keyHandle = req.readInt();
+        byte[] antiReplay = req.readBytes( 20 );
+
+        byte[] inParamDigest = req.inParamDigest( 4 );
+        LoadedKey key = this.getKey( keyHandle );
+        this.checkAuth( req, 0, inParamDigest, TPMConsts.TPM_ET_KEYHANDLE,
+            keyHandle, key.usageAuth );
+        this.checkTransportAuth( req, 1, inParamDigest );
+        key.checkUsage( TPMConsts.TPM_KEY_SIGNING, TPMConsts.TPM_KEY_LEGACY );
+        Session s = req.auths[1].session;
+
+        int locality = 0;
+        TPM_CURRENT_TICKS currentTicks = this.getCurrentTicks();
+        TPM_DIGEST outParams = CryptoUtil.computeTPM_DIGEST( ByteArrayUtil.concatObjectsBE(
+            req.ordinal, antiReplay ) );
+        this.extendTransDigest( s, new TPM_TRANSPORT_LOG_OUT( currentTicks,
+            outParams, locality ).toBytes() );
+
+        TPM_SIGN_INFO signInfo = new TPM_SIGN_INFO( TPM_SIGN_INFO.FIXED_TRAN,
+            new TPM_NONCE( antiReplay ), s.transDigest );
+        byte[] sig = key.signSHA1( this.sha1( signInfo.toBytes() ) );
+
+        // The transport session always ends here
+        req.auths[1].continueSession = false;
+
+        return new Reply( ByteArrayUtil.buildBuf( locality, currentTicks,
+            sig.length, sig ) );
+    }
+
+    // Responses
+
+    private byte[] buildResponse( Request req, Reply reply )
+    {
+        int numAuths = req.numAuths;
+        short tag = (numAuths == 0) ? TPMConsts.TPM_TAG_RSP_COMMAND
+            : ((numAuths == 1) ? TPMConsts.TPM_TAG_RSP_AUTH1_COMMAND
+                : TPMConsts.TPM_TAG_RSP_AUTH2_COMMAND);
+        int size = TPMOutputStruct.BODY_OFFSET + reply.handles.length
+            + reply.params.length + (numAuths * TPMAuthOutData.STRUCT_SIZE);
+
+        ByteArrayReadWriter brw = new ByteArrayReadWriter( size );
+        brw.writeShort( tag );
+        brw.writeInt32( size );
+        brw.writeInt32( TPM_RESULT.TPM_SUCCESS );
+        brw.writeBytes( reply.handles );
+        brw.writeBytes( reply.params );
+
+        if ( numAuths > 0 )
+        {
+            byte[] outParamDigest = reply.outParamDigest;
+            if ( outParamDigest == null )
+            {
+                outParamDigest = this.sha1( ByteArrayUtil.concatObjectsBE(
+                    TPM_RESULT.TPM_SUCCESS, req.ordinal, reply.params ) );
+            }
+            for ( int i = 0; i < numAuths; i++ )
+            {
+                AuthIn auth = req.auths[i];
+                Session s = auth.session;
+                s.nonceEven = this.randomBytes( 20 );
+                byte[] resAuth = this.hmac( auth.secret, outParamDigest,
+                    s.nonceEven, auth.nonceOdd, auth.continueByte() );
+                brw.writeBytes( s.nonceEven );
+                brw.writeBoolean( auth.continueSession );
+                brw.writeBytes( resAuth );
+                if ( !auth.continueSession )
+                {
+                    this.sessions.remove( s.handle );
+                }
+            }
+        }
+        return brw.getBytes();
+    }
+
+    private static byte[] errorResponse( int returnCode )
+    {
+        ByteArrayReadWriter brw = new ByteArrayReadWriter(
+            TPMOutputStruct.BODY_OFFSET );
+        brw.writeShort( TPMConsts.TPM_TAG_RSP_COMMAND );
+        brw.writeInt32( TPMOutputStruct.BODY_OFFSET );
+        brw.writeInt32( returnCode );
+        return brw.getBytes();
+    }
+
+    // Crypto helpers
+
+    private byte[] randomBytes( int length )
+    {
+        byte[] ret = new byte[length];
+        this.random.nextBytes( ret );
+        return ret;
+    }
+
+    private byte[] sha1( byte[]... arrays )
+    {
+        for ( byte[] a : arrays )
+        {
+            this.sha1.update( a );
+        }
+        return this.sha1.digest();
+    }
+
+    private byte[] hmac( byte[] key, byte[]... arrays )
+    {
+        try
+        {
+            this.hmac.init( new SecretKeySpec( key, "HmacSHA1" ) );
+        }
+        catch ( GeneralSecurityException e )
+        {
+            throw new IllegalStateException( "Bad HMAC key: " + e );
+        }
+        for ( byte[] a : arrays )
+        {
+            this.hmac.update( a );
+        }
+        return this.hmac.doFinal();
+    }
+
+    private KeyPair generateKeyPair( int keyLength, BigInteger exponent )
+        throws CommandFailure
+    {
+        try
+        {
+            KeyPairGenerator gen = KeyPairGenerator.getInstance( "RSA" );
+            gen.initialize( new RSAKeyGenParameterSpec( keyLength, exponent ),
+                this.random );
+            return gen.generateKeyPair();
+        }
+        catch ( GeneralSecurityException e )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_BAD_KEY_PROPERTY );
+        }
+    }
+
+    private static TPM_RSA_KEY_PARMS getRSAParms( TPM_KEY key )
+        throws CommandFailure
+    {
+        TPM_KEY_PARMS parms = key.getAlgorithmParms();
+        if ( parms.getAlgorithmID() != TPMConsts.TPM_ALG_RSA )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_BAD_KEY_PROPERTY );
+        }
+        TPM_KEY_PARMS_Data data = parms.getParmData();
+        if ( !(data instanceof TPM_RSA_KEY_PARMS) )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_BAD_KEY_PROPERTY );
+        }
+        return (TPM_RSA_KEY_PARMS) data;
+    }
+
+    private static BigInteger getExponent( TPM_RSA_KEY_PARMS parms )
+    {
+        return (parms.getExponentSize() == 0) ? DEFAULT_EXPONENT
+            : parms.getExponent();
+    }
+
+    /**
+     * Rebuilds an RSA private key from its modulus, public exponent
+     * and one of its primes (which is what a wrapped TPM key holds).
+     */
+    private static RSAPrivateCrtKey privateKeyFromPrime( byte[] modulus,
+        BigInteger e, byte[] primeP ) throws CommandFailure
+    {
+        BigInteger n = CryptoUtil.createUnsignedBigInt( modulus );
+        BigInteger p = CryptoUtil.createUnsignedBigInt( primeP );
+        if ( (p.signum() == 0) || (n.mod( p ).signum() != 0) )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_DECRYPT_ERROR );
+        }
+        BigInteger q = n.divide( p );
+        BigInteger one = BigInteger.ONE;
+        try
+        {
+            BigInteger phi = p.subtract( one ).multiply( q.subtract( one ) );
+            BigInteger d = e.modInverse( phi );
+            RSAPrivateCrtKeySpec spec = new RSAPrivateCrtKeySpec( n, e, d, p,
+                q, d.mod( p.subtract( one ) ), d.mod( q.subtract( one ) ),
+                q.modInverse( p ) );
+            return (RSAPrivateCrtKey) KeyFactory.getInstance( "RSA" ).generatePrivate(
+                spec );
+        }
+        catch ( Exception ex )
+        {
+            throw new CommandFailure( TPM_RESULT.TPM_DECRYPT_ERROR );
+        }
+    }
+
+    /**
+     * A parsed command.
+     */
+    private static class Request
+    {
+        byte[] cmd;
+        int ordinal;
+        int numAuths;
+        int authOffset;
+        AuthIn[] auths;
+        int pos = TPMCommand.BODY_OFFSET;
+
+        Request( byte[] cmd ) throws CommandFailure
+        {
+            this.cmd = cmd;
+            if ( (cmd.length < TPMCommand.BODY_OFFSET)
+                || (ByteArrayUtil.readInt32BE( cmd, TPMIOStruct.PARAMSIZE_OFFSET ) != cmd.length) )
+            {
+                throw new CommandFailure( TPM_RESULT.TPM_BAD_PARAM_SIZE );
+            }
+            short tag = ByteArrayUtil.readShortBE( cmd, 0 );
+            if ( tag == TPMConsts.TPM_TAG_RQU_COMMAND )
+            {
+                this.numAuths = 0;
+            }
+            else if ( tag == TPMConsts.TPM_TAG_RQU_AUTH1_COMMAND )
+            {
+                this.numAuths = 1;
+            }
+            else if ( tag == TPMConsts.TPM_TAG_RQU_AUTH2_COMMAND )
+            {
+                this.numAuths = 2;
+            }
+            else
+            {
+                throw new CommandFailure( TPM_RESULT.TPM_BADTAG );
+            }
+            this.ordinal = ByteArrayUtil.readInt32BE( cmd,
+                TPMCommand.ORDINAL_OFFSET );
+            this.authOffset = cmd.length
+                - (this.numAuths * TPMAuthInData.STRUCT_SIZE);
+            if ( this.authOffset < TPMCommand.BODY_OFFSET )
+            {
+                throw new CommandFailure( TPM_RESULT.TPM_BAD_PARAM_SIZE );
+            }
+            this.auths = new AuthIn[this.numAuths];
+            for ( int i = 0; i < this.numAuths; i++ )
+            {
+                this.auths[i] = new AuthIn( cmd, this.authOffset
+                    + (i * TPMAuthInData.STRUCT_SIZE) );
+            }
+        }
+
+        void requireAuths( int n ) throws CommandFailure
+        {
+            if ( this.numAuths != n )
+            {
+                throw new CommandFailure( TPM_RESULT.TPM_BADTAG );
+            }
+        }
+
+        private void checkAvailable( int length ) throws CommandFailure
+        {
+            if ( (length < 0) || (this.pos + length > this.authOffset) )
+            {
+                throw new CommandFailure( TPM_RESULT.TPM_BAD_PARAM_SIZE );
+            }
+        }
+
+        int readInt() throws CommandFailure
+        {
+            this.checkAvailable( 4 );
+            int ret = ByteArrayUtil.readInt32BE( this.cmd, this.pos );
+            this.pos += 4;
+            return ret;
+        }
+
+        short readShort() throws CommandFailure
+        {
+            this.checkAvailable( 2 );
+            short ret = ByteArrayUtil.readShortBE( this.cmd, this.pos );
+            this.pos += 2;
+            return ret;
+        }
+
+        byte[] readBytes( int length ) throws CommandFailure
+        {
+            this.checkAvailable( length );
+            byte[] ret = ByteArrayUtil.readBytes( this.cmd, this.pos, length );
+            this.pos += length;
+            return ret;
+        }
+
+        void readStruct( ByteArrayable struct ) throws CommandFailure
+        {
+            struct.fromBytes( this.cmd, this.pos );
+            int length = struct.toBytes().length;
+            this.checkAvailable( length );
+            this.pos += length;
+        }
+
+        /**
+         * Returns SHA1( ordinal || params ), where params are
+         * the bytes of the command after the first skip bytes
+         * of the body (i.e., the handles), and before the
+         * authorization trailers.
+         */
+        byte[] inParamDigest( int skip )
+        {
+            MessageDigest md;
+            try
+            {
+                md = MessageDigest.getInstance( "SHA-1" );
+            }
+            catch ( GeneralSecurityException e )
+            {
+                throw new IllegalStateException( e.toString() );
+            }
+            md.update( this.cmd, TPMCommand.ORDINAL_OFFSET, 4 );
+            int start = TPMCommand.BODY_OFFSET + skip;
+            md.update( this.cmd, start, this.authOffset - start );
+            return md.digest();
+        }
+    }
+
+    /**
+     * The parts of a TPMAuthInData trailer, plus the session
+     * and secret it was checked against.
+     */
+    private static class AuthIn
+    {
+        int handle;
+        byte[] nonceOdd;
+        boolean continueSession;
+        byte[] authValue;
+
+        Session session;
+        byte[] secret;
+
+        AuthIn( byte[] cmd, int offset )
+        {
+            this.handle = ByteArrayUtil.readInt32BE( cmd, offset );
+            this.nonceOdd = ByteArrayUtil.readBytes( cmd, offset + 4, 20 );
+            this.continueSession = (cmd[offset + 24] != 0);
+            this.authValue = ByteArrayUtil.readBytes( cmd, offset + 25, 20 );
+        }
+
+        byte[] continueByte()
+        {
+            return new byte[] { (byte) (this.continueSession ? 1 : 0) };
+        }
+    }
+
+    /**
+     * What a command handler returns.
+     */
+    private static class Reply
+    {
+        // Output handles, which are not included in the HMAC
+        byte[] handles = EMPTY;
+        byte[] params;
+        // If null, this is computed from params
+        byte[] outParamDigest;
+
+        Reply( byte[] params )
+        {
+            this.params = params;
+        }
+    }
+
+    private static class Session
+    {
+        static final int OIAP = 1;
+        static final int OSAP = 2;
+        static final int TRANSPORT = 3;
+
+        int handle;
+        int type;
+        byte[] nonceEven;
+
+        // OSAP and transport sessions
+        byte[] sharedSecret;
+        short entityType;
+        int entityValue;
+
+        // transport sessions
+        byte[] transDigest;
+        TPM_CURRENT_TICKS startTicks;
+
+        Session( int handle, int type, byte[] nonceEven )
+        {
+            this.handle = handle;
+            this.type = type;
+            this.nonceEven = nonceEven;
+        }
+
+        boolean isFor( short entityType, int entityValue )
+        {
+            if ( entityType == TPMConsts.TPM_ET_OWNER )
+            {
+                return this.entityType == TPMConsts.TPM_ET_OWNER;
+            }
+            if ( entityType == TPMConsts.TPM_ET_KEYHANDLE )
+            {
+                return ((this.entityType == TPMConsts.TPM_ET_KEYHANDLE) || (this.entityType == TPMConsts.TPM_ET_SRK))
+                    && (this.entityValue == entityValue);
+            }
+            return (this.entityType == entityType)
+                && (this.entityValue == entityValue);
+        }
+    }
+
+    private static class Counter
+    {
+        int countID;
+        byte[] label;
+        int value;
+        byte[] auth;
+
+        Counter( int countID, byte[] label, int value, byte[] auth )
+        {
+            this.countID = countID;
+            this.label = label;
+            this.value = value;
+            this.auth = auth;
+        }
+
+        TPM_COUNTER_VALUE getValue()
+        {
+            return new TPM_COUNTER_VALUE( this.label, this.value );
+        }
+    }
+
+    /**
+     * A loaded key, with its private key.
+     */
+    private static class LoadedKey
+    {
+        TPM_KEY key;
+        byte[] usageAuth;
+        RSAPrivateCrtKey privateKey;
+
+        LoadedKey( TPM_KEY key, byte[] usageAuth, RSAPrivateCrtKey privateKey )
+        {
+            this.key = key;
+            this.usageAuth = usageAuth;
+            this.privateKey = privateKey;
+        }
+
+        TPM_PUBKEY getPubKey()
+        {
+            return new TPM_PUBKEY( this.key.getAlgorithmParms(),
+                this.key.getPubKey() );
+        }
+
+        void checkUsage( short... allowed ) throws CommandFailure
+        {
+            for ( short usage : allowed )
+            {
+                if ( this.key.getKeyUsage() == usage )
+                {
+                    return;
+                }
+            }
+            throw new CommandFailure( TPM_RESULT.TPM_INVALID_KEYUSAGE );
+        }
+
+        int getMaxOAEPDataSize()
+        {
+            // modulus length - 2 - 2 * (SHA-1 length)
+            return (this.privateKey.getModulus().bitLength() / 8) - 42;
+        }
+
+        byte[] encryptOAEP( byte[] data ) throws CommandFailure
+        {
+            try
+            {
+                RSAPublicKey pub = (RSAPublicKey) KeyFactory.getInstance(
+                    "RSA" ).generatePublic(
+                    new RSAPublicKeySpec( this.privateKey.getModulus(),
+                        this.privateKey.getPublicExponent() ) );
+                Cipher cipher = Cipher.getInstance( CryptoUtil.TPM_RSAESOAEP_SHA1_MGF1_ALGNAME );
+                cipher.init( Cipher.ENCRYPT_MODE, pub,
+                    CryptoUtil.TCPA_OAEPSHA1MGF1_SPEC );
+                return cipher.doFinal( data );
+            }
+            catch ( GeneralSecurityException e )
+            {
+                throw new CommandFailure( TPM_RESULT.TPM_BAD_DATASIZE );
+            }
+        }
+
+        byte[] decryptOAEP( byte[] data ) throws CommandFailure
+        {
+            try
+            {
+                Cipher cipher = Cipher.getInstance( CryptoUtil.TPM_RSAESOAEP_SHA1_MGF1_ALGNAME );
+                cipher.init( Cipher.DECRYPT_MODE, this.privateKey,
+                    CryptoUtil.TCPA_OAEPSHA1MGF1_SPEC );
+                return cipher.doFinal( data );
+            }
+            catch ( GeneralSecurityException e )
+            {
+                throw new CommandFailure( TPM_RESULT.TPM_DECRYPT_ERROR );
+            }
+        }
+
+        /**
+         * Signs a SHA-1 hash with PKCS#1 v1.5 (i.e., like SHA1withRSA).
+         */
+        byte[] signSHA1( byte[] hash ) throws CommandFailure
+        {
+            return this.signPKCS1( ByteArrayUtil.concat( SHA1_DIGEST_INFO, hash ) );
+        }
+
+        /**
+         * Signs data that is already DER-encoded (PKCS#1 v1.5, block type 1).
+         */
+        byte[] signPKCS1( byte[] data ) throws CommandFailure
+        {
+            try
+            {
+                Cipher cipher = Cipher.getInstance( "RSA/ECB/PKCS1Padding" );
+                cipher.init( Cipher.ENCRYPT_MODE, this.privateKey );
+                return cipher.doFinal( data );
+            }
+            catch ( GeneralSecurityException e )
+            {
+                throw new CommandFailure( TPM_RESULT.TPM_BAD_DATASIZE );
+            }
+        }
+    }
+
+    /**
+     * Thrown by command handlers to return an error code.
+     */
+    private static class CommandFailure extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        int returnCode;
+
+        CommandFailure( int returnCode )
+        {
+            super( "TPM error 0x" + Integer.toHexString( returnCode ) );
+            this.returnCode = returnCode;
+        }
+    }
+}
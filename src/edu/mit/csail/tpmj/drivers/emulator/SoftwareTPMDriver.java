@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers.emulator;
+
+import edu.mit.csail.tpmj.TPMIOException;
+import edu.mit.csail.tpmj.drivers.BasicTPMDriver;
+
+/**
+ * TPMDriver that executes commands on an in-process SoftwareTPM
+ * instead of a real TPM.  This is useful for testing, and for
+ * measuring the overhead of the library itself (with the latency
+ * of the TPM taken out, or replaced by a known model).
+ * <p>
+ * Several drivers can share one SoftwareTPM, e.g., to put a
+ * PooledTPMDriver over several "devices" which share state,
+ * or to give each its own.
+ */
+public class SoftwareTPMDriver extends BasicTPMDriver
+{
+    private SoftwareTPM tpm;
+
+    /**
+     * Creates a driver with a new SoftwareTPM.
+     * (Note that this generates an SRK, which can take a moment.)
+     */
+    public SoftwareTPMDriver()
+    {
+        this( new SoftwareTPM() );
+    }
+
+    public SoftwareTPMDriver( SoftwareTPM tpm )
+    {
+        this.tpm = tpm;
+    }
+
+    public SoftwareTPM getSoftwareTPM()
+    {
+        return this.tpm;
+    }
+
+    /**
+     * Unlike BasicTPMDriver.transmitBytesWithRetries(), this does not
+     * use the retry policy, since there is nothing to retry:
+     * the SoftwareTPM never fails with an I/O error.
+     */
+    @Override
+    protected byte[] transmitBytesWithRetries( byte[] inputBytes )
+        throws TPMIOException
+    {
+        return this.transmitBytes( inputBytes );
+    }
+
+    /**
+     * This does not hold the lock.  The SoftwareTPM executes one command
+     * at a time anyway, so this lets several drivers share it without
+     * an extra lock.
+     */
+    public byte[] transmitBytes( byte[] inputBytes ) throws TPMIOException
+    {
+        return this.tpm.execute( inputBytes );
+    }
+
+    @Override
+    public void cleanup()
+    {
+        this.shutdownDispatcher();
+    }
+}
@@ -30,43 +30,300 @@
 package edu.mit.csail.tpmj.drivers.linux;
 
 import edu.mit.csail.tpmj.TPMConsts;
+import edu.mit.csail.tpmj.TPMException;
 import edu.mit.csail.tpmj.TPMIOException;
+import edu.mit.csail.tpmj.commands.TPMCommand;
 import edu.mit.csail.tpmj.drivers.BasicTPMDriver;
+import edu.mit.csail.tpmj.drivers.TPMDeviceProfile;
+import edu.mit.csail.tpmj.drivers.TPMDurations;
+import edu.mit.csail.tpmj.drivers.TPMFramingException;
+import edu.mit.csail.tpmj.drivers.TPMTimeoutException;
 import edu.mit.csail.tpmj.structs.*;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.Debug;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
+/**
+ * TPMDriver for the Linux (and Mac OS X) character device.
+ * <p>
+ * By default, the device is opened and closed on every command,
+ * just like tpm-3.0.3 does.  In persistent mode, the device is
+ * opened once (in init(), or lazily on the first command),
+ * and the same FileChannel and direct buffers are reused until
+ * cleanup() is called.  If an I/O error occurs, the device is
+ * closed, and is automatically reopened on the next command.
+ * <p>
+ * A real TPM device returns the whole response in one read()
+ * (and discards whatever part of it is not read), so by default,
+ * the driver offers a full TPM_MAX_BUFF_SIZE buffer (which is reused
+ * between commands) to the first read, and then checks that the
+ * response is as long as its paramSize says.  In framed mode,
+ * the driver instead reads the 10-byte header first, and then exactly
+ * the rest of the response, which is needed for stand-ins that do not
+ * preserve message boundaries, such as FIFOs and ptys.
+ * <p>
+ * If timeouts are enabled (they are off by default), each command has 
+ * a timeout, based on the durations the TPM reports for the command's class
+ * (see TPMDurations, and getTimeout()).  These are gotten (from the device
+ * profile, or from the TPM) when the first command is sent.
+ * The device is accessed through a FileChannel,
+ * and a watchdog thread interrupts the thread using it if the command
+ * takes too long, which closes the channel.  The command then fails
+ * with a TPMTimeoutException, and the device is reopened for the next
+ * command.  Threads waiting for another thread's command to finish
+ * can also be interrupted, in which case their command is not sent
+ * (and transmit() throws a TPMIOException).
+ */
 public class LinuxTPMDriver extends BasicTPMDriver
 {
     public static final String DEFAULT_DEVICE_PATH = "/dev/tpm0";
 
+    /**
+     * A command times out after TIMEOUT_FACTOR times the duration
+     * of its class, but no sooner than MIN_TIMEOUT ms.
+     */
+    public static final int TIMEOUT_FACTOR = 2;
+    public static final long MIN_TIMEOUT = 1000;
+
     private String devicePath;
+    private volatile boolean persistent;
+    private volatile boolean framed = false;
+    private volatile boolean timeoutsEnabled = false;
+    private volatile TPMDurations durations = null;
+
+    private Watchdog watchdog = null;
+
+    // Response buffer for the non-framed, non-persistent case
+    private byte[] readBuf = null;
+
+    // FileChannel state (only non-null while the device is open)
+    private RandomAccessFile deviceFile = null;
+    private FileChannel deviceChannel = null;
+    private ByteBuffer requestBuf = null;
+    private ByteBuffer responseBuf = null;
+
     public LinuxTPMDriver()
     {
         this( DEFAULT_DEVICE_PATH );
     }
-    
+
     public LinuxTPMDriver( String devicePath )
+    {
+        this( devicePath, false );
+    }
+
+    /**
+     * @param devicePath
+     * @param persistent -- if true, keep the device open between commands
+     */
+    public LinuxTPMDriver( String devicePath, boolean persistent )
     {
         this.devicePath = devicePath;
+        this.persistent = persistent;
+    }
+
+    public String getDevicePath()
+    {
+        return this.devicePath;
+    }
+
+    @Override
+    protected String getProfileKey()
+    {
+        return "linux:" + this.devicePath;
+    }
+
+    public boolean isPersistent()
+    {
+        return this.persistent;
+    }
+
+    /**
+     * Turns persistent mode on or off.  Turning it off
+     * closes the device if it is currently open.
+     *
+     * @param persistent
+     */
+    public void setPersistent( boolean persistent )
+    {
+        this.lock.lock();
+        try
+        {
+            this.persistent = persistent;
+            if ( !persistent )
+            {
+                this.closeDevice();
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public boolean isFramed()
+    {
+        return this.framed;
+    }
+
+    /**
+     * Turns framed mode on or off.  (Do not use framed mode
+     * with a real TPM device.)
+     * 
+     * @param framed
+     */
+    public void setFramed( boolean framed )
+    {
+        this.framed = framed;
+    }
+
+    public boolean isTimeoutsEnabled()
+    {
+        return this.timeoutsEnabled;
+    }
+
+    /**
+     * Turns command timeouts on or off.  (With timeouts off, 
+     * a command can block forever if the TPM does not respond.)
+     * 
+     * @param timeoutsEnabled
+     */
+    public void setTimeoutsEnabled( boolean timeoutsEnabled )
+    {
+        this.timeoutsEnabled = timeoutsEnabled;
+    }
+
+    /**
+     * Returns the command durations used for the timeouts, or null if 
+     * they have not been gotten yet.
+     */
+    public TPMDurations getDurations()
+    {
+        return this.durations;
+    }
+
+    /**
+     * Sets the command durations used for the timeouts.
+     * (Otherwise, these are gotten when the first command is sent
+     * with timeouts enabled.  See initDurations().)
+     */
+    public void setDurations( TPMDurations durations )
+    {
+        this.durations = durations;
+    }
+
+    /**
+     * Returns the timeout (in ms) for the given ordinal.
+     */
+    public long getTimeout( int ordinal )
+    {
+        TPMDurations d = this.durations;
+        if ( d == null )
+        {
+            d = TPMDurations.DEFAULT;
+        }
+        long timeout = d.getDurationOfOrdinal( ordinal ) * TIMEOUT_FACTOR
+            / 1000;
+        return Math.max( timeout, MIN_TIMEOUT );
+    }
+
+    /**
+     * In persistent mode, opens the device before getting
+     * the TPM info.  (If opening fails here, it is retried
+     * on the first command.)
+     */
+    @Override
+    public void init()
+    {
+        this.lock.lock();
+        try
+        {
+            if ( this.persistent )
+            {
+                try
+                {
+                    this.openDevice();
+                }
+                catch ( IOException e )
+                {
+                    e.printStackTrace();
+                }
+            }
+            super.init();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
     }
 
     /**
      * This is the low-level interface to the TPM.
      * Typically, this would involve a call to the TDDL-level
      * device driver.
-     * 
-     * @param inputBytes 
+     *
+     * @param inputBytes
      * @return
      * @throws TPMIOException
      */
     public byte[] transmitBytes( byte[] inputBytes ) throws TPMIOException
     {
-        byte[] outputBuf = new byte[TPMConsts.TPM_MAX_BUFF_SIZE];
-        
+        this.lockForCommand( inputBytes );
+        try
+        {
+            if ( this.timeoutsEnabled && (this.durations == null) )
+            {
+                this.initDurations();
+            }
+            if ( this.persistent || this.timeoutsEnabled )
+            {
+                return this.transmitBytesOnChannel( inputBytes );
+            }
+            else
+            {
+                return this.transmitBytesOnStreams( inputBytes );
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Gets the command durations from the device profile, or from the TPM
+     * if there is no profile.  This is done when the first command is sent
+     * with timeouts enabled (rather than in init()), so that the extra
+     * TPM_GetCapability is only sent if the timeouts are used.
+     * (The lock must be held.)
+     */
+    private void initDurations()
+    {
+        // The TPM_GetCapability sent here times out with the default durations.
+        this.durations = TPMDurations.DEFAULT;
+        TPMDeviceProfile profile = this.getProfile();
+        this.durations = (profile != null) ? profile.getDurations().plausible()
+            : TPMDurations.query( this );
+        Debug.println( "Command durations: ", this.durations );
+    }
+
+    /**
+     * Opens the device, writes the command and reads the response
+     * using streams, and closes the device again.
+     * (This is only used in non-persistent mode, without timeouts.)
+     */
+    private byte[] transmitBytesOnStreams( byte[] inputBytes )
+        throws TPMIOException
+    {
+        byte[] outputBuf;
+
         RandomAccessFile raf = null;
         FileOutputStream os = null;
         FileInputStream is = null;
+        boolean sent = false;
 
         try
         {
@@ -87,29 +344,31 @@ public class LinuxTPMDriver extends BasicTPMDriver
             // write
             os.write( inputBytes );
             os.flush();
+            sent = true;
 
-            //          Note: the following does NOT work.
-            //          Apparently, if you call read but do not read everything available,
-            //          then the data disappears, and is not available the next time I call read.            
-            //          TODO: Try using a BufferedInputStream to see if it makes a difference.
-            //                      
-            //            // read
-            //            this.readAll( is, outputBuf, 0, 6 );
-            //            // TODO: check that tag is correct, if not, throw exception
-            //            
-            //            int paramSize = ByteArrayUtil.readInt32( outputBuf, 
-            //                                            TPMOutputStruct.PARAMSIZE_OFFSET );
-            //            if ( paramSize > outputBuf.length )
-            //            {
-            //                // there must be a problem 
-            //                // TODO: Throw a more specific type of exception?
-            //                throw new TPMIOException( "TPM returned paramSize too big.");
-            //            }
-            //            this.readAll( is, outputBuf, 6, paramSize - 6 );
-
-            // Just do what tpm-3.0.3 does, which is attempt to read
-            // the whole TPM_MAX_BUFF_SIZE (i.e., 4096)
-            this.readAll( is, outputBuf, 0, outputBuf.length );
+            if ( this.framed )
+            {
+                outputBuf = BasicTPMDriver.readFramedResponse( is );
+            }
+            else
+            {
+                // Note: reading the header first does NOT work with a real
+                // TPM device.  Apparently, if you call read but do not read 
+                // everything available, then the data disappears, and is 
+                // not available the next time you call read.
+                // So just do what tpm-3.0.3 does, which is attempt to read
+                // the whole TPM_MAX_BUFF_SIZE (i.e., 4096)
+                if ( this.readBuf == null )
+                {
+                    this.readBuf = new byte[TPMConsts.TPM_MAX_BUFF_SIZE];
+                }
+                int length = this.readAll( is, this.readBuf, 0,
+                    this.readBuf.length );
+                int paramSize = BasicTPMDriver.checkResponseHeader(
+                    this.readBuf, length );
+                outputBuf = new byte[paramSize];
+                System.arraycopy( this.readBuf, 0, outputBuf, 0, paramSize );
+            }
 
             is.close();
             is = null;
@@ -120,7 +379,9 @@ public class LinuxTPMDriver extends BasicTPMDriver
         }
         catch ( Exception e )
         {
-            throw new TPMIOException( inputBytes, e );
+            TPMIOException ioe = new TPMIOException( inputBytes, e );
+            ioe.setCommandSent( sent );
+            throw ioe;
         }
         finally
         {
@@ -158,12 +419,243 @@ public class LinuxTPMDriver extends BasicTPMDriver
                 }
             }
         }
-        
-        outputBuf = BasicTPMDriver.truncateArrayToParamSize( outputBuf );
-        
+
         return outputBuf;
     }
 
+    /**
+     * Writes the command and reads the response through the device's
+     * FileChannel (opening it if necessary), using the driver's direct 
+     * buffers.  In persistent mode, the device is left open.
+     * On error, the device is closed so that the next call 
+     * (e.g., a retry from BasicTPMDriver.transmit) reopens it.
+     * If timeouts are enabled, the watchdog interrupts this thread
+     * if the command takes too long, which closes the channel.
+     * (An error after the command was written is marked as such;
+     * see TPMIOException.isCommandSent().)
+     */
+    private byte[] transmitBytesOnChannel( byte[] inputBytes )
+        throws TPMIOException
+    {
+        Watchdog dog = null;
+        long timeout = 0;
+        boolean sent = false;
+        try
+        {
+            if ( this.deviceChannel == null )
+            {
+                this.openDevice();
+            }
+
+            if ( inputBytes.length > this.requestBuf.capacity() )
+            {
+                throw new IOException( "Command too long: " + inputBytes.length
+                    + " bytes" );
+            }
+
+            if ( this.timeoutsEnabled )
+            {
+                int ordinal = 0;
+                if ( inputBytes.length >= TPMCommand.ORDINAL_OFFSET + 4 )
+                {
+                    ordinal = ByteArrayUtil.readInt32BE( inputBytes,
+                        TPMCommand.ORDINAL_OFFSET );
+                }
+                timeout = this.getTimeout( ordinal );
+                dog = this.getWatchdog();
+                dog.arm( timeout );
+            }
+
+            // write
+            this.requestBuf.clear();
+            this.requestBuf.put( inputBytes );
+            this.requestBuf.flip();
+            while ( this.requestBuf.hasRemaining() )
+            {
+                this.deviceChannel.write( this.requestBuf );
+            }
+            sent = true;
+
+            // read
+            this.responseBuf.clear();
+            boolean framed = this.framed;
+            if ( framed )
+            {
+                this.responseBuf.limit( TPMOutputStruct.BODY_OFFSET );
+                this.readFully( this.deviceChannel, this.responseBuf );
+                this.responseBuf.limit( this.getResponseParamSize( this.responseBuf ) );
+                this.readFully( this.deviceChannel, this.responseBuf );
+            }
+            else
+            {
+                this.readResponse( this.deviceChannel, this.responseBuf );
+            }
+
+            if ( dog != null )
+            {
+                // Note: this has to be done before using the channel
+                // again.  If the watchdog fired after the response was
+                // read, the command succeeded anyway.
+                dog.disarm();
+                dog = null;
+            }
+
+            int paramSize;
+            if ( framed )
+            {
+                paramSize = this.responseBuf.position();
+            }
+            else
+            {
+                if ( this.responseBuf.position() < TPMOutputStruct.BODY_OFFSET )
+                {
+                    throw new TPMFramingException( "Response too short: "
+                        + this.responseBuf.position() + " bytes" );
+                }
+                paramSize = this.getResponseParamSize( this.responseBuf );
+                if ( paramSize > this.responseBuf.position() )
+                {
+                    throw new TPMFramingException(
+                        "Response truncated: paramSize is " + paramSize
+                            + ", but only " + this.responseBuf.position()
+                            + " bytes were read" );
+                }
+            }
+            byte[] outputBuf = new byte[paramSize];
+            this.responseBuf.flip();
+            this.responseBuf.get( outputBuf, 0, paramSize );
+
+            if ( !this.persistent )
+            {
+                this.closeDevice();
+            }
+            return outputBuf;
+        }
+        catch ( IOException e )
+        {
+            boolean timedOut = (dog != null) && dog.disarm();
+            this.closeDevice();
+            if ( timedOut )
+            {
+                throw new TPMTimeoutException( inputBytes, timeout );
+            }
+            TPMIOException ioe = new TPMIOException( inputBytes, e );
+            ioe.setCommandSent( sent );
+            throw ioe;
+        }
+    }
+
+    /**
+     * Reads from the channel until the whole response (as given
+     * by its paramSize) has arrived, the buffer is full, or the
+     * device has nothing more to give.  A real TPM device returns
+     * the whole response in one read, but a stand-in such as a
+     * FIFO or pty may split it up.
+     */
+    private void readResponse( FileChannel channel, ByteBuffer buf )
+        throws IOException
+    {
+        while ( buf.hasRemaining() )
+        {
+            int bytesRead = channel.read( buf );
+            if ( bytesRead < 0 )
+            {
+                if ( buf.position() == 0 )
+                {
+                    throw new EOFException( "TPM device closed: "
+                        + this.devicePath );
+                }
+                break;
+            }
+            else if ( bytesRead == 0 )
+            {
+                break;
+            }
+
+            int pos = buf.position();
+            if ( (pos >= TPMIOStruct.PARAMSIZE_OFFSET + 4)
+                && (pos >= buf.getInt( TPMIOStruct.PARAMSIZE_OFFSET )) )
+            {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reads from the channel until the buffer's limit is reached.
+     */
+    private void readFully( FileChannel channel, ByteBuffer buf )
+        throws IOException
+    {
+        while ( buf.hasRemaining() )
+        {
+            if ( channel.read( buf ) < 0 )
+            {
+                throw new EOFException( "TPM device closed after "
+                    + buf.position() + " bytes of response: "
+                    + this.devicePath );
+            }
+        }
+    }
+
+    /**
+     * Checks the header at the start of buf, and returns the paramSize.
+     */
+    private int getResponseParamSize( ByteBuffer buf )
+        throws TPMFramingException
+    {
+        return BasicTPMDriver.checkResponseHeader( buf.getShort( 0 ),
+            buf.getInt( TPMIOStruct.PARAMSIZE_OFFSET ) );
+    }
+
+    /**
+     * Opens the device and allocates the reusable buffers (if not yet open).
+     * (The lock must be held.)
+     */
+    private void openDevice() throws IOException
+    {
+        if ( this.deviceChannel != null )
+        {
+            return;
+        }
+        Debug.println( "Opening TPM device ", this.devicePath );
+
+        // NOTE: as in the non-persistent case, a single "rw"
+        // RandomAccessFile is used so that reads and writes
+        // go through the same file descriptor.
+        this.deviceFile = new RandomAccessFile( this.devicePath, "rw" );
+        this.deviceChannel = this.deviceFile.getChannel();
+        if ( this.requestBuf == null )
+        {
+            this.requestBuf = ByteBuffer.allocateDirect( TPMConsts.TPM_MAX_BUFF_SIZE );
+            this.responseBuf = ByteBuffer.allocateDirect( TPMConsts.TPM_MAX_BUFF_SIZE );
+        }
+    }
+
+    /**
+     * Closes the device if it is open.  The buffers are kept
+     * so that they can be reused when the device is reopened.
+     * (The lock must be held.)
+     */
+    private void closeDevice()
+    {
+        if ( this.deviceFile != null )
+        {
+            Debug.println( "Closing TPM device ", this.devicePath );
+            try
+            {
+                // Note: this also closes deviceChannel
+                this.deviceFile.close();
+            }
+            catch ( IOException e )
+            {
+                e.printStackTrace();
+            }
+        }
+        this.deviceFile = null;
+        this.deviceChannel = null;
+    }
+
     /**
      * Reads and ignores all currently available characters on
      * the TPM device. 
@@ -190,14 +682,17 @@ public class LinuxTPMDriver extends BasicTPMDriver
         }
     }
 
-    private void readAll( InputStream is, byte[] buf, int off, int len )
+    private int readAll( InputStream is, byte[] buf, int off, int len )
         throws IOException
     {
         // Note: it doesn't seem to help if you retry anyway.
-        this.readAll( is, buf, off, len, 0, 0 );
+        return this.readAll( is, buf, off, len, 0, 0 );
     }
 
-    private void readAll( InputStream is, byte[] buf, int off, int len,
+    /**
+     * Returns the number of bytes read.
+     */
+    private int readAll( InputStream is, byte[] buf, int off, int len,
         int retries, int delay ) throws IOException
     {
         // TODO: Add Debugging mechanism
@@ -236,12 +731,137 @@ public class LinuxTPMDriver extends BasicTPMDriver
             }
         }
         while ( (bytesLeft > 0) && (curOff < buf.length) && (retries >= 0) );
+
+        return totalBytesRead;
     }
 
+    private Watchdog getWatchdog()
+    {
+        if ( this.watchdog == null )
+        {
+            this.watchdog = new Watchdog( this.devicePath );
+            this.watchdog.start();
+        }
+        return this.watchdog;
+    }
+
+    /**
+     * Stops the transmitAsync dispatcher thread (if any), and
+     * closes the device if it was left open in persistent mode.
+     */
     public void cleanup()
     {
-        // Do nothing ...
-        
+        this.shutdownDispatcher();
+        this.lock.lock();
+        try
+        {
+            this.closeDevice();
+            this.requestBuf = null;
+            this.responseBuf = null;
+            this.readBuf = null;
+            if ( this.watchdog != null )
+            {
+                this.watchdog.shutdown();
+                this.watchdog = null;
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Interrupts the thread using the device if its command takes
+     * longer than the timeout.  (Interrupting a thread that is blocked
+     * on a FileChannel closes the channel, and makes the read or
+     * write throw a ClosedByInterruptException.)
+     */
+    private static class Watchdog extends Thread
+    {
+        private Thread target = null;
+        private long deadline;
+        private boolean fired = false;
+        private boolean wasInterrupted = false;
+        private boolean stopped = false;
+
+        Watchdog( String devicePath )
+        {
+            super( "LinuxTPMDriver watchdog (" + devicePath + ")" );
+            this.setDaemon( true );
+        }
+
+        /**
+         * Starts watching the current thread.
+         * 
+         * @param timeout -- in ms
+         */
+        synchronized void arm( long timeout )
+        {
+            this.target = Thread.currentThread();
+            this.deadline = System.nanoTime() + timeout * 1000000L;
+            this.fired = false;
+            this.notify();
+        }
+
+        /**
+         * Stops watching the current thread.  Returns true if the
+         * watchdog fired, in which case the watchdog's interrupt is cleared.
+         * (If the thread had already been interrupted by someone else
+         * when the watchdog fired, its interrupt status is left set,
+         * so that the caller sees it.)
+         */
+        synchronized boolean disarm()
+        {
+            this.target = null;
+            boolean ret = this.fired;
+            if ( this.fired )
+            {
+                this.fired = false;
+                if ( !this.wasInterrupted )
+                {
+                    Thread.interrupted();
+                }
+            }
+            return ret;
+        }
+
+        synchronized void shutdown()
+        {
+            this.stopped = true;
+            this.notify();
+        }
+
+        public synchronized void run()
+        {
+            try
+            {
+                while ( !this.stopped )
+                {
+                    if ( this.target == null )
+                    {
+                        this.wait();
+                        continue;
+                    }
+                    long remaining = this.deadline - System.nanoTime();
+                    if ( remaining > 0 )
+                    {
+                        this.wait( remaining / 1000000L + 1 );
+                    }
+                    else
+                    {
+                        this.fired = true;
+                        this.wasInterrupted = this.target.isInterrupted();
+                        this.target.interrupt();
+                        this.target = null;
+                    }
+                }
+            }
+            catch ( InterruptedException e )
+            {
+                // stop
+            }
+        }
     }
     
     
@@ -0,0 +1,430 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import edu.mit.csail.tpmj.TPMConsts;
+import edu.mit.csail.tpmj.TPMException;
+import edu.mit.csail.tpmj.TPMIOException;
+import edu.mit.csail.tpmj.drivers.BasicTPMDriver;
+import edu.mit.csail.tpmj.drivers.TPMDriver;
+import edu.mit.csail.tpmj.drivers.TPMFuture;
+import edu.mit.csail.tpmj.structs.TPMInputStruct;
+import edu.mit.csail.tpmj.structs.TPMOutputStruct;
+import edu.mit.csail.tpmj.structs.TPM_STRUCT_VER;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+
+/**
+ * A TPMDriver wrapper that keeps per-ordinal metrics of the commands
+ * passing through it: counts, errors (by return code), I/O errors,
+ * bytes in and out, and latency histograms (with p50, p99 and p999).
+ * Recording only uses atomic counters, so it adds very little overhead,
+ * and does not make concurrent callers wait for each other.
+ * <p>
+ * The metrics can be read with getSnapshots(), or through JMX after
+ * calling registerMBeans().  (The totals are registered as
+ * edu.mit.csail.tpmj:type=TPMDriverMetrics,name=...,
+ * and each ordinal as edu.mit.csail.tpmj:type=TPMDriverMetrics,name=...,ordinal=....)
+ * <p>
+ * Latency is measured from when the command is passed to the
+ * underlying driver until its response comes back, so it includes
+ * time spent waiting for other commands to finish.
+ * <p>
+ * Note: transmitAsync() is passed directly to the underlying driver,
+ * and is not measured.
+ */
+public class MetricsTPMDriverWrapper implements TPMDriver,
+    MetricsTPMDriverWrapperMBean
+{
+    public static final String JMX_DOMAIN = "edu.mit.csail.tpmj";
+
+    private static HashMap<Integer, String> ordinalNames = null;
+
+    public TPMDriver tpmDriver;
+
+    private ConcurrentHashMap<Integer, TPMOrdinalMetrics> metrics = new ConcurrentHashMap<Integer, TPMOrdinalMetrics>();
+    private volatile long startTime = System.currentTimeMillis();
+    private AtomicInteger inFlight = new AtomicInteger();
+    private AtomicInteger maxInFlight = new AtomicInteger();
+
+    // JMX (null if not registered)
+    private MBeanServer mbeanServer = null;
+    private String mbeanName = null;
+
+    public MetricsTPMDriverWrapper( TPMDriver tpmDriver )
+    {
+        super();
+        this.tpmDriver = tpmDriver;
+    }
+
+    /**
+     * Returns the name of the TPM_ORD_ constant with the given value
+     * (e.g., "TPM_ORD_PcrRead"), or the value in hex if there is none.
+     */
+    public static synchronized String getOrdinalName( int ordinal )
+    {
+        if ( ordinalNames == null )
+        {
+            ordinalNames = new HashMap<Integer, String>();
+            for ( Field f : TPMConsts.class.getFields() )
+            {
+                if ( f.getName().startsWith( "TPM_ORD_" )
+                    && (f.getType() == int.class)
+                    && Modifier.isStatic( f.getModifiers() ) )
+                {
+                    try
+                    {
+                        ordinalNames.put( f.getInt( null ), f.getName() );
+                    }
+                    catch ( IllegalAccessException e )
+                    {
+                        // skip it
+                    }
+                }
+            }
+        }
+        String name = ordinalNames.get( ordinal );
+        return (name != null) ? name : "0x" + Integer.toHexString( ordinal );
+    }
+
+    // Metrics
+
+    /**
+     * Returns the metrics for the given ordinal (creating them if needed).
+     */
+    public TPMOrdinalMetrics getOrdinalMetrics( int ordinal )
+    {
+        TPMOrdinalMetrics m = this.metrics.get( ordinal );
+        if ( m == null )
+        {
+            TPMOrdinalMetrics newMetrics = new TPMOrdinalMetrics( ordinal );
+            m = this.metrics.putIfAbsent( ordinal, newMetrics );
+            if ( m == null )
+            {
+                m = newMetrics;
+                this.registerOrdinalMBean( m );
+            }
+        }
+        return m;
+    }
+
+    /**
+     * Returns a snapshot of the metrics of each ordinal
+     * that has been recorded (sorted by ordinal).
+     */
+    public List<TPMMetricsSnapshot> getSnapshots()
+    {
+        ArrayList<TPMMetricsSnapshot> ret = new ArrayList<TPMMetricsSnapshot>();
+        for ( TPMOrdinalMetrics m : new TreeMap<Integer, TPMOrdinalMetrics>(
+            this.metrics ).values() )
+        {
+            ret.add( m.snapshot() );
+        }
+        return ret;
+    }
+
+    public long getCount()
+    {
+        long n = 0;
+        for ( TPMOrdinalMetrics m : this.metrics.values() )
+        {
+            n += m.getCount();
+        }
+        return n;
+    }
+
+    public long getErrorCount()
+    {
+        long n = 0;
+        for ( TPMOrdinalMetrics m : this.metrics.values() )
+        {
+            n += m.getErrorCount();
+        }
+        return n;
+    }
+
+    public long getIOErrorCount()
+    {
+        long n = 0;
+        for ( TPMOrdinalMetrics m : this.metrics.values() )
+        {
+            n += m.getIOErrorCount();
+        }
+        return n;
+    }
+
+    public double getCommandsPerSecond()
+    {
+        long elapsed = System.currentTimeMillis() - this.startTime;
+        return (elapsed <= 0) ? 0 : this.getCount() * 1000.0 / elapsed;
+    }
+
+    public int getInFlight()
+    {
+        return this.inFlight.get();
+    }
+
+    public int getMaxInFlight()
+    {
+        return this.maxInFlight.get();
+    }
+
+    public String[] getOrdinals()
+    {
+        ArrayList<String> ret = new ArrayList<String>();
+        for ( Integer ordinal : this.metrics.keySet() )
+        {
+            ret.add( "0x" + Integer.toHexString( ordinal ) );
+        }
+        return ret.toArray( new String[ret.size()] );
+    }
+
+    /**
+     * Clears all the metrics.
+     */
+    public void reset()
+    {
+        for ( TPMOrdinalMetrics m : this.metrics.values() )
+        {
+            m.reset();
+        }
+        this.maxInFlight.set( this.inFlight.get() );
+        this.startTime = System.currentTimeMillis();
+    }
+
+    // JMX
+
+    /**
+     * Registers the metrics with the platform MBean server
+     * under the given name.  (Ordinals that are first used later
+     * are registered then.)
+     *
+     * @param name
+     * @throws JMException
+     */
+    public synchronized void registerMBeans( String name ) throws JMException
+    {
+        this.unregisterMBeans();
+        this.mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        this.mbeanName = name;
+        this.mbeanServer.registerMBean( this, this.getObjectName( null ) );
+        for ( TPMOrdinalMetrics m : this.metrics.values() )
+        {
+            this.registerOrdinalMBean( m );
+        }
+    }
+
+    public synchronized void unregisterMBeans()
+    {
+        if ( this.mbeanServer == null )
+        {
+            return;
+        }
+        try
+        {
+            this.mbeanServer.unregisterMBean( this.getObjectName( null ) );
+            for ( TPMOrdinalMetrics m : this.metrics.values() )
+            {
+                ObjectName on = this.getObjectName( m );
+                if ( this.mbeanServer.isRegistered( on ) )
+                {
+                    this.mbeanServer.unregisterMBean( on );
+                }
+            }
+        }
+        catch ( JMException e )
+        {
+            // already gone
+        }
+        this.mbeanServer = null;
+        this.mbeanName = null;
+    }
+
+    private synchronized void registerOrdinalMBean( TPMOrdinalMetrics m )
+    {
+        if ( this.mbeanServer == null )
+        {
+            return;
+        }
+        try
+        {
+            ObjectName on = this.getObjectName( m );
+            if ( !this.mbeanServer.isRegistered( on ) )
+            {
+                this.mbeanServer.registerMBean( m, on );
+            }
+        }
+        catch ( JMException e )
+        {
+            // The metrics are still recorded, just not visible through JMX.
+            System.err.println( "MetricsTPMDriverWrapper: could not register "
+                + m.getOrdinalName() + " (" + e + ")" );
+        }
+    }
+
+    private ObjectName getObjectName( TPMOrdinalMetrics m ) throws JMException
+    {
+        String s = JMX_DOMAIN + ":type=TPMDriverMetrics,name="
+            + ObjectName.quote( this.mbeanName );
+        if ( m != null )
+        {
+            s += ",ordinal=" + m.getOrdinalName();
+        }
+        return new ObjectName( s );
+    }
+
+    // TPMDriver methods
+
+    public TPMOutputStruct transmit( TPMInputStruct input ) throws TPMException
+    {
+        return BasicTPMDriver.checkReturnCode( input, this.transmitUnchecked( input ) );
+    }
+
+    public TPMOutputStruct transmitUnchecked( TPMInputStruct input )
+        throws TPMException
+    {
+        TPMOrdinalMetrics m = this.getOrdinalMetrics( input.getOrdinal() );
+        int inSize = input.getParamSize();
+        this.enter();
+        long start = System.nanoTime();
+        try
+        {
+            TPMOutputStruct output = this.tpmDriver.transmitUnchecked( input );
+            m.record( output.getReturnCode(), inSize, output.getParamSize(),
+                (System.nanoTime() - start) / 1000 );
+            return output;
+        }
+        catch ( TPMException e )
+        {
+            m.recordIOError( inSize, (System.nanoTime() - start) / 1000 );
+            throw e;
+        }
+        finally
+        {
+            this.inFlight.decrementAndGet();
+        }
+    }
+
+    public byte[] transmitBytes( byte[] inputBytes ) throws TPMIOException
+    {
+        TPMOrdinalMetrics m = this.getOrdinalMetrics( ByteArrayUtil.readInt32BE(
+            inputBytes, TPMInputStruct.ORDINAL_OFFSET ) );
+        this.enter();
+        long start = System.nanoTime();
+        try
+        {
+            byte[] outputBytes = this.tpmDriver.transmitBytes( inputBytes );
+            long micros = (System.nanoTime() - start) / 1000;
+            if ( (outputBytes == null)
+                || (outputBytes.length < TPMOutputStruct.BODY_OFFSET) )
+            {
+                m.recordIOError( inputBytes.length, micros );
+            }
+            else
+            {
+                m.record( ByteArrayUtil.readInt32BE( outputBytes,
+                    TPMOutputStruct.RETURNCODE_OFFSET ), inputBytes.length,
+                    outputBytes.length, micros );
+            }
+            return outputBytes;
+        }
+        catch ( TPMIOException e )
+        {
+            m.recordIOError( inputBytes.length,
+                (System.nanoTime() - start) / 1000 );
+            throw e;
+        }
+        finally
+        {
+            this.inFlight.decrementAndGet();
+        }
+    }
+
+    private void enter()
+    {
+        int n = this.inFlight.incrementAndGet();
+        int max = this.maxInFlight.get();
+        while ( (n > max) && !this.maxInFlight.compareAndSet( max, n ) )
+        {
+            max = this.maxInFlight.get();
+        }
+    }
+
+    public TPMFuture<TPMOutputStruct> transmitAsync( TPMInputStruct input )
+        throws TPMException
+    {
+        return this.tpmDriver.transmitAsync( input );
+    }
+
+    public void init()
+    {
+        this.tpmDriver.init();
+    }
+
+    /**
+     * Unregisters the MBeans (if any), and cleans up the underlying driver.
+     */
+    public void cleanup()
+    {
+        this.unregisterMBeans();
+        this.tpmDriver.cleanup();
+    }
+
+    public int getTPMManufacturer()
+    {
+        return this.tpmDriver.getTPMManufacturer();
+    }
+
+    public TPM_STRUCT_VER getTPMVersion()
+    {
+        return this.tpmDriver.getTPMVersion();
+    }
+
+    public boolean isTPM11()
+    {
+        return this.tpmDriver.isTPM11();
+    }
+
+    public boolean isTPM12()
+    {
+        return this.tpmDriver.isTPM12();
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies (in microseconds) that can be recorded into
+ * by many threads at once without locking.
+ * <p>
+ * Latencies under 64 us get one bucket each.  Above that, each power
+ * of two is split into 32 buckets, so percentiles are accurate to
+ * about 3%.  Latencies above about 2^40 us (12 days) are counted
+ * in the last bucket.
+ */
+public class TPMLatencyHistogram
+{
+    private static final int LINEAR_BUCKETS = 64;
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MSB = 40;
+    private static final int NUM_BUCKETS = LINEAR_BUCKETS
+        + (MAX_MSB - 5) * SUB_BUCKETS;
+
+    private AtomicLongArray counts = new AtomicLongArray( NUM_BUCKETS );
+    private AtomicLong count = new AtomicLong();
+    private AtomicLong total = new AtomicLong();
+    private AtomicLong max = new AtomicLong();
+
+    /**
+     * Records one latency.
+     *
+     * @param micros
+     */
+    public void record( long micros )
+    {
+        if ( micros < 0 )
+        {
+            micros = 0;
+        }
+        this.counts.incrementAndGet( getBucket( micros ) );
+        this.count.incrementAndGet();
+        this.total.addAndGet( micros );
+        long m = this.max.get();
+        while ( (micros > m) && !this.max.compareAndSet( m, micros ) )
+        {
+            m = this.max.get();
+        }
+    }
+
+    public long getCount()
+    {
+        return this.count.get();
+    }
+
+    public long getMax()
+    {
+        return this.max.get();
+    }
+
+    public double getMean()
+    {
+        long n = this.count.get();
+        return (n == 0) ? 0 : ((double) this.total.get()) / n;
+    }
+
+    /**
+     * Returns the latency (in us) below which the given fraction
+     * (e.g., 0.99) of the recorded latencies fall, or 0 if nothing
+     * has been recorded.  (This is the upper bound of the bucket
+     * containing that latency, but never more than the maximum.)
+     */
+    public long getPercentile( double fraction )
+    {
+        long[] snapshot = new long[NUM_BUCKETS];
+        long n = 0;
+        for ( int i = 0; i < NUM_BUCKETS; i++ )
+        {
+            snapshot[i] = this.counts.get( i );
+            n += snapshot[i];
+        }
+        if ( n == 0 )
+        {
+            return 0;
+        }
+        long rank = (long) Math.ceil( fraction * n );
+        if ( rank < 1 )
+        {
+            rank = 1;
+        }
+        long seen = 0;
+        for ( int i = 0; i < NUM_BUCKETS; i++ )
+        {
+            seen += snapshot[i];
+            if ( seen >= rank )
+            {
+                return Math.min( getBucketUpperBound( i ), this.max.get() );
+            }
+        }
+        return this.max.get();
+    }
+
+    /**
+     * Clears the histogram.  (Latencies recorded during the reset
+     * may or may not be kept.)
+     */
+    public void reset()
+    {
+        for ( int i = 0; i < NUM_BUCKETS; i++ )
+        {
+            this.counts.set( i, 0 );
+        }
+        this.count.set( 0 );
+        this.total.set( 0 );
+        this.max.set( 0 );
+    }
+
+    private static int getBucket( long micros )
+    {
+        if ( micros < LINEAR_BUCKETS )
+        {
+            return (int) micros;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros( micros );
+        if ( msb > MAX_MSB )
+        {
+            return NUM_BUCKETS - 1;
+        }
+        int shift = msb - SUB_BUCKET_BITS;
+        int sub = (int) (micros >> shift) - SUB_BUCKETS;
+        return LINEAR_BUCKETS + (msb - 6) * SUB_BUCKETS + sub;
+    }
+
+    private static long getBucketUpperBound( int bucket )
+    {
+        if ( bucket < LINEAR_BUCKETS )
+        {
+            return bucket;
+        }
+        int msb = (bucket - LINEAR_BUCKETS) / SUB_BUCKETS + 6;
+        int sub = (bucket - LINEAR_BUCKETS) % SUB_BUCKETS;
+        int shift = msb - SUB_BUCKET_BITS;
+        return ((long) (SUB_BUCKETS + sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+
+import edu.mit.csail.tpmj.structs.TPM_RESULT;
+
+/**
+ * The metrics for one ordinal at one point in time
+ * (latencies are in microseconds).
+ * <p>
+ * The values are copied one at a time from the live counters,
+ * so they may not be exactly consistent with each other if commands
+ * are being recorded while the snapshot is taken.
+ *
+ * @see MetricsTPMDriverWrapper#getSnapshots()
+ */
+public class TPMMetricsSnapshot
+{
+    private long time;
+    private int ordinal;
+    private long count;
+    private long errorCount;
+    private long ioErrorCount;
+    private long bytesIn;
+    private long bytesOut;
+    private Map<Integer, Long> errorCounts;
+    private double meanLatency;
+    private long p50Latency;
+    private long p99Latency;
+    private long p999Latency;
+    private long maxLatency;
+
+    public TPMMetricsSnapshot( TPMOrdinalMetrics metrics )
+    {
+        this.time = System.currentTimeMillis();
+        this.ordinal = metrics.getOrdinal();
+        this.count = metrics.getCount();
+        this.errorCount = metrics.getErrorCount();
+        this.ioErrorCount = metrics.getIOErrorCount();
+        this.bytesIn = metrics.getBytesIn();
+        this.bytesOut = metrics.getBytesOut();
+        this.errorCounts = Collections.unmodifiableMap( metrics.getErrorCountMap() );
+        this.meanLatency = metrics.getMeanLatency();
+        this.p50Latency = metrics.getP50Latency();
+        this.p99Latency = metrics.getP99Latency();
+        this.p999Latency = metrics.getP999Latency();
+        this.maxLatency = metrics.getMaxLatency();
+    }
+
+    /**
+     * Returns the time the snapshot was taken
+     * (as in System.currentTimeMillis()).
+     */
+    public long getTime()
+    {
+        return this.time;
+    }
+
+    public int getOrdinal()
+    {
+        return this.ordinal;
+    }
+
+    public String getOrdinalName()
+    {
+        return MetricsTPMDriverWrapper.getOrdinalName( this.ordinal );
+    }
+
+    public long getCount()
+    {
+        return this.count;
+    }
+
+    public long getErrorCount()
+    {
+        return this.errorCount;
+    }
+
+    public long getIOErrorCount()
+    {
+        return this.ioErrorCount;
+    }
+
+    public long getBytesIn()
+    {
+        return this.bytesIn;
+    }
+
+    public long getBytesOut()
+    {
+        return this.bytesOut;
+    }
+
+    /**
+     * Returns the number of errors for each return code.
+     */
+    public Map<Integer, Long> getErrorCounts()
+    {
+        return this.errorCounts;
+    }
+
+    public double getMeanLatency()
+    {
+        return this.meanLatency;
+    }
+
+    public long getP50Latency()
+    {
+        return this.p50Latency;
+    }
+
+    public long getP99Latency()
+    {
+        return this.p99Latency;
+    }
+
+    public long getP999Latency()
+    {
+        return this.p999Latency;
+    }
+
+    public long getMaxLatency()
+    {
+        return this.maxLatency;
+    }
+
+    private String getErrorCountsString()
+    {
+        StringBuilder sb = new StringBuilder( "{" );
+        for ( Map.Entry<Integer, Long> e : this.errorCounts.entrySet() )
+        {
+            if ( sb.length() > 1 )
+            {
+                sb.append( ", " );
+            }
+            sb.append( TPM_RESULT.getErrorName( e.getKey() ) ).append( "=" ).append(
+                e.getValue() );
+        }
+        return sb.append( "}" ).toString();
+    }
+
+    public String toString()
+    {
+        return this.getOrdinalName() + ": count=" + this.count + ", errors="
+            + this.errorCount + " " + this.getErrorCountsString() + ", ioErrors="
+            + this.ioErrorCount + ", bytes in/out=" + this.bytesIn + "/"
+            + this.bytesOut + ", latency us mean/p50/p99/p999/max="
+            + Math.round( this.meanLatency ) + "/" + this.p50Latency + "/"
+            + this.p99Latency + "/" + this.p999Latency + "/" + this.maxLatency;
+    }
+}
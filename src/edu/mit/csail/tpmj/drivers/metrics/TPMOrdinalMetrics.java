@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers.metrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.mit.csail.tpmj.structs.TPM_RESULT;
+
+/**
+ * The counters and latency histogram for one ordinal.
+ * All of these can be updated by many threads at once without locking.
+ */
+public class TPMOrdinalMetrics implements TPMOrdinalMetricsMBean
+{
+    private int ordinal;
+    private AtomicLong count = new AtomicLong();
+    private AtomicLong errorCount = new AtomicLong();
+    private AtomicLong ioErrorCount = new AtomicLong();
+    private AtomicLong bytesIn = new AtomicLong();
+    private AtomicLong bytesOut = new AtomicLong();
+    private ConcurrentHashMap<Integer, AtomicLong> errorCounts = new ConcurrentHashMap<Integer, AtomicLong>();
+    private TPMLatencyHistogram latency = new TPMLatencyHistogram();
+
+    public TPMOrdinalMetrics( int ordinal )
+    {
+        this.ordinal = ordinal;
+    }
+
+    /**
+     * Records a command that got a response.
+     *
+     * @param returnCode -- the response's return code (0 for success)
+     * @param inSize -- bytes sent
+     * @param outSize -- bytes received
+     * @param micros -- latency
+     */
+    public void record( int returnCode, int inSize, int outSize, long micros )
+    {
+        this.count.incrementAndGet();
+        this.bytesIn.addAndGet( inSize );
+        this.bytesOut.addAndGet( outSize );
+        this.latency.record( micros );
+        if ( returnCode != TPM_RESULT.TPM_SUCCESS )
+        {
+            this.errorCount.incrementAndGet();
+            AtomicLong n = this.errorCounts.get( returnCode );
+            if ( n == null )
+            {
+                AtomicLong newCount = new AtomicLong();
+                n = this.errorCounts.putIfAbsent( returnCode, newCount );
+                if ( n == null )
+                {
+                    n = newCount;
+                }
+            }
+            n.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a command that failed without a response
+     * (e.g., with a TPMIOException).
+     */
+    public void recordIOError( int inSize, long micros )
+    {
+        this.count.incrementAndGet();
+        this.ioErrorCount.incrementAndGet();
+        this.bytesIn.addAndGet( inSize );
+        this.latency.record( micros );
+    }
+
+    public int getOrdinal()
+    {
+        return this.ordinal;
+    }
+
+    public String getOrdinalName()
+    {
+        return MetricsTPMDriverWrapper.getOrdinalName( this.ordinal );
+    }
+
+    public long getCount()
+    {
+        return this.count.get();
+    }
+
+    public long getErrorCount()
+    {
+        return this.errorCount.get();
+    }
+
+    public long getIOErrorCount()
+    {
+        return this.ioErrorCount.get();
+    }
+
+    public long getBytesIn()
+    {
+        return this.bytesIn.get();
+    }
+
+    public long getBytesOut()
+    {
+        return this.bytesOut.get();
+    }
+
+    public TPMLatencyHistogram getLatencyHistogram()
+    {
+        return this.latency;
+    }
+
+    public double getMeanLatency()
+    {
+        return this.latency.getMean();
+    }
+
+    public long getP50Latency()
+    {
+        return this.latency.getPercentile( 0.5 );
+    }
+
+    public long getP99Latency()
+    {
+        return this.latency.getPercentile( 0.99 );
+    }
+
+    public long getP999Latency()
+    {
+        return this.latency.getPercentile( 0.999 );
+    }
+
+    public long getMaxLatency()
+    {
+        return this.latency.getMax();
+    }
+
+    /**
+     * Returns the number of errors for each return code.
+     */
+    public Map<Integer, Long> getErrorCountMap()
+    {
+        HashMap<Integer, Long> ret = new HashMap<Integer, Long>();
+        for ( Map.Entry<Integer, AtomicLong> e : this.errorCounts.entrySet() )
+        {
+            ret.put( e.getKey(), e.getValue().get() );
+        }
+        return ret;
+    }
+
+    public String[] getErrorCounts()
+    {
+        ArrayList<String> ret = new ArrayList<String>();
+        for ( Map.Entry<Integer, Long> e : this.getErrorCountMap().entrySet() )
+        {
+            ret.add( TPM_RESULT.getErrorName( e.getKey() ) + "=" + e.getValue() );
+        }
+        return ret.toArray( new String[ret.size()] );
+    }
+
+    public TPMMetricsSnapshot snapshot()
+    {
+        return new TPMMetricsSnapshot( this );
+    }
+
+    public void reset()
+    {
+        this.count.set( 0 );
+        this.errorCount.set( 0 );
+        this.ioErrorCount.set( 0 );
+        this.bytesIn.set( 0 );
+        this.bytesOut.set( 0 );
+        this.errorCounts.clear();
+        this.latency.reset();
+    }
+}
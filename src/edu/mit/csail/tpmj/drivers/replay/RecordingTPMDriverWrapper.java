@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import edu.mit.csail.tpmj.TPMIOException;
+import edu.mit.csail.tpmj.drivers.BasicTPMDriver;
+import edu.mit.csail.tpmj.drivers.TPMDriver;
+
+/**
+ * A TPMDriver wrapper that records every command sent to the TPM,
+ * together with the TPM's response, so that the same traffic can be
+ * replayed later without a TPM using a ReplayTPMDriver
+ * (e.g., to compare the marshalling and crypto overhead of two builds).
+ * <p>
+ * Each command becomes one record, appended to the file as soon as
+ * the response arrives.  (Records are flushed as they are written,
+ * so a recording is usable even if cleanup() is never called.)
+ * The format is as follows (all integers are big-endian):
+ * <pre>
+ * header: int MAGIC, int VERSION, long start time (ms since epoch)
+ * record: long time sent (us since start), int duration (us),
+ *         int command length, command bytes,
+ *         int response length, response bytes
+ * </pre>
+ * A response length of IO_ERROR means that the command failed
+ * with a TPMIOException, and 0 means that the driver returned null.
+ * <p>
+ * Commands are recorded one at a time, in the order they are
+ * executed (transmitBytes() holds this driver's lock).
+ * The commands that init() sends to get the manufacturer and version
+ * are recorded too, so that a ReplayTPMDriver can be initialized
+ * from the recording.
+ * <p>
+ * Note: commands that use authorization sessions contain
+ * random nonces.  To be able to replay them exactly, set the same
+ * random seed when recording and replaying
+ * (see CryptoUtil.setRandomSeed()).
+ */
+public class RecordingTPMDriverWrapper extends BasicTPMDriver
+{
+    public static final int MAGIC = 0x544A5243; // "TJRC"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+    public static final int IO_ERROR = -1;
+
+    public TPMDriver tpmDriver;
+
+    private File file;
+    private DataOutputStream out;
+    private long startNanos;
+    private long numRecords = 0;
+
+    /**
+     * Creates a wrapper that records to the given file
+     * (replacing it if it exists).
+     *
+     * @param tpmDriver
+     * @param file
+     * @throws IOException if the file cannot be created
+     */
+    public RecordingTPMDriverWrapper( TPMDriver tpmDriver, File file )
+        throws IOException
+    {
+        super();
+        this.tpmDriver = tpmDriver;
+        this.file = file;
+        this.out = new DataOutputStream( new BufferedOutputStream(
+            new FileOutputStream( file ) ) );
+        this.startNanos = System.nanoTime();
+        this.out.writeInt( MAGIC );
+        this.out.writeInt( VERSION );
+        this.out.writeLong( System.currentTimeMillis() );
+        this.out.flush();
+    }
+
+    public File getFile()
+    {
+        return this.file;
+    }
+
+    public long getNumRecords()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.numRecords;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Passes the command to the underlying driver, and records
+     * the command and its response (or failure).
+     */
+    public byte[] transmitBytes( byte[] inputBytes )
+        throws TPMIOException
+    {
+        this.lockForCommand( inputBytes );
+        try
+        {
+            long start = System.nanoTime();
+            byte[] outputBytes = null;
+            boolean ok = false;
+            try
+            {
+                outputBytes = this.tpmDriver.transmitBytes( inputBytes );
+                ok = true;
+                return outputBytes;
+            }
+            finally
+            {
+                this.record( start, System.nanoTime(), inputBytes, ok, outputBytes );
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    private void record( long start, long end, byte[] inputBytes, boolean ok,
+        byte[] outputBytes )
+    {
+        if ( this.out == null )
+        {
+            return;
+        }
+        try
+        {
+            this.out.writeLong( (start - this.startNanos) / 1000 );
+            this.out.writeInt( (int) ((end - start) / 1000) );
+            this.out.writeInt( inputBytes.length );
+            this.out.write( inputBytes );
+            if ( !ok )
+            {
+                this.out.writeInt( IO_ERROR );
+            }
+            else if ( outputBytes == null )
+            {
+                this.out.writeInt( 0 );
+            }
+            else
+            {
+                this.out.writeInt( outputBytes.length );
+                this.out.write( outputBytes );
+            }
+            this.out.flush();
+            this.numRecords++;
+        }
+        catch ( IOException e )
+        {
+            // Don't let a problem with the recording affect the TPM commands.
+            System.err.println( "RecordingTPMDriverWrapper: error writing to "
+                + this.file + " (" + e + "), recording stopped." );
+            this.closeRecording();
+        }
+    }
+
+    private void closeRecording()
+    {
+        if ( this.out != null )
+        {
+            try
+            {
+                this.out.close();
+            }
+            catch ( IOException e )
+            {
+                // ignore
+            }
+            this.out = null;
+        }
+    }
+
+    /**
+     * Initializes the underlying driver, then gets the manufacturer
+     * and version again through this driver so that they are recorded.
+     */
+    @Override
+    public void init()
+    {
+        this.lock.lock();
+        try
+        {
+            this.tpmDriver.init();
+            super.init();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Closes the recording, and cleans up the underlying driver.
+     */
+    public void cleanup()
+    {
+        this.shutdownDispatcher();
+        this.lock.lock();
+        try
+        {
+            this.closeRecording();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+        this.tpmDriver.cleanup();
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers.replay;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.mit.csail.tpmj.TPMIOException;
+import edu.mit.csail.tpmj.commands.TPMCommand;
+import edu.mit.csail.tpmj.drivers.BasicTPMDriver;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+
+/**
+ * TPMDriver that answers commands with the responses stored in a
+ * recording made by RecordingTPMDriverWrapper, instead of using a TPM.
+ * The recording is memory-mapped, and the responses are returned
+ * in the order they were recorded, so a program that sends the same
+ * commands as the recorded one (e.g., TPMTiming, or one of the tools,
+ * with the same arguments) runs exactly as it did with the TPM.
+ * <p>
+ * Each command is checked against the recorded one.
+ * If the ordinals differ, the replay is out of sync, and a TPMIOException
+ * is thrown (without moving to the next record).  If only the other bytes
+ * differ (e.g., because of different nonces), the recorded response
+ * is returned anyway, and the mismatch is counted
+ * (see getNumMismatches()), unless strict mode is on, in which case
+ * a TPMIOException is thrown.  Commands that failed with an I/O
+ * error when they were recorded fail with a TPMIOException again.
+ * <p>
+ * The timing mode determines how long each command takes:
+ * <ul>
+ * <li>TIMING_NONE -- responses are returned immediately, so
+ * the time measured is the time spent by TPM/J itself.
+ * <li>TIMING_DURATIONS -- each command takes as long as it took the TPM.
+ * <li>TIMING_ORIGINAL -- the responses are returned no earlier than they
+ * were originally (relative to the first command), so a program
+ * that sends commands faster than the original one waits, but
+ * a slower one does not.
+ * </ul>
+ */
+public class ReplayTPMDriver extends BasicTPMDriver
+{
+    public static final int TIMING_NONE = 0;
+    public static final int TIMING_DURATIONS = 1;
+    public static final int TIMING_ORIGINAL = 2;
+
+    private static final String[] TIMING_NAMES =
+        { "none", "durations", "original" };
+
+    private File file;
+    private MappedByteBuffer buffer;
+    private long recordingStartTime;
+    private int timing;
+    private boolean strict = false;
+
+    // replay state
+    private long firstRecordTime = -1;
+    private long replayStartNanos;
+    private long numReplayed = 0;
+    private long numMismatches = 0;
+
+    public ReplayTPMDriver( File file ) throws IOException
+    {
+        this( file, TIMING_NONE );
+    }
+
+    /**
+     * @param file -- a recording made by RecordingTPMDriverWrapper
+     * @param timing -- TIMING_NONE, TIMING_DURATIONS, or TIMING_ORIGINAL
+     * @throws IOException if the file cannot be read, or is not a recording
+     */
+    public ReplayTPMDriver( File file, int timing ) throws IOException
+    {
+        this.file = file;
+        this.setTiming( timing );
+
+        RandomAccessFile raf = new RandomAccessFile( file, "r" );
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            // (the mapping remains valid after the file is closed)
+            this.buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0,
+                channel.size() );
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        if ( (this.buffer.remaining() < RecordingTPMDriverWrapper.HEADER_SIZE)
+            || (this.buffer.getInt() != RecordingTPMDriverWrapper.MAGIC) )
+        {
+            throw new IOException( file + " is not a TPM/J recording" );
+        }
+        int version = this.buffer.getInt();
+        if ( version != RecordingTPMDriverWrapper.VERSION )
+        {
+            throw new IOException( file + " has unsupported version " + version );
+        }
+        this.recordingStartTime = this.buffer.getLong();
+
+        // Retrying a failed command just replays the next record,
+        // so there is no point in waiting first.
+        this.setRetryPolicy( this.getRetryPolicy().withDelays( 0, 0 ) );
+    }
+
+    /**
+     * Returns the timing mode with the given name
+     * ("none", "durations", or "original").
+     */
+    public static int parseTiming( String name )
+    {
+        for ( int i = 0; i < TIMING_NAMES.length; i++ )
+        {
+            if ( TIMING_NAMES[i].equalsIgnoreCase( name ) )
+            {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException( "Unknown replay timing: " + name );
+    }
+
+    public File getFile()
+    {
+        return this.file;
+    }
+
+    /**
+     * Returns the time the recording was started (in ms since the epoch).
+     */
+    public long getRecordingStartTime()
+    {
+        return this.recordingStartTime;
+    }
+
+    public int getTiming()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.timing;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public void setTiming( int timing )
+    {
+        this.lock.lock();
+        try
+        {
+            if ( (timing < TIMING_NONE) || (timing > TIMING_ORIGINAL) )
+            {
+                throw new IllegalArgumentException( "Bad timing mode: " + timing );
+            }
+            this.timing = timing;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public boolean isStrict()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.strict;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * If strict is true, commands must match the recorded
+     * commands byte for byte, not just by ordinal.
+     */
+    public void setStrict( boolean strict )
+    {
+        this.lock.lock();
+        try
+        {
+            this.strict = strict;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public long getNumReplayed()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.numReplayed;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of commands that had the same ordinal
+     * as the recorded command, but different bytes.
+     */
+    public long getNumMismatches()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.numMismatches;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public boolean hasMoreRecords()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.buffer.hasRemaining();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Goes back to the start of the recording.
+     */
+    public void rewind()
+    {
+        this.lock.lock();
+        try
+        {
+            this.buffer.position( RecordingTPMDriverWrapper.HEADER_SIZE );
+            this.firstRecordTime = -1;
+            this.numReplayed = 0;
+            this.numMismatches = 0;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public byte[] transmitBytes( byte[] inputBytes )
+        throws TPMIOException
+    {
+        this.lockForCommand( inputBytes );
+        try
+        {
+            long callNanos = System.nanoTime();
+            if ( !this.buffer.hasRemaining() )
+            {
+                throw new TPMIOException( "End of recording " + this.file
+                    + " reached after " + this.numReplayed + " commands" );
+            }
+
+            int recordStart = this.buffer.position();
+            long time;
+            int duration;
+            int responseLength;
+            byte[] response = null;
+            try
+            {
+                time = this.buffer.getLong();
+                duration = this.buffer.getInt();
+                int commandLength = this.buffer.getInt();
+                if ( (commandLength < 0)
+                    || (commandLength > this.buffer.remaining()) )
+                {
+                    throw new BufferUnderflowException();
+                }
+                int commandStart = this.buffer.position();
+                this.checkCommand( inputBytes, commandStart, commandLength,
+                    recordStart );
+                this.buffer.position( commandStart + commandLength );
+                responseLength = this.buffer.getInt();
+                if ( responseLength > 0 )
+                {
+                    response = new byte[responseLength];
+                    this.buffer.get( response );
+                }
+            }
+            catch ( BufferUnderflowException e )
+            {
+                this.buffer.position( recordStart );
+                throw new TPMIOException( "Truncated record in " + this.file
+                    + " after " + this.numReplayed + " commands" );
+            }
+
+            if ( this.firstRecordTime < 0 )
+            {
+                this.firstRecordTime = time;
+                this.replayStartNanos = callNanos;
+            }
+            this.numReplayed++;
+
+            if ( this.timing == TIMING_DURATIONS )
+            {
+                waitUntil( callNanos + duration * 1000L );
+            }
+            else if ( this.timing == TIMING_ORIGINAL )
+            {
+                waitUntil( this.replayStartNanos
+                    + (time - this.firstRecordTime + duration) * 1000L );
+            }
+
+            if ( responseLength == RecordingTPMDriverWrapper.IO_ERROR )
+            {
+                throw new TPMIOException( "Command failed with an I/O error when recorded" );
+            }
+            return response;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Compares the given command with the recorded command in the buffer,
+     * and throws a TPMIOException if they do not match.
+     */
+    private void checkCommand( byte[] inputBytes, int commandStart,
+        int commandLength, int recordStart ) throws TPMIOException
+    {
+        int ordinalOffset = TPMCommand.ORDINAL_OFFSET;
+        if ( (inputBytes.length >= ordinalOffset + 4)
+            && (commandLength >= ordinalOffset + 4) )
+        {
+            int ordinal = ByteArrayUtil.readInt32BE( inputBytes, ordinalOffset );
+            int recordedOrdinal = this.buffer.getInt( commandStart + ordinalOffset );
+            if ( ordinal != recordedOrdinal )
+            {
+                this.buffer.position( recordStart );
+                throw new TPMIOException( "Replay out of sync after "
+                    + this.numReplayed + " commands: expected ordinal 0x"
+                    + Integer.toHexString( recordedOrdinal ) + ", got 0x"
+                    + Integer.toHexString( ordinal ) );
+            }
+        }
+
+        boolean same = (inputBytes.length == commandLength);
+        for ( int i = 0; same && (i < commandLength); i++ )
+        {
+            same = (inputBytes[i] == this.buffer.get( commandStart + i ));
+        }
+        if ( !same )
+        {
+            if ( this.strict )
+            {
+                this.buffer.position( recordStart );
+                throw new TPMIOException( "Command " + this.numReplayed
+                    + " does not match the recording" );
+            }
+            this.numMismatches++;
+        }
+    }
+
+    private static void waitUntil( long deadlineNanos )
+    {
+        boolean interrupted = false;
+        long remaining;
+        while ( (remaining = deadlineNanos - System.nanoTime()) > 0 )
+        {
+            LockSupport.parkNanos( remaining );
+            if ( Thread.interrupted() )
+            {
+                interrupted = true;
+            }
+        }
+        if ( interrupted )
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void cleanup()
+    {
+        this.shutdownDispatcher();
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.drivers.socket;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+
+import edu.mit.csail.tpmj.TPMIOException;
+import edu.mit.csail.tpmj.drivers.BasicTPMDriver;
+
+/**
+ * TPMDriver for a software TPM (e.g., a TPM 1.2 emulator)
+ * listening on a TCP port.  Commands are sent as raw TPM 1.2
+ * command bytes, and responses are read using their paramSize,
+ * so connections stay open and are reused across commands.
+ * <p>
+ * By default, one connection is used, and commands are sent one at
+ * a time.  With a pool size greater than 1, up to that many connections
+ * are opened (on demand), and commands from different threads are sent
+ * on different connections at the same time.  (Only use this if the
+ * server handles connections concurrently.)
+ * <p>
+ * If a connection fails, it is closed, and a new one is opened
+ * for the next command.
+ */
+public class SocketTPMDriver extends BasicTPMDriver
+{
+    public static final String DEFAULT_HOST = "localhost";
+    public static final int DEFAULT_PORT = 6543;
+    public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+    private String host;
+    private int port;
+    private int poolSize;
+    private int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private int readTimeout = 0;
+
+    private Semaphore available;
+    private ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<Connection>();
+
+    /**
+     * Set by cleanup() (and cleared by init()), so that connections
+     * returned after cleanup() are closed instead of kept.
+     */
+    private volatile boolean closed = false;
+
+    public SocketTPMDriver()
+    {
+        this( DEFAULT_HOST, DEFAULT_PORT );
+    }
+
+    public SocketTPMDriver( String host, int port )
+    {
+        this( host, port, 1 );
+    }
+
+    /**
+     * @param host
+     * @param port
+     * @param poolSize -- maximum number of connections open at once
+     */
+    public SocketTPMDriver( String host, int port, int poolSize )
+    {
+        if ( poolSize < 1 )
+        {
+            throw new IllegalArgumentException( "poolSize must be at least 1" );
+        }
+        this.host = host;
+        this.port = port;
+        this.poolSize = poolSize;
+        this.available = new Semaphore( poolSize, true );
+    }
+
+    /**
+     * Creates a driver from a "host:port" string (or just "host",
+     * in which case DEFAULT_PORT is used).
+     */
+    public static SocketTPMDriver fromAddress( String address, int poolSize )
+    {
+        int colon = address.lastIndexOf( ':' );
+        if ( colon < 0 )
+        {
+            return new SocketTPMDriver( address, DEFAULT_PORT, poolSize );
+        }
+        String host = address.substring( 0, colon );
+        int port = Integer.parseInt( address.substring( colon + 1 ) );
+        return new SocketTPMDriver( (host.length() == 0) ? DEFAULT_HOST : host,
+            port, poolSize );
+    }
+
+    public String getHost()
+    {
+        return this.host;
+    }
+
+    public int getPort()
+    {
+        return this.port;
+    }
+
+    @Override
+    protected String getProfileKey()
+    {
+        return "socket:" + this.host + ":" + this.port;
+    }
+
+    public int getPoolSize()
+    {
+        return this.poolSize;
+    }
+
+    public synchronized int getConnectTimeout()
+    {
+        return this.connectTimeout;
+    }
+
+    /**
+     * Sets the timeout (in ms) for opening new connections.
+     */
+    public synchronized void setConnectTimeout( int connectTimeout )
+    {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public synchronized int getReadTimeout()
+    {
+        return this.readTimeout;
+    }
+
+    /**
+     * Sets the timeout (in ms) for reading a response
+     * on new connections.  (0 means wait forever.)
+     */
+    public synchronized void setReadTimeout( int readTimeout )
+    {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * This does not hold the lock, so that with a pool, several commands
+     * can be in progress at once.
+     */
+    public byte[] transmitBytes( byte[] inputBytes ) throws TPMIOException
+    {
+        Connection conn = null;
+        boolean sent = false;
+        try
+        {
+            conn = this.acquireConnection();
+            conn.out.write( inputBytes );
+            conn.out.flush();
+            sent = true;
+            byte[] outputBytes = BasicTPMDriver.readFramedResponse( conn.in );
+            this.releaseConnection( conn );
+            return outputBytes;
+        }
+        catch ( IOException e )
+        {
+            if ( conn != null )
+            {
+                this.discardConnection( conn );
+            }
+            TPMIOException ioe = new TPMIOException( inputBytes, e );
+            ioe.setCommandSent( sent );
+            throw ioe;
+        }
+    }
+
+    /**
+     * Allows connections to be kept open again after cleanup().
+     */
+    @Override
+    public void init()
+    {
+        this.closed = false;
+        super.init();
+    }
+
+    /**
+     * Closes all idle connections.  (Connections in use are closed
+     * when they are returned, as are connections opened for commands
+     * sent after cleanup(), until init() is called again.)
+     */
+    @Override
+    public void cleanup()
+    {
+        this.closed = true;
+        this.shutdownDispatcher();
+        this.closeIdleConnections();
+    }
+
+    private void closeIdleConnections()
+    {
+        Connection conn;
+        while ( (conn = this.idle.poll()) != null )
+        {
+            conn.close();
+        }
+    }
+
+    private Connection acquireConnection() throws IOException
+    {
+        try
+        {
+            this.available.acquire();
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "Interrupted while waiting for a connection" );
+        }
+
+        Connection conn = this.idle.poll();
+        if ( conn != null )
+        {
+            return conn;
+        }
+        try
+        {
+            return new Connection( this.host, this.port,
+                this.getConnectTimeout(), this.getReadTimeout() );
+        }
+        catch ( IOException e )
+        {
+            this.available.release();
+            throw e;
+        }
+    }
+
+    private void releaseConnection( Connection conn )
+    {
+        if ( this.closed )
+        {
+            conn.close();
+        }
+        else
+        {
+            this.idle.offer( conn );
+            if ( this.closed )
+            {
+                // cleanup() may have emptied the queue before the offer
+                this.closeIdleConnections();
+            }
+        }
+        this.available.release();
+    }
+
+    private void discardConnection( Connection conn )
+    {
+        conn.close();
+        this.available.release();
+    }
+
+    /**
+     * An open connection to the TPM server.
+     */
+    private static class Connection
+    {
+        Socket socket;
+        InputStream in;
+        OutputStream out;
+
+        Connection( String host, int port, int connectTimeout, int readTimeout )
+            throws IOException
+        {
+            this.socket = new Socket();
+            this.socket.setTcpNoDelay( true );
+            this.socket.setSoTimeout( readTimeout );
+            this.socket.connect( new InetSocketAddress( host, port ),
+                connectTimeout );
+            this.in = new BufferedInputStream( this.socket.getInputStream() );
+            this.out = new BufferedOutputStream( this.socket.getOutputStream() );
+        }
+
+        void close()
+        {
+            try
+            {
+                this.socket.close();
+            }
+            catch ( IOException e )
+            {
+                // ignore
+            }
+        }
+    }
+}
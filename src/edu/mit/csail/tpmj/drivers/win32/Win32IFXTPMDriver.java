@@ -54,67 +54,91 @@ public class Win32IFXTPMDriver extends Win32TDDLDriver
     }
 
     @Override
-    public synchronized int TDDL_Close() throws TDDLException
+    public int TDDL_Close() throws TDDLException
     {
-        int ret = _TDDL_Close();
+        this.lock.lock();
+        try
+        {
+            int ret = _TDDL_Close();
 
-        if ( ret != TDDLConsts.TDDL_SUCCESS )
+            if ( ret != TDDLConsts.TDDL_SUCCESS )
+            {
+                throw new TDDLException( "Error on TDDL_Close()", ret );
+            }
+            // Debug.println( "TDDL_Close() called successfully.");
+            return ret;
+        }
+        finally
         {
-            throw new TDDLException( "Error on TDDL_Close()", ret );
+            this.lock.unlock();
         }
-        // Debug.println( "TDDL_Close() called successfully.");
-        return ret;
     }
     @Override
-    public synchronized int TDDL_Open() throws TDDLException
+    public int TDDL_Open() throws TDDLException
     {
-        int ret = _TDDL_Open();
-        if ( ret != TDDLConsts.TDDL_SUCCESS )
+        this.lock.lock();
+        try
         {
-            throw new TDDLException( "Error on TDDL_Open()", ret );
-        }
-        // Debug.println( "TDDL_Open() called successfully.");
-        return ret;
+            int ret = _TDDL_Open();
+            if ( ret != TDDLConsts.TDDL_SUCCESS )
+            {
+                throw new TDDLException( "Error on TDDL_Open()", ret );
+            }
+            // Debug.println( "TDDL_Open() called successfully.");
+            return ret;
         
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
     }
     @Override
-    public synchronized byte[] TDDL_TransmitData( byte[] input ) throws TDDLException
+    public byte[] TDDL_TransmitData( byte[] input ) throws TDDLException
     {
-      byte[] output = new byte[TPMConsts.TPM_MAX_BUFF_SIZE];
-      int ret = _TDDL_TransmitData( input, output );
-      if ( ret != TDDLConsts.TDDL_SUCCESS )
-      {
-          throw new TDDLException( "Error on TDDL_TransmitData()", ret );
-      }
-      else
-      {
-          // NOTE: This is redundant with BasicTPMDriver.truncateArrayToParamSize(),
-          // but keeping this here so it can give a TDDLException
-          
-          int size = ByteArrayUtil.readInt32BE( output, TPMIOStruct.PARAMSIZE_OFFSET );
-          if ( (size < 6) || (size > TPMConsts.TPM_MAX_BUFF_SIZE) )
+        this.lock.lock();
+        try
+        {
+          byte[] output = new byte[TPMConsts.TPM_MAX_BUFF_SIZE];
+          int ret = _TDDL_TransmitData( input, output );
+          if ( ret != TDDLConsts.TDDL_SUCCESS )
           {
-              throw new TDDLException( "Error: TDDL did not return error, output array has wrong size", ret );
+              throw new TDDLException( "Error on TDDL_TransmitData()", ret );
           }
           else
           {
-              if ( size >= output.length )
+              // NOTE: This is redundant with BasicTPMDriver.truncateArrayToParamSize(),
+              // but keeping this here so it can give a TDDLException
+          
+              int size = ByteArrayUtil.readInt32BE( output, TPMIOStruct.PARAMSIZE_OFFSET );
+              if ( (size < 6) || (size > TPMConsts.TPM_MAX_BUFF_SIZE) )
               {
-                  // just output directly
-                  return output;
+                  throw new TDDLException( "Error: TDDL did not return error, output array has wrong size", ret );
               }
               else
               {
-                  // Logical size of structure is less 
-                  // than allocated space.  (This should be the common case.)
-                  // Return a new truncated array.
+                  if ( size >= output.length )
+                  {
+                      // just output directly
+                      return output;
+                  }
+                  else
+                  {
+                      // Logical size of structure is less 
+                      // than allocated space.  (This should be the common case.)
+                      // Return a new truncated array.
                   
-                  byte[] outArr = new byte[size];
-                  System.arraycopy( output, 0, outArr, 0, size );
-                  return outArr;
+                      byte[] outArr = new byte[size];
+                      System.arraycopy( output, 0, outArr, 0, size );
+                      return outArr;
+                  }
               }
           }
-      }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
     }
 
 //    public ByteArrayTPMOutputStruct transmit( TPMInputStruct input )
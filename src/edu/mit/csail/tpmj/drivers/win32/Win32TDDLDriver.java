@@ -63,43 +63,60 @@ public abstract class Win32TDDLDriver extends BasicTPMDriver
     }
 
     @Override
-    public synchronized void init()
+    public void init()
     {
-//        System.out.println( "Testing Windows TDDL Driver ... " );
-
+        this.lock.lock();
         try
         {
-            // NOTE: Tested this in Vista, and apparently,
-            // the right thing to do is to open it once and
-            // don't close it until the end.  Otherwise,
-            // authorization sessions don't work.
+    //        System.out.println( "Testing Windows TDDL Driver ... " );
+
+            try
+            {
+                // NOTE: Tested this in Vista, and apparently,
+                // the right thing to do is to open it once and
+                // don't close it until the end.  Otherwise,
+                // authorization sessions don't work.
             
-            // This seems to be OK with IFXTPM in XP, so keeping it this way.
-            this.TDDL_Open();
+                // This seems to be OK with IFXTPM in XP, so keeping it this way.
+                this.TDDL_Open();
             
-            // FIXME: Right now, there is nothing that closes
+                // FIXME: Right now, there is nothing that closes
             
-            // this.TDDL_Close();
-//            System.out.println( "Windows TDDL Driver successfully tested." );
+                // this.TDDL_Close();
+    //            System.out.println( "Windows TDDL Driver successfully tested." );
+            }
+            catch ( TDDLException e )
+            {
+                // TODO Auto-generated catch block
+                e.printStackTrace();
+            }
+            super.init();
         }
-        catch ( TDDLException e )
+        finally
         {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            this.lock.unlock();
         }
-        super.init();
     }
 
-    public synchronized void cleanup()
+    public void cleanup()
     {
-
+        this.lock.lock();
         try
         {
-            this.TDDL_Close();
+            this.shutdownDispatcher();
+
+            try
+            {
+                this.TDDL_Close();
+            }
+            catch ( TDDLException e )
+            {
+                e.printStackTrace();
+            }
         }
-        catch ( TDDLException e )
+        finally
         {
-            e.printStackTrace();
+            this.lock.unlock();
         }
     }
     
@@ -122,45 +139,53 @@ public abstract class Win32TDDLDriver extends BasicTPMDriver
     
     
 
-    public synchronized byte[] transmitBytes( byte[] inputBytes )
+    public byte[] transmitBytes( byte[] inputBytes )
         throws TPMIOException
     {
-        byte[] outputBytes;
-
-//        Stopwatch sw = new Stopwatch();
-//        System.out.println( "Calling TDDL_TransmitData ... " );
-//        sw.start();
-//
-//        Debug.println( " Calling TDDL_Open() ... " );
-
-        // NOTE: Tested this in Vista, and apparently, opening and closing
-        // for each Submit causes an error for commands that require
-        // authorization.  (Authorization sessions probably need to be
-        // done in the same context.)
-        // This seems to be OK with IFXTPM in XP, so keeping it this way.
+        this.lockForCommand( inputBytes );
+        try
+        {
+            byte[] outputBytes;
+
+    //        Stopwatch sw = new Stopwatch();
+    //        System.out.println( "Calling TDDL_TransmitData ... " );
+    //        sw.start();
+    //
+    //        Debug.println( " Calling TDDL_Open() ... " );
+
+            // NOTE: Tested this in Vista, and apparently, opening and closing
+            // for each Submit causes an error for commands that require
+            // authorization.  (Authorization sessions probably need to be
+            // done in the same context.)
+            // This seems to be OK with IFXTPM in XP, so keeping it this way.
         
-//        this.TDDL_Open();
+    //        this.TDDL_Open();
 
-//        Debug.println( "TDDL_Open() done ... " + sw.getTime() );
+    //        Debug.println( "TDDL_Open() done ... " + sw.getTime() );
 
-        //                Debug.println( " Calling TDDL_TransmitData() ... " );
-        outputBytes = this.TDDL_TransmitData( inputBytes );
-        outputBytes = BasicTPMDriver.truncateArrayToParamSize( outputBytes );
+            //                Debug.println( " Calling TDDL_TransmitData() ... " );
+            outputBytes = this.TDDL_TransmitData( inputBytes );
+            outputBytes = BasicTPMDriver.truncateArrayToParamSize( outputBytes );
 
-//        Debug.println( "TDDL_TransmitData() done ... " + sw.getTime() )
+    //        Debug.println( "TDDL_TransmitData() done ... " + sw.getTime() )
 
-//        Debug.println( " Calling TDDL_Close() ... " );
+    //        Debug.println( " Calling TDDL_Close() ... " );
         
-        // NOTE: Tested this in Vista, and apparently, opening and closing
-        // for each Submit causes an error for commands that require
-        // authorization.
-//        this.TDDL_Close();
+            // NOTE: Tested this in Vista, and apparently, opening and closing
+            // for each Submit causes an error for commands that require
+            // authorization.
+    //        this.TDDL_Close();
 
-//        Debug.println( "TDDL_Close() done ... " + sw.getTime() );
-//
-//        sw.stop();
-//        Debug.println( "Done. " + sw.getTime() + " ms" );
+    //        Debug.println( "TDDL_Close() done ... " + sw.getTime() );
+    //
+    //        sw.stop();
+    //        Debug.println( "Done. " + sw.getTime() + " ms" );
 
-        return outputBytes;
+            return outputBytes;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
     }
 }
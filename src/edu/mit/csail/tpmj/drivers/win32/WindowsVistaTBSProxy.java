@@ -68,54 +68,78 @@ public class WindowsVistaTBSProxy extends Win32TDDLDriver
     }
     
     @Override
-    public synchronized int TDDL_Close() throws TDDLException
+    public int TDDL_Close() throws TDDLException
     {
-        // Close Connection
-        Debug.println( "Close TBS Context" );
-        Tbsip_Context_Close();
-        int retCode = (int) Tbs_getReturnCode();
-        Debug.println( "Context_Close_Return_Code: " + retCode );
+        this.lock.lock();
+        try
+        {
+            // Close Connection
+            Debug.println( "Close TBS Context" );
+            Tbsip_Context_Close();
+            int retCode = (int) Tbs_getReturnCode();
+            Debug.println( "Context_Close_Return_Code: " + retCode );
+        
+            if ( retCode != TDDLConsts.TDDL_SUCCESS )
+            {
+                throw new TDDLException( "Error on Tbsip_Context_Create()", retCode );
+            }
         
-        if ( retCode != TDDLConsts.TDDL_SUCCESS )
+            return retCode;
+        }
+        finally
         {
-            throw new TDDLException( "Error on Tbsip_Context_Create()", retCode );
+            this.lock.unlock();
         }
-        
-        return retCode;
     }
     
     @Override
-    public synchronized int TDDL_Open() throws TDDLException
+    public int TDDL_Open() throws TDDLException
     {
-        // Connect to TBS 
-        Debug.println( "Create TBS Context" );        
-        Tbsip_Context_Create();
-        int retCode = (int) Tbs_getReturnCode();
-        Debug.println( "Context_Create_Return_Code: " + retCode );
+        this.lock.lock();
+        try
+        {
+            // Connect to TBS 
+            Debug.println( "Create TBS Context" );        
+            Tbsip_Context_Create();
+            int retCode = (int) Tbs_getReturnCode();
+            Debug.println( "Context_Create_Return_Code: " + retCode );
+        
+            if ( retCode != TDDLConsts.TDDL_SUCCESS )
+            {
+                throw new TDDLException( "Error on Tbsip_Context_Create()", retCode );
+            }
         
-        if ( retCode != TDDLConsts.TDDL_SUCCESS )
+            return retCode;
+        }
+        finally
         {
-            throw new TDDLException( "Error on Tbsip_Context_Create()", retCode );
+            this.lock.unlock();
         }
-        
-        return retCode;
     }
     
     @Override
-    public synchronized byte[] TDDL_TransmitData( byte[] input ) throws TDDLException
+    public byte[] TDDL_TransmitData( byte[] input ) throws TDDLException
     {
-        // Submit Command 
-        Debug.println( "Submit Command" );
-        byte[] outputBytes = Tbsip_Submit_Command(input, input.length);
-        int retCode = (int) Tbs_getReturnCode();
-        Debug.println( "Submit_Command_Return_Code: " + retCode );
+        this.lock.lock();
+        try
+        {
+            // Submit Command 
+            Debug.println( "Submit Command" );
+            byte[] outputBytes = Tbsip_Submit_Command(input, input.length);
+            int retCode = (int) Tbs_getReturnCode();
+            Debug.println( "Submit_Command_Return_Code: " + retCode );
 
-        if ( retCode != TDDLConsts.TDDL_SUCCESS )
+            if ( retCode != TDDLConsts.TDDL_SUCCESS )
+            {
+                throw new TDDLException( "Error on Tbsip_Context_Create()", retCode );
+            }
+        
+            return outputBytes;
+        }
+        finally
         {
-            throw new TDDLException( "Error on Tbsip_Context_Create()", retCode );
+            this.lock.unlock();
         }
-        
-        return outputBytes;
     }
 
     
@@ -47,7 +47,7 @@ public class TPMAdminFuncs extends TPMUtilityFuncs
         throws TPMException
     {
         TPM_ReadPubek readPubekCmd = new TPM_ReadPubek( nonce );
-        TPM_ReadPubekOutput pubekOut = readPubekCmd.execute( tpmDriver );
+        TPM_ReadPubekOutput pubekOut = readPubekCmd.execute( getTPMDriver() );
         TPM_PUBKEY pubKey = pubekOut.getPubKey();
         return pubKey;
     }
@@ -66,28 +66,47 @@ public class TPMAdminFuncs extends TPMUtilityFuncs
         else
         {
             output = (TPM_GetPubKeyOutput) TPMOIAPSession.executeOIAPSession(
-                tpmDriver, cmd, ownerAuth );
+                getTPMDriver(), cmd, ownerAuth );
         }
         TPM_PUBKEY pubKey = output.getPubKey();
         return pubKey;
     }
 
+    /**
+     * Like TPM_OwnerReadInternalPub, but returns a result with the TPM's
+     * return code (e.g., TPM_AUTHFAIL if ownerAuth is wrong) instead of
+     * throwing a TPMErrorReturnCodeException.  This can be used
+     * to check an owner password.
+     */
+    public static TPMCommandResult<TPM_GetPubKeyOutput> TPM_OwnerReadInternalPubResult(
+        int keyHandle, TPM_SECRET ownerAuth ) throws TPMException
+    {
+        if ( ownerAuth == null )
+        {
+            throw new IllegalArgumentException(
+                "TPMAdminFuncs.TPM_OwnerReadInternalPubResult: ownerAuth can't be null." );
+        }
+        TPM_OwnerReadInternalPub cmd = new TPM_OwnerReadInternalPub( keyHandle );
+        return TPMOIAPSession.executeOIAPSessionForResult( getTPMDriver(), cmd,
+            ownerAuth );
+    }
+
     public static void TPM_SelfTestFull() throws TPMException
     {
         TPM_SelfTestFull cmd = new TPM_SelfTestFull();
-        TPMOutputStruct output = cmd.execute( tpmDriver );
+        TPMOutputStruct output = cmd.execute( getTPMDriver() );
     }
 
     public static void TPM_ContinueSelfTest() throws TPMException
     {
         TPM_ContinueSelfTest cmd = new TPM_ContinueSelfTest();
-        TPMOutputStruct output = cmd.execute( tpmDriver );
+        TPMOutputStruct output = cmd.execute( getTPMDriver() );
     }
 
     public static byte[] TPM_GetTestResult() throws TPMException
     {
         TPM_GetTestResult cmd = new TPM_GetTestResult();
-        TPM_GetTestResultOutput output = cmd.execute( tpmDriver );
+        TPM_GetTestResultOutput output = cmd.execute( getTPMDriver() );
         return output.getOutData();
     }
 
@@ -95,25 +114,25 @@ public class TPMAdminFuncs extends TPMUtilityFuncs
     {
         TSC_PhysicalPresence cmd = new TSC_PhysicalPresence(
             TPMConsts.TPM_PHYSICAL_PRESENCE_PRESENT );
-        TPMOutputStruct output = cmd.execute( tpmDriver );
+        TPMOutputStruct output = cmd.execute( getTPMDriver() );
     }
 
     public static void physicalActivate() throws TPMException
     {
         TPM_PhysicalSetDeactivated cmd = new TPM_PhysicalSetDeactivated( false );
-        TPMOutputStruct output = cmd.execute( tpmDriver );
+        TPMOutputStruct output = cmd.execute( getTPMDriver() );
     }
 
     public static void TPM_ForceClear() throws TPMException
     {
         TPM_ForceClear cmd = new TPM_ForceClear();
-        TPMOutputStruct output = cmd.execute( tpmDriver );
+        TPMOutputStruct output = cmd.execute( getTPMDriver() );
     }
 
     public static void TPM_PhysicalEnable() throws TPMException
     {
         TPM_PhysicalEnable cmd = new TPM_PhysicalEnable();
-        TPMOutputStruct output = cmd.execute( tpmDriver );
+        TPMOutputStruct output = cmd.execute( getTPMDriver() );
     }
 
     public static void TPM_OwnerClear( TPM_SECRET ownerAuth )
@@ -124,12 +143,12 @@ public class TPMAdminFuncs extends TPMUtilityFuncs
         if ( ownerAuth == null )
         {
             cmd.setNoAuth();
-            output = cmd.execute( tpmDriver );
+            output = cmd.execute( getTPMDriver() );
         }
         else
         {
             output = (TPM_OwnerClearOutput) TPMOIAPSession.executeOIAPSession(
-                tpmDriver, cmd, ownerAuth );
+                getTPMDriver(), cmd, ownerAuth );
         }
     }
 
@@ -138,7 +157,34 @@ public class TPMAdminFuncs extends TPMUtilityFuncs
     {
         TPM_FlushSpecific flushCmd = new TPM_FlushSpecific( handle,
             resourceType );
-        flushCmd.execute( tpmDriver );
+        flushCmd.execute( getTPMDriver() );
+    }
+
+    /**
+     * Saves the resource outside the TPM using TPM_SaveContext,
+     * and returns the context blob.  (Note that for keys, this does
+     * not unload the key.  Use TPM_FlushSpecific for that.)
+     */
+    public static byte[] TPM_SaveContext( int handle, int resourceType,
+        byte[] label ) throws TPMException
+    {
+        TPM_SaveContext saveCmd = new TPM_SaveContext( handle, resourceType,
+            label );
+        TPM_SaveContextOutput output = saveCmd.execute( getTPMDriver() );
+        return output.getContextBlob();
+    }
+
+    /**
+     * Loads a context blob from TPM_SaveContext, and returns
+     * the handle of the loaded resource.
+     */
+    public static int TPM_LoadContext( int entityHandle, boolean keepHandle,
+        byte[] contextBlob ) throws TPMException
+    {
+        TPM_LoadContext loadCmd = new TPM_LoadContext( entityHandle,
+            keepHandle, contextBlob );
+        TPM_LoadContextOutput output = loadCmd.execute( getTPMDriver() );
+        return output.getHandle();
     }
 
 }
@@ -65,11 +65,11 @@ public class TPMAuthFuncs extends TPMUtilityFuncs
         short parentEntityType = TPMConsts.TPM_ET_KEYHANDLE;
         int parentEntityValue = parentHandle;
 
-        TPMOSAPSession parentSession = new TPMOSAPSession( tpmDriver );
+        TPMOSAPSession parentSession = new TPMOSAPSession( getTPMDriver() );
         parentSession.startSession( parentEntityType, parentEntityValue,
             parentAuth );
 
-        TPMOIAPSession entitySession = new TPMOIAPSession( tpmDriver );
+        TPMOIAPSession entitySession = new TPMOIAPSession( getTPMDriver() );
         entitySession.startSession();
         entitySession.setSharedSecret( plainOldAuth );
 
@@ -115,7 +115,7 @@ public class TPMAuthFuncs extends TPMUtilityFuncs
         // However, using TPM_KH_OWNER seems to work fine here for both 
         // the Broadcom 1.2 and Infineon 1.1 chips
         TPM_ChangeAuthOwnerOutput output = (TPM_ChangeAuthOwnerOutput) TPMOSAPSession.executeOSAPSession(
-            tpmDriver, cmd, TPMConsts.TPM_ET_OWNER, TPMConsts.TPM_KH_OWNER,
+            getTPMDriver(), cmd, TPMConsts.TPM_ET_OWNER, TPMConsts.TPM_KH_OWNER,
             oldAuth );
     }
 
@@ -139,7 +139,7 @@ public class TPMAuthFuncs extends TPMUtilityFuncs
         // I'm continuing to use TPMConsts.TPM_KH_OWNER here since the authorization
         // is based on owner authorization.
         TPM_ChangeAuthOwnerOutput output = (TPM_ChangeAuthOwnerOutput) TPMOSAPSession.executeOSAPSession(
-            tpmDriver, cmd, TPMConsts.TPM_ET_OWNER, TPMConsts.TPM_KH_OWNER,
+            getTPMDriver(), cmd, TPMConsts.TPM_ET_OWNER, TPMConsts.TPM_KH_OWNER,
             ownerAuth );
     }
 
@@ -34,6 +34,7 @@ import edu.mit.csail.tpmj.commands.*;
 import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.ByteArrayView;
 import edu.mit.csail.tpmj.util.CryptoUtil;
 import edu.mit.csail.tpmj.util.Debug;
 
@@ -312,8 +313,9 @@ public abstract class TPMAuthorizationSession
     {
         byte[] returnCode = ByteArrayUtil.toBytesInt32BE( output.getReturnCode() );
         byte[] ordinalBytes = ByteArrayUtil.toBytesInt32BE( originatingCmd.getOrdinal() );
-        byte[] outParams = output.getOutParamsForAuthDigest();
-        return CryptoUtil.computeSHA1Hash( returnCode, ordinalBytes, outParams );
+        ByteArrayView outParams = output.getOutParamsViewForAuthDigest();
+        return CryptoUtil.computeSHA1Hash( new ByteArrayView( returnCode ),
+            new ByteArrayView( ordinalBytes ), outParams );
     }
 
     protected byte[] computeOutAuthSetupParams( TPMAuthOutData authOutData )
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.funcs;
+
+import edu.mit.csail.tpmj.TPMException;
+import edu.mit.csail.tpmj.drivers.CachingTPMDriverWrapper;
+import edu.mit.csail.tpmj.drivers.TPMDriver;
+import edu.mit.csail.tpmj.structs.TPM_SECRET;
+
+/**
+ * Everything needed to use one TPM: a driver, with a capability cache
+ * (CachingTPMDriverWrapper), a session manager (TPMResourceManager)
+ * and a key manager (TPMKeyManager) on top of it.
+ * <p>
+ * Unlike the default driver of TPMUtilityFuncs, which is shared by
+ * the whole process, each context has its own driver, so several
+ * contexts (e.g., for different TPMs or emulators) can be used at the
+ * same time.  The static functions of TPMUtilityFuncs and its subclasses
+ * (TPMPcrFuncs, TPMStorageFuncs, CountStampFuncs, etc.) use the context
+ * that is current in the calling thread.  A context is made current
+ * for the duration of a task with run():
+ * <p>
+ * <pre>
+ * TPMContext context = new TPMContext( new SoftwareTPMDriver() );
+ * context.init();
+ * TPM_PCRVALUE val = context.run( new TPMContext.Task&lt;TPM_PCRVALUE&gt;()
+ * {
+ *     public TPM_PCRVALUE run() throws TPMException
+ *     {
+ *         return TPMPcrFuncs.TPM_PCRRead( 0 );
+ *     }
+ * } );
+ * </pre>
+ * <p>
+ * Commands can also be executed directly with getTPMDriver().
+ * Threads with no current context use the default driver
+ * (see TPMUtilityFuncs.setTPMDriver()).
+ */
+public class TPMContext
+{
+    private static final ThreadLocal<TPMContext> current = new ThreadLocal<TPMContext>();
+
+    private TPMDriver driver;
+    private TPMResourceManager resourceManager;
+    private TPMKeyManager keyManager;
+    private CachingTPMDriverWrapper capabilityCache;
+
+    /**
+     * A sequence of TPM operations to be executed in a context.
+     */
+    public interface Task<T>
+    {
+        public T run() throws TPMException;
+    }
+
+    /**
+     * Creates a context using the given driver, which should not
+     * be used by other contexts.  (Call init() before using it.)
+     *
+     * @param driver
+     */
+    public TPMContext( TPMDriver driver )
+    {
+        this.driver = driver;
+        this.resourceManager = new TPMResourceManager( driver );
+        this.keyManager = new TPMKeyManager( this.resourceManager );
+        this.capabilityCache = new CachingTPMDriverWrapper( this.keyManager );
+    }
+
+    /**
+     * Returns the context that is current in the calling thread,
+     * or null if there is none.
+     */
+    public static TPMContext getCurrent()
+    {
+        return current.get();
+    }
+
+    /**
+     * Runs the task with this context as the current context
+     * of the calling thread.  (Contexts can be nested; the previous
+     * context is current again when the task returns.)
+     *
+     * @param task
+     * @return the task's result
+     * @throws TPMException
+     */
+    public <T> T run( Task<T> task ) throws TPMException
+    {
+        TPMContext previous = current.get();
+        current.set( this );
+        try
+        {
+            return task.run();
+        }
+        finally
+        {
+            if ( previous == null )
+            {
+                current.remove();
+            }
+            else
+            {
+                current.set( previous );
+            }
+        }
+    }
+
+    /**
+     * Returns the driver to send commands to (with the capability cache,
+     * key manager and session manager).
+     */
+    public TPMDriver getTPMDriver()
+    {
+        return this.capabilityCache;
+    }
+
+    /**
+     * Returns the underlying driver (without the managers).
+     */
+    public TPMDriver getDriver()
+    {
+        return this.driver;
+    }
+
+    public CachingTPMDriverWrapper getCapabilityCache()
+    {
+        return this.capabilityCache;
+    }
+
+    public TPMKeyManager getKeyManager()
+    {
+        return this.keyManager;
+    }
+
+    public TPMResourceManager getResourceManager()
+    {
+        return this.resourceManager;
+    }
+
+    /**
+     * Starts an OIAP session in this context.
+     */
+    public TPMOIAPSession startOIAPSession() throws TPMException
+    {
+        TPMOIAPSession session = new TPMOIAPSession( this.getTPMDriver() );
+        session.startSession();
+        return session;
+    }
+
+    /**
+     * Starts an OSAP session in this context.
+     */
+    public TPMOSAPSession startOSAPSession( short entityType, int entityValue,
+        TPM_SECRET entityAuth ) throws TPMException
+    {
+        TPMOSAPSession session = new TPMOSAPSession( this.getTPMDriver() );
+        session.startSession( entityType, entityValue, entityAuth );
+        return session;
+    }
+
+    public void init()
+    {
+        this.getTPMDriver().init();
+    }
+
+    /**
+     * Evicts the managed keys, flushes the managed sessions,
+     * and cleans up the driver.
+     */
+    public void cleanup()
+    {
+        this.getTPMDriver().cleanup();
+    }
+
+    public String toString()
+    {
+        return "TPMContext(" + this.driver + ")";
+    }
+}
@@ -32,7 +32,9 @@ package edu.mit.csail.tpmj.funcs;
 import edu.mit.csail.tpmj.TPMConsts;
 import edu.mit.csail.tpmj.TPMException;
 import edu.mit.csail.tpmj.commands.*;
+import edu.mit.csail.tpmj.drivers.ConvertingTPMFuture;
 import edu.mit.csail.tpmj.drivers.TPMDriver;
+import edu.mit.csail.tpmj.drivers.TPMFuture;
 import edu.mit.csail.tpmj.drivers.linux.LinuxTPMDriver;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayUtil;
@@ -55,7 +57,7 @@ public class TPMCounterFuncs extends TPMUtilityFuncs
         // However, using TPM_KH_OWNER seems to work fine here for both 
         // the Broadcom 1.2 and Infineon 1.1 chips
         TPM_CreateCounterOutput output = (TPM_CreateCounterOutput) TPMOSAPSession.executeOSAPSession(
-            tpmDriver, cmd, TPMConsts.TPM_ET_OWNER, TPMConsts.TPM_KH_OWNER,
+            getTPMDriver(), cmd, TPMConsts.TPM_ET_OWNER, TPMConsts.TPM_KH_OWNER,
             ownerAuth );
         return output;
     }
@@ -75,7 +77,7 @@ public class TPMCounterFuncs extends TPMUtilityFuncs
         // However, using TPM_KH_OWNER seems to work fine here for both 
         // the Broadcom 1.2 and Infineon 1.1 chips
         TPM_CreateCounterOutput output = (TPM_CreateCounterOutput) TPMOSAPSession.executeOSAPSession(
-            tpmDriver, cmd, TPMConsts.TPM_ET_OWNER, TPMConsts.TPM_KH_OWNER,
+            getTPMDriver(), cmd, TPMConsts.TPM_ET_OWNER, TPMConsts.TPM_KH_OWNER,
             ownerAuth );
         return output;
     }
@@ -89,7 +91,7 @@ public class TPMCounterFuncs extends TPMUtilityFuncs
             auth = TPM_SECRET.NULL;
         }
         TPM_IncrementCounterOutput output = (TPM_IncrementCounterOutput) TPMOIAPSession.executeOIAPSession(
-            tpmDriver, cmd, auth );
+            getTPMDriver(), cmd, auth );
         return output.getCount();
     }
 
@@ -97,10 +99,43 @@ public class TPMCounterFuncs extends TPMUtilityFuncs
         throws TPMException
     {
         TPM_ReadCounter cmd = new TPM_ReadCounter( countID );
-        TPM_ReadCounterOutput output = cmd.execute( tpmDriver );
+        TPM_ReadCounterOutput output = cmd.execute( getTPMDriver() );
         return output.getCount();
     }
 
+    /**
+     * Like TPM_ReadCounter, but returns a result with the TPM's
+     * return code (e.g., TPM_BAD_COUNTER) instead of throwing
+     * a TPMErrorReturnCodeException.
+     */
+    public static TPMCommandResult<TPM_ReadCounterOutput> TPM_ReadCounterResult(
+        int countID ) throws TPMException
+    {
+        TPM_ReadCounter cmd = new TPM_ReadCounter( countID );
+        return cmd.executeForResult( getTPMDriver() );
+    }
+
+    /**
+     * Asynchronous version of TPM_ReadCounter.
+     * 
+     * @param countID
+     * @return
+     * @throws TPMException if the command could not be queued
+     */
+    public static TPMFuture<TPM_COUNTER_VALUE> TPM_ReadCounterAsync( int countID )
+        throws TPMException
+    {
+        TPM_ReadCounter cmd = new TPM_ReadCounter( countID );
+        return new ConvertingTPMFuture<TPMOutputStruct, TPM_COUNTER_VALUE>(
+            cmd.executeAsync( getTPMDriver() ) )
+        {
+            protected TPM_COUNTER_VALUE convert( TPMOutputStruct output )
+            {
+                return ((TPM_ReadCounterOutput) output).getCount();
+            }
+        };
+    }
+
     public static void TPM_ReleaseCounter( int countID, TPM_SECRET auth )
         throws TPMException
     {
@@ -110,7 +145,7 @@ public class TPMCounterFuncs extends TPMUtilityFuncs
             auth = TPM_SECRET.NULL;
         }
         TPM_ReleaseCounterOutput output = (TPM_ReleaseCounterOutput) TPMOIAPSession.executeOIAPSession(
-            tpmDriver, cmd, auth );
+            getTPMDriver(), cmd, auth );
     }
 
     public static void TPM_ReleaseCounterOwner( int countID, TPM_SECRET auth )
@@ -118,6 +153,6 @@ public class TPMCounterFuncs extends TPMUtilityFuncs
     {
         TPM_ReleaseCounterOwner cmd = new TPM_ReleaseCounterOwner( countID );
         TPM_ReleaseCounterOutput output = (TPM_ReleaseCounterOutput) TPMOIAPSession.executeOIAPSession(
-            tpmDriver, cmd, auth );
+            getTPMDriver(), cmd, auth );
     }
 }
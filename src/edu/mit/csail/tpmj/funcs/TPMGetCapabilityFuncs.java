@@ -39,6 +39,12 @@ import edu.mit.csail.tpmj.structs.TPM_STCLEAR_FLAGS;
 import edu.mit.csail.tpmj.structs.TPM_STRUCT_VER;
 import edu.mit.csail.tpmj.util.ByteArrayUtil;
 
+/**
+ * Each of these functions sends a TPM_GetCapability command.
+ * To avoid asking the TPM again for capabilities that have
+ * not changed, wrap the driver in a CachingTPMDriverWrapper
+ * (e.g., by setting the tpmj.capabilityCache property).
+ */
 public class TPMGetCapabilityFuncs extends TPMUtilityFuncs
 {
     public static TPM_STRUCT_VER getVersion11Style() throws TPMException
@@ -46,7 +52,7 @@ public class TPMGetCapabilityFuncs extends TPMUtilityFuncs
         TPM_GetCapability cmd = new TPM_GetCapability( TPMConsts.TCPA_CAP_VERSION );
         // Note: this can throw a TPMException, 
         // in which case, output is never returned
-        TPM_GetCapabilityOutput output = cmd.execute( tpmDriver );
+        TPM_GetCapabilityOutput output = cmd.execute( getTPMDriver() );
 
         // if we reach here, then output should not be null
         // and there should be no errors.
@@ -61,7 +67,7 @@ public class TPMGetCapabilityFuncs extends TPMUtilityFuncs
         TPM_GetCapability cmd = new TPM_GetCapability( TPMConsts.TPM_CAP_VERSION_VAL );
         // Note: this can throw a TPMException, 
         // in which case, output is never returned
-        TPM_GetCapabilityOutput output = cmd.execute( tpmDriver );
+        TPM_GetCapabilityOutput output = cmd.execute( getTPMDriver() );
 
         // if we reach here, then output should not be null
         // and there should be no errors.
@@ -77,10 +83,9 @@ public class TPMGetCapabilityFuncs extends TPMUtilityFuncs
 
         // Note: this can throw a TPMException, 
         // in which case, output is never returned
-        TPM_GetCapabilityOutput output = cmd.execute( tpmDriver );
+        TPM_GetCapabilityOutput output = cmd.execute( getTPMDriver() );
 
-        byte[] resp = output.getResp();
-        return ByteArrayUtil.readInt32BE( resp, 0 );
+        return output.getRespView().getInt32( 0 );
     }
 
     public static int getNumPcrs() throws TPMException
@@ -90,10 +95,9 @@ public class TPMGetCapabilityFuncs extends TPMUtilityFuncs
 
         // Note: this can throw a TPMException, 
         // in which case, output is never returned
-        TPM_GetCapabilityOutput output = cmd.execute( tpmDriver );
+        TPM_GetCapabilityOutput output = cmd.execute( getTPMDriver() );
 
-        byte[] resp = output.getResp();
-        return ByteArrayUtil.readInt32BE( resp, 0 );
+        return output.getRespView().getInt32( 0 );
     }
     
     public static TPM_KEY_HANDLE_LIST getKeyHandles() throws TPMException
@@ -102,11 +106,10 @@ public class TPMGetCapabilityFuncs extends TPMUtilityFuncs
 
         // Note: this can throw a TPMException, 
         // in which case, output is never returned
-        TPM_GetCapabilityOutput output = cmd.execute( tpmDriver );
+        TPM_GetCapabilityOutput output = cmd.execute( getTPMDriver() );
 
-        byte[] resp = output.getResp();
         TPM_KEY_HANDLE_LIST list = new TPM_KEY_HANDLE_LIST();
-        list.fromBytes( resp, 0 );
+        output.getRespView().readStruct( 0, list );
         return list;
     }
 
@@ -117,11 +120,10 @@ public class TPMGetCapabilityFuncs extends TPMUtilityFuncs
 
         // Note: this can throw a TPMException, 
         // in which case, output is never returned
-        TPM_GetCapabilityOutput output = cmd.execute( tpmDriver );
+        TPM_GetCapabilityOutput output = cmd.execute( getTPMDriver() );
 
-        byte[] resp = output.getResp();
         TPM_KEY_HANDLE_LIST list = new TPM_KEY_HANDLE_LIST();
-        list.fromBytes( resp, 0 );
+        output.getRespView().readStruct( 0, list );
         return list;
     }
     
@@ -129,10 +131,9 @@ public class TPMGetCapabilityFuncs extends TPMUtilityFuncs
     {
         byte[] subCap = ByteArrayUtil.toBytesInt32BE( TPMConsts.TPM_CAP_FLAG_PERMANENT );
         TPM_GetCapability cmd = new TPM_GetCapability( TPMConsts.TPM_CAP_FLAG, subCap );
-        TPM_GetCapabilityOutput output = cmd.execute( tpmDriver );
-        byte[] resp = output.getResp();
+        TPM_GetCapabilityOutput output = cmd.execute( getTPMDriver() );
         TPM_PERMANENT_FLAGS permFlags = new TPM_PERMANENT_FLAGS();
-        permFlags.fromBytes( resp, 0 );
+        output.getRespView().readStruct( 0, permFlags );
         return permFlags;
         
     }
@@ -141,10 +142,9 @@ public class TPMGetCapabilityFuncs extends TPMUtilityFuncs
     {
         byte[] subCap = ByteArrayUtil.toBytesInt32BE( TPMConsts.TPM_CAP_FLAG_VOLATILE );
         TPM_GetCapability cmd = new TPM_GetCapability( TPMConsts.TPM_CAP_FLAG, subCap );
-        TPM_GetCapabilityOutput output = cmd.execute( tpmDriver );
-        byte[] resp = output.getResp();
+        TPM_GetCapabilityOutput output = cmd.execute( getTPMDriver() );
         TPM_STCLEAR_FLAGS permFlags = new TPM_STCLEAR_FLAGS();
-        permFlags.fromBytes( resp, 0 );
+        output.getRespView().readStruct( 0, permFlags );
         return permFlags;
         
     }
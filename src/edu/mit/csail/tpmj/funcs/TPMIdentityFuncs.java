@@ -64,14 +64,14 @@ public class TPMIdentityFuncs extends TPMUtilityFuncs
             srkAuth = TPM_SECRET.NULL;
         }
 
-        TPMOIAPSession srkSession = new TPMOIAPSession( tpmDriver );
+        TPMOIAPSession srkSession = new TPMOIAPSession( getTPMDriver() );
         srkSession.startSession();
         srkSession.setSharedSecret( srkAuth );
 
         short ownerEntityType = TPMConsts.TPM_ET_OWNER;
         int ownerEntityValue = TPMConsts.TPM_KH_OWNER;
 
-        TPMOSAPSession ownerSession = new TPMOSAPSession( tpmDriver );
+        TPMOSAPSession ownerSession = new TPMOSAPSession( getTPMDriver() );
         ownerSession.startSession( ownerEntityType, ownerEntityValue, ownerAuth );
 
         TPM_MakeIdentityOutput output = (TPM_MakeIdentityOutput) cmd.execute(
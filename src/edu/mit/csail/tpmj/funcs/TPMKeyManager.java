@@ -0,0 +1,936 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.funcs;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.mit.csail.tpmj.TPMConsts;
+import edu.mit.csail.tpmj.TPMErrorReturnCodeException;
+import edu.mit.csail.tpmj.TPMException;
+import edu.mit.csail.tpmj.TPMIOException;
+import edu.mit.csail.tpmj.commands.TPMHandleOffsets;
+import edu.mit.csail.tpmj.commands.TPM_EvictKey;
+import edu.mit.csail.tpmj.commands.TPM_FlushSpecific;
+import edu.mit.csail.tpmj.commands.TPM_LoadKey;
+import edu.mit.csail.tpmj.commands.TPM_LoadKey2;
+import edu.mit.csail.tpmj.commands.TPM_LoadKeyOutput;
+import edu.mit.csail.tpmj.drivers.BasicTPMDriver;
+import edu.mit.csail.tpmj.drivers.CompletedTPMFuture;
+import edu.mit.csail.tpmj.drivers.TPMDriver;
+import edu.mit.csail.tpmj.drivers.TPMFuture;
+import edu.mit.csail.tpmj.structs.ByteArrayTPMInputStruct;
+import edu.mit.csail.tpmj.structs.ByteArrayTPMOutputStruct;
+import edu.mit.csail.tpmj.structs.TPMInputStruct;
+import edu.mit.csail.tpmj.structs.TPMOutputStruct;
+import edu.mit.csail.tpmj.structs.TPM_KEY;
+import edu.mit.csail.tpmj.structs.TPM_RESULT;
+import edu.mit.csail.tpmj.structs.TPM_SECRET;
+import edu.mit.csail.tpmj.structs.TPM_STRUCT_VER;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.Debug;
+
+/**
+ * A TPMDriver wrapper that virtualizes the TPM's key slots.
+ * <p>
+ * Keys are registered with registerKey(), which returns a virtual
+ * key handle without loading anything.  The virtual handle can
+ * then be used in place of a real key handle in commands sent
+ * through this driver (e.g., with TPMStorageFuncs.TPM_SignSHA1Digest(),
+ * TPMPcrFuncs.TPM_Quote(), TPMStorageFuncs.TPM_UnBind()
+ * and TPMStorageFuncs.TPM_Unseal(), after
+ * TPMDriverFactory.setTPMDriver( keyManager )).
+ * Before such a command is sent, the key is loaded if necessary
+ * (using TPM_LoadKey2, or TPM_LoadKey on a 1.1 chip), and
+ * the virtual handle is replaced by the physical one.
+ * (Only the handle parameters listed in TPMHandleOffsets are looked at.
+ * Handles are not part of the authorization digests,
+ * so this does not affect authorization.)
+ * <p>
+ * If the TPM runs out of key slots (TPM_NOSPACE), or if more than
+ * maxLoadedKeys keys are loaded, the least recently used key
+ * that is not in use is evicted.  It will be reloaded the next
+ * time it is used.  If the TPM says a physical handle is invalid
+ * (e.g., because someone else evicted it), the key is reloaded
+ * and the command retried once.
+ * <p>
+ * Note: keys are only protected from eviction during a single command.
+ * Multi-command sequences that depend on a key staying loaded
+ * (e.g., an OSAP session followed by TPM_Seal) should hold the key
+ * with pinKey() and unpinKey().
+ */
+public class TPMKeyManager implements TPMDriver
+{
+    /**
+     * Virtual handles are allocated starting from this value.
+     */
+    public static final int VIRTUAL_HANDLE_BASE = 0x7E000000;
+
+    /**
+     * Returned for TPM_EvictKey and TPM_FlushSpecific on a virtual handle,
+     * which just evict the key from the TPM (it stays registered).
+     */
+    private static final byte[] SUCCESS_OUTPUT =
+        { 0x00, (byte) 0xC4, 0, 0, 0, 10, 0, 0, 0, 0 };
+
+    public TPMDriver tpmDriver;
+
+    // Guards the key tables below, and is held while loading and
+    // evicting keys.  (This is used instead of the monitor, so that
+    // threads waiting for it do not pin the carrier threads of
+    // virtual threads.)
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private int nextVirtualHandle = VIRTUAL_HANDLE_BASE;
+    private HashMap<Integer, ManagedKey> keys = new HashMap<Integer, ManagedKey>();
+
+    /**
+     * Loaded keys, in least recently used order.
+     */
+    private LinkedHashMap<Integer, ManagedKey> loadedKeys = new LinkedHashMap<Integer, ManagedKey>(
+        16, 0.75f, true );
+
+    private int maxLoadedKeys = Integer.MAX_VALUE;
+
+    // statistics
+    private long numHits = 0;
+    private long numMisses = 0;
+    private long numReloads = 0;
+    private long numEvictions = 0;
+
+    public TPMKeyManager( TPMDriver tpmDriver )
+    {
+        super();
+        this.tpmDriver = tpmDriver;
+    }
+
+    /**
+     * Sets the maximum number of keys this manager keeps loaded at once.
+     * (By default there is no limit, and keys are evicted only when
+     * the TPM returns TPM_NOSPACE.)
+     */
+    public void setMaxLoadedKeys( int maxLoadedKeys )
+    {
+        this.lock.lock();
+        try
+        {
+            if ( maxLoadedKeys < 1 )
+            {
+                throw new IllegalArgumentException( "maxLoadedKeys must be at least 1" );
+            }
+            this.maxLoadedKeys = maxLoadedKeys;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public int getMaxLoadedKeys()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.maxLoadedKeys;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Registers a key blob, and returns a virtual handle for it.
+     * The key is not loaded until it is used.
+     *
+     * @param parentHandle -- the handle of the parent key (which may itself be virtual)
+     * @param key
+     * @param parentAuth -- parent's usage secret, or null if no authorization is needed
+     * @return the virtual handle
+     */
+    public int registerKey( int parentHandle, TPM_KEY key,
+        TPM_SECRET parentAuth )
+    {
+        this.lock.lock();
+        try
+        {
+            int handle = this.nextVirtualHandle++;
+            this.keys.put( handle, new ManagedKey( handle, parentHandle, key,
+                parentAuth ) );
+            return handle;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Evicts the key (if loaded), and forgets its virtual handle.
+     */
+    public void unregisterKey( int virtualHandle )
+        throws TPMException
+    {
+        this.lock.lock();
+        try
+        {
+            ManagedKey mk = this.getManagedKey( virtualHandle );
+            if ( mk.pinCount > 0 )
+            {
+                throw new TPMException( "Key 0x" + Integer.toHexString( virtualHandle )
+                    + " is in use" );
+            }
+            this.evict( mk );
+            this.keys.remove( virtualHandle );
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public boolean isVirtualHandle( int handle )
+    {
+        this.lock.lock();
+        try
+        {
+            return this.keys.containsKey( handle );
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public boolean isLoaded( int virtualHandle )
+    {
+        this.lock.lock();
+        try
+        {
+            return this.loadedKeys.containsKey( virtualHandle );
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Loads the key if necessary, and keeps it loaded until unpinKey() is called.
+     *
+     * @return the physical handle
+     */
+    public int pinKey( int virtualHandle ) throws TPMException
+    {
+        this.lock.lock();
+        try
+        {
+            ManagedKey mk = this.getManagedKey( virtualHandle );
+            this.ensureLoaded( mk );
+            mk.pinCount++;
+            return mk.physicalHandle;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public void unpinKey( int virtualHandle )
+    {
+        this.lock.lock();
+        try
+        {
+            ManagedKey mk = this.keys.get( virtualHandle );
+            if ( (mk != null) && (mk.pinCount > 0) )
+            {
+                mk.pinCount--;
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Evicts all loaded keys (they remain registered).
+     */
+    public void evictAll() throws TPMException
+    {
+        this.lock.lock();
+        try
+        {
+            Iterator<ManagedKey> it = this.loadedKeys.values().iterator();
+            while ( it.hasNext() )
+            {
+                ManagedKey mk = it.next();
+                if ( mk.pinCount == 0 )
+                {
+                    it.remove();
+                    this.flush( mk );
+                }
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    // Statistics
+
+    public int getNumLoadedKeys()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.loadedKeys.size();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of times a key was used while already loaded.
+     */
+    public long getNumHits()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.numHits;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of times a key had to be loaded before use.
+     */
+    public long getNumMisses()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.numMisses;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of misses on keys that had been loaded before.
+     */
+    public long getNumReloads()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.numReloads;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public long getNumEvictions()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.numEvictions;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public void resetStats()
+    {
+        this.lock.lock();
+        try
+        {
+            this.numHits = 0;
+            this.numMisses = 0;
+            this.numReloads = 0;
+            this.numEvictions = 0;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public String getStatsString()
+    {
+        this.lock.lock();
+        try
+        {
+            return "keys=" + this.keys.size() + ", loaded=" + this.loadedKeys.size()
+                + ", hits=" + this.numHits + ", misses=" + this.numMisses
+                + ", reloads=" + this.numReloads + ", evictions="
+                + this.numEvictions;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    // TPMDriver methods
+
+    public TPMOutputStruct transmit( TPMInputStruct input ) throws TPMException
+    {
+        byte[] inputBytes = input.toBytes();
+        if ( !this.usesVirtualHandles( inputBytes ) )
+        {
+            return this.tpmDriver.transmit( input );
+        }
+        return BasicTPMDriver.checkReturnCode( input, this.transmitVirtual(
+            inputBytes ) );
+    }
+
+    public TPMOutputStruct transmitUnchecked( TPMInputStruct input )
+        throws TPMException
+    {
+        byte[] inputBytes = input.toBytes();
+        if ( !this.usesVirtualHandles( inputBytes ) )
+        {
+            return this.tpmDriver.transmitUnchecked( input );
+        }
+        return this.transmitVirtual( inputBytes );
+    }
+
+    /**
+     * Executes a command that uses virtual key handles (loading the keys
+     * if necessary), and returns its output, whatever its return code.
+     */
+    private TPMOutputStruct transmitVirtual( byte[] inputBytes )
+        throws TPMException
+    {
+        if ( this.isEvictCommand( inputBytes ) )
+        {
+            this.evictVirtual( inputBytes );
+            return new ByteArrayTPMOutputStruct( SUCCESS_OUTPUT.clone() );
+        }
+
+        for ( int attempt = 0;; attempt++ )
+        {
+            ManagedKey[] used = this.acquireKeys( inputBytes );
+            try
+            {
+                ByteArrayTPMInputStruct translated = new ByteArrayTPMInputStruct(
+                    this.translate( inputBytes, used ) );
+                TPMOutputStruct output = this.tpmDriver.transmitUnchecked( translated );
+                if ( (attempt > 0) || !this.isStaleHandleError( output.getReturnCode() ) )
+                {
+                    return output;
+                }
+                this.markUnloaded( used );
+            }
+            finally
+            {
+                this.releaseKeys( used );
+            }
+        }
+    }
+
+    public byte[] transmitBytes( byte[] inputBytes ) throws TPMIOException
+    {
+        if ( !this.usesVirtualHandles( inputBytes ) )
+        {
+            return this.tpmDriver.transmitBytes( inputBytes );
+        }
+        if ( this.isEvictCommand( inputBytes ) )
+        {
+            try
+            {
+                this.evictVirtual( inputBytes );
+            }
+            catch ( TPMException e )
+            {
+                throw new TPMIOException( e );
+            }
+            return SUCCESS_OUTPUT.clone();
+        }
+
+        for ( int attempt = 0;; attempt++ )
+        {
+            ManagedKey[] used;
+            try
+            {
+                used = this.acquireKeys( inputBytes );
+            }
+            catch ( TPMException e )
+            {
+                throw new TPMIOException( e );
+            }
+            try
+            {
+                byte[] outputBytes = this.tpmDriver.transmitBytes( this.translate(
+                    inputBytes, used ) );
+                if ( (attempt == 0)
+                    && (outputBytes != null)
+                    && (outputBytes.length >= TPMOutputStruct.BODY_OFFSET)
+                    && this.isStaleHandleError( ByteArrayUtil.readInt32BE(
+                        outputBytes, TPMOutputStruct.RETURNCODE_OFFSET ) ) )
+                {
+                    this.markUnloaded( used );
+                    continue;
+                }
+                return outputBytes;
+            }
+            finally
+            {
+                this.releaseKeys( used );
+            }
+        }
+    }
+
+    /**
+     * Commands that use virtual handles are executed synchronously
+     * (since the keys have to stay loaded until the command is done),
+     * and a completed future is returned.
+     */
+    public TPMFuture<TPMOutputStruct> transmitAsync( TPMInputStruct input )
+        throws TPMException
+    {
+        if ( !this.usesVirtualHandles( input.toBytes() ) )
+        {
+            return this.tpmDriver.transmitAsync( input );
+        }
+
+        try
+        {
+            return new CompletedTPMFuture<TPMOutputStruct>( this.transmit( input ) );
+        }
+        catch ( TPMException e )
+        {
+            return new CompletedTPMFuture<TPMOutputStruct>( e );
+        }
+    }
+
+    public void init()
+    {
+        this.tpmDriver.init();
+    }
+
+    /**
+     * Evicts all the keys this manager has loaded, and cleans up
+     * the underlying driver.
+     */
+    public void cleanup()
+    {
+        try
+        {
+            this.evictAll();
+        }
+        catch ( TPMException e )
+        {
+            Debug.println( "TPMKeyManager.cleanup: " + e );
+        }
+        this.tpmDriver.cleanup();
+    }
+
+    public int getTPMManufacturer()
+    {
+        return this.tpmDriver.getTPMManufacturer();
+    }
+
+    public TPM_STRUCT_VER getTPMVersion()
+    {
+        return this.tpmDriver.getTPMVersion();
+    }
+
+    public boolean isTPM11()
+    {
+        return this.tpmDriver.isTPM11();
+    }
+
+    public boolean isTPM12()
+    {
+        return this.tpmDriver.isTPM12();
+    }
+
+    // Implementation
+
+    private ManagedKey getManagedKey( int virtualHandle ) throws TPMException
+    {
+        ManagedKey mk = this.keys.get( virtualHandle );
+        if ( mk == null )
+        {
+            throw new TPMException( "Unknown virtual key handle 0x"
+                + Integer.toHexString( virtualHandle ) );
+        }
+        return mk;
+    }
+
+    private boolean usesVirtualHandles( byte[] inputBytes )
+    {
+        this.lock.lock();
+        try
+        {
+            if ( this.keys.isEmpty() )
+            {
+                return false;
+            }
+            for ( int offset : TPMHandleOffsets.getHandleOffsets( inputBytes ) )
+            {
+                if ( this.keys.containsKey( ByteArrayUtil.readInt32BE( inputBytes,
+                    offset ) ) )
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Loads and pins the keys used by the command.
+     *
+     * @return the keys, indexed like TPMHandleOffsets.getHandleOffsets() 
+     * (null where there is no virtual handle)
+     */
+    private ManagedKey[] acquireKeys( byte[] inputBytes )
+        throws TPMException
+    {
+        this.lock.lock();
+        try
+        {
+            int[] offsets = TPMHandleOffsets.getHandleOffsets( inputBytes );
+            ManagedKey[] used = new ManagedKey[offsets.length];
+            try
+            {
+                for ( int i = 0; i < offsets.length; i++ )
+                {
+                    ManagedKey mk = this.keys.get( ByteArrayUtil.readInt32BE(
+                        inputBytes, offsets[i] ) );
+                    if ( mk != null )
+                    {
+                        this.ensureLoaded( mk );
+                        mk.pinCount++;
+                        used[i] = mk;
+                    }
+                }
+            }
+            catch ( TPMException e )
+            {
+                this.releaseKeys( used );
+                throw e;
+            }
+            return used;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    private void releaseKeys( ManagedKey[] used )
+    {
+        this.lock.lock();
+        try
+        {
+            for ( ManagedKey mk : used )
+            {
+                if ( mk != null )
+                {
+                    mk.pinCount--;
+                }
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    private byte[] translate( byte[] inputBytes, ManagedKey[] used )
+    {
+        this.lock.lock();
+        try
+        {
+            byte[] ret = inputBytes.clone();
+            int[] offsets = TPMHandleOffsets.getHandleOffsets( inputBytes );
+            for ( int i = 0; i < offsets.length; i++ )
+            {
+                if ( used[i] != null )
+                {
+                    ByteArrayUtil.writeInt32BE( ret, offsets[i],
+                        used[i].physicalHandle );
+                }
+            }
+            return ret;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    private boolean isEvictCommand( byte[] inputBytes )
+    {
+        int ordinal = ByteArrayUtil.readInt32BE( inputBytes,
+            TPMInputStruct.ORDINAL_OFFSET );
+        return (ordinal == TPMConsts.TPM_ORD_EvictKey)
+            || (ordinal == TPMConsts.TPM_ORD_FlushSpecific);
+    }
+
+    private void evictVirtual( byte[] inputBytes )
+        throws TPMException
+    {
+        this.lock.lock();
+        try
+        {
+            ManagedKey mk = this.getManagedKey( ByteArrayUtil.readInt32BE(
+                inputBytes, TPMHandleOffsets.FIRST_HANDLE_OFFSET ) );
+            if ( mk.pinCount == 0 )
+            {
+                this.evict( mk );
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    private boolean isStaleHandleError( int returnCode )
+    {
+        return (returnCode == TPM_RESULT.TPM_INVALID_KEYHANDLE)
+            || (returnCode == TPM_RESULT.TPM_KEYNOTFOUND);
+    }
+
+    /**
+     * Forgets the physical handles of the given keys,
+     * so they will be loaded again.
+     */
+    private void markUnloaded( ManagedKey[] used )
+    {
+        this.lock.lock();
+        try
+        {
+            for ( ManagedKey mk : used )
+            {
+                if ( (mk != null) && this.loadedKeys.remove( mk.virtualHandle ) != null )
+                {
+                    Debug.println( "TPMKeyManager: key 0x"
+                        + Integer.toHexString( mk.virtualHandle )
+                        + " was unloaded behind our back, reloading." );
+                    mk.physicalHandle = 0;
+                }
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    private void ensureLoaded( ManagedKey mk ) throws TPMException
+    {
+        if ( this.loadedKeys.get( mk.virtualHandle ) != null )
+        {
+            // get() above also marks it as most recently used
+            this.numHits++;
+            return;
+        }
+
+        this.numMisses++;
+        if ( mk.everLoaded )
+        {
+            this.numReloads++;
+        }
+
+        // make sure the parent stays loaded while we load the child
+        ManagedKey parent = this.keys.get( mk.parentHandle );
+        int parentPhysical = mk.parentHandle;
+        if ( parent != null )
+        {
+            this.ensureLoaded( parent );
+            parent.pinCount++;
+            parentPhysical = parent.physicalHandle;
+        }
+
+        try
+        {
+            while ( this.loadedKeys.size() >= this.maxLoadedKeys )
+            {
+                if ( !this.evictLRU() )
+                {
+                    break;
+                }
+            }
+
+            while ( true )
+            {
+                try
+                {
+                    mk.physicalHandle = this.load( parentPhysical, mk );
+                    break;
+                }
+                catch ( TPMErrorReturnCodeException e )
+                {
+                    if ( (e.getReturnCode() != TPM_RESULT.TPM_NOSPACE)
+                        || !this.evictLRU() )
+                    {
+                        throw e;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            if ( parent != null )
+            {
+                parent.pinCount--;
+            }
+        }
+
+        mk.everLoaded = true;
+        this.loadedKeys.put( mk.virtualHandle, mk );
+    }
+
+    private int load( int parentPhysical, ManagedKey mk ) throws TPMException
+    {
+        TPM_LoadKey lkCmd = null;
+        if ( this.tpmDriver.isTPM11() )
+        {
+            lkCmd = new TPM_LoadKey( parentPhysical, mk.key );
+        }
+        else
+        {
+            lkCmd = new TPM_LoadKey2( parentPhysical, mk.key );
+        }
+
+        TPM_LoadKeyOutput lkOut = null;
+        if ( mk.parentAuth == null )
+        {
+            lkCmd.setNoAuth();
+            lkOut = lkCmd.execute( this.tpmDriver );
+        }
+        else
+        {
+            lkOut = (TPM_LoadKeyOutput) TPMOIAPSession.executeOIAPSession(
+                this.tpmDriver, lkCmd, mk.parentAuth );
+        }
+        return lkOut.getInKeyHandle();
+    }
+
+    /**
+     * Evicts the least recently used key that is not in use.
+     *
+     * @return false if there is no such key
+     */
+    private boolean evictLRU() throws TPMException
+    {
+        for ( ManagedKey mk : this.loadedKeys.values() )
+        {
+            if ( mk.pinCount == 0 )
+            {
+                this.evict( mk );
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void evict( ManagedKey mk ) throws TPMException
+    {
+        if ( this.loadedKeys.remove( mk.virtualHandle ) != null )
+        {
+            this.flush( mk );
+        }
+    }
+
+    private void flush( ManagedKey mk ) throws TPMException
+    {
+        int physicalHandle = mk.physicalHandle;
+        mk.physicalHandle = 0;
+        this.numEvictions++;
+        try
+        {
+            if ( this.tpmDriver.isTPM11() )
+            {
+                new TPM_EvictKey( physicalHandle ).execute( this.tpmDriver );
+            }
+            else
+            {
+                new TPM_FlushSpecific( physicalHandle, TPMConsts.TPM_RT_KEY ).execute( this.tpmDriver );
+            }
+        }
+        catch ( TPMErrorReturnCodeException e )
+        {
+            // already gone, which is what we wanted anyway
+            if ( !this.isStaleHandleError( e.getReturnCode() ) )
+            {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * A registered key, and where (if anywhere) it is currently loaded.
+     */
+    private static class ManagedKey
+    {
+        int virtualHandle;
+        int parentHandle;
+        TPM_KEY key;
+        TPM_SECRET parentAuth;
+
+        int physicalHandle = 0;
+        boolean everLoaded = false;
+        int pinCount = 0;
+
+        ManagedKey( int virtualHandle, int parentHandle, TPM_KEY key,
+            TPM_SECRET parentAuth )
+        {
+            this.virtualHandle = virtualHandle;
+            this.parentHandle = parentHandle;
+            this.key = key;
+            this.parentAuth = parentAuth;
+        }
+    }
+}
@@ -37,6 +37,7 @@ import edu.mit.csail.tpmj.drivers.TPMDriver;
 import edu.mit.csail.tpmj.drivers.linux.LinuxTPMDriver;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.ByteArrayView;
 import edu.mit.csail.tpmj.util.Debug;
 import edu.mit.csail.tpmj.util.TPMToolsUtil;
 
@@ -60,7 +61,7 @@ public class TPMNVFuncs extends TPMUtilityFuncs
     public static TPM_DIGEST TPM_DirRead( int dirIndex ) throws TPMException
     {
         TPM_DirRead cmd = new TPM_DirRead( dirIndex );
-        TPM_DirReadOutput output = cmd.execute( tpmDriver );
+        TPM_DirReadOutput output = cmd.execute( getTPMDriver() );
         return output.getDirContents();
     }
 
@@ -72,12 +73,12 @@ public class TPMNVFuncs extends TPMUtilityFuncs
         if ( ownerAuth == null )
         {
             cmd.setNoAuth();
-            output = cmd.execute( tpmDriver );
+            output = cmd.execute( getTPMDriver() );
         }
         else
         {
             output = (TPM_DirWriteAuthOutput) TPMOIAPSession.executeOIAPSession(
-                tpmDriver, cmd, ownerAuth );
+                getTPMDriver(), cmd, ownerAuth );
         }
     }
 
@@ -88,13 +89,13 @@ public class TPMNVFuncs extends TPMUtilityFuncs
 
         // Note: this can throw a TPMException, 
         // in which case, output is never returned
-        TPM_GetCapabilityOutput output = cmd.execute( tpmDriver );
+        TPM_GetCapabilityOutput output = cmd.execute( getTPMDriver() );
 
-        byte[] resp = output.getResp();
-        int[] intArr = new int[resp.length / 4];
-        for ( int i = 0; i < resp.length / 4; i++ )
+        ByteArrayView resp = output.getRespView();
+        int[] intArr = new int[resp.getLength() / 4];
+        for ( int i = 0; i < intArr.length; i++ )
         {
-            intArr[i] = ByteArrayUtil.readInt32BE( resp, i * 4 );
+            intArr[i] = resp.getInt32( i * 4 );
         }
         return intArr;
     }
@@ -107,17 +108,40 @@ public class TPMNVFuncs extends TPMUtilityFuncs
         if ( ownerAuth == null )
         {
             cmd.setNoAuth();
-            output = cmd.execute( tpmDriver );
+            output = cmd.execute( getTPMDriver() );
         }
         else
         {
             output = (TPM_NV_ReadValueOutput) TPMOIAPSession.executeOIAPSession(
-                tpmDriver, cmd, ownerAuth );
+                getTPMDriver(), cmd, ownerAuth );
         }
         byte[] data = output.getData();
         return data;
     }
 
+    /**
+     * Like TPM_NV_ReadValue, but returns a result with the TPM's
+     * return code (e.g., TPM_BADINDEX if the index is not defined)
+     * instead of throwing a TPMErrorReturnCodeException.
+     * This is cheaper when probing indices that may not exist.
+     */
+    public static TPMCommandResult<TPM_NV_ReadValueOutput> TPM_NV_ReadValueResult(
+        int nvIndex, int offset, int dataSize, TPM_SECRET ownerAuth )
+        throws TPMException
+    {
+        TPM_NV_ReadValue cmd = new TPM_NV_ReadValue( nvIndex, offset, dataSize );
+        if ( ownerAuth == null )
+        {
+            cmd.setNoAuth();
+            return cmd.executeForResult( getTPMDriver() );
+        }
+        else
+        {
+            return TPMOIAPSession.executeOIAPSessionForResult( getTPMDriver(),
+                cmd, ownerAuth );
+        }
+    }
+
     // Unit test
 
     private static void dumpNVRAMNoAuth( int index )
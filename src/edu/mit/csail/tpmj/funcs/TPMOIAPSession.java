@@ -115,4 +115,24 @@ public class TPMOIAPSession extends TPMAuthorizationSession
         oiapSession.startSession();
         return oiapSession.executeAuth1Cmd( cmd, secret, false );
     }
+
+    /**
+     * Like executeOIAPSession, but if the TPM returns an error code
+     * (e.g., TPM_AUTHFAIL if the secret is wrong), returns a result
+     * with that code instead of throwing a TPMErrorReturnCodeException.
+     */
+    public static <T extends TPMOutputStruct> TPMCommandResult<T> executeOIAPSessionForResult(
+        TPMDriver tpmDriver, TPMAuth1Command cmd, TPM_SECRET secret )
+        throws TPMException
+    {
+        if ( cmd.isNoAuth() )
+        {
+            return cmd.executeForResult( tpmDriver );
+        }
+
+        TPMOIAPSession oiapSession = new TPMOIAPSession( tpmDriver );
+        oiapSession.startSession();
+        oiapSession.setSharedSecret( secret );
+        return cmd.executeForResult( oiapSession, false );
+    }
 }
@@ -29,8 +29,15 @@
  */
 package edu.mit.csail.tpmj.funcs;
 
+import java.util.WeakHashMap;
+
 import edu.mit.csail.tpmj.TPMException;
 import edu.mit.csail.tpmj.commands.*;
+import edu.mit.csail.tpmj.drivers.BasicTPMDriver;
+import edu.mit.csail.tpmj.drivers.ConvertingTPMFuture;
+import edu.mit.csail.tpmj.drivers.TPMDeviceProfile;
+import edu.mit.csail.tpmj.drivers.TPMDriver;
+import edu.mit.csail.tpmj.drivers.TPMFuture;
 import edu.mit.csail.tpmj.structs.TPMOutputStruct;
 import edu.mit.csail.tpmj.structs.TPM_DIGEST;
 import edu.mit.csail.tpmj.structs.TPM_NONCE;
@@ -47,18 +54,39 @@ import edu.mit.csail.tpmj.util.Debug;
 
 public class TPMPcrFuncs extends TPMUtilityFuncs
 {
-    private static int numPcrs;
+    private static WeakHashMap<TPMDriver, Integer> numPcrsByDriver = new WeakHashMap<TPMDriver, Integer>();
 
     /**
      * Returns the number of PCRs.
-     * Saves the actual value in a static variable the first time
+     * Saves the actual value for the current driver the first time
      * it successfully gets it, and then uses the saved value
-     * for subsequent calls.
+     * for subsequent calls with the same driver (so that
+     * several TPMContexts can use different TPMs).
+     * If the driver has a device profile, the number is taken from it.
      * 
      * @return number of PCRs, 0 if there is an error.
      */
     public static int getNumPcrs()
     {
+        TPMDriver tpmDriver = getTPMDriver();
+        synchronized ( numPcrsByDriver )
+        {
+            Integer saved = numPcrsByDriver.get( tpmDriver );
+            if ( saved != null )
+            {
+                return saved.intValue();
+            }
+        }
+
+        int numPcrs = 0;
+        if ( tpmDriver instanceof BasicTPMDriver )
+        {
+            TPMDeviceProfile profile = ((BasicTPMDriver) tpmDriver).getProfile();
+            if ( profile != null )
+            {
+                numPcrs = profile.getNumPcrs();
+            }
+        }
         if ( numPcrs == 0 )
         {
             try
@@ -68,18 +96,26 @@ public class TPMPcrFuncs extends TPMUtilityFuncs
             catch ( TPMException e )
             {
                 Debug.println( "TPMException getting numPCRs: ", e );
+                return 0;
             }
         }
+        synchronized ( numPcrsByDriver )
+        {
+            numPcrsByDriver.put( tpmDriver, numPcrs );
+        }
         return numPcrs;
     }
 
     /**
-     * Clears the saved value of numPcrs so that a call to getNumPcrs()
+     * Clears the saved values of numPcrs so that a call to getNumPcrs()
      * would trigger a call to TPM_GetCapability to get the number of PCRs again from the TPM.
      */
     public static void clearNumPcrs()
     {
-        numPcrs = 0;
+        synchronized ( numPcrsByDriver )
+        {
+            numPcrsByDriver.clear();
+        }
     }
 
     public static TPM_PCR_COMPOSITE readPCRsIntoComposite( int... pcrNums )
@@ -88,10 +124,14 @@ public class TPMPcrFuncs extends TPMUtilityFuncs
         TPM_PCR_SELECTION pcrSelection = new TPM_PCR_SELECTION(
             TPMPcrFuncs.getNumPcrs(), pcrNums );
 
+        // Use one template instead of creating a command for each PCR
+        TPMCommandTemplate<TPM_PCRReadOutput> cmd = TPM_PCRRead.createTemplate();
+        TPMDriver tpmDriver = getTPMDriver();
         TPM_PCRVALUE[] pcrVals = new TPM_PCRVALUE[pcrNums.length];
         for ( int i = 0; i < pcrNums.length; i++ )
         {
-            pcrVals[i] = TPMPcrFuncs.TPM_PCRRead( pcrNums[i] );
+            cmd.setInt32( TPM_PCRRead.PCRINDEX_OFFSET, pcrNums[i] );
+            pcrVals[i] = cmd.execute( tpmDriver ).getOutDigest();
         }
         TPM_PCR_COMPOSITE pcrComposite = new TPM_PCR_COMPOSITE( pcrSelection,
             pcrVals );
@@ -111,28 +151,84 @@ public class TPMPcrFuncs extends TPMUtilityFuncs
         TPM_PCRRead cmd = new TPM_PCRRead( pcrIndex );
         // Note: this can throw a TPMException, 
         // in which case, output is never returned
-        TPM_PCRReadOutput output = cmd.execute( tpmDriver );
+        TPM_PCRReadOutput output = cmd.execute( getTPMDriver() );
         // If we reach here, then there was no error
         return output.getOutDigest();
     }
 
+    /**
+     * Like TPM_PCRRead, but returns a result with the TPM's
+     * return code (e.g., TPM_BADINDEX) instead of throwing
+     * a TPMErrorReturnCodeException.
+     */
+    public static TPMCommandResult<TPM_PCRReadOutput> TPM_PCRReadResult(
+        int pcrIndex ) throws TPMException
+    {
+        TPM_PCRRead cmd = new TPM_PCRRead( pcrIndex );
+        return cmd.executeForResult( getTPMDriver() );
+    }
+
+    /**
+     * Asynchronous version of TPM_PCRRead.  This lets a caller
+     * read several PCRs without waiting for each one in turn.
+     * 
+     * @param pcrIndex
+     * @return
+     * @throws TPMException if the command could not be queued
+     */
+    public static TPMFuture<TPM_PCRVALUE> TPM_PCRReadAsync( int pcrIndex )
+        throws TPMException
+    {
+        TPM_PCRRead cmd = new TPM_PCRRead( pcrIndex );
+        return new ConvertingTPMFuture<TPMOutputStruct, TPM_PCRVALUE>(
+            cmd.executeAsync( getTPMDriver() ) )
+        {
+            protected TPM_PCRVALUE convert( TPMOutputStruct output )
+            {
+                return ((TPM_PCRReadOutput) output).getOutDigest();
+            }
+        };
+    }
+
     public static TPM_PCRVALUE TPM_Extend( int pcrNum, TPM_NONCE inDigest )
         throws TPMException
     {
         TPM_Extend cmd = new TPM_Extend( pcrNum, inDigest );
         // Note: this can throw a TPMException, 
         // in which case, output is never returned
-        TPM_PCRReadOutput output = cmd.execute( tpmDriver );
+        TPM_PCRReadOutput output = cmd.execute( getTPMDriver() );
         // If we reach here, then there was no error
         return output.getOutDigest();
     }
 
+    /**
+     * Asynchronous version of TPM_Extend.
+     * 
+     * @param pcrNum
+     * @param inDigest
+     * @return
+     * @throws TPMException if the command could not be queued
+     */
+    public static TPMFuture<TPM_PCRVALUE> TPM_ExtendAsync( int pcrNum,
+        TPM_NONCE inDigest ) throws TPMException
+    {
+        TPM_Extend cmd = new TPM_Extend( pcrNum, inDigest );
+        return new ConvertingTPMFuture<TPMOutputStruct, TPM_PCRVALUE>(
+            cmd.executeAsync( getTPMDriver() ) )
+        {
+            protected TPM_PCRVALUE convert( TPMOutputStruct output )
+            {
+                return ((TPM_PCRReadOutput) output).getOutDigest();
+            }
+        };
+    }
+
     public static boolean TPM_PCR_Reset( int pcrNum ) throws TPMException
     {
         int numPCRs = getNumPcrs();
         TPM_PCR_SELECTION pcrSelection = new TPM_PCR_SELECTION( numPCRs, pcrNum );
         TPM_PCR_Reset cmd = new TPM_PCR_Reset( pcrSelection );
-        TPMOutputStruct output = cmd.execute( tpmDriver );
+        TPMOutputStruct output = cmd.execute( getTPMDriver() );
         // FIXME: Use correct TPM no error constant.
         return (output.getReturnCode() == 0);
     }
@@ -145,7 +241,7 @@ public class TPMPcrFuncs extends TPMUtilityFuncs
      */
     public static TPM_STRUCT_VER getVersionForQuoteInfo()
     {
-        TPM_STRUCT_VER ver = tpmDriver.getTPMVersion();
+        TPM_STRUCT_VER ver = getTPMDriver().getTPMVersion();
         if ( ver.getMinor() > 1 )
         {
             return TPM_STRUCT_VER.TPM_1_1_VER;
@@ -246,7 +342,7 @@ public class TPMPcrFuncs extends TPMUtilityFuncs
         TPM_Quote quoteCmd2 = new TPM_Quote( keyHandle, externalData,
             pcrSelection );
         TPM_QuoteOutput quoteOut2 = (TPM_QuoteOutput) TPMOIAPSession.executeOIAPSession(
-            tpmDriver, quoteCmd2, keyAuth );
+            getTPMDriver(), quoteCmd2, keyAuth );
         return quoteOut2;
     }
 
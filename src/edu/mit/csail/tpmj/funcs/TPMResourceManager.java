@@ -0,0 +1,691 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.funcs;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+import edu.mit.csail.tpmj.TPMConsts;
+import edu.mit.csail.tpmj.TPMException;
+import edu.mit.csail.tpmj.TPMIOException;
+import edu.mit.csail.tpmj.commands.TPMCommandResult;
+import edu.mit.csail.tpmj.commands.TPMHandleOffsets;
+import edu.mit.csail.tpmj.commands.TPM_FlushSpecific;
+import edu.mit.csail.tpmj.commands.TPM_LoadContext;
+import edu.mit.csail.tpmj.commands.TPM_LoadContextOutput;
+import edu.mit.csail.tpmj.commands.TPM_SaveContext;
+import edu.mit.csail.tpmj.drivers.BasicTPMDriver;
+import edu.mit.csail.tpmj.drivers.CompletedTPMFuture;
+import edu.mit.csail.tpmj.drivers.TPMDriver;
+import edu.mit.csail.tpmj.drivers.TPMFuture;
+import edu.mit.csail.tpmj.structs.TPMIOStruct;
+import edu.mit.csail.tpmj.structs.TPMInputStruct;
+import edu.mit.csail.tpmj.structs.TPMOutputStruct;
+import edu.mit.csail.tpmj.structs.TPM_RESULT;
+import edu.mit.csail.tpmj.structs.TPM_STRUCT_VER;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.Debug;
+
+/**
+ * A TPMDriver wrapper that lets more authorization sessions,
+ * transport sessions and keys be open than the TPM has room for,
+ * by swapping idle ones out to host memory with TPM_SaveContext
+ * and back in with TPM_LoadContext.
+ * <p>
+ * Handles returned by TPM_OIAP, TPM_OSAP, TPM_DSAP,
+ * TPM_EstablishTransport and TPM_LoadKey2 sent through this driver
+ * are replaced by virtual handles.  When a later command refers to a
+ * virtual handle (as one of its handle parameters, as listed in
+ * TPMHandleOffsets, or as the handle of one of its authorization
+ * sessions), the resource is loaded back into the TPM if necessary, and
+ * the virtual handle is replaced by the current physical one.
+ * (Handles are not part of the authorization digests, so the
+ * sessions keep working across swaps without a new handshake.)
+ * When the TPM runs out of room (TPM_RESOURCES or TPM_NOSPACE),
+ * or more than maxLoaded resources are loaded, the least recently
+ * used resource not needed by the current command is swapped out.
+ * <p>
+ * Notes:
+ * <ul>
+ * <li>Commands are executed one at a time through this wrapper.</li>
+ * <li>TPM_LoadKey (the TPM 1.1 version) includes the key handle in
+ * its output HMAC, so keys loaded with it are not virtualized.</li>
+ * <li>Handles inside commands wrapped by TPM_ExecuteTransport
+ * are not translated.</li>
+ * </ul>
+ */
+public class TPMResourceManager implements TPMDriver
+{
+    /**
+     * Virtual handles are allocated starting from this value.
+     */
+    public static final int VIRTUAL_HANDLE_BASE = 0x7D000000;
+
+    // authHandle + nonceOdd + continueAuthSession + authValue
+    private static final int AUTH_TRAILER_SIZE = 4 + 20 + 1 + 20;
+    private static final int CONTINUE_SESSION_OFFSET = 4 + 20;
+
+    public TPMDriver tpmDriver;
+
+    // Guards the resource tables below, and is held while executing
+    // a command.  (This is used instead of the monitor, so that
+    // threads waiting for it do not pin the carrier threads of
+    // virtual threads.)
+    private final ReentrantLock lock = new ReentrantLock( true );
+
+    private int nextVirtualHandle = VIRTUAL_HANDLE_BASE;
+    private HashMap<Integer, Resource> resources = new HashMap<Integer, Resource>();
+
+    /**
+     * Loaded resources, in least recently used order.
+     */
+    private LinkedHashMap<Integer, Resource> loaded = new LinkedHashMap<Integer, Resource>(
+        16, 0.75f, true );
+
+    private int maxLoaded = Integer.MAX_VALUE;
+
+    // resources needed by the command currently being executed
+    private ArrayList<Resource> inUse = new ArrayList<Resource>();
+
+    // statistics
+    private long numSwapOuts = 0;
+    private long numSwapIns = 0;
+
+    public TPMResourceManager( TPMDriver tpmDriver )
+    {
+        super();
+        this.tpmDriver = tpmDriver;
+    }
+
+    /**
+     * Sets the maximum number of managed resources kept loaded at once.
+     * (By default there is no limit, and resources are swapped out
+     * only when the TPM runs out of room.)
+     */
+    public void setMaxLoaded( int maxLoaded )
+    {
+        this.lock.lock();
+        try
+        {
+            if ( maxLoaded < 1 )
+            {
+                throw new IllegalArgumentException( "maxLoaded must be at least 1" );
+            }
+            this.maxLoaded = maxLoaded;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public int getMaxLoaded()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.maxLoaded;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public boolean isVirtualHandle( int handle )
+    {
+        this.lock.lock();
+        try
+        {
+            return this.resources.containsKey( handle );
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the number of open resources (loaded or swapped out).
+     */
+    public int getNumResources()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.resources.size();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public int getNumLoaded()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.loaded.size();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public long getNumSwapOuts()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.numSwapOuts;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public long getNumSwapIns()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.numSwapIns;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public void resetStats()
+    {
+        this.lock.lock();
+        try
+        {
+            this.numSwapOuts = 0;
+            this.numSwapIns = 0;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    public String getStatsString()
+    {
+        this.lock.lock();
+        try
+        {
+            return "resources=" + this.resources.size() + ", loaded="
+                + this.loaded.size() + ", swapOuts=" + this.numSwapOuts
+                + ", swapIns=" + this.numSwapIns;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Swaps out all loaded resources.
+     */
+    public void swapOutAll() throws TPMException
+    {
+        this.lock.lock();
+        try
+        {
+            for ( Resource r : new ArrayList<Resource>( this.loaded.values() ) )
+            {
+                this.swapOut( r );
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    // TPMDriver methods
+
+    public TPMOutputStruct transmit( TPMInputStruct input ) throws TPMException
+    {
+        byte[] outputBytes = this.execute( input.toBytes() );
+        return BasicTPMDriver.checkOutput( input, outputBytes );
+    }
+
+    public TPMOutputStruct transmitUnchecked( TPMInputStruct input )
+        throws TPMException
+    {
+        byte[] outputBytes = this.execute( input.toBytes() );
+        return BasicTPMDriver.uncheckedOutput( input, outputBytes );
+    }
+
+    public byte[] transmitBytes( byte[] inputBytes ) throws TPMIOException
+    {
+        try
+        {
+            return this.execute( inputBytes );
+        }
+        catch ( TPMIOException e )
+        {
+            throw e;
+        }
+        catch ( TPMException e )
+        {
+            throw new TPMIOException( e );
+        }
+    }
+
+    /**
+     * Executes the command synchronously, and returns a completed future.
+     */
+    public TPMFuture<TPMOutputStruct> transmitAsync( TPMInputStruct input )
+        throws TPMException
+    {
+        try
+        {
+            return new CompletedTPMFuture<TPMOutputStruct>( this.transmit( input ) );
+        }
+        catch ( TPMException e )
+        {
+            return new CompletedTPMFuture<TPMOutputStruct>( e );
+        }
+    }
+
+    public void init()
+    {
+        this.tpmDriver.init();
+    }
+
+    /**
+     * Flushes all loaded resources, forgets the swapped out ones,
+     * and cleans up the underlying driver.
+     */
+    public void cleanup()
+    {
+        this.lock.lock();
+        try
+        {
+            for ( Resource r : this.loaded.values() )
+            {
+                this.flushQuietly( r.physicalHandle, r.resourceType );
+            }
+            this.loaded.clear();
+            this.resources.clear();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+        this.tpmDriver.cleanup();
+    }
+
+    public int getTPMManufacturer()
+    {
+        return this.tpmDriver.getTPMManufacturer();
+    }
+
+    public TPM_STRUCT_VER getTPMVersion()
+    {
+        return this.tpmDriver.getTPMVersion();
+    }
+
+    public boolean isTPM11()
+    {
+        return this.tpmDriver.isTPM11();
+    }
+
+    public boolean isTPM12()
+    {
+        return this.tpmDriver.isTPM12();
+    }
+
+    // Implementation
+
+    private byte[] execute( byte[] inputBytes )
+        throws TPMException
+    {
+        this.lock.lock();
+        try
+        {
+            int ordinal = ByteArrayUtil.readInt32BE( inputBytes,
+                TPMInputStruct.ORDINAL_OFFSET );
+            int paramSize = Math.min( inputBytes.length, ByteArrayUtil.readInt32BE(
+                inputBytes, TPMIOStruct.PARAMSIZE_OFFSET ) );
+            int[] authOffsets = this.authHandleOffsets( inputBytes, paramSize );
+
+            // load everything the command needs, and translate the handles
+            byte[] translated = inputBytes.clone();
+            this.inUse.clear();
+            try
+            {
+                for ( int offset : TPMHandleOffsets.getHandleOffsets( inputBytes ) )
+                {
+                    this.translateAt( translated, offset );
+                }
+                for ( int offset : authOffsets )
+                {
+                    this.translateAt( translated, offset );
+                }
+
+                int resourceType = this.createdResourceType( ordinal );
+                byte[] outputBytes;
+                while ( true )
+                {
+                    if ( resourceType != 0 )
+                    {
+                        this.makeRoom();
+                    }
+                    outputBytes = this.tpmDriver.transmitBytes( translated );
+                    int rc = this.getReturnCode( outputBytes );
+                    if ( (resourceType != 0) && this.isOutOfRoom( rc )
+                        && this.swapOutLRU() )
+                    {
+                        continue;
+                    }
+                    break;
+                }
+
+                int rc = this.getReturnCode( outputBytes );
+                if ( rc == 0 )
+                {
+                    if ( resourceType != 0 )
+                    {
+                        this.registerCreated( outputBytes, resourceType );
+                    }
+                    else if ( (ordinal == TPMConsts.TPM_ORD_FlushSpecific)
+                        || (ordinal == TPMConsts.TPM_ORD_Terminate_Handle)
+                        || (ordinal == TPMConsts.TPM_ORD_EvictKey) )
+                    {
+                        this.forget( ByteArrayUtil.readInt32BE( inputBytes,
+                            TPMHandleOffsets.FIRST_HANDLE_OFFSET ) );
+                    }
+                }
+                this.updateSessions( inputBytes, authOffsets, rc );
+
+                return outputBytes;
+            }
+            finally
+            {
+                this.inUse.clear();
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the offsets of the authorization session handles
+     * (based on the tag).
+     */
+    private int[] authHandleOffsets( byte[] inputBytes, int paramSize )
+    {
+        short tag = ByteArrayUtil.readShortBE( inputBytes, 0 );
+        int numAuths = 0;
+        if ( tag == TPMConsts.TPM_TAG_RQU_AUTH1_COMMAND )
+        {
+            numAuths = 1;
+        }
+        else if ( tag == TPMConsts.TPM_TAG_RQU_AUTH2_COMMAND )
+        {
+            numAuths = 2;
+        }
+        int[] ret = new int[numAuths];
+        for ( int i = 0; i < numAuths; i++ )
+        {
+            ret[i] = paramSize - (numAuths - i) * AUTH_TRAILER_SIZE;
+            if ( ret[i] < TPMHandleOffsets.FIRST_HANDLE_OFFSET )
+            {
+                return new int[0];
+            }
+        }
+        return ret;
+    }
+
+    private void translateAt( byte[] bytes, int offset ) throws TPMException
+    {
+        Resource r = this.resources.get( ByteArrayUtil.readInt32BE( bytes,
+            offset ) );
+        if ( r != null )
+        {
+            if ( !this.inUse.contains( r ) )
+            {
+                this.inUse.add( r );
+            }
+            this.ensureLoaded( r );
+            ByteArrayUtil.writeInt32BE( bytes, offset, r.physicalHandle );
+        }
+    }
+
+    private int createdResourceType( int ordinal )
+    {
+        switch ( ordinal )
+        {
+            case TPMConsts.TPM_ORD_OIAP:
+            case TPMConsts.TPM_ORD_OSAP:
+            case TPMConsts.TPM_ORD_DSAP:
+                return TPMConsts.TPM_RT_AUTH;
+            case TPMConsts.TPM_ORD_EstablishTransport:
+                return TPMConsts.TPM_RT_TRANS;
+            case TPMConsts.TPM_ORD_LoadKey2:
+                return TPMConsts.TPM_RT_KEY;
+            default:
+                return 0;
+        }
+    }
+
+    private int getReturnCode( byte[] outputBytes )
+    {
+        if ( (outputBytes == null)
+            || (outputBytes.length < TPMOutputStruct.BODY_OFFSET) )
+        {
+            return TPM_RESULT.TPM_FAIL;
+        }
+        return ByteArrayUtil.readInt32BE( outputBytes,
+            TPMOutputStruct.RETURNCODE_OFFSET );
+    }
+
+    private boolean isOutOfRoom( int rc )
+    {
+        return (rc == TPM_RESULT.TPM_RESOURCES)
+            || (rc == TPM_RESULT.TPM_NOSPACE);
+    }
+
+    /**
+     * Replaces the new physical handle in the output with a virtual one.
+     */
+    private void registerCreated( byte[] outputBytes, int resourceType )
+    {
+        if ( outputBytes.length < TPMOutputStruct.BODY_OFFSET + 4 )
+        {
+            return;
+        }
+        Resource r = new Resource( this.nextVirtualHandle++, resourceType );
+        r.physicalHandle = ByteArrayUtil.readInt32BE( outputBytes,
+            TPMOutputStruct.BODY_OFFSET );
+        this.resources.put( r.virtualHandle, r );
+        this.loaded.put( r.virtualHandle, r );
+        ByteArrayUtil.writeInt32BE( outputBytes, TPMOutputStruct.BODY_OFFSET,
+            r.virtualHandle );
+    }
+
+    /**
+     * Forgets sessions that the TPM closed after this command
+     * (continueAuthSession was false), and flushes sessions used by
+     * a failed command.
+     */
+    private void updateSessions( byte[] inputBytes, int[] authOffsets, int rc )
+    {
+        for ( int offset : authOffsets )
+        {
+            Resource r = this.resources.get( ByteArrayUtil.readInt32BE(
+                inputBytes, offset ) );
+            if ( r == null )
+            {
+                continue;
+            }
+            boolean continueSession = ByteArrayUtil.readBoolean( inputBytes,
+                offset + CONTINUE_SESSION_OFFSET );
+            if ( rc != 0 )
+            {
+                // the TPM may or may not have closed it, so make sure
+                this.flushQuietly( r.physicalHandle, r.resourceType );
+                this.forget( r.virtualHandle );
+            }
+            else if ( !continueSession )
+            {
+                this.forget( r.virtualHandle );
+            }
+        }
+    }
+
+    private void forget( int virtualHandle )
+    {
+        this.resources.remove( virtualHandle );
+        this.loaded.remove( virtualHandle );
+    }
+
+    private void ensureLoaded( Resource r ) throws TPMException
+    {
+        if ( this.loaded.get( r.virtualHandle ) != null )
+        {
+            // get() above also marks it as most recently used
+            return;
+        }
+
+        while ( true )
+        {
+            this.makeRoom();
+            TPM_LoadContext cmd = new TPM_LoadContext( r.physicalHandle,
+                false, r.contextBlob );
+            TPMCommandResult<TPM_LoadContextOutput> result = cmd.executeForResult( this.tpmDriver );
+            if ( result.isSuccess() )
+            {
+                r.physicalHandle = result.getOutput().getHandle();
+                break;
+            }
+            if ( !this.isOutOfRoom( result.getReturnCode() ) || !this.swapOutLRU() )
+            {
+                result.checkOutput();
+            }
+        }
+        r.contextBlob = null;
+        this.loaded.put( r.virtualHandle, r );
+        this.numSwapIns++;
+    }
+
+    /**
+     * Swaps out resources until there is room for one more under maxLoaded.
+     */
+    private void makeRoom() throws TPMException
+    {
+        while ( this.loaded.size() >= this.maxLoaded )
+        {
+            if ( !this.swapOutLRU() )
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Swaps out the least recently used resource that the current
+     * command does not need.
+     *
+     * @return false if there is no such resource
+     */
+    private boolean swapOutLRU() throws TPMException
+    {
+        for ( Resource r : this.loaded.values() )
+        {
+            if ( !this.inUse.contains( r ) )
+            {
+                this.swapOut( r );
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void swapOut( Resource r ) throws TPMException
+    {
+        Debug.println( "TPMResourceManager: swapping out 0x"
+            + Integer.toHexString( r.virtualHandle ) );
+        byte[] label = ByteArrayUtil.toBytesInt32BE( r.virtualHandle );
+        TPM_SaveContext cmd = new TPM_SaveContext( r.physicalHandle,
+            r.resourceType, label );
+        r.contextBlob = cmd.execute( this.tpmDriver ).getContextBlob();
+
+        // Saving a session releases it in the TPM, but a saved key
+        // stays loaded until flushed.
+        if ( r.resourceType == TPMConsts.TPM_RT_KEY )
+        {
+            this.flushQuietly( r.physicalHandle, r.resourceType );
+        }
+        this.loaded.remove( r.virtualHandle );
+        this.numSwapOuts++;
+    }
+
+    private void flushQuietly( int physicalHandle, int resourceType )
+    {
+        try
+        {
+            new TPM_FlushSpecific( physicalHandle, resourceType ).execute( this.tpmDriver );
+        }
+        catch ( TPMException e )
+        {
+            Debug.println( "TPMResourceManager: flush of 0x"
+                + Integer.toHexString( physicalHandle ) + " failed: " + e );
+        }
+    }
+
+    /**
+     * A session or key, and either its current physical handle
+     * or its saved context.
+     */
+    private static class Resource
+    {
+        int virtualHandle;
+        int resourceType;
+        int physicalHandle = 0;
+        byte[] contextBlob = null;
+
+        Resource( int virtualHandle, int resourceType )
+        {
+            this.virtualHandle = virtualHandle;
+            this.resourceType = resourceType;
+        }
+    }
+}
@@ -91,12 +91,12 @@ public class TPMStorageFuncs extends TPMUtilityFuncs
         if ( keyAuth == null )
         {
             cmd.setNoAuth();
-            output = cmd.execute( tpmDriver );
+            output = cmd.execute( getTPMDriver() );
         }
         else
         {
             output = (TPM_UnBindOutput) TPMOIAPSession.executeOIAPSession(
-                tpmDriver, cmd, keyAuth );
+                getTPMDriver(), cmd, keyAuth );
         }
         byte[] unboundData = output.getOutData();
         return unboundData;
@@ -261,7 +261,7 @@ public class TPMStorageFuncs extends TPMUtilityFuncs
         }
 
         TPM_CreateWrapKeyOutput output = (TPM_CreateWrapKeyOutput) TPMOSAPSession.executeKeyOSAPSession(
-            tpmDriver, createCmd, parentAuth );
+            getTPMDriver(), createCmd, parentAuth );
         return output.getWrappedKey();
     }
 
@@ -335,7 +335,7 @@ public class TPMStorageFuncs extends TPMUtilityFuncs
         TPM_LoadKey lkCmd = null;
         TPM_LoadKeyOutput lkOut = null;
         
-        if ( tpmDriver.isTPM11() )
+        if ( getTPMDriver().isTPM11() )
         {
             lkCmd = new TPM_LoadKey( parentHandle, key );
         }
@@ -347,12 +347,12 @@ public class TPMStorageFuncs extends TPMUtilityFuncs
         if ( parentAuth == null )
         {
             lkCmd.setNoAuth();
-            lkOut = lkCmd.execute( tpmDriver );
+            lkOut = lkCmd.execute( getTPMDriver() );
         }
         else
         {
             lkOut = (TPM_LoadKeyOutput) TPMOIAPSession.executeOIAPSession(
-                tpmDriver, lkCmd, parentAuth );
+                getTPMDriver(), lkCmd, parentAuth );
         }
         return lkOut.getInKeyHandle();
     }
@@ -388,7 +388,7 @@ public class TPMStorageFuncs extends TPMUtilityFuncs
     {
         TPM_GetPubKey cmd;
 
-        if ( !tpmDriver.isTPM11() &&
+        if ( !getTPMDriver().isTPM11() &&
             ( (keyHandle == TPMConsts.TPM_KH_EK) || (keyHandle == TPMConsts.TPM_KH_SRK) ) )
         {
 //            System.out.println( "Creating TPM_OwnerReadInternalPub command ... " );
@@ -405,12 +405,12 @@ public class TPMStorageFuncs extends TPMUtilityFuncs
         if ( keyAuth == null )
         {
             cmd.setNoAuth();
-            output = cmd.execute( tpmDriver );
+            output = cmd.execute( getTPMDriver() );
         }
         else
         {
             output = (TPM_GetPubKeyOutput) TPMOIAPSession.executeOIAPSession(
-                tpmDriver, cmd, keyAuth );
+                getTPMDriver(), cmd, keyAuth );
         }
         TPM_PUBKEY pubKey = output.getPubKey();
         return pubKey;
@@ -424,12 +424,12 @@ public class TPMStorageFuncs extends TPMUtilityFuncs
         if ( keyAuth == null )
         {
             cmd.setNoAuth();
-            output = cmd.execute( tpmDriver );
+            output = cmd.execute( getTPMDriver() );
         }
         else
         {
             output = (TPM_SignOutput) TPMOIAPSession.executeOIAPSession(
-                tpmDriver, cmd, keyAuth );
+                getTPMDriver(), cmd, keyAuth );
         }
         byte[] sigBytes = output.getSig();
         return sigBytes;
@@ -444,12 +444,12 @@ public class TPMStorageFuncs extends TPMUtilityFuncs
         if ( keyAuth == null )
         {
             cmd.setNoAuth();
-            output = cmd.execute( tpmDriver );
+            output = cmd.execute( getTPMDriver() );
         }
         else
         {
             output = (TPM_SignOutput) TPMOIAPSession.executeOIAPSession(
-                tpmDriver, cmd, keyAuth );
+                getTPMDriver(), cmd, keyAuth );
         }
         byte[] sigBytes = output.getSig();
         return sigBytes;
@@ -503,7 +503,7 @@ public class TPMStorageFuncs extends TPMUtilityFuncs
         }
 
         TPM_SealOutput output = (TPM_SealOutput) TPMOSAPSession.executeKeyOSAPSession(
-            tpmDriver, cmd, keyAuth );
+            getTPMDriver(), cmd, keyAuth );
         
         TPM_STORED_DATA outData = output.getSealedData();
         return outData;
@@ -525,11 +525,11 @@ public class TPMStorageFuncs extends TPMUtilityFuncs
         TPM_Unseal cmd = new TPM_Unseal( keyHandle, inData );
 
 
-        TPMOIAPSession keySession = new TPMOIAPSession( tpmDriver );
+        TPMOIAPSession keySession = new TPMOIAPSession( getTPMDriver() );
         keySession.startSession();
         keySession.setSharedSecret( keyAuth );
 
-        TPMOIAPSession dataSession = new TPMOIAPSession( tpmDriver );
+        TPMOIAPSession dataSession = new TPMOIAPSession( getTPMDriver() );
         dataSession.startSession();
         dataSession.setSharedSecret( dataAuth );
 
@@ -548,15 +548,15 @@ public class TPMStorageFuncs extends TPMUtilityFuncs
      */
     public static void TPM_EvictKey( int keyHandle ) throws TPMException
     {
-        if ( tpmDriver.isTPM11() )
+        if ( getTPMDriver().isTPM11() )
         {
             TPM_EvictKey evictCmd = new TPM_EvictKey( keyHandle );
-            evictCmd.execute( tpmDriver );
+            evictCmd.execute( getTPMDriver() );
         }
         else
         {
             TPM_FlushSpecific flushCmd = new TPM_FlushSpecific( keyHandle, TPMConsts.TPM_RT_KEY );
-            flushCmd.execute( tpmDriver );
+            flushCmd.execute( getTPMDriver() );
         }
     }
 }
@@ -51,21 +51,30 @@ import edu.mit.csail.tpmj.util.TPMToolsUtil;
  * <p>
  * The purpose of this class is to allow the
  * utility function classes to inherit the static
- * tpmDriver pointer and the execute method.
+ * getTPMDriver() method and the execute method.
+ * <p>
+ * The functions use the driver of the TPMContext that
+ * is current in the calling thread (see TPMContext.run()),
+ * or the default driver set with setTPMDriver() (or gotten
+ * from the TPMDriverFactory) if there is none.
  * 
  * @author lfgs
  */
 public class TPMUtilityFuncs
 {
-    protected static TPMDriver tpmDriver = null;
+    /**
+     * The default driver.  Subclasses should use getTPMDriver()
+     * instead, which takes the current TPMContext into account.
+     */
+    protected static volatile TPMDriver tpmDriver = null;
 
-    public static TPMDriver initTPMDriver()
+    public static synchronized TPMDriver initTPMDriver()
     {
         tpmDriver = TPMDriverFactory.getTPMDriver();
         return tpmDriver;
     }
 
-    public static void cleanupTPMDriver()
+    public static synchronized void cleanupTPMDriver()
     {
         if ( tpmDriver != null )
         {
@@ -75,15 +84,32 @@ public class TPMUtilityFuncs
         }
     }
 
+    /**
+     * Returns the driver of the current thread's TPMContext, if any,
+     * or else the default driver (initializing it if necessary).
+     */
     public static TPMDriver getTPMDriver()
     {
-        if ( tpmDriver == null )
+        TPMContext context = TPMContext.getCurrent();
+        if ( context != null )
         {
-            initTPMDriver();
+            return context.getTPMDriver();
         }
-        return tpmDriver;
+        TPMDriver ret = tpmDriver;
+        if ( ret == null )
+        {
+            synchronized ( TPMUtilityFuncs.class )
+            {
+                ret = (tpmDriver != null) ? tpmDriver : initTPMDriver();
+            }
+        }
+        return ret;
     }
 
+    /**
+     * Sets the default driver (which is used by threads
+     * with no current TPMContext).
+     */
     public static void setTPMDriver( TPMDriver tpmDriver )
     {
         //        TPMDriverFactory.setTPMDriver( tpmDriver );
@@ -104,16 +130,16 @@ public class TPMUtilityFuncs
     @Deprecated
     public static TPMOutputStruct execute( TPMCommand cmd ) throws TPMException
     {
-        return cmd.execute( tpmDriver );
+        return cmd.execute( getTPMDriver() );
     }
 
     @Deprecated
     public static void TPM_Reset() throws TPMException
     {
-        if ( tpmDriver.isTPM11() )
+        if ( getTPMDriver().isTPM11() )
         {
             TPM_Reset resetCmd = new TPM_Reset();
-            resetCmd.execute( tpmDriver );
+            resetCmd.execute( getTPMDriver() );
         }
         else
         {
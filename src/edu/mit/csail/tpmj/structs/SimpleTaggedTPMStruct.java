@@ -29,11 +29,14 @@
  */ 
 package edu.mit.csail.tpmj.structs;
 
+import edu.mit.csail.tpmj.structs.codec.TPMField;
+import edu.mit.csail.tpmj.structs.codec.TPMWireType;
 import edu.mit.csail.tpmj.util.ByteArrayUtil;
 
 public abstract class SimpleTaggedTPMStruct extends SimpleTPMStruct
     implements TaggedTPMStruct
 {
+    @TPMField( order = 0, type = TPMWireType.UINT16 )
     private short tag;
     
     public SimpleTaggedTPMStruct()
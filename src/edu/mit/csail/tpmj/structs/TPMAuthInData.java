@@ -30,7 +30,8 @@
 package edu.mit.csail.tpmj.structs;
 
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
-import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.ByteBufferEncodable;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 /**
  * This is the structure at the end of both the input
@@ -38,7 +39,7 @@ import edu.mit.csail.tpmj.util.ByteArrayUtil;
  * 
  * @author lfgs
  */
-public class TPMAuthInData extends SimpleTPMStruct
+public class TPMAuthInData extends SimpleTPMStruct implements ByteBufferEncodable
 {
     public static final int AUTHHANDLE_OFFSET = 0;
     public static final int NONCEODD_OFFSET = 4;
@@ -113,9 +114,24 @@ public class TPMAuthInData extends SimpleTPMStruct
 
     public byte[] toBytes()
     {
-        byte continueByte = (byte) (continueAuthSession ? 1 : 0);
-        return ByteArrayUtil.buildBuf( this.authHandle, this.nonceOdd,
-            continueByte, this.inAuth );
+        ByteBufferEncoder enc = ByteBufferEncoder.acquire();
+        try
+        {
+            this.writeTo( enc );
+            return enc.toBytes();
+        }
+        finally
+        {
+            enc.release();
+        }
+    }
+
+    public void writeTo( ByteBufferEncoder enc )
+    {
+        enc.writeInt32( this.authHandle );
+        enc.writeStruct( this.nonceOdd );
+        enc.writeBoolean( this.continueAuthSession );
+        enc.writeStruct( this.inAuth );
     }
 
     public void fromBytes( byte[] source, int offset )
@@ -30,12 +30,18 @@
 package edu.mit.csail.tpmj.structs;
 
 import edu.mit.csail.tpmj.TPMConsts;
-import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.structs.codec.TPMField;
+import edu.mit.csail.tpmj.structs.codec.TPMWireType;
 import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.ByteBufferEncodable;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
-public class TPM_COUNTER_VALUE extends SimpleTaggedTPMStruct
+public class TPM_COUNTER_VALUE extends SimpleTaggedTPMStruct implements
+    ByteBufferEncodable
 {
+    @TPMField( order = 1, type = TPMWireType.BYTES, size = 4 )
     private byte[] label = new byte[4];
+    @TPMField( order = 2, type = TPMWireType.UINT32 )
     private int counter;
 
     public TPM_COUNTER_VALUE()
@@ -75,19 +81,26 @@ public class TPM_COUNTER_VALUE extends SimpleTaggedTPMStruct
         this.label = label;
     }
 
+    public int getTotalStructSize()
+    {
+        return TPM_COUNTER_VALUE_Codec.sizeOf( this );
+    }
+
     @Override
     public byte[] toBytes()
     {
-        return ByteArrayUtil.buildBuf( this.getTag(), this.label, this.counter );
+        return TPM_COUNTER_VALUE_Codec.toBytes( this );
+    }
+
+    public void writeTo( ByteBufferEncoder enc )
+    {
+        TPM_COUNTER_VALUE_Codec.writeTo( this, enc );
     }
 
     @Override
     public void fromBytes( byte[] source, int offset )
     {
-        ByteArrayReadWriter brw = new ByteArrayReadWriter( source, offset );
-        this.setTag( brw.readShort() );
-        this.setLabel( brw.readBytes( 4 ) );
-        this.setCounter( brw.readInt32() );
+        TPM_COUNTER_VALUE_Codec.fromBytes( this, source, offset );
     }
 
     @Override
@@ -30,8 +30,11 @@
 package edu.mit.csail.tpmj.structs;
 
 import edu.mit.csail.tpmj.TPMConsts;
-import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.structs.codec.TPMField;
+import edu.mit.csail.tpmj.structs.codec.TPMWireType;
 import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.ByteBufferEncodable;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 import edu.mit.csail.tpmj.util.CryptoUtil;
 
 /**
@@ -44,7 +47,8 @@ import edu.mit.csail.tpmj.util.CryptoUtil;
  * @author lfgs
  *
  */
-public class TPM_KEY extends SimpleTaggedTPMStruct
+public class TPM_KEY extends SimpleTaggedTPMStruct implements
+    ByteBufferEncodable
 {
     /* From the TPM Structures specification:
      typedef struct tdTPM_KEY{
@@ -75,13 +79,21 @@ public class TPM_KEY extends SimpleTaggedTPMStruct
      } TPM_KEY12;
      */
 
+    @TPMField( order = 1, type = TPMWireType.UINT16 )
     private short fill;
+    @TPMField( order = 2, type = TPMWireType.UINT16 )
     private short keyUsage; // TPM_KEY_USAGE 
+    @TPMField( order = 3, type = TPMWireType.UINT32 )
     private int keyFlags;
+    @TPMField( order = 4, type = TPMWireType.BYTE )
     private byte authDataUsage;
+    @TPMField( order = 5, type = TPMWireType.STRUCT )
     private TPM_KEY_PARMS algorithmParms = new TPM_KEY_PARMS();
+    @TPMField( order = 6, type = TPMWireType.SIZED_BYTES )
     private byte[] pcrInfoBytes = new byte[0];
+    @TPMField( order = 7, type = TPMWireType.STRUCT )
     private TPM_STORE_PUBKEY pubKey = new TPM_STORE_PUBKEY();
+    @TPMField( order = 8, type = TPMWireType.SIZED_BYTES )
     private byte[] encDataBytes = new byte[0];
 
     /**
@@ -309,32 +321,26 @@ public class TPM_KEY extends SimpleTaggedTPMStruct
         return CryptoUtil.computeTPM_DIGEST( concat );
     }
 
+    public int getTotalStructSize()
+    {
+        return TPM_KEY_Codec.sizeOf( this );
+    }
+
     @Override
     public byte[] toBytes()
     {
-        return ByteArrayUtil.buildBuf( this.getTag(), this.fill, this.keyUsage,
-            this.keyFlags, this.authDataUsage, this.algorithmParms,
-            this.getPCRInfoSize(), this.pcrInfoBytes, this.pubKey,
-            this.getEncDataSize(), this.encDataBytes );
+        return TPM_KEY_Codec.toBytes( this );
+    }
+
+    public void writeTo( ByteBufferEncoder enc )
+    {
+        TPM_KEY_Codec.writeTo( this, enc );
     }
 
     @Override
     public void fromBytes( byte[] source, int offset )
     {
-        ByteArrayReadWriter brw = new ByteArrayReadWriter( source, offset );
-        this.setTag( brw.readShort() );
-        this.setFill( brw.readShort() );
-        this.keyUsage = brw.readShort();
-        this.keyFlags = brw.readInt32();
-        this.authDataUsage = brw.readByte();
-        this.algorithmParms = new TPM_KEY_PARMS();
-        brw.readStruct( this.algorithmParms );
-        int pcrInfoSize = brw.readInt32();
-        this.setPcrInfoBytes( brw.readBytes( pcrInfoSize ) );
-        this.pubKey = new TPM_STORE_PUBKEY();
-        brw.readStruct( this.pubKey );
-        int encDataSize = brw.readInt32();
-        this.setEncDataBytes( brw.readBytes( encDataSize ) );
+        TPM_KEY_Codec.fromBytes( this, source, offset );
     }
 
     @Override
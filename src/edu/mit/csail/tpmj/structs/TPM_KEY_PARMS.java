@@ -29,10 +29,14 @@
  */ 
 package edu.mit.csail.tpmj.structs;
 
-import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.structs.codec.TPMField;
+import edu.mit.csail.tpmj.structs.codec.TPMWireType;
 import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.ByteBufferEncodable;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
-public class TPM_KEY_PARMS extends SimpleTPMStruct
+public class TPM_KEY_PARMS extends SimpleTPMStruct implements
+    ByteBufferEncodable
 {
     /*
      * typedef struct tdTPM_KEY_PARMS {
@@ -44,9 +48,13 @@ public class TPM_KEY_PARMS extends SimpleTPMStruct
      * } TPM_KEY_PARMS;
      */
 
+    @TPMField( order = 1, type = TPMWireType.UINT32 )
     private int algorithmID;
+    @TPMField( order = 2, type = TPMWireType.UINT16 )
     private short encScheme;
+    @TPMField( order = 3, type = TPMWireType.UINT16 )
     private short sigScheme;
+    @TPMField( order = 4, type = TPMWireType.SIZED_BYTES )
     private byte[] parmsBytes;
 
     /**
@@ -142,35 +150,26 @@ public class TPM_KEY_PARMS extends SimpleTPMStruct
         this.sigScheme = sigScheme;
     }
 
+    public int getTotalStructSize()
+    {
+        return TPM_KEY_PARMS_Codec.sizeOf( this );
+    }
+
     @Override
     public byte[] toBytes()
     {
-        /*
-         * typedef struct tdTPM_KEY_PARMS {
-         *      TPM_ALGORITHM_ID algorithmID;
-         *      TPM_ENC_SCHEME encScheme;
-         *      TPM_SIG_SCHEME sigScheme;
-         *      UINT32 parmSize;
-         *      [size_is(parmSize)] BYTE* parms;
-         * } TPM_KEY_PARMS;
-         */
+        return TPM_KEY_PARMS_Codec.toBytes( this );
+    }
 
-        return ByteArrayUtil.buildBuf(
-            this.algorithmID,
-            this.encScheme,
-            this.sigScheme,
-            this.getParmSize(), this.parmsBytes );
+    public void writeTo( ByteBufferEncoder enc )
+    {
+        TPM_KEY_PARMS_Codec.writeTo( this, enc );
     }
 
     @Override
     public void fromBytes( byte[] source, int offset )
     {
-        ByteArrayReadWriter brw = new ByteArrayReadWriter( source, offset );
-        this.algorithmID = brw.readInt32();
-        this.encScheme = brw.readShort();
-        this.sigScheme = brw.readShort();
-        int parmSize = brw.readInt32();
-        this.setParmsBytes( brw.readBytes( parmSize ) );
+        TPM_KEY_PARMS_Codec.fromBytes( this, source, offset );
     }
 
     public String toString()
@@ -30,6 +30,8 @@
 package edu.mit.csail.tpmj.structs;
 
 import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.ByteBufferEncodable;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 // NOTE: This is effectively an immutable class
 // its subclasses are too.
@@ -54,7 +56,7 @@ import edu.mit.csail.tpmj.util.ByteArrayUtil;
  * In this case, call the constructor of the 
  * subclass with the toBytes() of the original nonce.
  */
-public class TPM_NONCE extends SimpleTPMStruct
+public class TPM_NONCE extends SimpleTPMStruct implements ByteBufferEncodable
 {
     public static final int SIZE = 20;
     public static final TPM_NONCE NULL = TPM_SECRET.NULL;
@@ -101,6 +103,14 @@ public class TPM_NONCE extends SimpleTPMStruct
         System.arraycopy( source, offset, this.bytes, 0, SIZE );
     }
 
+    /**
+     * Writes the bytes without cloning them.
+     */
+    public void writeTo( ByteBufferEncoder enc )
+    {
+        enc.writeBytes( this.bytes );
+    }
+
     public String toString()
     {
         return ByteArrayUtil.toHexString( this.bytes );
@@ -29,11 +29,14 @@
  */ 
 package edu.mit.csail.tpmj.structs;
 
-import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
-import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.structs.codec.TPMField;
+import edu.mit.csail.tpmj.structs.codec.TPMWireType;
+import edu.mit.csail.tpmj.util.ByteBufferEncodable;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 import edu.mit.csail.tpmj.util.CryptoUtil;
 
-public class TPM_PCR_INFO extends SimpleTPMStruct
+public class TPM_PCR_INFO extends SimpleTPMStruct implements
+    ByteBufferEncodable
 {
     /*
      * typedef struct tdTPM_PCR_INFO{
@@ -43,12 +46,15 @@ public class TPM_PCR_INFO extends SimpleTPMStruct
      * } TPM_PCR_INFO;
      */
 
+    @TPMField( order = 1, type = TPMWireType.STRUCT )
     private TPM_PCR_SELECTION pcrSelection;
+    @TPMField( order = 2, type = TPMWireType.STRUCT, size = TPM_DIGEST.SIZE )
     private TPM_DIGEST digestAtRelease;
 
     // NOTE: As far as I can tell from the TPM 1.2 Commands spec, digestAtCreation is never set by the user.
     // It is set by Seal and other commands internally (so that the TPM_PCR_INFO struct resulting internally
     // is stored with the sealed data).
+    @TPMField( order = 3, type = TPMWireType.STRUCT, size = TPM_DIGEST.SIZE )
     private TPM_DIGEST digestAtCreation;
 
     /**
@@ -124,22 +130,26 @@ public class TPM_PCR_INFO extends SimpleTPMStruct
     /**
      * If digestAtRelease or digestAtCreation is null, substitutes 20 zeros.
      */
+    public int getTotalStructSize()
+    {
+        return TPM_PCR_INFO_Codec.sizeOf( this );
+    }
+
     @Override
     public byte[] toBytes()
     {
-        TPM_DIGEST daR = ( digestAtRelease != null ) ? digestAtRelease : new TPM_DIGEST(); 
-        TPM_DIGEST daC = ( digestAtCreation != null ) ? digestAtCreation : new TPM_DIGEST(); 
-        return ByteArrayUtil.buildBuf( pcrSelection, daR, daC );
+        return TPM_PCR_INFO_Codec.toBytes( this );
+    }
+
+    public void writeTo( ByteBufferEncoder enc )
+    {
+        TPM_PCR_INFO_Codec.writeTo( this, enc );
     }
 
     @Override
     public void fromBytes( byte[] source, int offset )
     {
-        ByteArrayReadWriter brw = new ByteArrayReadWriter( source, offset );
-        this.pcrSelection = new TPM_PCR_SELECTION();
-        brw.readStruct( this.pcrSelection );
-        this.digestAtRelease = new TPM_DIGEST( brw.readBytes( TPM_DIGEST.SIZE ));
-        this.digestAtCreation = new TPM_DIGEST( brw.readBytes( TPM_DIGEST.SIZE ));
+        TPM_PCR_INFO_Codec.fromBytes( this, source, offset );
     }
 
     public String toString()
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.structs;
+
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
+
+/**
+ * Encodes and decodes TPM_PCR_INFO, as declared by the TPMField
+ * annotations of its fields.
+ * <p>
+ * Generated by TPMStructCodecGenerator.  Do not edit this file;
+ * change the annotations and run the generator again instead.
+ *
+ * @see edu.mit.csail.tpmj.structs.codec.TPMStructCodecGenerator
+ */
+public final class TPM_PCR_INFO_Codec
+{
+    private TPM_PCR_INFO_Codec()
+    {
+        // only static methods
+    }
+
+    /**
+     * Returns the number of bytes written by writeTo( s, enc ).
+     */
+    public static int sizeOf( TPM_PCR_INFO s )
+    {
+        int size = 0;
+        TPM_PCR_SELECTION pcrSelection = s.getPcrSelection();
+        if ( pcrSelection != null )
+        {
+            size += pcrSelection.getTotalStructSize();
+        }
+        size += 20; // digestAtRelease
+        size += 20; // digestAtCreation
+        return size;
+    }
+
+    /**
+     * Writes the fields of s into enc.
+     */
+    public static void writeTo( TPM_PCR_INFO s, ByteBufferEncoder enc )
+    {
+        enc.writeStruct( s.getPcrSelection() );
+        TPM_DIGEST digestAtRelease = s.getDigestAtRelease();
+        if ( digestAtRelease == null )
+        {
+            enc.writeZeros( 20 );
+        }
+        else
+        {
+            enc.writeStruct( digestAtRelease );
+        }
+        TPM_DIGEST digestAtCreation = s.getDigestAtCreation();
+        if ( digestAtCreation == null )
+        {
+            enc.writeZeros( 20 );
+        }
+        else
+        {
+            enc.writeStruct( digestAtCreation );
+        }
+    }
+
+    /**
+     * Returns the bytes of s (using this thread's ByteBufferEncoder).
+     */
+    public static byte[] toBytes( TPM_PCR_INFO s )
+    {
+        ByteBufferEncoder enc = ByteBufferEncoder.acquire();
+        try
+        {
+            writeTo( s, enc );
+            return enc.toBytes();
+        }
+        finally
+        {
+            enc.release();
+        }
+    }
+
+    /**
+     * Sets the fields of s from the bytes starting at offset in source,
+     * and returns the offset of the byte after them.
+     */
+    public static int fromBytes( TPM_PCR_INFO s, byte[] source, int offset )
+    {
+        TPM_PCR_SELECTION pcrSelection = new TPM_PCR_SELECTION();
+        pcrSelection.fromBytes( source, offset );
+        offset += pcrSelection.getTotalStructSize();
+        s.setPcrSelection( pcrSelection );
+        TPM_DIGEST digestAtRelease = new TPM_DIGEST();
+        digestAtRelease.fromBytes( source, offset );
+        offset += 20;
+        s.setDigestAtRelease( digestAtRelease );
+        TPM_DIGEST digestAtCreation = new TPM_DIGEST();
+        digestAtCreation.fromBytes( source, offset );
+        offset += 20;
+        s.setDigestAtCreation( digestAtCreation );
+        return offset;
+    }
+}
@@ -31,11 +31,13 @@ package edu.mit.csail.tpmj.structs;
 
 import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
 import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.ByteBufferEncodable;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 /**
  * @author lfgs
  */
-public class TPM_PCR_SELECTION extends SimpleTPMStruct
+public class TPM_PCR_SELECTION extends SimpleTPMStruct implements ByteBufferEncodable
 {
     /*
      * typedef struct tdTPM_PCR_SELECTION {
@@ -172,6 +174,12 @@ public class TPM_PCR_SELECTION extends SimpleTPMStruct
         return ByteArrayUtil.buildBuf( sizeOfSelect, this.pcrSelect );
     }
 
+    public void writeTo( ByteBufferEncoder enc )
+    {
+        enc.writeShort( this.getSizeOfSelect() );
+        enc.writeBytes( this.pcrSelect );
+    }
+
     @Override
     public void fromBytes( byte[] source, int offset )
     {
@@ -29,10 +29,13 @@
  */ 
 package edu.mit.csail.tpmj.structs;
 
-import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
-import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.structs.codec.TPMField;
+import edu.mit.csail.tpmj.structs.codec.TPMWireType;
+import edu.mit.csail.tpmj.util.ByteBufferEncodable;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
-public class TPM_PUBKEY extends SimpleTPMStruct
+public class TPM_PUBKEY extends SimpleTPMStruct implements
+    ByteBufferEncodable
 {
     /*
      * typedef struct tdTPM_PUBKEY{
@@ -42,7 +45,9 @@ public class TPM_PUBKEY extends SimpleTPMStruct
      * 
      */
 
+    @TPMField( order = 1, type = TPMWireType.STRUCT )
     private TPM_KEY_PARMS algorithmParms;
+    @TPMField( order = 2, type = TPMWireType.STRUCT )
     private TPM_STORE_PUBKEY pubKey;
 
     /**
@@ -79,20 +84,26 @@ public class TPM_PUBKEY extends SimpleTPMStruct
         this.pubKey = pubKey;
     }
 
+    public int getTotalStructSize()
+    {
+        return TPM_PUBKEY_Codec.sizeOf( this );
+    }
+
     @Override
     public byte[] toBytes()
     {
-        return ByteArrayUtil.buildBuf( algorithmParms, pubKey );
+        return TPM_PUBKEY_Codec.toBytes( this );
+    }
+
+    public void writeTo( ByteBufferEncoder enc )
+    {
+        TPM_PUBKEY_Codec.writeTo( this, enc );
     }
 
     @Override
     public void fromBytes( byte[] source, int offset )
     {
-        ByteArrayReadWriter brw = new ByteArrayReadWriter( source, offset );
-        this.algorithmParms = new TPM_KEY_PARMS();
-        brw.readStruct( this.algorithmParms );
-        this.pubKey = new TPM_STORE_PUBKEY();
-        brw.readStruct( this.pubKey );
+        TPM_PUBKEY_Codec.fromBytes( this, source, offset );
     }
 
     public String toString()
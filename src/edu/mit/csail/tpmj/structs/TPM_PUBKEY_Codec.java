@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.structs;
+
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
+
+/**
+ * Encodes and decodes TPM_PUBKEY, as declared by the TPMField
+ * annotations of its fields.
+ * <p>
+ * Generated by TPMStructCodecGenerator.  Do not edit this file;
+ * change the annotations and run the generator again instead.
+ *
+ * @see edu.mit.csail.tpmj.structs.codec.TPMStructCodecGenerator
+ */
+public final class TPM_PUBKEY_Codec
+{
+    private TPM_PUBKEY_Codec()
+    {
+        // only static methods
+    }
+
+    /**
+     * Returns the number of bytes written by writeTo( s, enc ).
+     */
+    public static int sizeOf( TPM_PUBKEY s )
+    {
+        int size = 0;
+        TPM_KEY_PARMS algorithmParms = s.getAlgorithmParms();
+        if ( algorithmParms != null )
+        {
+            size += TPM_KEY_PARMS_Codec.sizeOf( algorithmParms );
+        }
+        TPM_STORE_PUBKEY pubKey = s.getPubKey();
+        if ( pubKey != null )
+        {
+            size += TPM_STORE_PUBKEY_Codec.sizeOf( pubKey );
+        }
+        return size;
+    }
+
+    /**
+     * Writes the fields of s into enc.
+     */
+    public static void writeTo( TPM_PUBKEY s, ByteBufferEncoder enc )
+    {
+        enc.writeStruct( s.getAlgorithmParms() );
+        enc.writeStruct( s.getPubKey() );
+    }
+
+    /**
+     * Returns the bytes of s (using this thread's ByteBufferEncoder).
+     */
+    public static byte[] toBytes( TPM_PUBKEY s )
+    {
+        ByteBufferEncoder enc = ByteBufferEncoder.acquire();
+        try
+        {
+            writeTo( s, enc );
+            return enc.toBytes();
+        }
+        finally
+        {
+            enc.release();
+        }
+    }
+
+    /**
+     * Sets the fields of s from the bytes starting at offset in source,
+     * and returns the offset of the byte after them.
+     */
+    public static int fromBytes( TPM_PUBKEY s, byte[] source, int offset )
+    {
+        TPM_KEY_PARMS algorithmParms = new TPM_KEY_PARMS();
+        offset = TPM_KEY_PARMS_Codec.fromBytes( algorithmParms, source, offset );
+        s.setAlgorithmParms( algorithmParms );
+        TPM_STORE_PUBKEY pubKey = new TPM_STORE_PUBKEY();
+        offset = TPM_STORE_PUBKEY_Codec.fromBytes( pubKey, source, offset );
+        s.setPubKey( pubKey );
+        return offset;
+    }
+}
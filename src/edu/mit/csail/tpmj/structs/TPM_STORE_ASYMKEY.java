@@ -29,8 +29,10 @@
  */ 
 package edu.mit.csail.tpmj.structs;
 
-import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
-import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.structs.codec.TPMField;
+import edu.mit.csail.tpmj.structs.codec.TPMWireType;
+import edu.mit.csail.tpmj.util.ByteBufferEncodable;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 /**
  * 10.6 TPM_STORE_ASYMKEY
@@ -51,7 +53,8 @@ import edu.mit.csail.tpmj.util.ByteArrayUtil;
  * 
  * @author lfgs
  */
-public class TPM_STORE_ASYMKEY extends SimpleTPMStruct
+public class TPM_STORE_ASYMKEY extends SimpleTPMStruct implements
+    ByteBufferEncodable
 {
     /*
      * typedef struct tdTPM_STORE_ASYMKEY { // pos len total
@@ -64,10 +67,15 @@ public class TPM_STORE_ASYMKEY extends SimpleTPMStruct
      * 
      */
 
+    @TPMField( order = 1, type = TPMWireType.BYTE )
     private byte payload;
+    @TPMField( order = 2, type = TPMWireType.STRUCT, size = TPM_SECRET.SIZE )
     private TPM_SECRET usageAuth = TPM_SECRET.NULL;
+    @TPMField( order = 3, type = TPMWireType.STRUCT, size = TPM_SECRET.SIZE )
     private TPM_SECRET migrationAuth = TPM_SECRET.NULL;
+    @TPMField( order = 4, type = TPMWireType.STRUCT, size = TPM_DIGEST.SIZE )
     private TPM_DIGEST pubDataDigest = new TPM_DIGEST();
+    @TPMField( order = 5, type = TPMWireType.STRUCT )
     private TPM_STORE_PRIVKEY privKey = new TPM_STORE_PRIVKEY();
 
     /**
@@ -153,45 +161,26 @@ public class TPM_STORE_ASYMKEY extends SimpleTPMStruct
         }
     }
 
+    public int getTotalStructSize()
+    {
+        return TPM_STORE_ASYMKEY_Codec.sizeOf( this );
+    }
+
     @Override
     public byte[] toBytes()
     {
-        /*
-         * typedef struct tdTPM_STORE_ASYMKEY { // pos len total
-         *      TPM_PAYLOAD_TYPE payload; // 0 1 1
-         *      TPM_SECRET usageAuth; // 1 20 21
-         *      TPM_SECRET migrationAuth; // 21 20 41
-         *      TPM_DIGEST pubDataDigest; // 41 20 61
-         *      TPM_STORE_PRIVKEY privKey; // 61 132-151 193-214
-         * } TPM_STORE_ASYMKEY;
-         * 
-         */
-        TPM_SECRET usageAuthToWrite = this.usageAuth;
-        if ( usageAuthToWrite == null )
-        {
-            usageAuthToWrite = TPM_SECRET.NULL;
-        }
-        TPM_SECRET migAuthToWrite = this.migrationAuth;
-        if ( migAuthToWrite == null )
-        {
-            migAuthToWrite = TPM_SECRET.NULL;
-        }
+        return TPM_STORE_ASYMKEY_Codec.toBytes( this );
+    }
 
-        // FIXME: Think about actually setting the usageAuth and migrationAuth to all zeros if they are null        
-        return ByteArrayUtil.buildBuf( this.payload, usageAuthToWrite,
-            migAuthToWrite, this.pubDataDigest, this.privKey );
+    public void writeTo( ByteBufferEncoder enc )
+    {
+        TPM_STORE_ASYMKEY_Codec.writeTo( this, enc );
     }
 
     @Override
     public void fromBytes( byte[] source, int offset )
     {
-        ByteArrayReadWriter brw = new ByteArrayReadWriter( source, offset );
-        this.payload = brw.readByte();
-        this.usageAuth = new TPM_SECRET( brw.readBytes( TPM_SECRET.SIZE ) );
-        this.migrationAuth = new TPM_SECRET( brw.readBytes( TPM_SECRET.SIZE ) );
-        this.pubDataDigest = new TPM_DIGEST( brw.readBytes( TPM_DIGEST.SIZE ));
-        this.privKey = new TPM_STORE_PRIVKEY();
-        brw.readStruct( this.privKey );
+        TPM_STORE_ASYMKEY_Codec.fromBytes( this, source, offset );
     }
 
     public String toString()
@@ -29,8 +29,11 @@
  */ 
 package edu.mit.csail.tpmj.structs;
 
-import edu.mit.csail.tpmj.util.ByteArrayReadWriter;
+import edu.mit.csail.tpmj.structs.codec.TPMField;
+import edu.mit.csail.tpmj.structs.codec.TPMWireType;
 import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.ByteBufferEncodable;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
 
 /**
  * 10.4 TPM_STORE_PUBKEY
@@ -40,7 +43,8 @@ import edu.mit.csail.tpmj.util.ByteArrayUtil;
  * 
  * @author lfgs
  */
-public class TPM_STORE_PUBKEY extends SimpleTPMStruct
+public class TPM_STORE_PUBKEY extends SimpleTPMStruct implements
+    ByteBufferEncodable
 {
     /*
      * typedef struct tdTPM_STORE_PUBKEY {
@@ -49,6 +53,7 @@ public class TPM_STORE_PUBKEY extends SimpleTPMStruct
      * } TPM_STORE_PUBKEY;
      */
 
+    @TPMField( order = 1, type = TPMWireType.SIZED_BYTES )
     private byte[] keyBytes = new byte[0];
 
     /**
@@ -79,19 +84,26 @@ public class TPM_STORE_PUBKEY extends SimpleTPMStruct
         this.keyBytes = keyBytes;
     }
 
+    public int getTotalStructSize()
+    {
+        return TPM_STORE_PUBKEY_Codec.sizeOf( this );
+    }
+
     @Override
     public byte[] toBytes()
     {
-        int keyLength = this.getKeyLength();
-        return ByteArrayUtil.buildBuf( keyLength, this.keyBytes );
+        return TPM_STORE_PUBKEY_Codec.toBytes( this );
+    }
+
+    public void writeTo( ByteBufferEncoder enc )
+    {
+        TPM_STORE_PUBKEY_Codec.writeTo( this, enc );
     }
 
     @Override
     public void fromBytes( byte[] source, int offset )
     {
-        ByteArrayReadWriter brw = new ByteArrayReadWriter( source, offset );
-        int keyLength = brw.readInt32();
-        this.setKeyBytes( brw.readBytes( keyLength ) );
+        TPM_STORE_PUBKEY_Codec.fromBytes( this, source, offset );
     }
 
     public String toString()
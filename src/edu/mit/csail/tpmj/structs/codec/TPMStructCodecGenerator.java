@@ -0,0 +1,776 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.structs.codec;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import bayanihan.util.params.SwitchParams;
+
+import edu.mit.csail.tpmj.util.ByteArrayable;
+import edu.mit.csail.tpmj.util.FileUtil;
+
+/**
+ * Generates the source of a codec class for each TPM structure class
+ * given, from the TPMField annotations of the class's fields.
+ * The codec for a class X (e.g., TPM_KEY_PARMS) is written as
+ * X_Codec.java in the same package as X, and has the static methods:
+ * <ul>
+ * <li> sizeOf( X s ) -- the exact number of bytes in the encoding of s
+ * <li> writeTo( X s, ByteBufferEncoder enc ) -- writes s into enc
+ * <li> toBytes( X s ) -- returns the encoding of s
+ * <li> fromBytes( X s, byte[] source, int offset ) -- reads the fields
+ *      of s from source, and returns the offset after the structure
+ * </ul>
+ * The generated code writes and reads each field directly
+ * (using the field's getter and setter), without creating a byte array
+ * for each field, and reads nested structures that have codecs
+ * without calling toBytes() to find their lengths.
+ * The struct's own toBytes(), fromBytes(), and writeTo() can then
+ * just call its codec.
+ * <p>
+ * Since the annotations are read from the compiled classes,
+ * the generator is run on the classpath of a build, e.g.:
+ * <p>
+ * <code>
+ * java edu.mit.csail.tpmj.structs.codec.TPMStructCodecGenerator
+ * edu.mit.csail.tpmj.structs.TPM_KEY_PARMS ... /src srcdir
+ * </code>
+ * <p>
+ * (The source directory must be given, and may be an absolute path.)
+ * <p>
+ * and the generated files are checked in with the struct classes.
+ * (After changing the annotations, the build has to be compiled
+ * again before running the generator.)
+ *
+ * @see TPMField
+ */
+public class TPMStructCodecGenerator
+{
+    public static final String CODEC_SUFFIX = "_Codec";
+
+    private static final String[] LICENSE = {
+        "/*",
+        " * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)",
+        " * All rights reserved.",
+        " * ",
+        " * Redistribution and use in source and binary forms, with or without ",
+        " * modification, are permitted provided that the following conditions are met:",
+        " *  - Redistributions of source code must retain the above copyright notice, ",
+        " *    this list of conditions and the following disclaimer.",
+        " *  - Redistributions in binary form must reproduce the above copyright ",
+        " *    notice, this list of conditions and the following disclaimer in the ",
+        " *    documentation and/or other materials provided with the distribution.",
+        " *  - Neither the name of MIT nor the names of its contributors may be used ",
+        " *    to endorse or promote products derived from this software without ",
+        " *    specific prior written permission.",
+        " *    ",
+        " * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS \"AS IS\" ",
+        " * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, ",
+        " * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR ",
+        " * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR ",
+        " * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, ",
+        " * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, ",
+        " * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; ",
+        " * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, ",
+        " * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR ",
+        " * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, ",
+        " * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.",
+        " */" };
+
+    /**
+     * Names used by the generated code, which fields cannot have.
+     */
+    private static final String[] RESERVED_NAMES = { "s", "enc", "size",
+        "source", "offset" };
+
+    /**
+     * An annotated field, and how the generated code accesses it.
+     */
+    private static class FieldInfo
+    {
+        Field field;
+        TPMField annotation;
+        String name;
+        String getter;
+        String setter;
+        String typeName;
+        String codecName; // null if the (STRUCT) type has no codec
+        boolean hasTotalStructSize;
+    }
+
+    /**
+     * Names of the classes being generated in this run
+     * (whose codecs do not exist yet).
+     */
+    private Set<String> newCodecClasses = new HashSet<String>();
+
+    private StringBuilder sb;
+
+    public TPMStructCodecGenerator( Class<?>... structClasses )
+    {
+        for ( Class<?> c : structClasses )
+        {
+            this.newCodecClasses.add( c.getName() );
+        }
+    }
+
+    /**
+     * Returns the name of the codec class for c
+     * (e.g., edu.mit.csail.tpmj.structs.TPM_KEY_PARMS_Codec).
+     */
+    public static String getCodecClassName( Class<?> c )
+    {
+        return c.getName() + CODEC_SUFFIX;
+    }
+
+    private boolean hasCodec( Class<?> c )
+    {
+        if ( this.newCodecClasses.contains( c.getName() ) )
+        {
+            return true;
+        }
+        try
+        {
+            Class.forName( getCodecClassName( c ) );
+            return true;
+        }
+        catch ( ClassNotFoundException e )
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the name to use for c in code in package pkg.
+     */
+    private static String getTypeName( Class<?> c, Package pkg )
+    {
+        if ( c.isArray() )
+        {
+            return getTypeName( c.getComponentType(), pkg ) + "[]";
+        }
+        if ( c.isPrimitive() || (c.getPackage() == pkg) )
+        {
+            return c.getSimpleName();
+        }
+        return c.getName();
+    }
+
+    private static Method findPublicMethod( Class<?> c, String name,
+        Class<?>... paramTypes )
+    {
+        try
+        {
+            Method m = c.getMethod( name, paramTypes );
+            return Modifier.isPublic( m.getModifiers() ) ? m : null;
+        }
+        catch ( NoSuchMethodException e )
+        {
+            return null;
+        }
+    }
+
+    private static void fail( Class<?> c, String msg )
+    {
+        throw new IllegalArgumentException( c.getName() + ": " + msg );
+    }
+
+    /**
+     * Checks that the Java type of the field matches its wire type.
+     */
+    private static void checkType( Class<?> c, Field f, TPMField a )
+    {
+        Class<?> t = f.getType();
+        boolean ok;
+        switch ( a.type() )
+        {
+            case BOOL:
+                ok = (t == boolean.class);
+                break;
+            case BYTE:
+                ok = (t == byte.class);
+                break;
+            case UINT16:
+                ok = (t == short.class);
+                break;
+            case UINT32:
+                ok = (t == int.class);
+                break;
+            case UINT64:
+                ok = (t == long.class);
+                break;
+            case BYTES:
+            case SIZED_BYTES:
+            case SIZED_BYTES16:
+                ok = (t == byte[].class);
+                break;
+            default: // STRUCT
+                ok = ByteArrayable.class.isAssignableFrom( t );
+                break;
+        }
+        if ( !ok )
+        {
+            fail( c, "field " + f.getName() + " of type " + t.getName()
+                + " cannot be encoded as " + a.type() );
+        }
+
+        if ( (a.type() == TPMWireType.BYTES) && (a.size() < 0) )
+        {
+            fail( c, "BYTES field " + f.getName() + " needs a size" );
+        }
+        if ( (a.size() >= 0) && (a.type() != TPMWireType.BYTES)
+            && (a.type() != TPMWireType.STRUCT) )
+        {
+            fail( c, "size is only for BYTES and STRUCT fields, not "
+                + f.getName() );
+        }
+
+        if ( a.type() == TPMWireType.STRUCT )
+        {
+            if ( Modifier.isAbstract( t.getModifiers() ) )
+            {
+                fail( c, "STRUCT field " + f.getName() + " has abstract type "
+                    + t.getName() );
+            }
+            try
+            {
+                t.getConstructor();
+            }
+            catch ( NoSuchMethodException e )
+            {
+                fail( c, "STRUCT field " + f.getName() + " has type "
+                    + t.getName() + " without a public no-argument constructor" );
+            }
+        }
+    }
+
+    /**
+     * Returns the annotated fields of c and its superclasses,
+     * sorted by TPMField.order().
+     */
+    private List<FieldInfo> getFields( Class<?> c )
+    {
+        List<FieldInfo> ret = new ArrayList<FieldInfo>();
+        for ( Class<?> k = c; k != null; k = k.getSuperclass() )
+        {
+            for ( Field f : k.getDeclaredFields() )
+            {
+                TPMField a = f.getAnnotation( TPMField.class );
+                if ( a == null )
+                {
+                    continue;
+                }
+                checkType( c, f, a );
+
+                FieldInfo info = new FieldInfo();
+                info.field = f;
+                info.annotation = a;
+                info.name = f.getName();
+                for ( String reserved : RESERVED_NAMES )
+                {
+                    if ( info.name.equals( reserved ) )
+                    {
+                        fail( c, "field cannot be named " + reserved );
+                    }
+                }
+
+                Class<?> t = f.getType();
+                String cap = Character.toUpperCase( info.name.charAt( 0 ) )
+                    + info.name.substring( 1 );
+                info.getter = "get" + cap;
+                if ( (t == boolean.class)
+                    && (findPublicMethod( c, "is" + cap ) != null) )
+                {
+                    info.getter = "is" + cap;
+                }
+                info.setter = "set" + cap;
+                Method getter = findPublicMethod( c, info.getter );
+                if ( (getter == null) || (getter.getReturnType() != t) )
+                {
+                    fail( c, "no public " + info.getter + "() returning "
+                        + t.getName() );
+                }
+                if ( findPublicMethod( c, info.setter, t ) == null )
+                {
+                    fail( c, "no public " + info.setter + "( " + t.getName()
+                        + " )" );
+                }
+
+                info.typeName = getTypeName( t, c.getPackage() );
+                if ( (a.type() == TPMWireType.STRUCT) && this.hasCodec( t ) )
+                {
+                    info.codecName = info.typeName + CODEC_SUFFIX;
+                }
+                info.hasTotalStructSize = (findPublicMethod( t,
+                    "getTotalStructSize" ) != null);
+                ret.add( info );
+            }
+        }
+
+        if ( ret.isEmpty() )
+        {
+            fail( c, "no fields with TPMField annotations" );
+        }
+        Collections.sort( ret, new Comparator<FieldInfo>()
+        {
+            public int compare( FieldInfo f1, FieldInfo f2 )
+            {
+                return f1.annotation.order() - f2.annotation.order();
+            }
+        } );
+        for ( int i = 1; i < ret.size(); i++ )
+        {
+            if ( ret.get( i ).annotation.order() == ret.get( i - 1 ).annotation.order() )
+            {
+                fail( c, "fields " + ret.get( i - 1 ).name + " and "
+                    + ret.get( i ).name + " have the same order" );
+            }
+        }
+        return ret;
+    }
+
+    ///////////////////
+    // Code generation
+    ///////////////////
+
+    private void line( int indent, String text )
+    {
+        for ( int i = 0; i < indent; i++ )
+        {
+            this.sb.append( "    " );
+        }
+        this.sb.append( text );
+        this.sb.append( "\r\n" );
+    }
+
+    private void block( int indent, String... lines )
+    {
+        this.line( indent, "{" );
+        for ( String s : lines )
+        {
+            this.line( indent + 1, s );
+        }
+        this.line( indent, "}" );
+    }
+
+    /**
+     * Returns the number of bytes for the primitive wire types
+     * (and BYTES), or -1 if the size depends on the value.
+     */
+    private static int getFixedSize( FieldInfo f )
+    {
+        switch ( f.annotation.type() )
+        {
+            case BOOL:
+            case BYTE:
+                return 1;
+            case UINT16:
+                return 2;
+            case UINT32:
+                return 4;
+            case UINT64:
+                return 8;
+            default: // BYTES, STRUCT, or -1 for others
+                return f.annotation.size();
+        }
+    }
+
+    /**
+     * Returns an expression for the number of bytes in the non-null
+     * nested struct in local variable f.name.
+     */
+    private static String getStructSizeExpr( FieldInfo f )
+    {
+        if ( f.codecName != null )
+        {
+            return f.codecName + ".sizeOf( " + f.name + " )";
+        }
+        else if ( f.hasTotalStructSize )
+        {
+            return f.name + ".getTotalStructSize()";
+        }
+        else
+        {
+            return f.name + ".toBytes().length";
+        }
+    }
+
+    private void appendSizeOf( String structName, List<FieldInfo> fields )
+    {
+        this.line( 1, "/**" );
+        this.line( 1, " * Returns the number of bytes written by writeTo( s, enc )." );
+        this.line( 1, " */" );
+        this.line( 1, "public static int sizeOf( " + structName + " s )" );
+        this.line( 1, "{" );
+        this.line( 2, "int size = 0;" );
+        for ( FieldInfo f : fields )
+        {
+            String get = "s." + f.getter + "()";
+            int fixedSize = getFixedSize( f );
+            if ( fixedSize >= 0 )
+            {
+                this.line( 2, "size += " + fixedSize + "; // " + f.name );
+                continue;
+            }
+            this.line( 2, f.typeName + " " + f.name + " = " + get + ";" );
+            switch ( f.annotation.type() )
+            {
+                case SIZED_BYTES:
+                case SIZED_BYTES16:
+                    int lengthSize = (f.annotation.type() == TPMWireType.SIZED_BYTES) ? 4
+                        : 2;
+                    this.line( 2, "size += " + lengthSize + ";" );
+                    this.line( 2, "if ( " + f.name + " != null )" );
+                    this.block( 2, "size += " + f.name + ".length;" );
+                    break;
+                default: // STRUCT
+                    this.line( 2, "if ( " + f.name + " != null )" );
+                    this.block( 2, "size += " + getStructSizeExpr( f ) + ";" );
+                    break;
+            }
+        }
+        this.line( 2, "return size;" );
+        this.line( 1, "}" );
+    }
+
+    private void appendWriteTo( String structName, List<FieldInfo> fields )
+    {
+        this.line( 1, "/**" );
+        this.line( 1, " * Writes the fields of s into enc." );
+        this.line( 1, " */" );
+        this.line( 1, "public static void writeTo( " + structName
+            + " s, ByteBufferEncoder enc )" );
+        this.line( 1, "{" );
+        for ( FieldInfo f : fields )
+        {
+            String get = "s." + f.getter + "()";
+            switch ( f.annotation.type() )
+            {
+                case BOOL:
+                    this.line( 2, "enc.writeBoolean( " + get + " );" );
+                    break;
+                case BYTE:
+                    this.line( 2, "enc.writeByte( " + get + " );" );
+                    break;
+                case UINT16:
+                    this.line( 2, "enc.writeShort( " + get + " );" );
+                    break;
+                case UINT32:
+                    this.line( 2, "enc.writeInt32( " + get + " );" );
+                    break;
+                case UINT64:
+                    this.line( 2, "enc.writeLong( " + get + " );" );
+                    break;
+                case BYTES:
+                    this.line( 2, "enc.writeFixedBytes( " + get + ", "
+                        + f.annotation.size() + " );" );
+                    break;
+                case SIZED_BYTES:
+                    this.line( 2, "byte[] " + f.name + " = " + get + ";" );
+                    this.line( 2, "enc.writeInt32( ( " + f.name
+                        + " == null ) ? 0 : " + f.name + ".length );" );
+                    this.line( 2, "enc.writeBytes( " + f.name + " );" );
+                    break;
+                case SIZED_BYTES16:
+                    this.line( 2, "byte[] " + f.name + " = " + get + ";" );
+                    this.line( 2, "enc.writeShort( (short) (( " + f.name
+                        + " == null ) ? 0 : " + f.name + ".length) );" );
+                    this.line( 2, "enc.writeBytes( " + f.name + " );" );
+                    break;
+                default: // STRUCT
+                    if ( f.annotation.size() < 0 )
+                    {
+                        this.line( 2, "enc.writeStruct( " + get + " );" );
+                    }
+                    else
+                    {
+                        this.line( 2, f.typeName + " " + f.name + " = " + get
+                            + ";" );
+                        this.line( 2, "if ( " + f.name + " == null )" );
+                        this.block( 2, "enc.writeZeros( " + f.annotation.size()
+                            + " );" );
+                        this.line( 2, "else" );
+                        this.block( 2, "enc.writeStruct( " + f.name + " );" );
+                    }
+                    break;
+            }
+        }
+        this.line( 1, "}" );
+    }
+
+    private void appendToBytes( String structName )
+    {
+        this.line( 1, "/**" );
+        this.line( 1, " * Returns the bytes of s (using this thread's ByteBufferEncoder)." );
+        this.line( 1, " */" );
+        this.line( 1, "public static byte[] toBytes( " + structName + " s )" );
+        this.line( 1, "{" );
+        this.line( 2, "ByteBufferEncoder enc = ByteBufferEncoder.acquire();" );
+        this.line( 2, "try" );
+        this.block( 2, "writeTo( s, enc );", "return enc.toBytes();" );
+        this.line( 2, "finally" );
+        this.block( 2, "enc.release();" );
+        this.line( 1, "}" );
+    }
+
+    private void appendSetPrimitive( FieldInfo f, String readMethod, int size )
+    {
+        this.line( 2, "s." + f.setter + "( ByteArrayUtil." + readMethod
+            + "( source, offset ) );" );
+        this.line( 2, "offset += " + size + ";" );
+    }
+
+    private void appendFromBytes( String structName, List<FieldInfo> fields )
+    {
+        this.line( 1, "/**" );
+        this.line( 1, " * Sets the fields of s from the bytes starting at offset in source," );
+        this.line( 1, " * and returns the offset of the byte after them." );
+        this.line( 1, " */" );
+        this.line( 1, "public static int fromBytes( " + structName
+            + " s, byte[] source, int offset )" );
+        this.line( 1, "{" );
+        for ( FieldInfo f : fields )
+        {
+            String sizeVar = f.name + "Size";
+            switch ( f.annotation.type() )
+            {
+                case BOOL:
+                    this.appendSetPrimitive( f, "readBoolean", 1 );
+                    break;
+                case BYTE:
+                    this.appendSetPrimitive( f, "readByte", 1 );
+                    break;
+                case UINT16:
+                    this.appendSetPrimitive( f, "readShortBE", 2 );
+                    break;
+                case UINT32:
+                    this.appendSetPrimitive( f, "readInt32BE", 4 );
+                    break;
+                case UINT64:
+                    this.appendSetPrimitive( f, "readLongBE", 8 );
+                    break;
+                case BYTES:
+                    this.line( 2, "s." + f.setter
+                        + "( ByteArrayUtil.readBytes( source, offset, "
+                        + f.annotation.size() + " ) );" );
+                    this.line( 2, "offset += " + f.annotation.size() + ";" );
+                    break;
+                case SIZED_BYTES:
+                case SIZED_BYTES16:
+                    if ( f.annotation.type() == TPMWireType.SIZED_BYTES )
+                    {
+                        this.line( 2, "int " + sizeVar
+                            + " = ByteArrayUtil.readInt32BE( source, offset );" );
+                        this.line( 2, "offset += 4;" );
+                    }
+                    else
+                    {
+                        this.line( 2, "int " + sizeVar
+                            + " = ByteArrayUtil.readUInt16BE( source, offset );" );
+                        this.line( 2, "offset += 2;" );
+                    }
+                    this.line( 2, "s." + f.setter
+                        + "( ByteArrayUtil.readBytes( source, offset, " + sizeVar
+                        + " ) );" );
+                    this.line( 2, "offset += " + sizeVar + ";" );
+                    break;
+                default: // STRUCT
+                    this.line( 2, f.typeName + " " + f.name + " = new "
+                        + f.typeName + "();" );
+                    if ( f.codecName != null )
+                    {
+                        this.line( 2, "offset = " + f.codecName + ".fromBytes( "
+                            + f.name + ", source, offset );" );
+                    }
+                    else
+                    {
+                        this.line( 2, f.name + ".fromBytes( source, offset );" );
+                        String size = (f.annotation.size() >= 0) ? Integer.toString( f.annotation.size() )
+                            : getStructSizeExpr( f );
+                        this.line( 2, "offset += " + size + ";" );
+                    }
+                    this.line( 2, "s." + f.setter + "( " + f.name + " );" );
+                    break;
+            }
+        }
+        this.line( 2, "return offset;" );
+        this.line( 1, "}" );
+    }
+
+    /**
+     * Returns the source of the codec class for c.
+     */
+    public String generate( Class<?> c )
+    {
+        List<FieldInfo> fields = this.getFields( c );
+        String structName = c.getSimpleName();
+        String codecName = structName + CODEC_SUFFIX;
+
+        this.sb = new StringBuilder();
+        for ( String s : LICENSE )
+        {
+            this.line( 0, s );
+        }
+        this.line( 0, "package " + c.getPackage().getName() + ";" );
+        this.line( 0, "" );
+        // (fromBytes only reads nested structs if all fields are STRUCTs)
+        for ( FieldInfo f : fields )
+        {
+            if ( f.annotation.type() != TPMWireType.STRUCT )
+            {
+                this.line( 0, "import edu.mit.csail.tpmj.util.ByteArrayUtil;" );
+                break;
+            }
+        }
+        this.line( 0, "import edu.mit.csail.tpmj.util.ByteBufferEncoder;" );
+        this.line( 0, "" );
+        this.line( 0, "/**" );
+        this.line( 0, " * Encodes and decodes " + structName
+            + ", as declared by the TPMField" );
+        this.line( 0, " * annotations of its fields." );
+        this.line( 0, " * <p>" );
+        this.line( 0, " * Generated by TPMStructCodecGenerator.  Do not edit this file;" );
+        this.line( 0, " * change the annotations and run the generator again instead." );
+        this.line( 0, " *" );
+        this.line( 0, " * @see edu.mit.csail.tpmj.structs.codec.TPMStructCodecGenerator" );
+        this.line( 0, " */" );
+        this.line( 0, "public final class " + codecName );
+        this.line( 0, "{" );
+        this.line( 1, "private " + codecName + "()" );
+        this.block( 1, "// only static methods" );
+        this.line( 0, "" );
+        this.appendSizeOf( structName, fields );
+        this.line( 0, "" );
+        this.appendWriteTo( structName, fields );
+        this.line( 0, "" );
+        this.appendToBytes( structName );
+        this.line( 0, "" );
+        this.appendFromBytes( structName, fields );
+        this.line( 0, "}" );
+
+        String ret = this.sb.toString();
+        this.sb = null;
+        return ret;
+    }
+
+    /**
+     * Writes the codec for c into the directory for its package under srcDir
+     * (which is created if necessary).
+     */
+    public File generateFile( Class<?> c, String srcDir ) throws IOException
+    {
+        String source = this.generate( c );
+        File dir = new File( srcDir, c.getPackage().getName().replace( '.',
+            File.separatorChar ) );
+        if ( !dir.isDirectory() && !dir.mkdirs() )
+        {
+            throw new IOException( "Cannot create directory " + dir );
+        }
+        File f = new File( dir, c.getSimpleName() + CODEC_SUFFIX + ".java" );
+        FileUtil.writeByteArray( f.getPath(), source.getBytes( "ISO-8859-1" ) );
+        return f;
+    }
+
+    public static void usage()
+    {
+        System.out.println( "Usage: java edu.mit.csail.tpmj.structs.codec.TPMStructCodecGenerator className... /src srcdir" );
+        System.out.println( "(srcdir is where the codecs are written, e.g., src or /tmp/gen)" );
+    }
+
+    public static void main( String[] args )
+    {
+        // SwitchParams would take an absolute path (e.g., /tmp/gen)
+        // for another switch, so the value of /src is taken as is.
+        String srcDir = null;
+        List<String> otherArgs = new ArrayList<String>();
+        for ( int i = 0; i < args.length; i++ )
+        {
+            if ( args[i].equals( "/src" ) )
+            {
+                srcDir = (i + 1 < args.length) ? args[++i] : "";
+            }
+            else
+            {
+                otherArgs.add( args[i] );
+            }
+        }
+
+        SwitchParams params = new SwitchParams(
+            otherArgs.toArray( new String[otherArgs.size()] ) );
+        String[] classNames = params.getArgs();
+        if ( params.getBoolean( "help" ) )
+        {
+            usage();
+            return;
+        }
+        if ( (classNames.length == 0) || (srcDir == null)
+            || (srcDir.trim().length() == 0) )
+        {
+            usage();
+            System.exit( 1 );
+            return;
+        }
+
+        try
+        {
+            Class<?>[] classes = new Class<?>[classNames.length];
+            for ( int i = 0; i < classNames.length; i++ )
+            {
+                classes[i] = Class.forName( classNames[i] );
+            }
+            TPMStructCodecGenerator gen = new TPMStructCodecGenerator( classes );
+            for ( Class<?> c : classes )
+            {
+                File f = gen.generateFile( c, srcDir );
+                System.out.println( "Wrote " + f );
+            }
+        }
+        catch ( ClassNotFoundException e )
+        {
+            System.out.println( "Class not found: " + e.getMessage() );
+        }
+        catch ( IllegalArgumentException e )
+        {
+            System.out.println( "Error: " + e.getMessage() );
+        }
+        catch ( IOException e )
+        {
+            e.printStackTrace();
+        }
+    }
+}
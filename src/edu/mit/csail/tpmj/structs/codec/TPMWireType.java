@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.structs.codec;
+
+/**
+ * The ways a field of a TPM structure can be encoded in its bytes
+ * (as in the TPM Structures specification), for use in TPMField.
+ * All integers are big-endian.
+ *
+ * @see TPMField
+ */
+public enum TPMWireType
+{
+    /**
+     * A BOOL (1 byte) in a boolean field.
+     */
+    BOOL,
+
+    /**
+     * A BYTE in a byte field.
+     */
+    BYTE,
+
+    /**
+     * A UINT16 (e.g., a TPM_STRUCTURE_TAG or TPM_KEY_USAGE) in a short field.
+     */
+    UINT16,
+
+    /**
+     * A UINT32 (e.g., a handle, TPM_ALGORITHM_ID or flags) in an int field.
+     */
+    UINT32,
+
+    /**
+     * A UINT64 in a long field.
+     */
+    UINT64,
+
+    /**
+     * A byte[] field with a fixed number of bytes, given by TPMField.size().
+     * A null field is written as zeros.
+     */
+    BYTES,
+
+    /**
+     * A byte[] field preceded by its length as a UINT32
+     * (e.g., UINT32 parmSize; [size_is(parmSize)] BYTE* parms).
+     * A null field is written with length 0.
+     */
+    SIZED_BYTES,
+
+    /**
+     * A byte[] field preceded by its length as a UINT16.
+     * A null field is written with length 0.
+     */
+    SIZED_BYTES16,
+
+    /**
+     * A nested structure (a ByteArrayable with a public no-argument
+     * constructor).  If TPMField.size() is given, the structure
+     * always has that many bytes (e.g., TPM_DIGEST.SIZE), and a null
+     * field is written as zeros.  Otherwise, a null field is not written.
+     */
+    STRUCT
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.tests;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import edu.mit.csail.tpmj.TPMConsts;
+import edu.mit.csail.tpmj.TPMException;
+import edu.mit.csail.tpmj.TPMIOException;
+import edu.mit.csail.tpmj.drivers.CoalescingTPMDriverWrapper;
+import edu.mit.csail.tpmj.drivers.emulator.SoftwareTPMDriver;
+import edu.mit.csail.tpmj.funcs.TPMPcrFuncs;
+import edu.mit.csail.tpmj.funcs.TPMUtilityFuncs;
+import edu.mit.csail.tpmj.structs.TPMInputStruct;
+import edu.mit.csail.tpmj.structs.TPM_NONCE;
+import edu.mit.csail.tpmj.structs.TPM_PCRVALUE;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+
+/**
+ * Checks that a CoalescingTPMDriverWrapper does not give a caller
+ * the response of a read that was executed before a write finished,
+ * if the caller started after the write finished.
+ * <p>
+ * This forces the following interleaving on an emulated TPM:
+ * a TPM_Extend is started (and held before it reaches the TPM);
+ * a TPM_PCRRead of the same PCR is started, executed, and held
+ * before it returns; the TPM_Extend is let through and returns;
+ * then the same TPM_PCRRead is started again.  The second read must
+ * see the extended PCR value, i.e., it must not join the first read.
+ * This is done once with TPM_Extend, and once with TPM_ExtendAsync.
+ */
+public class TPMCoalescingTest
+{
+    private static final long WAIT_SECONDS = 5;
+
+    private static int numFailed = 0;
+
+    /**
+     * An emulated TPM that holds the next TPM_Extend until
+     * releaseWrite is counted down, and holds the first TPM_PCRRead
+     * after it (after executing it) until releaseRead is counted down.
+     */
+    private static class GatedDriver extends SoftwareTPMDriver
+    {
+        CountDownLatch writeStarted;
+        CountDownLatch releaseWrite;
+        CountDownLatch readExecuted;
+        CountDownLatch releaseRead;
+        CountDownLatch secondReadStarted;
+        private int numReads;
+
+        synchronized void reset()
+        {
+            this.writeStarted = new CountDownLatch( 1 );
+            this.releaseWrite = new CountDownLatch( 1 );
+            this.readExecuted = new CountDownLatch( 1 );
+            this.releaseRead = new CountDownLatch( 1 );
+            this.secondReadStarted = new CountDownLatch( 1 );
+            this.numReads = 0;
+        }
+
+        private synchronized int nextRead()
+        {
+            return ++this.numReads;
+        }
+
+        @Override
+        public byte[] transmitBytes( byte[] inputBytes ) throws TPMIOException
+        {
+            int ordinal = ByteArrayUtil.readInt32BE( inputBytes,
+                TPMInputStruct.ORDINAL_OFFSET );
+            if ( ordinal == TPMConsts.TPM_ORD_Extend )
+            {
+                this.writeStarted.countDown();
+                await( this.releaseWrite );
+                return super.transmitBytes( inputBytes );
+            }
+            if ( ordinal != TPMConsts.TPM_ORD_PcrRead )
+            {
+                return super.transmitBytes( inputBytes );
+            }
+            if ( this.nextRead() == 1 )
+            {
+                byte[] outputBytes = super.transmitBytes( inputBytes );
+                this.readExecuted.countDown();
+                await( this.releaseRead );
+                return outputBytes;
+            }
+            this.secondReadStarted.countDown();
+            return super.transmitBytes( inputBytes );
+        }
+    }
+
+    private static boolean await( CountDownLatch latch )
+    {
+        try
+        {
+            return latch.await( WAIT_SECONDS, TimeUnit.SECONDS );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Reads a PCR in a separate thread.
+     */
+    private static class Reader extends Thread
+    {
+        private int pcrNum;
+        TPM_PCRVALUE value;
+        TPMException error;
+
+        Reader( int pcrNum )
+        {
+            this.pcrNum = pcrNum;
+            this.start();
+        }
+
+        public void run()
+        {
+            try
+            {
+                this.value = TPMPcrFuncs.TPM_PCRRead( this.pcrNum );
+            }
+            catch ( TPMException e )
+            {
+                this.error = e;
+            }
+        }
+    }
+
+    private static void check( String name, GatedDriver gated,
+        CoalescingTPMDriverWrapper wrapper, final int pcrNum,
+        final boolean async )
+    {
+        String failure = null;
+        gated.reset();
+        long coalescedBefore = wrapper.getNumCoalesced();
+        byte[] digestBytes = new byte[TPM_NONCE.SIZE];
+        Arrays.fill( digestBytes, (byte) pcrNum );
+        final TPM_NONCE digest = new TPM_NONCE( digestBytes );
+        final TPMException[] writeError = new TPMException[1];
+
+        try
+        {
+            Thread writer = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        if ( async )
+                        {
+                            TPMPcrFuncs.TPM_ExtendAsync( pcrNum, digest ).getResult();
+                        }
+                        else
+                        {
+                            TPMPcrFuncs.TPM_Extend( pcrNum, digest );
+                        }
+                    }
+                    catch ( TPMException e )
+                    {
+                        writeError[0] = e;
+                    }
+                    catch ( InterruptedException e )
+                    {
+                        writeError[0] = new TPMException( e );
+                    }
+                }
+            };
+            writer.start();
+            if ( !await( gated.writeStarted ) )
+            {
+                throw new Exception( "TPM_Extend did not start" );
+            }
+
+            Reader first = new Reader( pcrNum );
+            if ( !await( gated.readExecuted ) )
+            {
+                throw new Exception( "first TPM_PCRRead did not start" );
+            }
+
+            gated.releaseWrite.countDown();
+            writer.join();
+            if ( writeError[0] != null )
+            {
+                throw writeError[0];
+            }
+
+            // The first read is still in flight.
+            Reader second = new Reader( pcrNum );
+            await( gated.secondReadStarted );
+            gated.releaseRead.countDown();
+            first.join();
+            second.join();
+            if ( first.error != null )
+            {
+                throw first.error;
+            }
+            if ( second.error != null )
+            {
+                throw second.error;
+            }
+
+            TPM_PCRVALUE extended = TPMPcrFuncs.TPM_PCRRead( pcrNum );
+            if ( Arrays.equals( first.value.toBytes(), extended.toBytes() ) )
+            {
+                failure = "read before the write got the extended value";
+            }
+            else if ( !Arrays.equals( second.value.toBytes(),
+                extended.toBytes() ) )
+            {
+                failure = "read after the write got " + second.value
+                    + "\nbut the PCR is " + extended;
+            }
+            else if ( wrapper.getNumCoalesced() != coalescedBefore )
+            {
+                failure = "read after the write joined the read before it";
+            }
+        }
+        catch ( Exception e )
+        {
+            failure = e.toString();
+            gated.releaseWrite.countDown();
+            gated.releaseRead.countDown();
+        }
+
+        if ( failure == null )
+        {
+            System.out.println( name + ": OK" );
+        }
+        else
+        {
+            System.out.println( name + ": FAILED: " + failure );
+            numFailed++;
+        }
+    }
+
+    public static void main( String[] args )
+    {
+        GatedDriver gated = new GatedDriver();
+        gated.init();
+        CoalescingTPMDriverWrapper wrapper = new CoalescingTPMDriverWrapper(
+            gated );
+        TPMUtilityFuncs.setTPMDriver( wrapper );
+
+        check( "TPM_Extend, then TPM_PCRRead", gated, wrapper, 10, false );
+        check( "TPM_ExtendAsync, then TPM_PCRRead", gated, wrapper, 11, true );
+
+        wrapper.cleanup();
+        System.out.println( (numFailed == 0) ? "All OK." : numFailed
+            + " check(s) FAILED." );
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.tests;
+
+import bayanihan.util.params.SwitchParams;
+
+import edu.mit.csail.tpmj.TPMConsts;
+import edu.mit.csail.tpmj.TPMException;
+import edu.mit.csail.tpmj.commands.TPMCommand;
+import edu.mit.csail.tpmj.commands.TPMCommandTemplate;
+import edu.mit.csail.tpmj.commands.TPM_DirRead;
+import edu.mit.csail.tpmj.commands.TPM_Extend;
+import edu.mit.csail.tpmj.commands.TPM_GetCapability;
+import edu.mit.csail.tpmj.commands.TPM_PCRRead;
+import edu.mit.csail.tpmj.commands.TPM_PCRReadOutput;
+import edu.mit.csail.tpmj.commands.TPM_ReadCounter;
+import edu.mit.csail.tpmj.drivers.TPMDriver;
+import edu.mit.csail.tpmj.drivers.emulator.SoftwareTPMDriver;
+import edu.mit.csail.tpmj.structs.TPM_NONCE;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+
+/**
+ * Compares the number of commands per second when creating a new
+ * command object for each call with the number when patching
+ * a TPMCommandTemplate, for the read commands that are called
+ * most often.  The commands are sent to an emulated TPM
+ * (with no latency), so the times are mostly the time spent
+ * in TPM/J itself.
+ * <p>
+ * The commands are executed with executeForResult(), so that
+ * error codes (e.g., TPM_BAD_COUNTER, since no counter is created)
+ * are counted instead of stopping the benchmark.
+ */
+public class TPMCommandTemplateBenchmark
+{
+    private static TPMDriver tpmDriver;
+
+    public static void usage()
+    {
+        System.out.println( "Usage: java edu.mit.csail.tpmj.tests.TPMCommandTemplateBenchmark [/iterations n]" );
+    }
+
+    /**
+     * Something that sends the i'th command.
+     */
+    public interface Sender
+    {
+        public void send( int i ) throws TPMException;
+    }
+
+    /**
+     * Runs the sender (after a warm-up), and prints the number
+     * of commands per second.
+     */
+    public static void runSender( String msg, Sender sender, int iterations )
+        throws TPMException
+    {
+        for ( int i = 0; i < iterations; i++ )
+        {
+            sender.send( i );
+        }
+
+        long start = System.nanoTime();
+        for ( int i = 0; i < iterations; i++ )
+        {
+            sender.send( i );
+        }
+        long time = System.nanoTime() - start;
+
+        System.out.println( msg + ": " + (iterations * 1000000000L / time)
+            + " commands/s (" + (time / iterations) + " ns/command)" );
+    }
+
+    /**
+     * Something that creates a new command for the i'th call.
+     */
+    public interface CommandFactory
+    {
+        public TPMCommand create( int i );
+    }
+
+    /**
+     * Compares creating a new command for each call with patching
+     * the 32-bit field at offset in the template.
+     */
+    public static void compare( String name, final CommandFactory factory,
+        final TPMCommandTemplate<?> template, final int offset, final int[] values,
+        int iterations ) throws TPMException
+    {
+        runSender( name + " new command", new Sender()
+        {
+            public void send( int i ) throws TPMException
+            {
+                factory.create( values[i % values.length] ).executeForResult(
+                    tpmDriver );
+            }
+        }, iterations );
+        runSender( name + " template   ", new Sender()
+        {
+            public void send( int i ) throws TPMException
+            {
+                template.setInt32( offset, values[i % values.length] );
+                template.executeForResult( tpmDriver );
+            }
+        }, iterations );
+    }
+
+    public static void main( String[] args )
+    {
+        SwitchParams params = new SwitchParams( args );
+        if ( params.getBoolean( "help" ) )
+        {
+            usage();
+            return;
+        }
+        int iterations = params.getInt( "iterations", 1000000 );
+
+        tpmDriver = new SoftwareTPMDriver();
+        tpmDriver.init();
+        try
+        {
+            int[] pcrs = { 0, 1, 2, 3, 4, 5, 6, 7 };
+            compare( "TPM_PCRRead      ", new CommandFactory()
+            {
+                public TPMCommand create( int i )
+                {
+                    return new TPM_PCRRead( i );
+                }
+            }, TPM_PCRRead.createTemplate(), TPM_PCRRead.PCRINDEX_OFFSET,
+                pcrs, iterations );
+
+            compare( "TPM_ReadCounter  ", new CommandFactory()
+            {
+                public TPMCommand create( int i )
+                {
+                    return new TPM_ReadCounter( i );
+                }
+            }, TPM_ReadCounter.createTemplate(), TPM_ReadCounter.COUNTID_OFFSET,
+                new int[] { 1, 2, 3 }, iterations );
+
+            int[] props = { TPMConsts.TPM_CAP_PROP_PCR,
+                TPMConsts.TPM_CAP_PROP_MANUFACTURER, TPMConsts.TPM_CAP_PROP_KEYS };
+            compare( "TPM_GetCapability", new CommandFactory()
+            {
+                public TPMCommand create( int i )
+                {
+                    return new TPM_GetCapability( TPMConsts.TPM_CAP_PROPERTY,
+                        ByteArrayUtil.toBytesInt32BE( i ) );
+                }
+            }, TPM_GetCapability.createTemplate( TPMConsts.TPM_CAP_PROPERTY,
+                new byte[4] ), TPM_GetCapability.SUBCAP_OFFSET, props,
+                iterations );
+
+            compare( "TPM_DirRead      ", new CommandFactory()
+            {
+                public TPMCommand create( int i )
+                {
+                    return new TPM_DirRead( i );
+                }
+            }, TPM_DirRead.createTemplate(), TPM_DirRead.DIRINDEX_OFFSET,
+                new int[] { 0 }, iterations );
+
+            final TPM_NONCE digest = new TPM_NONCE();
+            TPMCommandTemplate<TPM_PCRReadOutput> extend = TPM_Extend.createTemplate();
+            extend.setStruct( TPM_Extend.INDIGEST_OFFSET, digest );
+            compare( "TPM_Extend       ", new CommandFactory()
+            {
+                public TPMCommand create( int i )
+                {
+                    return new TPM_Extend( i, digest );
+                }
+            }, extend, TPM_Extend.PCRNUM_OFFSET, new int[] { 16 }, iterations );
+        }
+        catch ( TPMException e )
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            tpmDriver.cleanup();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.tests;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+
+import bayanihan.util.params.SwitchParams;
+
+import edu.mit.csail.tpmj.commands.TPMCommand;
+import edu.mit.csail.tpmj.commands.TPM_Extend;
+import edu.mit.csail.tpmj.commands.TPM_NV_ReadValue;
+import edu.mit.csail.tpmj.commands.TPM_PCRRead;
+import edu.mit.csail.tpmj.commands.TPM_Quote;
+import edu.mit.csail.tpmj.structs.TPMAuthInData;
+import edu.mit.csail.tpmj.structs.TPM_DIGEST;
+import edu.mit.csail.tpmj.structs.TPM_NONCE;
+import edu.mit.csail.tpmj.structs.TPM_PCR_SELECTION;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+
+/**
+ * Measures the time and the number of bytes allocated per command
+ * when encoding commands with toBytes() (which writes the fields
+ * into a ByteBufferEncoder), compared with concatenating the same
+ * fields with ByteArrayUtil.buildBuf() (which is how commands were
+ * encoded before).
+ * <p>
+ * The allocated bytes are counted using
+ * com.sun.management.ThreadMXBean.getThreadAllocatedBytes()
+ * (called using reflection, since it is not available on all JVMs).
+ * With the encoder, the only allocation should be the returned array
+ * (paramSize bytes, plus the array header).
+ */
+public class TPMEncodingBenchmark
+{
+    private static Object threadMXBean;
+    private static Method getThreadAllocatedBytes;
+
+    public static void usage()
+    {
+        System.out.println( "Usage: java edu.mit.csail.tpmj.tests.TPMEncodingBenchmark [/iterations n]" );
+    }
+
+    /**
+     * Returns the number of bytes allocated so far by this thread,
+     * or -1 if this JVM cannot count them.
+     */
+    private static long allocatedBytes()
+    {
+        if ( getThreadAllocatedBytes == null )
+        {
+            return -1;
+        }
+        try
+        {
+            return ((Long) getThreadAllocatedBytes.invoke( threadMXBean,
+                Thread.currentThread().getId() )).longValue();
+        }
+        catch ( Exception e )
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Something that encodes a command.
+     */
+    public interface Encoder
+    {
+        public byte[] encode();
+    }
+
+    /**
+     * Runs the encoder (after a warm-up), and prints the time
+     * and bytes allocated per command.
+     */
+    public static void runEncoder( String msg, Encoder encoder, int iterations )
+    {
+        long sink = 0;
+        for ( int i = 0; i < iterations; i++ )
+        {
+            sink += encoder.encode().length;
+        }
+
+        long startBytes = allocatedBytes();
+        long start = System.nanoTime();
+        for ( int i = 0; i < iterations; i++ )
+        {
+            sink += encoder.encode().length;
+        }
+        long time = System.nanoTime() - start;
+        long bytes = allocatedBytes() - startBytes;
+
+        String bytesMsg = (startBytes < 0) ? "(not available)" : ""
+            + (bytes / iterations);
+        System.out.println( msg + ": " + (time / iterations)
+            + " ns/command, bytes allocated/command = " + bytesMsg
+            + " (" + (sink / (2 * iterations)) + " bytes encoded)" );
+    }
+
+    /**
+     * Compares cmd.toBytes() with concatenating the header
+     * and the given fields using ByteArrayUtil.buildBuf().
+     */
+    public static void compare( String name, final TPMCommand cmd,
+        final Object[] bodyFields, final TPMAuthInData authInData,
+        int iterations )
+    {
+        runEncoder( name + " buildBuf", new Encoder()
+        {
+            public byte[] encode()
+            {
+                byte[] body = ByteArrayUtil.buildBuf( bodyFields );
+                return ByteArrayUtil.buildBuf( cmd.getTag(),
+                    cmd.getParamSize(), cmd.getOrdinal(), body, authInData );
+            }
+        }, iterations );
+        runEncoder( name + " toBytes ", new Encoder()
+        {
+            public byte[] encode()
+            {
+                return cmd.toBytes();
+            }
+        }, iterations );
+    }
+
+    public static void main( String[] args )
+    {
+        SwitchParams params = new SwitchParams( args );
+        if ( params.getBoolean( "help" ) )
+        {
+            usage();
+            return;
+        }
+        int iterations = params.getInt( "iterations", 1000000 );
+
+        try
+        {
+            threadMXBean = ManagementFactory.getThreadMXBean();
+            Class<?> c = Class.forName( "com.sun.management.ThreadMXBean" );
+            getThreadAllocatedBytes = c.getMethod( "getThreadAllocatedBytes",
+                long.class );
+        }
+        catch ( Exception e )
+        {
+            System.out.println( "Allocated bytes cannot be counted in this JVM: "
+                + e );
+        }
+
+        TPM_DIGEST digest = new TPM_DIGEST( new byte[TPM_DIGEST.SIZE] );
+        TPM_NONCE nonce = new TPM_NONCE( new byte[TPM_NONCE.SIZE] );
+        TPM_PCR_SELECTION pcrs = new TPM_PCR_SELECTION( 24, 0, 1, 2 );
+        TPMAuthInData authInData = new TPMAuthInData( 0x02000000, nonce,
+            false, digest );
+
+        compare( "TPM_PCRRead    ", new TPM_PCRRead( 16 ),
+            new Object[] { 16 }, null, iterations );
+
+        compare( "TPM_Extend     ", new TPM_Extend( 16, digest ),
+            new Object[] { 16, digest }, null, iterations );
+
+        TPM_NV_ReadValue nvRead = new TPM_NV_ReadValue( 0x10000001, 0, 20 );
+        nvRead.setAuthInData1( authInData );
+        compare( "TPM_NV_ReadValue", nvRead,
+            new Object[] { 0x10000001, 0, 20 }, authInData, iterations );
+
+        TPM_Quote quote = new TPM_Quote( 0x01000000, nonce, pcrs );
+        quote.setAuthInData1( authInData );
+        compare( "TPM_Quote      ", quote,
+            new Object[] { 0x01000000, nonce, pcrs }, authInData, iterations );
+    }
+}
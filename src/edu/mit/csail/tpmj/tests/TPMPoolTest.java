@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.tests;
+
+import bayanihan.util.params.SwitchParams;
+
+import edu.mit.csail.tpmj.TPMConsts;
+import edu.mit.csail.tpmj.TPMException;
+import edu.mit.csail.tpmj.drivers.PooledTPMDriver;
+import edu.mit.csail.tpmj.drivers.TPMDriver;
+import edu.mit.csail.tpmj.drivers.emulator.SoftwareTPMDriver;
+import edu.mit.csail.tpmj.funcs.TPMPcrFuncs;
+import edu.mit.csail.tpmj.funcs.TPMStorageFuncs;
+import edu.mit.csail.tpmj.funcs.TPMUtilityFuncs;
+import edu.mit.csail.tpmj.structs.ByteArrayTPMInputStruct;
+import edu.mit.csail.tpmj.structs.TPM_DIGEST;
+import edu.mit.csail.tpmj.structs.TPM_KEY;
+import edu.mit.csail.tpmj.structs.TPM_SECRET;
+import edu.mit.csail.tpmj.structs.TPM_STORED_DATA;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+
+/**
+ * Runs commands that use keys and authorization sessions
+ * (TPM_Sign, TPM_Seal, TPM_Unseal) from several threads through
+ * a PooledTPMDriver over several emulated TPMs, each with its own
+ * state (and its own SRK), mixed with TPM_GetRandom commands, which 
+ * the pool spreads over the devices, and reads (TPM_PCRRead), which 
+ * it does not.
+ * <p>
+ * The key is loaded on the primary device, so each authorized command
+ * and its sessions must end up on the primary device too,
+ * or the TPM fails it (e.g., with TPM_INVALID_AUTHHANDLE).
+ */
+public class TPMPoolTest
+{
+    private static int numFailed = 0;
+
+    public static void usage()
+    {
+        System.out.println( "Usage: java edu.mit.csail.tpmj.tests.TPMPoolTest [/devices n] [/threads n] [/repeats n]" );
+    }
+
+    /**
+     * Sends a TPM_GetRandom for the given number of bytes.
+     * (There is no command class for it.)
+     */
+    private static void getRandom( TPMDriver tpmDriver, int numBytes )
+        throws TPMException
+    {
+        byte[] cmd = new byte[14];
+        ByteArrayUtil.writeShortBE( cmd, 0, TPMConsts.TPM_TAG_RQU_COMMAND );
+        ByteArrayUtil.writeInt32BE( cmd, 2, cmd.length );
+        ByteArrayUtil.writeInt32BE( cmd, 6, TPMConsts.TPM_ORD_GetRandom );
+        ByteArrayUtil.writeInt32BE( cmd, 10, numBytes );
+        tpmDriver.transmit( new ByteArrayTPMInputStruct( cmd ) );
+    }
+
+    private static synchronized void fail( String msg, Exception e )
+    {
+        System.out.println( "FAILED: " + msg + ": " + e );
+        numFailed++;
+    }
+
+    public static void main( String[] args )
+    {
+        SwitchParams params = new SwitchParams( args );
+        if ( params.getBoolean( "help" ) )
+        {
+            usage();
+            return;
+        }
+        int numDevices = params.getInt( "devices", 2 );
+        int numThreads = params.getInt( "threads", 4 );
+        final int repeats = params.getInt( "repeats", 20 );
+
+        System.out.println( "Creating " + numDevices + " emulated TPMs ..." );
+        TPMDriver[] drivers = new TPMDriver[numDevices];
+        for ( int i = 0; i < numDevices; i++ )
+        {
+            drivers[i] = new SoftwareTPMDriver();
+        }
+        final PooledTPMDriver pool = new PooledTPMDriver( drivers );
+        pool.init();
+        TPMUtilityFuncs.setTPMDriver( pool );
+
+        final TPM_SECRET noAuth = TPM_SECRET.NULL;
+        final int srk = TPMConsts.TPM_KH_SRK;
+        try
+        {
+            TPM_KEY key = TPMStorageFuncs.TPM_CreateWrapKey( srk, noAuth,
+                noAuth, noAuth, TPMConsts.TPM_KEY_SIGNING, 0 );
+            final int keyHandle = TPMStorageFuncs.TPM_LoadKey( srk, key, noAuth );
+            System.out.println( "Loaded key 0x" + Integer.toHexString( keyHandle )
+                + " on device " + pool.getHandleOwner( keyHandle ) );
+
+            Thread[] threads = new Thread[numThreads];
+            for ( int t = 0; t < numThreads; t++ )
+            {
+                threads[t] = new Thread()
+                {
+                    public void run()
+                    {
+                        for ( int i = 0; i < repeats; i++ )
+                        {
+                            try
+                            {
+                                getRandom( pool, 20 );
+                                TPMStorageFuncs.TPM_SignSHA1Digest( keyHandle,
+                                    new TPM_DIGEST(), noAuth );
+                                TPMPcrFuncs.TPM_PCRRead( i % 16 );
+                                TPM_STORED_DATA sealed = TPMStorageFuncs.TPM_Seal(
+                                    srk, noAuth, noAuth, "pool".getBytes() );
+                                TPMStorageFuncs.TPM_Unseal( srk, noAuth, sealed,
+                                    noAuth );
+                            }
+                            catch ( TPMException e )
+                            {
+                                fail( "iteration " + i, e );
+                            }
+                        }
+                    }
+                };
+                threads[t].start();
+            }
+            for ( Thread thread : threads )
+            {
+                thread.join();
+            }
+        }
+        catch ( TPMException e )
+        {
+            fail( "setup", e );
+        }
+        catch ( InterruptedException e )
+        {
+            fail( "join", e );
+        }
+        finally
+        {
+            for ( int i = 0; i < numDevices; i++ )
+            {
+                System.out.println( "Device " + i + ": "
+                    + pool.getNumCommands( i ) + " commands" );
+            }
+            pool.cleanup();
+        }
+
+        System.out.println( (numFailed == 0) ? "All OK." : numFailed
+            + " command(s) FAILED." );
+    }
+}
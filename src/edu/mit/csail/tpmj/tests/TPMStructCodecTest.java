@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.tests;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import bayanihan.util.params.SwitchParams;
+
+import edu.mit.csail.tpmj.TPMConsts;
+import edu.mit.csail.tpmj.structs.TPM_COUNTER_VALUE;
+import edu.mit.csail.tpmj.structs.TPM_DIGEST;
+import edu.mit.csail.tpmj.structs.TPM_KEY;
+import edu.mit.csail.tpmj.structs.TPM_KEY_PARMS;
+import edu.mit.csail.tpmj.structs.TPM_PCR_INFO;
+import edu.mit.csail.tpmj.structs.TPM_PCR_SELECTION;
+import edu.mit.csail.tpmj.structs.TPM_PUBKEY;
+import edu.mit.csail.tpmj.structs.TPM_SECRET;
+import edu.mit.csail.tpmj.structs.TPM_STORE_ASYMKEY;
+import edu.mit.csail.tpmj.structs.TPM_STORE_PRIVKEY;
+import edu.mit.csail.tpmj.structs.TPM_STORE_PUBKEY;
+import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.ByteArrayable;
+import edu.mit.csail.tpmj.util.ByteBufferEncoder;
+import edu.mit.csail.tpmj.util.FileUtil;
+
+/**
+ * Checks that the structs whose toBytes() and fromBytes() use
+ * generated codecs (see TPMStructCodecGenerator) encode to the same bytes
+ * as they did before, i.e., as concatenating their fields with
+ * ByteArrayUtil.buildBuf(), and that the bytes round-trip through
+ * fromBytes().  Also checks that getTotalStructSize() is the
+ * number of bytes, and that writeTo() writes the same bytes as toBytes().
+ * <p>
+ * Key blobs (e.g., saved by TPMCreateKey) can also be checked
+ * by giving their file names.
+ */
+public class TPMStructCodecTest
+{
+    private static int numFailed = 0;
+
+    public static void usage()
+    {
+        System.out.println( "Usage: java edu.mit.csail.tpmj.tests.TPMStructCodecTest [keyFile ...]" );
+    }
+
+    /**
+     * Returns n bytes with values seed, seed+1, ...
+     */
+    private static byte[] pattern( int seed, int n )
+    {
+        byte[] ret = new byte[n];
+        for ( int i = 0; i < n; i++ )
+        {
+            ret[i] = (byte) (seed + i);
+        }
+        return ret;
+    }
+
+    private static void check( String name, ByteArrayable s, int size,
+        byte[] expected )
+    {
+        String failure = null;
+        try
+        {
+            byte[] bytes = s.toBytes();
+
+            ByteBufferEncoder enc = ByteBufferEncoder.acquire();
+            byte[] written;
+            try
+            {
+                enc.writeStruct( s );
+                written = enc.toBytes();
+            }
+            finally
+            {
+                enc.release();
+            }
+
+            // Read the bytes from the middle of a larger array
+            byte[] source = new byte[bytes.length + 10];
+            System.arraycopy( bytes, 0, source, 5, bytes.length );
+            ByteArrayable copy = s.getClass().newInstance();
+            copy.fromBytes( source, 5 );
+
+            if ( !Arrays.equals( bytes, expected ) )
+            {
+                failure = "toBytes() is\n" + ByteArrayUtil.toHexString( bytes )
+                    + "\nbut should be\n" + ByteArrayUtil.toHexString( expected );
+            }
+            else if ( size != bytes.length )
+            {
+                failure = "getTotalStructSize() is " + size + ", not "
+                    + bytes.length;
+            }
+            else if ( !Arrays.equals( bytes, written ) )
+            {
+                failure = "writeTo() wrote\n"
+                    + ByteArrayUtil.toHexString( written );
+            }
+            else if ( !Arrays.equals( bytes, copy.toBytes() ) )
+            {
+                failure = "fromBytes() read\n" + copy;
+            }
+        }
+        catch ( Exception e )
+        {
+            failure = e.toString();
+        }
+
+        if ( failure == null )
+        {
+            System.out.println( name + ": OK" );
+        }
+        else
+        {
+            System.out.println( name + ": FAILED: " + failure );
+            numFailed++;
+        }
+    }
+
+    private static void check( String name, TPM_KEY_PARMS s )
+    {
+        check( name, s, s.getTotalStructSize(), ByteArrayUtil.buildBuf(
+            s.getAlgorithmID(), s.getEncScheme(), s.getSigScheme(),
+            s.getParmSize(), s.getParmsBytes() ) );
+    }
+
+    private static void check( String name, TPM_STORE_PUBKEY s )
+    {
+        check( name, s, s.getTotalStructSize(), ByteArrayUtil.buildBuf(
+            s.getKeyLength(), s.getKeyBytes() ) );
+    }
+
+    private static void check( String name, TPM_KEY s )
+    {
+        check( name, s, s.getTotalStructSize(), ByteArrayUtil.buildBuf(
+            s.getTag(), s.getFill(), s.getKeyUsage(), s.getKeyFlags(),
+            s.getAuthDataUsage(), s.getAlgorithmParms(), s.getPCRInfoSize(),
+            s.getPcrInfoBytes(), s.getPubKey(), s.getEncDataSize(),
+            s.getEncDataBytes() ) );
+    }
+
+    public static void main( String[] args )
+    {
+        SwitchParams params = new SwitchParams( args );
+        if ( params.getBoolean( "help" ) )
+        {
+            usage();
+            return;
+        }
+
+        TPM_KEY_PARMS rsaParms = new TPM_KEY_PARMS( TPMConsts.TPM_ALG_RSA,
+            TPMConsts.TPM_ES_RSAESOAEP_SHA1_MGF1, TPMConsts.TPM_SS_NONE,
+            pattern( 0x10, 12 ) );
+        check( "TPM_KEY_PARMS", rsaParms );
+        check( "TPM_KEY_PARMS (no parms)", new TPM_KEY_PARMS(
+            TPMConsts.TPM_ALG_SHA, (short) 0, (short) 0, (byte[]) null ) );
+
+        TPM_STORE_PUBKEY pubKey = new TPM_STORE_PUBKEY( pattern( 0x20, 256 ) );
+        check( "TPM_STORE_PUBKEY", pubKey );
+        check( "TPM_STORE_PUBKEY (empty)", new TPM_STORE_PUBKEY() );
+
+        TPM_STORE_PRIVKEY privKey = new TPM_STORE_PRIVKEY( pattern( 0x30, 128 ) );
+        check( "TPM_STORE_PRIVKEY", privKey, privKey.getTotalStructSize(),
+            ByteArrayUtil.buildBuf( privKey.getKeyLength(),
+                privKey.getKeyBytes() ) );
+
+        TPM_PUBKEY tpmPubKey = new TPM_PUBKEY( rsaParms, pubKey );
+        check( "TPM_PUBKEY", tpmPubKey, tpmPubKey.getTotalStructSize(),
+            ByteArrayUtil.buildBuf( rsaParms, pubKey ) );
+
+        TPM_PCR_SELECTION pcrSelection = new TPM_PCR_SELECTION( 24, 0, 7, 17 );
+        TPM_DIGEST digest = new TPM_DIGEST( pattern( 0x40, TPM_DIGEST.SIZE ) );
+        TPM_PCR_INFO pcrInfo = new TPM_PCR_INFO( pcrSelection, digest, null );
+        check( "TPM_PCR_INFO (no digestAtCreation)", pcrInfo,
+            pcrInfo.getTotalStructSize(), ByteArrayUtil.buildBuf( pcrSelection,
+                digest, new TPM_DIGEST() ) );
+        pcrInfo.setDigestAtCreation( digest );
+        check( "TPM_PCR_INFO", pcrInfo, pcrInfo.getTotalStructSize(),
+            ByteArrayUtil.buildBuf( pcrSelection, digest, digest ) );
+
+        TPM_COUNTER_VALUE counterValue = new TPM_COUNTER_VALUE(
+            new byte[] { 'T', 'P', 'M', 'J' }, 0x01020304 );
+        check( "TPM_COUNTER_VALUE", counterValue,
+            counterValue.getTotalStructSize(), ByteArrayUtil.buildBuf(
+                TPMConsts.TPM_TAG_COUNTER_VALUE, counterValue.getLabel(),
+                counterValue.getCounter() ) );
+
+        TPM_SECRET usageAuth = new TPM_SECRET( pattern( 0x50, TPM_SECRET.SIZE ) );
+        TPM_STORE_ASYMKEY asymKey = new TPM_STORE_ASYMKEY( (byte) 1, usageAuth,
+            null, digest, privKey );
+        check( "TPM_STORE_ASYMKEY", asymKey, asymKey.getTotalStructSize(),
+            ByteArrayUtil.buildBuf( (byte) 1, usageAuth, TPM_SECRET.NULL,
+                digest, privKey ) );
+
+        check( "TPM_KEY (1.1)", new TPM_KEY( (short) 0x0101,
+            TPMConsts.TPM_KEY_STORAGE, 0, (byte) 1, rsaParms, new byte[0],
+            pubKey, pattern( 0x60, 256 ) ) );
+        check( "TPM_KEY12", new TPM_KEY( TPMConsts.TPM_TAG_KEY12,
+            TPMConsts.TPM_KEY_SIGNING, 4, (byte) 0, rsaParms,
+            pcrInfo.toBytes(), pubKey, pattern( 0x70, 256 ) ) );
+
+        for ( String fileName : params.getArgs() )
+        {
+            try
+            {
+                byte[] blob = FileUtil.readIntoByteArray( fileName );
+                TPM_KEY key = new TPM_KEY( blob );
+                check( fileName, key );
+                if ( !Arrays.equals( blob, key.toBytes() ) )
+                {
+                    System.out.println( fileName
+                        + ": FAILED: toBytes() is not the same as the file" );
+                    numFailed++;
+                }
+            }
+            catch ( IOException e )
+            {
+                System.out.println( fileName + ": " + e );
+                numFailed++;
+            }
+        }
+
+        System.out.println( (numFailed == 0) ? "All OK." : numFailed
+            + " check(s) FAILED." );
+    }
+}
@@ -94,9 +94,76 @@ public class TPMTiming
         printSpeed( "Result for " + msg, repeats, wallClock );
     }
 
+    /**
+     * Like timeCommand, but executes the command repeats times
+     * in each of numThreads threads at the same time, and prints
+     * the aggregate speed.  (Useful with a PooledTPMDriver, see
+     * the tpmj.devices system property.)
+     * 
+     * @param msg
+     * @param repeats
+     * @param numThreads
+     * @param cmd
+     * @throws TPMException
+     */
+    public static void timeCommandConcurrently( String msg, final int repeats,
+        int numThreads, final TPMCommand cmd ) throws TPMException
+    {
+        final TPMException[] error = new TPMException[1];
+        Thread[] threads = new Thread[numThreads];
+        for ( int t = 0; t < numThreads; t++ )
+        {
+            threads[t] = new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for ( int i = 0; i < repeats; i++ )
+                        {
+                            cmd.execute( tpmDriver );
+                        }
+                    }
+                    catch ( TPMException e )
+                    {
+                        error[0] = e;
+                    }
+                }
+            };
+        }
+
+        Stopwatch wallClock = new Stopwatch();
+        wallClock.reset();
+        wallClock.start();
+        for ( Thread thread : threads )
+        {
+            thread.start();
+        }
+        for ( Thread thread : threads )
+        {
+            try
+            {
+                thread.join();
+            }
+            catch ( InterruptedException e )
+            {
+                e.printStackTrace();
+            }
+        }
+        wallClock.stop();
+        if ( error[0] != null )
+        {
+            throw error[0];
+        }
+        printSpeed( "Result for " + msg + " x " + numThreads + " threads",
+            repeats * numThreads, wallClock );
+    }
+
     public static void usage()
     {
-        System.out.println( "Usage: java edu.mit.csail.tpmj.tests.TPMTiming <ownerPwd> [srkPwd]" );
+        System.out.println( "Usage: java edu.mit.csail.tpmj.tests.TPMTiming <ownerPwd> [srkPwd] [/cheapOnly [/threads n]] [/persistent] [/framed] [/coalesce] [/capabilityCache] [/profile] [/metrics]\n"
+            + "       [/emulator [/emulatorDurations short,medium,long]] [/daemon [host:port]]\n"
+            + "       [/randomSeed n] [/record file | /replay file [/replayTiming none|durations|original]]" );
     }
     
     
@@ -120,6 +187,17 @@ public class TPMTiming
         // Initialize the TPM driver
         tpmDriver = TPMToolsUtil.initDriverFromParams( params );
 
+        if ( params.getBoolean( "cheapOnly" ) )
+        {
+            // Only time cheap read-only commands, where per-command
+            // driver overhead (e.g., opening and closing the device)
+            // is most visible.  This also works against a device 
+            // stand-in (see the tpmj.device system property).
+            testCheapCommands( params.getInt( "threads", 1 ) );
+            TPMToolsUtil.cleanupTPMDriver();
+            return;
+        }
+
         getManufacturer();
         
         getVersion11Style();
@@ -840,6 +918,41 @@ public class TPMTiming
         }
     }
 
+    /**
+     * Times cheap read-only commands, whose cost is dominated
+     * by driver overhead rather than by the TPM itself.
+     * If numThreads is more than 1, then the commands are also
+     * timed from that many threads at once.
+     */
+    private static void testCheapCommands( int numThreads )
+    {
+        System.out.println( "\n*****" );
+        System.out.println( "Timing cheap commands (driver overhead) ... " );
+        try
+        {
+            TPMCommand cmd = new TPM_PCRRead( 15 );
+            timeCommand( "TPM_PCRRead(15)", REPEATS, cmd );
+
+            cmd = new TPM_GetCapability( TPMConsts.TPM_CAP_PROPERTY,
+                ByteArrayUtil.toBytesInt32BE( TPMConsts.TPM_CAP_PROP_MANUFACTURER ) );
+            timeCommand( "TPM_GetCapability(TPM_CAP_PROP_MANUFACTURER)",
+                REPEATS, cmd );
+
+            if ( numThreads > 1 )
+            {
+                timeCommandConcurrently( "TPM_PCRRead(15)", REPEATS,
+                    numThreads, new TPM_PCRRead( 15 ) );
+                timeCommandConcurrently(
+                    "TPM_GetCapability(TPM_CAP_PROP_MANUFACTURER)", REPEATS,
+                    numThreads, cmd );
+            }
+        }
+        catch ( TPMException e )
+        {
+            handleTPMException( e );
+        }
+    }
+
     /**
      * 
      */
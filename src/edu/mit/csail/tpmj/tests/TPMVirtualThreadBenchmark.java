@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.tests;
+
+import java.lang.reflect.Method;
+
+import bayanihan.util.params.SwitchParams;
+
+import edu.mit.csail.tpmj.TPMException;
+import edu.mit.csail.tpmj.commands.TPM_PCRRead;
+import edu.mit.csail.tpmj.drivers.PooledTPMDriver;
+import edu.mit.csail.tpmj.drivers.TPMDriver;
+import edu.mit.csail.tpmj.drivers.emulator.SoftwareTPMDriver;
+import edu.mit.csail.tpmj.drivers.metrics.TPMLatencyHistogram;
+import edu.mit.csail.tpmj.util.stats.Stopwatch;
+
+/**
+ * Compares many clients in platform threads with the same clients
+ * in virtual threads (Java 21 and later), all sending TPM_PCRRead
+ * commands through one driver to a pool of emulated TPMs that take
+ * a given time per command.
+ * <p>
+ * The source does not depend on Java 21: virtual threads are started
+ * using reflection, and are skipped if they are not available.
+ */
+public class TPMVirtualThreadBenchmark
+{
+    private static TPMDriver tpmDriver;
+
+    public static void usage()
+    {
+        System.out.println( "Usage: java edu.mit.csail.tpmj.tests.TPMVirtualThreadBenchmark [/clients n] [/commands n] [/latency us] [/devices n]" );
+    }
+
+    /**
+     * Runs the clients, each in a new thread (started by the starter),
+     * and prints the aggregate speed and the latency percentiles.
+     *
+     * @param msg
+     * @param starter -- starts a thread running a Runnable, and returns it
+     * @param numClients
+     * @param commands
+     * @throws Exception
+     */
+    public static void runClients( String msg, ThreadStarter starter,
+        int numClients, final int commands ) throws Exception
+    {
+        final TPMLatencyHistogram latencies = new TPMLatencyHistogram();
+        final TPMException[] error = new TPMException[1];
+        Runnable client = new Runnable()
+        {
+            public void run()
+            {
+                TPM_PCRRead cmd = new TPM_PCRRead( 0 );
+                try
+                {
+                    for ( int i = 0; i < commands; i++ )
+                    {
+                        long start = System.nanoTime();
+                        cmd.execute( tpmDriver );
+                        latencies.record( (System.nanoTime() - start) / 1000 );
+                    }
+                }
+                catch ( TPMException e )
+                {
+                    error[0] = e;
+                }
+            }
+        };
+
+        Stopwatch wallClock = new Stopwatch();
+        wallClock.reset();
+        wallClock.start();
+        Thread[] threads = new Thread[numClients];
+        for ( int t = 0; t < numClients; t++ )
+        {
+            threads[t] = starter.start( client );
+        }
+        for ( Thread thread : threads )
+        {
+            thread.join();
+        }
+        wallClock.stop();
+        if ( error[0] != null )
+        {
+            throw error[0];
+        }
+
+        long time = Math.max( wallClock.getTime(), 1 );
+        long count = latencies.getCount();
+        System.out.println( msg + ": " + numClients + " clients, " + count
+            + " ops / " + time + " ms = " + (1000.0 * count / time)
+            + " ops/s, p50 = " + latencies.getPercentile( 0.5 )
+            + " us, p99 = " + latencies.getPercentile( 0.99 ) + " us, max = "
+            + latencies.getMax() + " us" );
+    }
+
+    /**
+     * Starts a thread running the given Runnable.
+     */
+    public interface ThreadStarter
+    {
+        public Thread start( Runnable r ) throws Exception;
+    }
+
+    public static class PlatformThreadStarter implements ThreadStarter
+    {
+        public Thread start( Runnable r )
+        {
+            Thread thread = new Thread( r );
+            thread.start();
+            return thread;
+        }
+    }
+
+    /**
+     * Starts virtual threads with Thread.startVirtualThread().
+     */
+    public static class VirtualThreadStarter implements ThreadStarter
+    {
+        private Method startVirtualThread;
+
+        /**
+         * @throws NoSuchMethodException if virtual threads are not available
+         */
+        public VirtualThreadStarter() throws NoSuchMethodException
+        {
+            this.startVirtualThread = Thread.class.getMethod(
+                "startVirtualThread", Runnable.class );
+        }
+
+        public Thread start( Runnable r ) throws Exception
+        {
+            return (Thread) this.startVirtualThread.invoke( null, r );
+        }
+    }
+
+    public static void main( String[] args )
+    {
+        SwitchParams params = new SwitchParams( args );
+        if ( params.getBoolean( "help" ) )
+        {
+            usage();
+            return;
+        }
+        int numClients = params.getInt( "clients", 1000 );
+        int commands = params.getInt( "commands", 20 );
+        long latency = params.getLong( "latency", 1000 );
+        int numDevices = params.getInt( "devices", 4 );
+
+        SoftwareTPMDriver[] devices = new SoftwareTPMDriver[numDevices];
+        for ( int i = 0; i < numDevices; i++ )
+        {
+            devices[i] = new SoftwareTPMDriver();
+            devices[i].getSoftwareTPM().setDefaultLatency( latency );
+        }
+        tpmDriver = new PooledTPMDriver( devices );
+        tpmDriver.init();
+
+        System.out.println( numDevices + " emulated TPMs, " + latency
+            + " us per command, " + commands + " commands per client\n" );
+        try
+        {
+            // warm up
+            runClients( "Warm-up", new PlatformThreadStarter(), numDevices,
+                commands );
+
+            runClients( "Platform threads", new PlatformThreadStarter(),
+                numClients, commands );
+
+            VirtualThreadStarter virtual = null;
+            try
+            {
+                virtual = new VirtualThreadStarter();
+            }
+            catch ( NoSuchMethodException e )
+            {
+                System.out.println( "Virtual threads: not available in Java "
+                    + System.getProperty( "java.version" ) );
+            }
+            if ( virtual != null )
+            {
+                runClients( "Virtual threads", virtual, numClients, commands );
+            }
+        }
+        catch ( Exception e )
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            tpmDriver.cleanup();
+        }
+    }
+}
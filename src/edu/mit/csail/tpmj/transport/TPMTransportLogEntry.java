@@ -32,7 +32,9 @@ package edu.mit.csail.tpmj.transport;
 import java.util.ArrayList;
 
 import edu.mit.csail.tpmj.commands.TPMCommand;
+import edu.mit.csail.tpmj.commands.TPMCommandRegistry;
 import edu.mit.csail.tpmj.commands.TPM_ExecuteTransport;
+import edu.mit.csail.tpmj.structs.ByteArrayTPMOutputStruct;
 import edu.mit.csail.tpmj.structs.TPMOutputStruct;
 import edu.mit.csail.tpmj.structs.TPM_SECRET;
 import edu.mit.csail.tpmj.util.BasicByteArrayable;
@@ -43,6 +45,8 @@ import edu.mit.csail.tpmj.util.Debug;
 
 public class TPMTransportLogEntry extends BasicByteArrayable
 {
+    private static final String RAW_OUTPUT_TYPE = ByteArrayTPMOutputStruct.class.getCanonicalName();
+
     private TPMCommand origCmd;
     private TPMCommand transCmd;
     private TPMOutputStruct transOut;
@@ -124,36 +128,26 @@ public class TPMTransportLogEntry extends BasicByteArrayable
         byte[] transOutArr = brw.readSizedByteArray();
         byte[] unencOutType = brw.readSizedByteArray();
         byte[] unencOutArr = brw.readSizedByteArray();
-        
-        try
-        {
-            this.origCmd = (TPMCommand) Class.forName( new String( origCmdType ) ).newInstance();
-            this.origCmd.fromBytes( origCmdArr, 0 );
-
-            this.transCmd = (TPMCommand) Class.forName( new String( transCmdType ) ).newInstance();
-            this.transCmd.fromBytes( transCmdArr, 0 );
-            
-            this.transOut = (TPMOutputStruct) Class.forName( new String( transOutType ) ).newInstance();
-            this.transOut.fromBytes( transOutArr, 0 );
-            
-            this.unencOut = (TPMOutputStruct) Class.forName( new String( unencOutType ) ).newInstance();
-            this.unencOut.fromBytes( unencOutArr, 0 );
-        }
-        catch ( InstantiationException e )
-        {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-        }
-        catch ( IllegalAccessException e )
+
+        // The commands and outputs are created by TPMCommandRegistry
+        // using the ordinals in the command bytes.  The type names are
+        // only used to tell if the unencrypted output could not be decrypted
+        // (in which case it was logged as a ByteArrayTPMOutputStruct).
+        this.origCmd = TPMCommandRegistry.createCommand( origCmdArr, 0 );
+        this.transCmd = TPMCommandRegistry.createCommand( transCmdArr, 0 );
+
+        this.transOut = TPMCommandRegistry.createOutput( this.transCmd.getOrdinal() );
+        this.transOut.fromBytes( transOutArr, 0 );
+
+        if ( RAW_OUTPUT_TYPE.equals( new String( unencOutType ) ) )
         {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            this.unencOut = new ByteArrayTPMOutputStruct();
         }
-        catch ( ClassNotFoundException e )
+        else
         {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            this.unencOut = TPMCommandRegistry.createOutput( this.origCmd.getOrdinal() );
         }
+        this.unencOut.fromBytes( unencOutArr, 0 );
     }
     
     
@@ -39,6 +39,7 @@ import edu.mit.csail.tpmj.funcs.TPMAuthorizationSession;
 import edu.mit.csail.tpmj.funcs.TPMOIAPSession;
 import edu.mit.csail.tpmj.structs.*;
 import edu.mit.csail.tpmj.util.ByteArrayUtil;
+import edu.mit.csail.tpmj.util.ByteArrayView;
 import edu.mit.csail.tpmj.util.CryptoUtil;
 import edu.mit.csail.tpmj.util.Debug;
 
@@ -186,10 +187,10 @@ public class TPMTransportSession extends TPMAuthorizationSession
             unEncCmd = encOutput;
         }
 
+        // FIXME: decryptOutput can only be called while the lastExecutedCommand is still correct 
+        TPMOutputStruct out = TPMCommandRegistry.createOutput( origCmd.getOrdinal() );
         try
         {
-            // FIXME: decryptOutput can only be called while the lastExecutedCommand is still correct 
-            TPMOutputStruct out = (TPMOutputStruct) origCmd.getReturnType().newInstance();
             out.fromBytes( unEncCmd, 0 );
             return out;
         }
@@ -407,7 +408,7 @@ public class TPMTransportSession extends TPMAuthorizationSession
             byte[] excOutBytes = excOut.getInternalByteArray();
             int paramOffset = excOut.BODY_OFFSET;
             int length = excOut.WRAPPEDCMD_OFFSET - paramOffset;
-            byte[] excOutTransOutData = ByteArrayUtil.readBytes( excOutBytes,
+            ByteArrayView excOutTransOutData = new ByteArrayView( excOutBytes,
                 paramOffset, length );
             byte[] wrappedOutData = excOut.getWrappedCmd();
 
@@ -419,11 +420,9 @@ public class TPMTransportSession extends TPMAuthorizationSession
                 wrappedOrdinal, unwrappedOut );
             TPM_DIGEST wrappedOutDigest = CryptoUtil.computeTPM_DIGEST( bytesToDigest );
 
-            byte[] outParams = ByteArrayUtil.concatObjectsBE(
-                excOutTransOutData, wrappedOutDigest );
-
-            return CryptoUtil.computeSHA1Hash( returnCode, ordinalBytes,
-                outParams );
+            return CryptoUtil.computeSHA1Hash( new ByteArrayView( returnCode ),
+                new ByteArrayView( ordinalBytes ), excOutTransOutData,
+                new ByteArrayView( wrappedOutDigest.toBytes() ) );
         }
         else
         {
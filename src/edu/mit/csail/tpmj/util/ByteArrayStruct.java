@@ -108,6 +108,20 @@ public class ByteArrayStruct extends BasicByteArrayable
         return ByteArrayUtil.readBytes( this.data, offset, length );
     }
 
+    /**
+     * Returns a read-only view of length bytes starting from offset,
+     * without copying them.  (Use the view's copy() method
+     * to get a copy that can be kept.)
+     * 
+     * @param offset -- offset from the original data array
+     * @param length -- number of bytes in the view
+     * @return
+     */
+    protected ByteArrayView getBytesView( int offset, int length )
+    {
+        return new ByteArrayView( this.data, offset, length );
+    }
+
     /**
      * Read 1-byte from offset as a boolean
      *
@@ -0,0 +1,211 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.util;
+
+import java.security.MessageDigest;
+
+/**
+ * A read-only view of length bytes starting at offset
+ * in a byte array (e.g., a field in the bytes returned by the TPM),
+ * that can be read without copying the bytes into a new array.
+ * <p>
+ * The view does not copy the bytes, so it sees any changes
+ * to the underlying array.  Call copy() to get the bytes
+ * if they need to be kept (or changed).
+ *
+ * @see ByteArrayStruct#getBytesView(int, int)
+ */
+public class ByteArrayView extends BasicByteArrayable implements
+    ByteBufferEncodable
+{
+    private final byte[] bytes;
+    private final int offset;
+    private final int length;
+
+    public ByteArrayView( byte[] source, int offset, int length )
+    {
+        if ( (offset < 0) || (length < 0) || (offset + length > source.length) )
+        {
+            throw new IndexOutOfBoundsException( "ByteArrayView: offset "
+                + offset + ", length " + length + " outside array of length "
+                + source.length );
+        }
+        this.bytes = source;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * Creates a view of the whole array.
+     */
+    public ByteArrayView( byte[] source )
+    {
+        this( source, 0, source.length );
+    }
+
+    public int getLength()
+    {
+        return this.length;
+    }
+
+    /**
+     * Throws an IndexOutOfBoundsException if the size bytes
+     * starting at index are not all inside this view.
+     * (Otherwise, a bad index could read bytes of the underlying
+     * array outside the view.)
+     */
+    private void checkIndex( int index, int size )
+    {
+        if ( (index < 0) || (index > this.length - size) )
+        {
+            throw new IndexOutOfBoundsException( "ByteArrayView: index "
+                + index + ", size " + size + " outside view of length "
+                + this.length );
+        }
+    }
+
+    public byte getByte( int index )
+    {
+        this.checkIndex( index, 1 );
+        return this.bytes[this.offset + index];
+    }
+
+    public int getUInt16( int index )
+    {
+        this.checkIndex( index, 2 );
+        return ByteArrayUtil.readUInt16BE( this.bytes, this.offset + index );
+    }
+
+    public int getInt32( int index )
+    {
+        this.checkIndex( index, 4 );
+        return ByteArrayUtil.readInt32BE( this.bytes, this.offset + index );
+    }
+
+    /**
+     * Fill an instantiated ByteArrayable from the bytes
+     * starting at index in this view.  Only index is checked
+     * against the view, since the size of the struct is
+     * not known until it is read.
+     *
+     * @param index
+     * @param ba -- instance of a ByteArrayable to call fromBytes on
+     */
+    public void readStruct( int index, ByteArrayable ba )
+    {
+        this.checkIndex( index, 0 );
+        ba.fromBytes( this.bytes, this.offset + index );
+    }
+
+    /**
+     * Returns a new array with a copy of the bytes.
+     */
+    public byte[] copy()
+    {
+        byte[] ret = new byte[this.length];
+        System.arraycopy( this.bytes, this.offset, ret, 0, this.length );
+        return ret;
+    }
+
+    /**
+     * Copies the bytes into dest, starting at destOffset.
+     */
+    public void copyTo( byte[] dest, int destOffset )
+    {
+        System.arraycopy( this.bytes, this.offset, dest, destOffset,
+            this.length );
+    }
+
+    /**
+     * Adds the bytes to a digest being computed.
+     */
+    public void updateDigest( MessageDigest messageDigest )
+    {
+        messageDigest.update( this.bytes, this.offset, this.length );
+    }
+
+    public void writeTo( ByteBufferEncoder enc )
+    {
+        enc.writeBytes( this.bytes, this.offset, this.length );
+    }
+
+    /**
+     * Same as copy().
+     */
+    public byte[] toBytes()
+    {
+        return this.copy();
+    }
+
+    /**
+     * Not supported, since views are read-only.
+     */
+    public void fromBytes( byte[] source, int offset )
+    {
+        throw new UnsupportedOperationException(
+            "ByteArrayView is read-only." );
+    }
+
+    /**
+     * Compares the bytes without copying them (if the other object
+     * is also a ByteArrayView).
+     */
+    public boolean equals( Object arg0 )
+    {
+        if ( !(arg0 instanceof ByteArrayView) )
+        {
+            return super.equals( arg0 );
+        }
+        ByteArrayView other = (ByteArrayView) arg0;
+        if ( other.length != this.length )
+        {
+            return false;
+        }
+        for ( int i = 0; i < this.length; i++ )
+        {
+            if ( this.bytes[this.offset + i] != other.bytes[other.offset + i] )
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same as Arrays.hashCode( this.toBytes() ), but without copying.
+     */
+    public int hashCode()
+    {
+        int result = 1;
+        for ( int i = 0; i < this.length; i++ )
+        {
+            result = 31 * result + this.bytes[this.offset + i];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2007, Massachusetts Institute of Technology (MIT)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without 
+ * modification, are permitted provided that the following conditions are met:
+ *  - Redistributions of source code must retain the above copyright notice, 
+ *    this list of conditions and the following disclaimer.
+ *  - Redistributions in binary form must reproduce the above copyright 
+ *    notice, this list of conditions and the following disclaimer in the 
+ *    documentation and/or other materials provided with the distribution.
+ *  - Neither the name of MIT nor the names of its contributors may be used 
+ *    to endorse or promote products derived from this software without 
+ *    specific prior written permission.
+ *    
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" 
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, 
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR 
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR 
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, 
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, 
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; 
+ * OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, 
+ * WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR 
+ * OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, 
+ * EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package edu.mit.csail.tpmj.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A cursor for writing big-endian fields one after the other
+ * into a growable ByteBuffer, without creating a byte array
+ * for each field (as ByteArrayUtil.concatObjectsBE() does).
+ * <p>
+ * Each thread has its own encoder, which it can get with acquire()
+ * and must give back with release() when done, e.g.:
+ * <p>
+ * <code>
+ * ByteBufferEncoder enc = ByteBufferEncoder.acquire();<br>
+ * try<br>
+ * {<br>
+ * &nbsp;&nbsp;enc.writeInt32( ... );<br>
+ * &nbsp;&nbsp;...<br>
+ * &nbsp;&nbsp;return enc.toBytes();<br>
+ * }<br>
+ * finally<br>
+ * {<br>
+ * &nbsp;&nbsp;enc.release();<br>
+ * }
+ * </code>
+ * <p>
+ * Since the buffer is reused, the only array allocated
+ * (once the buffer has grown to fit) is the one returned by toBytes().
+ *
+ * @see ByteBufferEncodable
+ */
+public class ByteBufferEncoder
+{
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Buffers bigger than this are not kept after release(),
+     * so that one large command does not tie up memory in every thread.
+     */
+    public static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<ByteBufferEncoder> threadEncoder = new ThreadLocal<ByteBufferEncoder>()
+    {
+        protected ByteBufferEncoder initialValue()
+        {
+            return new ByteBufferEncoder( DEFAULT_CAPACITY );
+        }
+    };
+
+    private ByteBuffer buffer;
+    private boolean inUse;
+
+    public ByteBufferEncoder( int initialCapacity )
+    {
+        this.buffer = ByteBuffer.allocate( initialCapacity );
+    }
+
+    /**
+     * Returns this thread's encoder, reset to position 0.
+     * If this thread's encoder is already in use (e.g., when encoding
+     * one struct calls toBytes() on another that uses an encoder too),
+     * returns a new encoder instead.
+     */
+    public static ByteBufferEncoder acquire()
+    {
+        ByteBufferEncoder enc = threadEncoder.get();
+        if ( enc.inUse )
+        {
+            enc = new ByteBufferEncoder( DEFAULT_CAPACITY );
+        }
+        enc.inUse = true;
+        enc.reset();
+        return enc;
+    }
+
+    /**
+     * Gives this encoder back after acquire(), so that
+     * the thread can use it again.
+     */
+    public void release()
+    {
+        this.inUse = false;
+        if ( this.buffer.capacity() > MAX_RETAINED_CAPACITY )
+        {
+            this.buffer = ByteBuffer.allocate( DEFAULT_CAPACITY );
+        }
+    }
+
+    /**
+     * Sets the position back to 0.
+     */
+    public void reset()
+    {
+        this.buffer.clear();
+    }
+
+    public int getPosition()
+    {
+        return this.buffer.position();
+    }
+
+    /**
+     * Moves the cursor to the given position.  If this skips
+     * past the end of the bytes written so far, the bytes skipped
+     * are set to 0.
+     *
+     * @param position
+     */
+    public void setPosition( int position )
+    {
+        int cur = this.buffer.position();
+        if ( position > cur )
+        {
+            this.ensureRemaining( position - cur );
+            while ( this.buffer.position() < position )
+            {
+                this.buffer.put( (byte) 0 );
+            }
+        }
+        else
+        {
+            this.buffer.position( position );
+        }
+    }
+
+    /**
+     * Makes sure that there is room for n more bytes,
+     * growing the buffer if necessary.
+     */
+    private void ensureRemaining( int n )
+    {
+        if ( this.buffer.remaining() < n )
+        {
+            int newCapacity = Math.max( this.buffer.capacity() * 2,
+                this.buffer.position() + n );
+            ByteBuffer newBuffer = ByteBuffer.allocate( newCapacity );
+            this.buffer.flip();
+            newBuffer.put( this.buffer );
+            this.buffer = newBuffer;
+        }
+    }
+
+    public void writeBoolean( boolean b )
+    {
+        this.writeByte( (byte) (b ? 1 : 0) );
+    }
+
+    public void writeByte( byte b )
+    {
+        this.ensureRemaining( 1 );
+        this.buffer.put( b );
+    }
+
+    /**
+     * Write 16-bit integer.
+     * (Writes MSB first.)
+     */
+    public void writeShort( short w )
+    {
+        this.ensureRemaining( 2 );
+        this.buffer.putShort( w );
+    }
+
+    /**
+     * Write 32-bit integer.
+     * (Writes MSB first.)
+     */
+    public void writeInt32( int w )
+    {
+        this.ensureRemaining( 4 );
+        this.buffer.putInt( w );
+    }
+
+    public void writeLong( long l )
+    {
+        this.ensureRemaining( 8 );
+        this.buffer.putLong( l );
+    }
+
+    /**
+     * Writes the bytes of data.  (Writes nothing if data is null,
+     * like ByteArrayUtil.concatObjectsBE().)
+     */
+    public void writeBytes( byte[] data )
+    {
+        if ( data != null )
+        {
+            this.writeBytes( data, 0, data.length );
+        }
+    }
+
+    public void writeBytes( byte[] data, int offset, int length )
+    {
+        this.ensureRemaining( length );
+        this.buffer.put( data, offset, length );
+    }
+
+    /**
+     * Writes n zero bytes (e.g., for a fixed-size field that is null).
+     */
+    public void writeZeros( int n )
+    {
+        this.ensureRemaining( n );
+        for ( int i = 0; i < n; i++ )
+        {
+            this.buffer.put( (byte) 0 );
+        }
+    }
+
+    /**
+     * Writes a field that must have exactly length bytes.
+     * (Writes zeros if data is null.)
+     *
+     * @throws IllegalArgumentException if data does not have length bytes
+     */
+    public void writeFixedBytes( byte[] data, int length )
+    {
+        if ( data == null )
+        {
+            this.writeZeros( length );
+        }
+        else if ( data.length != length )
+        {
+            throw new IllegalArgumentException( "ByteBufferEncoder: "
+                + data.length + " bytes given for " + length + "-byte field" );
+        }
+        else
+        {
+            this.writeBytes( data, 0, length );
+        }
+    }
+
+    /**
+     * Writes a struct, directly if it is a ByteBufferEncodable,
+     * or else using toBytes().  (Writes nothing if ba is null.)
+     */
+    public void writeStruct( ByteArrayable ba )
+    {
+        if ( ba instanceof ByteBufferEncodable )
+        {
+            ((ByteBufferEncodable) ba).writeTo( this );
+        }
+        else if ( ba != null )
+        {
+            this.writeBytes( ba.toBytes() );
+        }
+    }
+
+    /**
+     * Writes a primitive type wrapper, byte[], or ByteArrayable
+     * in the same way as ByteArrayUtil.concatObjectsBE().
+     * This is for code that still passes fields as Objects;
+     * the typed write methods are faster.
+     */
+    public void writeObject( Object o )
+    {
+        if ( o instanceof Boolean )
+        {
+            this.writeBoolean( ((Boolean) o).booleanValue() );
+        }
+        else if ( o instanceof Byte )
+        {
+            this.writeByte( ((Byte) o).byteValue() );
+        }
+        else if ( o instanceof Short )
+        {
+            this.writeShort( ((Short) o).shortValue() );
+        }
+        else if ( o instanceof Integer )
+        {
+            this.writeInt32( ((Integer) o).intValue() );
+        }
+        else if ( o instanceof Long )
+        {
+            this.writeLong( ((Long) o).longValue() );
+        }
+        else if ( o instanceof byte[] )
+        {
+            this.writeBytes( (byte[]) o );
+        }
+        else if ( o instanceof ByteArrayable )
+        {
+            this.writeStruct( (ByteArrayable) o );
+        }
+    }
+
+    public void writeObjects( Object... objects )
+    {
+        for ( Object o : objects )
+        {
+            this.writeObject( o );
+        }
+    }
+
+    /**
+     * Returns a new array with the bytes written so far.
+     */
+    public byte[] toBytes()
+    {
+        return this.toBytes( this.buffer.position() );
+    }
+
+    /**
+     * Returns a new array of the given length, with the bytes
+     * written so far (followed by zeros, if fewer were written).
+     *
+     * @param length
+     * @throws IllegalStateException if more than length bytes were written
+     */
+    public byte[] toBytes( int length )
+    {
+        int written = this.buffer.position();
+        if ( written > length )
+        {
+            throw new IllegalStateException( "ByteBufferEncoder: " + written
+                + " bytes written, but only " + length + " expected" );
+        }
+        byte[] ret = new byte[length];
+        System.arraycopy( this.buffer.array(), 0, ret, 0, written );
+        return ret;
+    }
+}
@@ -63,7 +63,8 @@ public class CryptoUtil
     public static final OAEPParameterSpec TCPA_OAEPSHA1MGF1_SPEC = new OAEPParameterSpec(
         "SHA1", "MGF1", MGF1ParameterSpec.SHA1, new PSource.PSpecified(
             "TCPA".getBytes() ) );
-    private static Random rng;
+    private static volatile Random rng;
+    private static volatile boolean seeded = false;
 
     // static initializer
     static
@@ -82,6 +83,36 @@ public class CryptoUtil
         }
     }
 
+    /**
+     * Replaces the random number generator used for nonces 
+     * and software-generated keys with one seeded with the given seed,
+     * so that a program produces the same commands each time it is run.
+     * This is used for recording and replaying TPM traffic.
+     * Note: this makes all nonces and keys predictable, so NEVER use it
+     * except for testing.
+     * 
+     * @param seed
+     */
+    public static void setRandomSeed( long seed )
+    {
+        try
+        {
+            // SHA1PRNG only uses the given seed if it is set before
+            // any random bytes are requested.
+            SecureRandom seeded = SecureRandom.getInstance( "SHA1PRNG", "SUN" );
+            seeded.setSeed( seed );
+            CryptoUtil.rng = seeded;
+            CryptoUtil.seeded = true;
+        }
+        catch ( Exception e )
+        {
+            System.err.println( "Error getting SecureRandom instance: " + e );
+            System.err.println( "Using Java default Random class instead." );
+            CryptoUtil.rng = new Random( seed );
+            CryptoUtil.seeded = true;
+        }
+    }
+
     // General Crypto operations (using byte[])
 
     public static byte[] generateRandomByteArray( int length )
@@ -160,6 +191,35 @@ public class CryptoUtil
         return CryptoUtil.computeSHA1Hash( total );
     }
 
+    /**
+     * Computes the SHA1 hash of the concatenation of the views,
+     * by passing each view to the MessageDigest's update function
+     * (so it does not copy the bytes).
+     */
+    public static byte[] computeSHA1Hash( ByteArrayView... views )
+    {
+        MessageDigest messageDigest;
+        try
+        {
+            messageDigest = MessageDigest.getInstance( "SHA", "SUN" );
+            for ( ByteArrayView view : views )
+            {
+                view.updateDigest( messageDigest );
+            }
+            return messageDigest.digest();
+        }
+        catch ( NoSuchAlgorithmException e )
+        {
+            e.printStackTrace();
+            return null;
+        }
+        catch ( NoSuchProviderException e )
+        {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
     // TPM-related operations (using TPM structs)
 
     public static TPM_NONCE generateRandomNonce()
@@ -550,7 +610,17 @@ public class CryptoUtil
         try
         {
             KeyPairGenerator keyGen = KeyPairGenerator.getInstance( "RSA" );
-            keyGen.initialize( TPMConsts.TPM_RSA_KEY_SIZE_BITS );
+            Random r = CryptoUtil.rng;
+            if ( CryptoUtil.seeded && (r instanceof SecureRandom) )
+            {
+                // see setRandomSeed()
+                keyGen.initialize( TPMConsts.TPM_RSA_KEY_SIZE_BITS,
+                    (SecureRandom) r );
+            }
+            else
+            {
+                keyGen.initialize( TPMConsts.TPM_RSA_KEY_SIZE_BITS );
+            }
             KeyPair keyPair = keyGen.genKeyPair();
             return keyPair;
         }
@@ -34,6 +34,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.lang.reflect.Method;
 
 public class FileUtil
 {
@@ -59,4 +60,98 @@ public class FileUtil
         fos.close();
     }
 
+    /**
+     * Replaces the file with a new one that only its owner can read
+     * and write (mode 0600), and writes buf to it.  The permissions are
+     * restricted before anything is written.  If the file's directory
+     * does not exist, it is created, accessible only by its owner.
+     * 
+     * @throws IOException if the file cannot be created, or its
+     *     permissions cannot be restricted
+     */
+    public static void writePrivateByteArray( File f, byte[] buf )
+        throws IOException
+    {
+        File dir = f.getAbsoluteFile().getParentFile();
+        if ( !dir.isDirectory() )
+        {
+            if ( !dir.mkdirs() )
+            {
+                throw new IOException( "Cannot create directory " + dir );
+            }
+            restrictToOwner( dir, true );
+        }
+        if ( f.exists() && !f.delete() )
+        {
+            throw new IOException( "Cannot replace " + f );
+        }
+        if ( !f.createNewFile() )
+        {
+            throw new IOException( "Cannot create " + f );
+        }
+        restrictToOwner( f, false );
+        writeByteArray( f.getPath(), buf );
+    }
+
+    /**
+     * Makes the file (or directory) accessible only by its owner,
+     * using File.setReadable() etc. if they are available (Java 6),
+     * and chmod otherwise.  (On Windows, where files cannot be made
+     * unreadable this way, this relies on the ACLs of the directory,
+     * e.g., the user's home directory, and does nothing.)
+     * 
+     * @throws IOException if the permissions could not be set
+     */
+    public static void restrictToOwner( File f, boolean directory )
+        throws IOException
+    {
+        if ( File.separatorChar == '\\' )
+        {
+            return;
+        }
+        try
+        {
+            boolean ok = true;
+            String[] names = { "setReadable", "setWritable", "setExecutable" };
+            for ( String name : names )
+            {
+                Method m = File.class.getMethod( name, boolean.class,
+                    boolean.class );
+                boolean owner = directory || !name.equals( "setExecutable" );
+                ok &= (Boolean) m.invoke( f, false, false );
+                ok &= (Boolean) m.invoke( f, owner, true );
+            }
+            if ( !ok )
+            {
+                throw new IOException( "Cannot restrict permissions of " + f );
+            }
+        }
+        catch ( NoSuchMethodException e )
+        {
+            // Java 5
+            try
+            {
+                Process p = Runtime.getRuntime().exec( new String[] { "chmod",
+                    directory ? "700" : "600", f.getPath() } );
+                if ( p.waitFor() != 0 )
+                {
+                    throw new IOException( "chmod failed on " + f );
+                }
+            }
+            catch ( InterruptedException e2 )
+            {
+                Thread.currentThread().interrupt();
+                throw new IOException( "Interrupted while restricting permissions of " + f );
+            }
+        }
+        catch ( IOException e )
+        {
+            throw e;
+        }
+        catch ( Exception e )
+        {
+            throw new IOException( "Cannot restrict permissions of " + f
+                + ": " + e );
+        }
+    }
 }
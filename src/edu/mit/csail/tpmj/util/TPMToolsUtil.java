@@ -35,6 +35,7 @@ import java.math.BigInteger;
 import bayanihan.util.params.SwitchParams;
 import edu.mit.csail.tpmj.TPMException;
 import edu.mit.csail.tpmj.drivers.TPMDriver;
+import edu.mit.csail.tpmj.drivers.TPMDriverFactory;
 import edu.mit.csail.tpmj.funcs.TPMUtilityFuncs;
 import edu.mit.csail.tpmj.structs.TPM_RESULT;
 import edu.mit.csail.tpmj.structs.TPM_SECRET;
@@ -81,6 +82,36 @@ public class TPMToolsUtil
      * command-line switches.  The default behavior is to check
      * for the -D switch, and create a DebugginTPMDriverWrapper around
      * the tpmDriver. 
+     * The /persistent switch makes the Linux driver keep the device
+     * open between commands.  (To use a device other than the default,
+     * set the tpmj.device system property.  To spread commands over
+     * several devices, set tpmj.devices to a comma-separated list.) 
+     * The /framed switch makes it read responses by their paramSize,
+     * for device stand-ins (e.g., FIFOs or ptys) that split them up.
+     * The /socket host:port switch uses a software TPM listening
+     * on that TCP port instead, and /socketPool n lets it use up to n 
+     * connections at once.
+     * The /daemon switch sends the commands to a TPMDaemon (which owns
+     * the TPM, and can be shared by many processes) on the default port,
+     * or /daemon host:port on the given one.
+     * The /emulator switch uses an in-memory SoftwareTPM instead
+     * of a real TPM, and /emulatorDurations s,m,l sets its
+     * short, medium and long command latencies (in microseconds).
+     * The /record file switch records all TPM commands and responses
+     * to the given file, and /replay file answers commands from
+     * such a recording instead of using a TPM (/replayTiming can be
+     * none, durations, or original).  /randomSeed n makes the nonces
+     * the same on every run, so that commands with authorization
+     * can be replayed.  (Since switch values cannot start with "/",
+     * use the tpmj.record or tpmj.replay property for absolute paths.)
+     * The /coalesce switch lets identical concurrent read commands
+     * share one round trip to the TPM, and /capabilityCache caches 
+     * TPM_GetCapability responses.
+     * The /profile switch saves the TPM's manufacturer, version, etc. in 
+     * a device profile (in TPMDriverFactory.DEFAULT_PROFILE_DIR, or the
+     * tpmj.profileDir property), so that later runs can skip getting them.
+     * The /metrics switch keeps per-ordinal counts and latencies of the
+     * commands, which can be seen through JMX (e.g., with jconsole).
      */
     public static TPMDriver initDriverFromParams( SwitchParams params )
     {
@@ -90,6 +121,81 @@ public class TPMToolsUtil
             // when it does create the driver.
             Debug.setDebugOn( TPMDriver.class, true );
         }
+        if ( params.getBoolean( "persistent" ) )
+        {
+            System.setProperty( TPMDriverFactory.PERSISTENT_PROPERTY, "true" );
+        }
+        if ( params.getBoolean( "framed" ) )
+        {
+            System.setProperty( TPMDriverFactory.FRAMED_PROPERTY, "true" );
+        }
+        if ( params.getBoolean( "coalesce" ) )
+        {
+            System.setProperty( TPMDriverFactory.COALESCE_PROPERTY, "true" );
+        }
+        if ( params.getBoolean( "profile" )
+            && (System.getProperty( TPMDriverFactory.PROFILE_DIR_PROPERTY ) == null) )
+        {
+            System.setProperty( TPMDriverFactory.PROFILE_DIR_PROPERTY,
+                TPMDriverFactory.DEFAULT_PROFILE_DIR );
+        }
+        if ( params.getBoolean( "metrics" ) )
+        {
+            System.setProperty( TPMDriverFactory.METRICS_PROPERTY, "true" );
+        }
+        if ( params.getBoolean( "capabilityCache" ) )
+        {
+            System.setProperty( TPMDriverFactory.CAPABILITY_CACHE_PROPERTY,
+                "true" );
+        }
+        String socketAddress = params.getString( "socket" );
+        if ( socketAddress != null )
+        {
+            System.setProperty( TPMDriverFactory.SOCKET_PROPERTY, socketAddress );
+        }
+        String daemonAddress = params.getString( "daemon" );
+        if ( daemonAddress != null )
+        {
+            System.setProperty( TPMDriverFactory.DAEMON_PROPERTY,
+                (daemonAddress.length() == 0) ? "true" : daemonAddress );
+        }
+        String socketPool = params.getString( "socketPool" );
+        if ( socketPool != null )
+        {
+            System.setProperty( TPMDriverFactory.SOCKET_POOL_PROPERTY, socketPool );
+        }
+        if ( params.getBoolean( "emulator" ) )
+        {
+            System.setProperty( TPMDriverFactory.EMULATOR_PROPERTY, "true" );
+        }
+        String emulatorDurations = params.getString( "emulatorDurations" );
+        if ( emulatorDurations != null )
+        {
+            System.setProperty( TPMDriverFactory.EMULATOR_DURATIONS_PROPERTY,
+                emulatorDurations );
+        }
+        String recordPath = params.getString( "record" );
+        if ( recordPath != null )
+        {
+            System.setProperty( TPMDriverFactory.RECORD_PROPERTY, recordPath );
+        }
+        String replayPath = params.getString( "replay" );
+        if ( replayPath != null )
+        {
+            System.setProperty( TPMDriverFactory.REPLAY_PROPERTY, replayPath );
+        }
+        String replayTiming = params.getString( "replayTiming" );
+        if ( replayTiming != null )
+        {
+            System.setProperty( TPMDriverFactory.REPLAY_TIMING_PROPERTY,
+                replayTiming );
+        }
+        String randomSeed = params.getString( "randomSeed" );
+        if ( randomSeed != null )
+        {
+            System.setProperty( TPMDriverFactory.RANDOM_SEED_PROPERTY,
+                randomSeed );
+        }
         
         // Initialize the TPM driver
         TPMDriver tpmDriver = TPMUtilityFuncs.getTPMDriver();